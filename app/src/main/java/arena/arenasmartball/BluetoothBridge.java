@@ -15,6 +15,7 @@ import arena.arenasmartball.ball.Services;
 import arena.arenasmartball.ball.SmartBall;
 import arena.arenasmartball.ball.SmartBallConnection;
 import arena.arenasmartball.ball.SmartBallScanner;
+import arena.arenasmartball.ball.SmartBallSessionManager;
 import arena.arenasmartball.data.Impact;
 
 /**
@@ -41,6 +42,12 @@ public class BluetoothBridge implements SmartBallConnection.SmartBallConnectionL
     /** Constant indicating BT is not available on the current device */
     public static final int BT_NOT_AVAILABLE = -1;
 
+    /** The largest number of concurrent multi-ball sessions, the usual limit of concurrent BLE connections. */
+    public static final int MAX_SESSIONS = 7;
+
+    // The number of threads decoding, and of threads classifying, the data of multi-ball sessions
+    private static final int SESSION_PROCESSING_THREADS = 2;
+
     // The parent Activity
     private MainActivity activity;
 
@@ -53,6 +60,9 @@ public class BluetoothBridge implements SmartBallConnection.SmartBallConnectionL
     // The SmartBallConnection handle
     private SmartBallConnection smartBallConnection;
 
+    // The sessions reading from several balls at once, null until first used
+    private SmartBallSessionManager sessionManager;
+
 //    // Records the time of the last impact recorded by the app, in milliseconds from Jan 1 1970
 //    private long timeOfLastImpact;
 //
@@ -199,6 +209,42 @@ public class BluetoothBridge implements SmartBallConnection.SmartBallConnectionL
             return smartBallConnection.getSmartBall();
     }
 
+    /**
+     * Gets the SmartBallSessionManager running sessions with several balls at once, alongside the current
+     * SmartBallConnection.
+     * @return The SmartBallSessionManager of this BluetoothBridge, or null if no session has been opened
+     */
+    public SmartBallSessionManager getSessionManager()
+    {
+        return sessionManager;
+    }
+
+    /**
+     * Gets whether any multi-ball session is open, without creating the SmartBallSessionManager.
+     * @return Whether any session is open
+     */
+    public boolean hasSessions()
+    {
+        return sessionManager != null && !sessionManager.getSessions().isEmpty();
+    }
+
+    /**
+     * Opens a multi-ball session with a ScanResult, without closing the current connection or other sessions.
+     * @param result The ScanResult
+     * @return The Session, or null if MAX_SESSIONS sessions are already open
+     */
+    public SmartBallSessionManager.Session openSession(ScanResult result)
+    {
+        // Make sure scanning has stopped
+        smartBallScanner.stopScanning();
+
+        // Create the manager, and its processing threads, only once a session is opened
+        if (sessionManager == null)
+            sessionManager = new SmartBallSessionManager(MAX_SESSIONS, SESSION_PROCESSING_THREADS);
+
+        return sessionManager.open(activity, result);
+    }
+
     /**
      * Starts scanning.
      */
@@ -226,14 +272,19 @@ public class BluetoothBridge implements SmartBallConnection.SmartBallConnectionL
         // Make sure scanning has stopped
         smartBallScanner.stopScanning();
 
-        // Close old connections if applicable
+        // Close old connections if applicable, including one connecting or reconnecting on its own
         if (smartBallConnection != null &&
-            smartBallConnection.getConnectionState() == SmartBallConnection.ConnectionState.CONNECTED)
+            smartBallConnection.getConnectionState() != SmartBallConnection.ConnectionState.DISCONNECTED &&
+            smartBallConnection.getConnectionState() != SmartBallConnection.ConnectionState.NOT_CONNECTED)
         {
             Log.w(TAG, "Forced to cancel old connection before opening new connection");
             smartBallConnection.disconnect();
         }
 
+        // Release the threads of the replaced connection
+        if (smartBallConnection != null)
+            smartBallConnection.getSmartBall().close();
+
         // Connect
         smartBallConnection = new SmartBallConnection(result);
         smartBallConnection.connect(activity, this);
@@ -434,6 +485,19 @@ public class BluetoothBridge implements SmartBallConnection.SmartBallConnectionL
             listener.onBluetoothBridgeStateChanged(this, this.state, oldState);
     }
 
+    /**
+     * Called when the connection to the SmartBall has been re-established. The last Impact is kept across the lost
+     * connection, and receives any interrupted transmission again.
+     *
+     * @param ball The SmartBall
+     * @param transmissionResumed True if a transmission interrupted by the lost connection has been requested again
+     */
+    @Override
+    public void onBallReconnected(SmartBall ball, boolean transmissionResumed)
+    {
+        Log.d(TAG, "Reconnected to " + ball.DEVICE.getName() + ", transmission resumed: " + transmissionResumed);
+    }
+
     /*
      * Verifies that BT is ready, launching the request to turn BT on dialog if otherwise.
      */
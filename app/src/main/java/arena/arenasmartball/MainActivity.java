@@ -3,6 +3,7 @@ package arena.arenasmartball;
 import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -213,8 +214,8 @@ public class MainActivity extends AppCompatActivity
             DrawerItem.values()[0].openDrawer(this);
         }
 
-        // TODO Init Correlator
-        Correlator.initialize(this);
+        // Load the models and warm up the classification pipeline in the background
+        Correlator.initializeAsync(this, true);
     }
 
     /**
@@ -581,6 +582,21 @@ public class MainActivity extends AppCompatActivity
         );
         AppIndex.AppIndexApi.end(client, viewAction);
         client.disconnect();
+
+        // Persist cached classifications off the UI thread
+        Correlator.saveCacheAsync();
+    }
+
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+
+        // Release cached classifications under memory pressure
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            Correlator.trimCache(0.0f);
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            Correlator.trimCache(0.5f);
     }
 
     /**
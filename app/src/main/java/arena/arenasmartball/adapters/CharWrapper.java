@@ -5,6 +5,7 @@ import android.widget.TextView;
 import arena.arenasmartball.MainActivity;
 import arena.arenasmartball.R;
 import arena.arenasmartball.ball.GattCommand;
+import arena.arenasmartball.ball.GattCommandSequence;
 import arena.arenasmartball.ball.GattCommandUtils;
 import arena.arenasmartball.ball.Services;
 import arena.arenasmartball.ball.SmartBall;
@@ -77,7 +78,7 @@ class CharWrapper
                         textView.postInvalidateDelayed(1000L);
 
                     }
-                }), CHARACTERISTIC.name(), null);
+                }), CHARACTERISTIC.name(), null, GattCommandSequence.Priority.DIAGNOSTIC);
         }
         else if (value != null)
         {
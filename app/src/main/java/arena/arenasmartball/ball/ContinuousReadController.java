@@ -3,14 +3,21 @@ package arena.arenasmartball.ball;
 import android.util.Log;
 
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import arena.arenasmartball.MainActivity;
+import arena.arenasmartball.correlation.ClassificationStage;
 import arena.arenasmartball.data.Impact;
 import arena.arenasmartball.data.ImpactData;
 import arena.arenasmartball.fragments.DownloadFragment;
 
 /**
- * Thread for managing simulated continuous reads from the Smart Ball.
+ * Thread for managing simulated continuous reads from the Smart Ball. The kick re-arm and the next data request are
+ * scheduled on a single executor as soon as the protocol allows, with pacing adjustable while recording, and the duty
+ * cycle of the transfers is measured.
  *
  * Created by Nathaniel on 10/28/2016.
  */
@@ -30,20 +37,79 @@ public class ContinuousReadController implements SmartBall.EventListener,
     // Log TAG String
     private static final String TAG = "CRC";
 
-    // Number of samples to request at once
-    private int numSamples;
+    // Number of samples to request at once, when not adapting the transfer size
+    private volatile int numSamples;
 
-    // Delay between kick event and data request
-    private long delay;
+    // The smallest number of samples requested at once when adapting the transfer size
+    private static final int MIN_ADAPTIVE_SAMPLES = 96;
+
+    // Default target time from a data request to its last sample arriving, in milliseconds
+    private static final double DEFAULT_TRANSFER_TARGET_LATENCY_MS = 250.0;
+
+    // Chooses the number of samples to request from measured transfers
+    private final TransferSizeController sizeController;
+
+    // Whether the number of samples requested is chosen by the sizeController
+    private volatile boolean adaptiveTransferSize;
+
+    // The relative change in the number of samples requested below which it is not logged
+    private static final double SIZE_LOG_THRESHOLD = 0.05;
+
+    // The number of samples last requested, accessed only by the scheduler
+    private int lastRequestSize;
+
+    // Delay between kick event and data request, in milliseconds
+    private volatile long delay;
+
+    // Delay between the end of a transfer and re-arming the kick, in milliseconds
+    private volatile long rearmDelay;
+
+    // Schedules re-arms and data requests while recording, null otherwise
+    private ScheduledExecutorService scheduler;
+
+    // Transfer metrics, guarded by this
+    private long recordingStartNanos, recordingStopNanos, transferStartNanos, lastTransferEndNanos, totalTransferNanos, totalGapNanos,
+            maxGapNanos;
+    private int numTransfers, numGaps;
+    private long numSamplesRead;
 
     // Optional additional DataListener
     private SmartBall.DataListener listener;
 
+    // The largest number of transmissions waiting to be classified
+    private static final int CLASSIFICATION_QUEUE_CAPACITY = 4;
+
+    // Target latency from the end of a transmission to its classification, in milliseconds
+    private static final double CLASSIFICATION_TARGET_LATENCY_MS = 50.0;
+
+    // Classifies each transmission as it completes
+    private final ClassificationStage classificationStage;
+
+    // Whether the classificationStage is started and stopped with recording, rather than shared and run by its owner
+    private final boolean ownsClassificationStage;
+
+    // The index of the first sample of the current transmission
+    private int transmissionStart;
+
+    // Whether a transmission has begun but not ended, in which case a new start frame restarts it
+    private boolean inTransmission;
+
     /**
      * Creates a ContinuousReadController for the specified SmartBall.
      * @param smartBall The SmartBall from which to read continuously
      */
     public ContinuousReadController(SmartBall smartBall)
+    {
+        this(smartBall, null);
+    }
+
+    /**
+     * Creates a ContinuousReadController for the specified SmartBall, submitting its transmissions to a
+     * ClassificationStage shared with other SmartBalls. The shared stage is not started or stopped with recording.
+     * @param smartBall The SmartBall from which to read continuously
+     * @param classificationStage The shared ClassificationStage, or null to classify on a stage of this controller
+     */
+    public ContinuousReadController(SmartBall smartBall, ClassificationStage classificationStage)
     {
         super();
 
@@ -51,8 +117,132 @@ public class ContinuousReadController implements SmartBall.EventListener,
 
         data = new ImpactData(-1, true);
 
-        numSamples = 1096;
+        numSamples = GattCommandUtils.MAX_SAMPLES_PER_REQUEST;
         delay = 10L;
+        rearmDelay = 0L;
+
+        sizeController = new TransferSizeController(MIN_ADAPTIVE_SAMPLES, GattCommandUtils.MAX_SAMPLES_PER_REQUEST,
+                DEFAULT_TRANSFER_TARGET_LATENCY_MS);
+        adaptiveTransferSize = true;
+
+        ownsClassificationStage = classificationStage == null;
+        this.classificationStage = ownsClassificationStage ?
+                new ClassificationStage(CLASSIFICATION_QUEUE_CAPACITY, CLASSIFICATION_TARGET_LATENCY_MS) :
+                classificationStage;
+    }
+
+    /**
+     * Gets the SmartBall from which this ContinuousReadController reads.
+     * @return The SmartBall of this ContinuousReadController
+     */
+    public SmartBall getSmartBall()
+    {
+        return smartBall;
+    }
+
+    /**
+     * Gets the ClassificationStage classifying each transmission as it completes, to which listeners may be added.
+     * @return The ClassificationStage of this ContinuousReadController
+     */
+    public ClassificationStage getClassificationStage()
+    {
+        return classificationStage;
+    }
+
+    /**
+     * Sets whether the number of samples requested in each transfer is chosen adaptively from measured throughput,
+     * round trip time and the latency target of the TransferSizeController, or fixed.
+     * @param adaptive True to adapt the transfer size, false to request the fixed number of samples
+     */
+    public void setAdaptiveTransferSize(boolean adaptive)
+    {
+        adaptiveTransferSize = adaptive;
+    }
+
+    /**
+     * Sets the fixed number of samples to request in each transfer when not adapting the transfer size.
+     * @param numSamples The number of samples, capped at GattCommandUtils.MAX_SAMPLES_PER_REQUEST
+     */
+    public void setNumSamples(int numSamples)
+    {
+        if (numSamples <= 0)
+            throw new IllegalArgumentException("Number of samples must be positive: " + numSamples);
+
+        this.numSamples = Math.min(numSamples, GattCommandUtils.MAX_SAMPLES_PER_REQUEST);
+    }
+
+    /**
+     * Gets the TransferSizeController choosing the number of samples to request, through which the latency target
+     * may be set.
+     * @return The TransferSizeController of this ContinuousReadController
+     */
+    public TransferSizeController getTransferSizeController()
+    {
+        return sizeController;
+    }
+
+    /**
+     * Sets the delay between a kick event and the following data request. Takes effect on the next kick.
+     * @param delayMs The delay, in milliseconds
+     */
+    public void setRequestDelay(long delayMs)
+    {
+        if (delayMs < 0L)
+            throw new IllegalArgumentException("Delay must not be negative: " + delayMs);
+
+        delay = delayMs;
+    }
+
+    /**
+     * Sets the delay between the end of a transfer and re-arming the kick. Takes effect on the next transfer.
+     * @param delayMs The delay, in milliseconds
+     */
+    public void setRearmDelay(long delayMs)
+    {
+        if (delayMs < 0L)
+            throw new IllegalArgumentException("Delay must not be negative: " + delayMs);
+
+        rearmDelay = delayMs;
+    }
+
+    /**
+     * Gets the fraction of the time since recording started spent transferring data.
+     * @return The duty cycle, between 0 and 1
+     */
+    public synchronized double getDutyCycle()
+    {
+        long elapsed = getElapsedNanos();
+        return numTransfers == 0 || elapsed <= 0L ? 0.0 : totalTransferNanos / (double) elapsed;
+    }
+
+    /**
+     * Gets the mean time between the end of one transfer and the start of the next.
+     * @return The mean inter-transfer gap, in milliseconds
+     */
+    public synchronized double getMeanGapMs()
+    {
+        return numGaps == 0 ? 0.0 : totalGapNanos / 1e6 / numGaps;
+    }
+
+    /**
+     * Gets the number of samples read per second since recording started.
+     * @return The number of samples read per second
+     */
+    public synchronized double getSamplesPerSecond()
+    {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0L ? 0.0 : numSamplesRead * 1e9 / elapsed;
+    }
+
+    /**
+     * Gets a String summarizing the transfers since recording started.
+     * @return A String summarizing the transfers
+     */
+    public synchronized String getStats()
+    {
+        return String.format(Locale.US, "transfers = %d, duty cycle = %.1f%%, mean gap = %.1f ms, max gap = %.1f ms, " +
+                "samples/s = %.0f", numTransfers, 100.0 * getDutyCycle(), getMeanGapMs(), maxGapNanos / 1e6,
+                getSamplesPerSecond());
     }
 
     /**
@@ -72,7 +262,31 @@ public class ContinuousReadController implements SmartBall.EventListener,
         {
             isRecording = true;
 
+            synchronized (this)
+            {
+                recordingStartNanos = System.nanoTime();
+                recordingStopNanos = lastTransferEndNanos = transferStartNanos = 0L;
+                totalTransferNanos = totalGapNanos = maxGapNanos = 0L;
+                numTransfers = numGaps = 0;
+                numSamplesRead = 0L;
+
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
             Log.d(TAG, "Start Recording");
+
+            if (ownsClassificationStage)
+                classificationStage.start();
+
             smartBall.addEventListener(this);
             smartBall.addDataListener(this);
             GattCommandUtils.executeKickCommandSequence(smartBall, this);
@@ -92,6 +306,21 @@ public class ContinuousReadController implements SmartBall.EventListener,
             isRecording = false;
             smartBall.removeEventListener(this);
             smartBall.removeDataListener(this);
+
+            synchronized (this)
+            {
+                recordingStopNanos = System.nanoTime();
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+
+            Log.d(TAG, "Transfers: " + getStats());
+            Log.d(TAG, "Transfer size: " + sizeController.getStats());
+
+            Log.d(TAG, "Classification: " + classificationStage.getStats());
+
+            if (ownsClassificationStage)
+                classificationStage.stop();
         }
     }
 
@@ -122,8 +351,7 @@ public class ContinuousReadController implements SmartBall.EventListener,
     {
         if (data.getNumSamples() > 0)
         {
-            Impact impact = new Impact(data, (long)(data.SAMPLES.get(0).time * 1000.0),
-                    MainActivity.getBluetoothBridge().getSmartBallConnection().getBluetoothGatt().getDevice().getName());
+            Impact impact = new Impact(data, (long)(data.SAMPLES.get(0).time * 1000.0), smartBall.DEVICE.getName());
             DownloadFragment.saveImpact(impact);
         }
     }
@@ -149,19 +377,24 @@ public class ContinuousReadController implements SmartBall.EventListener,
 
         if (isRecording && event == SmartBall.KickEvent.KICKED)
         {
-            new Thread(new Runnable() {
+            schedule(new Runnable()
+            {
                 @Override
-                public void run() {
-                    try
-                    {
-                        Thread.sleep(delay);
-                        GattCommandUtils.executeDataTransmitCommandSequence(smartBall, numSamples, 2, ContinuousReadController.this);
-                        data.mark(System.currentTimeMillis() / 1000.0);
-                    }
-                    catch (InterruptedException ignore)
-                    {   }
+                public void run()
+                {
+                    int size = adaptiveTransferSize ? sizeController.nextRequestSize() : numSamples;
+
+                    if (Math.abs(size - lastRequestSize) > SIZE_LOG_THRESHOLD * lastRequestSize)
+                        Log.d(TAG, "Request size " + lastRequestSize + " -> " + size + ": " +
+                                sizeController.getStats());
+
+                    lastRequestSize = size;
+
+                    sizeController.onRequestIssued(System.nanoTime());
+                    GattCommandUtils.executeDataTransmitCommandSequence(smartBall, size, 2, ContinuousReadController.this);
+                    data.mark(System.currentTimeMillis() / 1000.0);
                 }
-            }).start();
+            }, delay);
         }
     }
 
@@ -171,16 +404,57 @@ public class ContinuousReadController implements SmartBall.EventListener,
 
     }
 
+    @Override
+    public void onBallReconnected(final SmartBall ball, boolean transmissionResumed)
+    {
+        Log.d(TAG, "Reconnected, transmission resumed: " + transmissionResumed);
+
+        // Otherwise the re-arm queued before the connection was lost has been discarded
+        if (isRecording && !transmissionResumed)
+        {
+            schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    GattCommandUtils.executeKickCommandSequence(ball, ContinuousReadController.this);
+                }
+            }, rearmDelay);
+        }
+    }
+
     @Override
     public void onSmartBallDataRead(final SmartBall ball, byte[] data, boolean start, boolean end, byte type)
     {
 //        Log.d(TAG, "Data Read!: " + Arrays.toString(data));
         if (isRecording)
         {
-            if (!(start || end))
+            long now = System.nanoTime();
+
+            if (start)
+            {
+                // A transmission interrupted by a lost connection is sent again once reconnected, from the first
+                // sample missing from the Impact receiving it or from its start, as echoed by the start frame
+                if (inTransmission)
+                    this.data.truncate(transmissionStart + SmartBallProtocol.getStartFrameFirstSample(data));
+                else
+                    transmissionStart = this.data.getNumSamples();
+
+                inTransmission = true;
+                onTransferStarted(now);
+                sizeController.onTransferStarted(now);
+            }
+            else if (!end)
             {
                 this.data.addLine(data);
             }
+            else
+            {
+                inTransmission = false;
+                classificationStage.submit(smartBall, this.data, transmissionStart, this.data.getNumSamples(), now);
+                onTransferEnded(now, this.data.getNumSamples() - transmissionStart);
+                sizeController.onTransferEnded(now, this.data.getNumSamples() - transmissionStart);
+            }
 
             if (listener != null)
             {
@@ -189,22 +463,68 @@ public class ContinuousReadController implements SmartBall.EventListener,
 
             if (end)
             {
-                new Thread(new Runnable() {
+                // The command executor serializes the re-arm behind any outstanding command, so it is queued at once
+                schedule(new Runnable()
+                {
                     @Override
-                    public void run() {
-                        try
-                        {
-                            Thread.sleep(5L);
-                            GattCommandUtils.executeKickCommandSequence(ball, ContinuousReadController.this);
-                        }
-                        catch (InterruptedException ignore)
-                        {   }
+                    public void run()
+                    {
+                        GattCommandUtils.executeKickCommandSequence(ball, ContinuousReadController.this);
                     }
-                }).start();
+                }, rearmDelay);
             }
         }
     }
 
+    /*
+     * Gets the time since recording started, up to when it stopped.
+     */
+    private synchronized long getElapsedNanos()
+    {
+        return (recordingStopNanos != 0L ? recordingStopNanos : System.nanoTime()) - recordingStartNanos;
+    }
+
+    /*
+     * Runs a task on the scheduler after the given delay, if still recording.
+     */
+    private synchronized void schedule(Runnable task, long delayMs)
+    {
+        if (scheduler != null && !scheduler.isShutdown())
+            scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Records the start of a transfer.
+     */
+    private synchronized void onTransferStarted(long now)
+    {
+        if (lastTransferEndNanos != 0L)
+        {
+            long gap = now - lastTransferEndNanos;
+            totalGapNanos += gap;
+            maxGapNanos = Math.max(maxGapNanos, gap);
+            ++numGaps;
+        }
+
+        transferStartNanos = now;
+    }
+
+    /*
+     * Records the end of a transfer.
+     */
+    private synchronized void onTransferEnded(long now, int samples)
+    {
+        if (transferStartNanos != 0L)
+        {
+            totalTransferNanos += now - transferStartNanos;
+            ++numTransfers;
+        }
+
+        numSamplesRead += samples;
+        transferStartNanos = 0L;
+        lastTransferEndNanos = now;
+    }
+
     @Override
     public void onSmartBallDataTransmissionEvent(SmartBall ball, byte dataType, SmartBall.DataEvent event, int numSamples)
     {
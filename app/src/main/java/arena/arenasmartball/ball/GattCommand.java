@@ -1,15 +1,13 @@
 package arena.arenasmartball.ball;
 
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.util.Log;
 
-import java.util.TreeSet;
 import java.util.UUID;
 
 /**
- * A command to send to the SmartBall through the BluetoothGatt.
+ * A command to send to the SmartBall through its SmartBallLink.
  * @param <T> either Characteristic or Descriptor.
  *
  * Created by Theodore on 5/12/2015.
@@ -20,12 +18,15 @@ public class GattCommand<T>
     /** The tag for this class. */
     private static final String TAG = "GattCommand";
 
-    /** Keeps track of which Characteristics have been enabled. */
-    private static TreeSet<UUID> enabledCharacteristics = new TreeSet<>();
-
     /** The GattObject attached to this GattCommand. */
     public final T GATT_OBJECT;
 
+    /** The time to wait for the callback of this GattCommand in milliseconds, or 0 to use the executor default. */
+    private long timeoutMs;
+
+    /** The number of times to retry this GattCommand after missing its deadline, or -1 to use the executor default. */
+    private int maxRetries;
+
     /**
      * Constructs a new GattCommand.
      * @param gattObject The Characteristic/Descriptor being accessed
@@ -33,6 +34,7 @@ public class GattCommand<T>
     private GattCommand(T gattObject)
     {
         GATT_OBJECT = gattObject;
+        maxRetries = -1;
 
         // Make sure that types agree
         boolean objectIsChar = gattObject instanceof BluetoothGattCharacteristic;
@@ -43,58 +45,55 @@ public class GattCommand<T>
     }
 
     /**
-     * Resets the global enabled characteristic set.
+     * Sets the time to wait for the callback of this GattCommand before retrying it.
+     * @param timeoutMs The timeout in milliseconds, or 0 to use the default of the executor
      */
-    public static void reset()
+    public void setTimeout(long timeoutMs)
     {
-        enabledCharacteristics = new TreeSet<>();
+        if (timeoutMs < 0L)
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeoutMs);
+
+        this.timeoutMs = timeoutMs;
     }
 
     /**
-     * Enables notify on the specified gatt object of the given GattCommand.
-     * @param gatt The BluetoothGatt
-     * @param characteristic Will be non-null if the given GattCommand is of type Characteristic
-     * @param descriptor Will be non-null if the given GattCommand is of type Descriptor
-     * @return True if successful
+     * Gets the time to wait for the callback of this GattCommand before retrying it.
+     * @return The timeout in milliseconds, or 0 if the default of the executor is used
      */
-    public static boolean enableNotifies(BluetoothGatt gatt,
-                                       BluetoothGattCharacteristic characteristic,
-                                       BluetoothGattDescriptor descriptor)
+    public long getTimeout()
     {
-        boolean success = false;
-
-        // Grab the characteristic if only descriptor held
-        if (characteristic == null && descriptor != null)
-            characteristic = descriptor.getCharacteristic();
+        return timeoutMs;
+    }
 
-        // Enable notifies
-        if (characteristic != null)
-        {
-            // If not in the list -> not enabled
-            if (enabledCharacteristics.add(characteristic.getUuid()))
-            {
-                success = gatt.setCharacteristicNotification(characteristic, true);
-                Log.d(TAG, "Enabled characteristic " + characteristic.getUuid() + ": " + success);
+    /**
+     * Sets the number of times to retry this GattCommand after it misses its deadline.
+     * @param maxRetries The number of retries, or -1 to use the default of the executor
+     */
+    public void setMaxRetries(int maxRetries)
+    {
+        if (maxRetries < -1)
+            throw new IllegalArgumentException("Invalid number of retries: " + maxRetries);
 
-                // Failed to enable
-                if (!success)
-                    enabledCharacteristics.remove(characteristic.getUuid());
-            }
-            // Already in the list -> already enabled
-            else
-                return true;
-        }
+        this.maxRetries = maxRetries;
+    }
 
-        return success;
+    /**
+     * Gets the number of times to retry this GattCommand after it misses its deadline.
+     * @return The number of retries, or -1 if the default of the executor is used
+     */
+    public int getMaxRetries()
+    {
+        return maxRetries;
     }
 
     /**
      * Called when this GattCommand needs to be executed.
-     * @param gatt The BluetoothGatt of the SmartBall
+     * @param link The SmartBallLink of the SmartBall
      * @param sequenceName The name of the sequence being executed
+     * @param state The GattStateCache of the connection
      * @return true on success
      */
-    protected boolean execute(BluetoothGatt gatt, String sequenceName)
+    protected boolean execute(SmartBallLink link, String sequenceName, GattStateCache state)
     {
         BluetoothGattCharacteristic characteristic = null;
         BluetoothGattDescriptor descriptor = null;
@@ -111,8 +110,10 @@ public class GattCommand<T>
             return false;
         }
 
+        UUID characteristicUuid = (characteristic != null ? characteristic : descriptor.getCharacteristic()).getUuid();
+
         // Enable notifies
-        if (!enableNotifies(gatt, characteristic, descriptor))
+        if (!state.enableNotifications(link, characteristicUuid))
         {
             Log.w(TAG, sequenceName + ": Failed to execute because enabled notifies failed");
             return false;
@@ -125,14 +126,14 @@ public class GattCommand<T>
         {
             if (GATT_OBJECT instanceof BluetoothGattCharacteristic)
             {
-                result = gatt.readCharacteristic(characteristic);
+                result = link.readCharacteristic(characteristicUuid);
                 if (!result)
                     Log.w(TAG, "Failed to execute GattCommand: Unable to read characteristic");
                 return result;
             }
             else
             {
-                result = gatt.readDescriptor(descriptor);
+                result = link.readDescriptor(characteristicUuid, descriptor.getUuid());
                 if (!result)
                     Log.w(TAG, "Failed to execute GattCommand: Unable to read descriptor");
                 return result;
@@ -142,16 +143,22 @@ public class GattCommand<T>
         {
             if (GATT_OBJECT instanceof BluetoothGattCharacteristic)
             {
-                characteristic.setValue(((WriteGattCommand) this).WRITE_VALUE);
-                result = gatt.writeCharacteristic(characteristic);
+                WriteGattCommand<?> write = (WriteGattCommand<?>) this;
+
+                if (write.isSentWithoutResponse(link))
+                    result = link.writeCharacteristicWithoutResponse(characteristicUuid, write.WRITE_VALUE);
+                else
+                    result = link.writeCharacteristic(characteristicUuid, write.WRITE_VALUE);
+
                 if (!result)
                     Log.w(TAG, "Failed to execute GattCommand: Unable to write characteristic");
                 return result;
             }
             else
             {
-                descriptor.setValue(((WriteGattCommand) this).WRITE_VALUE);
-                result = gatt.writeDescriptor(descriptor);
+                state.onDescriptorWriteIssued(descriptor);
+                result = link.writeDescriptor(characteristicUuid, descriptor.getUuid(),
+                        ((WriteGattCommand) this).WRITE_VALUE);
                 if (!result)
                     Log.w(TAG, "Failed to execute GattCommand: Unable to write descriptor");
                 return result;
@@ -169,6 +176,9 @@ public class GattCommand<T>
         /** The write value of this WriteGattCommand. */
         public final byte[] WRITE_VALUE;
 
+        /** Whether this WriteGattCommand may be written without response. */
+        private boolean withoutResponse;
+
         /**
          * Constructs a new WriteGattCommand.
          * @param gattObject The Characteristic/Descriptor being accessed
@@ -179,6 +189,41 @@ public class GattCommand<T>
             super (gattObject);
             WRITE_VALUE = writeValue;
         }
+
+        /**
+         * Marks this WriteGattCommand as safe to write without response, as for a value whose effect the SmartBall
+         * reports through notifications. It is then written without response if the characteristic allows it, and
+         * completes once the link has accepted it rather than once the SmartBall has acknowledged it.
+         * @param withoutResponse Whether the value may be written without response
+         */
+        public void setWithoutResponse(boolean withoutResponse)
+        {
+            if (withoutResponse && !(GATT_OBJECT instanceof BluetoothGattCharacteristic))
+                throw new IllegalStateException("Only a characteristic may be written without response");
+
+            this.withoutResponse = withoutResponse;
+        }
+
+        /**
+         * Gets whether this WriteGattCommand is marked as safe to write without response.
+         * @return Whether the value may be written without response
+         */
+        public boolean isWithoutResponse()
+        {
+            return withoutResponse;
+        }
+
+        /**
+         * Gets whether this WriteGattCommand is written without response over a link: it is marked as safe to be, and
+         * the characteristic allows it.
+         * @param link The SmartBallLink of the SmartBall
+         * @return Whether the value is written without response
+         */
+        boolean isSentWithoutResponse(SmartBallLink link)
+        {
+            return withoutResponse &&
+                    link.canWriteWithoutResponse(((BluetoothGattCharacteristic) GATT_OBJECT).getUuid());
+        }
     }
 
     /**
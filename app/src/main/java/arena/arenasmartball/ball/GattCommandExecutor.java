@@ -0,0 +1,1105 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serial executor of the GattCommandSequences of a SmartBall. Since the Android Bluetooth stack allows only one
+ * outstanding GATT operation, sequences are executed one command at a time by a single event loop thread.
+ */
+public class GattCommandExecutor
+{
+    /**
+     * The state of the executor.
+     */
+    public enum State
+    {
+        /** No command is outstanding. */
+        IDLE,
+
+        /** A command has been issued and its GATT callback is awaited. */
+        AWAITING_CALLBACK,
+
+        /** The GATT callback of the outstanding command did not arrive in time and the command will be retried. */
+        TIMED_OUT
+    }
+
+    // The tag for this class
+    private static final String TAG = "GattCommandExecutor";
+
+    // The default time to wait for the callback of a command, in milliseconds
+    private static final long DEFAULT_CALLBACK_TIMEOUT_MS = 500L;
+
+    // The default number of times a command is retried after missing its deadline
+    private static final int DEFAULT_MAX_RETRIES = 2;
+
+    // The default delay before the first retry of a command, doubled for each further retry, in milliseconds
+    private static final long DEFAULT_RETRY_BACKOFF_MS = 25L;
+
+    // The largest power of two by which the retry backoff is multiplied
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    // The priorities, in decreasing order
+    private static final GattCommandSequence.Priority[] PRIORITIES = GattCommandSequence.Priority.values();
+
+    // The SmartBall whose sequences are executed
+    private final SmartBall smartBall;
+
+    // The events waiting to be handled by the running event loop, replaced whenever a new loop is started
+    private LinkedBlockingQueue<Runnable> events;
+
+    // The sequences waiting to execute, in one lane per priority indexed by ordinal, accessed only by the event loop
+    private final ArrayDeque<GattCommandSequence>[] lanes;
+
+    // The time to wait for the callback of a command without its own timeout, in milliseconds
+    private volatile long callbackTimeoutMs;
+
+    // The number of retries of a command without its own limit
+    private volatile int maxRetries;
+
+    // The delay before the first retry of a command, in milliseconds
+    private volatile long retryBackoffMs;
+
+    // The event loop thread, null until an event starts it and again once it is shut down
+    private Thread thread;
+
+    // The last event loop thread shut down, which a new loop waits for before handling events
+    private Thread stoppedThread;
+
+    // The current state, written only by the event loop
+    private volatile State state;
+
+    // The sequence currently executing, written only by the event loop
+    private volatile GattCommandSequence current;
+
+    // The System.nanoTime() by which the callback of the outstanding command must arrive when AWAITING_CALLBACK,
+    // or at which the command is retried when TIMED_OUT
+    private long deadlineNanos;
+
+    // The number of times the top command of the current sequence has been retried
+    private int attempt;
+
+    // The number of issued attempts of the top command of the current sequence whose callbacks have not arrived
+    private int numUnanswered;
+
+    // The number of late callbacks still expected from earlier commands, by characteristic and descriptor UUID,
+    // accessed only by the event loop
+    private final HashMap<List<UUID>, Integer> lateCallbacks;
+
+    // The link on which the late callbacks are expected
+    private SmartBallLink lateLink;
+
+    // The value, read flag and status of the last callback discarded as late while the top command of the current
+    // sequence was outstanding on the same characteristic or descriptor, if deferredCallback
+    private boolean deferredCallback, deferredWasRead;
+    private byte[] deferredValue;
+    private int deferredStatus;
+
+    // The MTU waiting to be requested, or 0 if none is, accessed only by the event loop
+    private int pendingMtu;
+
+    // Whether an MTU request is outstanding, accessed only by the event loop
+    private boolean mtuOutstanding;
+
+    // Whether the outstanding command is a write without response, accessed only by the event loop
+    private boolean writeWithoutResponse;
+
+    // Whether a signal strength read is waiting to be issued, and whether one is outstanding, accessed only by the
+    // event loop
+    private boolean rssiRequested, rssiOutstanding;
+
+    // The number of sequences waiting in the lanes, written only by the event loop
+    private volatile int numWaiting;
+
+    // Statistics, written only by the event loop
+    private volatile long numCommands, numSkipped, numTimeouts, numRetries, numStaleCallbacks;
+    private volatile long numPreemptions, numPromotions, numWritesWithoutResponse, numUnconfirmedWrites;
+
+    // The number of sequences begun, and their total and largest wait to begin in nanoseconds, by priority ordinal,
+    // written only by the event loop and read without synchronization for reporting
+    private final long[] numBegun, totalWaitNanos, maxWaitNanos;
+
+    /**
+     * Creates a GattCommandExecutor.
+     * @param smartBall The SmartBall whose sequences to execute
+     */
+    @SuppressWarnings("unchecked")
+    public GattCommandExecutor(SmartBall smartBall)
+    {
+        this.smartBall = smartBall;
+        events = new LinkedBlockingQueue<>();
+        lateCallbacks = new HashMap<>();
+        lanes = (ArrayDeque<GattCommandSequence>[]) new ArrayDeque<?>[PRIORITIES.length];
+
+        for (int i = 0; i < lanes.length; ++i)
+            lanes[i] = new ArrayDeque<>();
+
+        numBegun = new long[PRIORITIES.length];
+        totalWaitNanos = new long[PRIORITIES.length];
+        maxWaitNanos = new long[PRIORITIES.length];
+        callbackTimeoutMs = DEFAULT_CALLBACK_TIMEOUT_MS;
+        maxRetries = DEFAULT_MAX_RETRIES;
+        retryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+        state = State.IDLE;
+    }
+
+    /**
+     * Sets the time to wait for the GATT callback of a command before retrying it, for commands without their own
+     * timeout.
+     * @param timeoutMs The timeout, in milliseconds
+     */
+    public void setCallbackTimeout(long timeoutMs)
+    {
+        if (timeoutMs <= 0L)
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutMs);
+
+        callbackTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Sets the number of times a command missing its deadline is retried before its sequence times out, for commands
+     * without their own limit.
+     * @param retries The number of retries, 0 for none
+     */
+    public void setMaxRetries(int retries)
+    {
+        if (retries < 0)
+            throw new IllegalArgumentException("Retries must not be negative: " + retries);
+
+        maxRetries = retries;
+    }
+
+    /**
+     * Sets the delay before the first retry of a command. The delay is doubled for each further retry.
+     * @param backoffMs The delay, in milliseconds
+     */
+    public void setRetryBackoff(long backoffMs)
+    {
+        if (backoffMs < 0L)
+            throw new IllegalArgumentException("Backoff must not be negative: " + backoffMs);
+
+        retryBackoffMs = backoffMs;
+    }
+
+    /**
+     * Gets the current State of this executor.
+     * @return The current State
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Gets the GattCommandSequence currently executing.
+     * @return The GattCommandSequence currently executing, or null if none is
+     */
+    public GattCommandSequence getCurrentSequence()
+    {
+        return current;
+    }
+
+    /**
+     * Gets whether no sequence is executing or waiting and no operation is outstanding, so that an operation submitted
+     * now would be issued at once.
+     * @return True if idle
+     */
+    public boolean isIdle()
+    {
+        return state == State.IDLE && current == null && numWaiting == 0;
+    }
+
+    /**
+     * Gets a String summarizing the commands executed by this executor.
+     * @return A String summarizing the commands executed
+     */
+    public String getStats()
+    {
+        StringBuilder stats = new StringBuilder("state = " + state + ", commands = " + numCommands + ", skipped = " +
+                numSkipped + ", timeouts = " + numTimeouts +
+                ", retries = " + numRetries + ", stale callbacks = " + numStaleCallbacks + ", preemptions = " +
+                numPreemptions + ", promotions = " + numPromotions + ", writes without response = " +
+                numWritesWithoutResponse + " (" + numUnconfirmedWrites + " unconfirmed)");
+
+        for (GattCommandSequence.Priority priority: PRIORITIES)
+        {
+            if (numBegun[priority.ordinal()] > 0L)
+                stats.append(String.format(Locale.US, ", %s wait = %.1f/%.1f ms", priority,
+                        getMeanQueueWaitMs(priority), getMaxQueueWaitMs(priority)));
+        }
+
+        return stats.toString();
+    }
+
+    /**
+     * Gets the mean time the sequences of a priority have waited to begin.
+     * @param priority The priority
+     * @return The mean wait, in milliseconds, or 0 if no sequence of the priority has begun
+     */
+    public double getMeanQueueWaitMs(GattCommandSequence.Priority priority)
+    {
+        long begun = numBegun[priority.ordinal()];
+        return begun == 0L ? 0.0 : totalWaitNanos[priority.ordinal()] / (begun * 1e6);
+    }
+
+    /**
+     * Gets the longest time a sequence of a priority has waited to begin.
+     * @param priority The priority
+     * @return The longest wait, in milliseconds
+     */
+    public double getMaxQueueWaitMs(GattCommandSequence.Priority priority)
+    {
+        return maxWaitNanos[priority.ordinal()] / 1e6;
+    }
+
+    /**
+     * Submits a GattCommandSequence to be executed after the previously submitted sequences of its priority and of
+     * higher priorities. Waiting sequences are queued in one lane per priority, so a telemetry read cannot delay the
+     * data request following a kick, and a sequence waiting longer than the limit of its priority is begun first so
+     * that lower priorities are not starved. Sequences are delivered their events on the event loop thread.
+     * @param sequence The GattCommandSequence to execute
+     */
+    public void submit(final GattCommandSequence sequence)
+    {
+        final long queuedNanos = System.nanoTime();
+
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ArrayDeque<GattCommandSequence> lane = lanes[sequence.PRIORITY.ordinal()];
+
+                sequence.queuedNanos = queuedNanos;
+                sequence.suspended = false;
+                lane.add(sequence);
+                ++numWaiting;
+                Log.d(TAG, "Command Sequence added to " + sequence.PRIORITY + " queue: " + sequence.NAME +
+                        " @ position " + (lane.size() - 1));
+                executeNext();
+            }
+        });
+    }
+
+    /**
+     * Ends the current and every pending GattCommandSequence, notifying their callbacks that they ended early.
+     * Sequences submitted after this call are unaffected.
+     */
+    public void flush()
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                endAll();
+
+                // An outstanding MTU request or signal strength read keeps its deadline
+                if (!mtuOutstanding && !rssiOutstanding)
+                    state = State.IDLE;
+            }
+        }, false);
+    }
+
+    /**
+     * Ends the current and every pending GattCommandSequence, notifying their callbacks that they ended early, and
+     * stops the event loop thread once it has handled the events posted before this call. To be called once the
+     * connection is closed for good; a sequence submitted afterwards starts a new event loop.
+     */
+    public synchronized void shutdown()
+    {
+        if (thread == null)
+            return;
+
+        events.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                endAll();
+                pendingMtu = 0;
+                mtuOutstanding = false;
+                rssiOutstanding = false;
+                attempt = 0;
+                lateCallbacks.clear();
+                lateLink = null;
+                state = State.IDLE;
+
+                // Ends the event loop
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        stoppedThread = thread;
+        thread = null;
+    }
+
+    /**
+     * Requests that the given MTU be negotiated once no sequence is executing. An MTU exchange is itself a GATT
+     * operation, so sequences wait for its callback or deadline; it is never retried. The result is delivered through
+     * onMtuChanged().
+     * @param mtu The MTU to request, in bytes
+     */
+    public void requestMtu(final int mtu)
+    {
+        if (mtu < SmartBallConnection.DEFAULT_MTU)
+            throw new IllegalArgumentException("MTU must be at least " + SmartBallConnection.DEFAULT_MTU + ": " + mtu);
+
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pendingMtu = mtu;
+                executeNext();
+            }
+        });
+    }
+
+    /**
+     * Delivers the result of an MTU exchange, to be called from the BluetoothGattCallback.
+     * @param mtu The negotiated MTU
+     * @param status The callback status
+     */
+    public void onMtuChanged(final int mtu, final int status)
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!mtuOutstanding)
+                {
+                    ++numStaleCallbacks;
+                    Log.w(TAG, "Ignoring MTU callback in state " + state);
+                    return;
+                }
+
+                Log.d(TAG, "MTU exchange complete: mtu = " + mtu + ", status = " + status);
+                mtuOutstanding = false;
+                state = State.IDLE;
+                executeNext();
+            }
+        }, false);
+    }
+
+    /**
+     * Requests that the signal strength be read once no sequence is executing or waiting. The result is delivered
+     * through onRssiRead(). A request made while another is waiting or outstanding is merged with it.
+     */
+    public void requestRssi()
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!rssiOutstanding)
+                    rssiRequested = true;
+
+                executeNext();
+            }
+        });
+    }
+
+    /**
+     * Delivers the result of a signal strength read, to be called from the BluetoothGattCallback.
+     * @param rssi The signal strength, in dBm
+     * @param status The callback status
+     */
+    public void onRssiRead(final int rssi, final int status)
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!rssiOutstanding)
+                {
+                    ++numStaleCallbacks;
+                    Log.w(TAG, "Ignoring RSSI callback in state " + state);
+                    return;
+                }
+
+                rssiOutstanding = false;
+                state = State.IDLE;
+                executeNext();
+            }
+        }, false);
+    }
+
+    /**
+     * Delivers the result of a GATT operation, to be called from the BluetoothGattCallback. Callbacks are matched to
+     * the outstanding command by characteristic and descriptor, since several descriptors share a UUID; callbacks
+     * arriving while no event loop is running are ignored.
+     * @param characteristic The UUID of the characteristic accessed, or owning the descriptor accessed
+     * @param descriptor The UUID of the descriptor accessed, or null if the characteristic was accessed
+     * @param value The value read or written, which is copied
+     * @param wasRead True if the value was read, false if it was written
+     * @param status The callback status
+     */
+    public void onGattCallback(UUID characteristic, UUID descriptor, byte[] value, final boolean wasRead,
+                               final int status)
+    {
+        final List<UUID> target = Arrays.asList(characteristic, descriptor);
+        final byte[] copy = value == null ? null : value.clone();
+
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handleCallback(target, copy, wasRead, status);
+            }
+        }, false);
+    }
+
+    /*
+     * Posts an event to the event loop, starting the loop if needed.
+     */
+    private void post(Runnable event)
+    {
+        post(event, true);
+    }
+
+    /*
+     * Posts an event to the event loop. If no loop is running, one is started if start is true, and otherwise the
+     * event is dropped.
+     */
+    private synchronized void post(Runnable event, boolean start)
+    {
+        if (thread == null)
+        {
+            if (!start)
+            {
+                Log.d(TAG, "Ignoring event while no event loop is running");
+                return;
+            }
+
+            final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+            final Thread previous = stoppedThread;
+
+            events = queue;
+            stoppedThread = null;
+            thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runLoop(queue, previous);
+                }
+            }, TAG);
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        events.add(event);
+    }
+
+    /*
+     * Handles the events of the given queue until interrupted, timing out and retrying outstanding commands. Deadlines
+     * and backoffs are timed by polling the queue, so no thread or timer is created per command. The execution state
+     * is handed over from the previous loop, if any, once it has stopped.
+     */
+    private void runLoop(LinkedBlockingQueue<Runnable> events, Thread previous)
+    {
+        Runnable event;
+        long waitNanos;
+
+        try
+        {
+            if (previous != null)
+                previous.join();
+
+            while (true)
+            {
+                if (state == State.AWAITING_CALLBACK || state == State.TIMED_OUT)
+                {
+                    waitNanos = deadlineNanos - System.nanoTime();
+                    event = waitNanos > 0L ? events.poll(waitNanos, TimeUnit.NANOSECONDS) : null;
+
+                    if (event == null)
+                    {
+                        if (state == State.AWAITING_CALLBACK)
+                            onTimeout();
+                        else
+                            retry();
+
+                        continue;
+                    }
+                }
+                else
+                {
+                    event = events.take();
+                }
+
+                try
+                {
+                    event.run();
+                }
+                catch (RuntimeException e)
+                {
+                    Log.e(TAG, "Error handling command event: " + e.getMessage());
+                }
+            }
+        }
+        catch (InterruptedException ignore)
+        {   }
+    }
+
+    /*
+     * Ends the current and every waiting sequence, notifying their callbacks that they ended early.
+     */
+    private void endAll()
+    {
+        if (current != null)
+            endCurrent(GattCommandSequence.Event.ENDED_EARLY);
+
+        GattCommandSequence sequence;
+
+        for (ArrayDeque<GattCommandSequence> lane: lanes)
+        {
+            while ((sequence = lane.poll()) != null)
+                dispatch(sequence, GattCommandSequence.Event.ENDED_EARLY);
+        }
+
+        numWaiting = 0;
+        rssiRequested = false;
+    }
+
+    /*
+     * Requests the pending MTU, or else begins or resumes the next pending sequence, if no operation is outstanding.
+     * Sequences failing to begin are removed.
+     */
+    private void executeNext()
+    {
+        GattCommandSequence sequence;
+
+        if (current == null && !mtuOutstanding && !rssiOutstanding && pendingMtu > 0)
+            issueMtuRequest();
+
+        while (current == null && !mtuOutstanding && !rssiOutstanding && (sequence = pollNext()) != null)
+        {
+            attempt = 0;
+
+            if (sequence.suspended)
+            {
+                resume(sequence);
+                continue;
+            }
+
+            Log.d(TAG, "Attempting to begin execution of top sequence in command queue: " + sequence.NAME + "...");
+            recordWait(sequence);
+
+            if (skipRedundant(sequence) && sequence.isEmpty())
+            {
+                // Every command was redundant, so the sequence is complete without a round trip
+                current = sequence;
+                dispatch(sequence, GattCommandSequence.Event.BEGUN_EXECUTION);
+                smartBall.onCommandSequenceBegun(sequence);
+                endCurrent(GattCommandSequence.Event.FINISHED_EXECUTION);
+            }
+            else if (issueTop(sequence))
+            {
+                current = sequence;
+                Log.d(TAG, "Command Sequence begun: " + sequence.NAME);
+
+                dispatch(sequence, GattCommandSequence.Event.BEGUN_EXECUTION);
+                smartBall.onCommandSequenceBegun(sequence);
+            }
+            else
+            {
+                Log.d(TAG, "Command Sequence failed to start and was removed: " + sequence.NAME);
+                dispatch(sequence, GattCommandSequence.Event.FAILED_TO_BEGIN);
+            }
+        }
+
+        if (current == null && !mtuOutstanding && !rssiOutstanding && rssiRequested && numWaiting == 0)
+            issueRssiRead();
+    }
+
+    /*
+     * Removes the next sequence to begin from its lane: the longest overdue of the sequences which have waited longer
+     * than the limit of their priority, or else the first sequence of the highest priority.
+     */
+    private GattCommandSequence pollNext()
+    {
+        long now = System.nanoTime();
+        long overdue, mostOverdue = 0L;
+        int highest = -1, next = -1;
+        GattCommandSequence head;
+
+        for (int i = 0; i < lanes.length; ++i)
+        {
+            head = lanes[i].peek();
+
+            if (head == null)
+                continue;
+
+            if (highest < 0)
+                highest = i;
+
+            if (PRIORITIES[i].MAX_WAIT_MS > 0L)
+            {
+                overdue = now - head.queuedNanos - TimeUnit.MILLISECONDS.toNanos(PRIORITIES[i].MAX_WAIT_MS);
+
+                if (overdue > mostOverdue)
+                {
+                    mostOverdue = overdue;
+                    next = i;
+                }
+            }
+        }
+
+        if (highest < 0)
+            return null;
+
+        if (mostOverdue > 0L && next != highest)
+        {
+            ++numPromotions;
+            Log.w(TAG, "Promoting overdue " + PRIORITIES[next] + " sequence " + lanes[next].peek().NAME);
+            highest = next;
+        }
+
+        --numWaiting;
+        return lanes[highest].poll();
+    }
+
+    /*
+     * Records the time the given sequence waited to begin.
+     */
+    private void recordWait(GattCommandSequence sequence)
+    {
+        int i = sequence.PRIORITY.ordinal();
+        long waitNanos = System.nanoTime() - sequence.queuedNanos;
+
+        ++numBegun[i];
+        totalWaitNanos[i] += waitNanos;
+
+        if (waitNanos > maxWaitNanos[i])
+            maxWaitNanos[i] = waitNanos;
+    }
+
+    /*
+     * Whether the given sequence, between two of its commands, is to be suspended for a waiting REAL_TIME sequence.
+     * An issued command is never interrupted, and a suspended sequence resumes at the head of its lane without a
+     * second BEGUN_EXECUTION event.
+     */
+    private boolean shouldPreempt(GattCommandSequence sequence)
+    {
+        return sequence.PRIORITY.PREEMPTIBLE && !lanes[GattCommandSequence.Priority.REAL_TIME.ordinal()].isEmpty();
+    }
+
+    /*
+     * Suspends the current sequence, returning it to the head of its lane.
+     */
+    private void suspendCurrent()
+    {
+        GattCommandSequence sequence = current;
+        current = null;
+
+        // Its wait restarts, so that it is not immediately overdue
+        sequence.suspended = true;
+        sequence.queuedNanos = System.nanoTime();
+        lanes[sequence.PRIORITY.ordinal()].addFirst(sequence);
+        ++numWaiting;
+        ++numPreemptions;
+
+        Log.d(TAG, "Command Sequence suspended for a " + GattCommandSequence.Priority.REAL_TIME + " sequence: " +
+                sequence.NAME);
+    }
+
+    /*
+     * Resumes a suspended sequence, which has already begun, with its next command.
+     */
+    private void resume(GattCommandSequence sequence)
+    {
+        sequence.suspended = false;
+        current = sequence;
+        skipRedundant(sequence);
+
+        if (sequence.isEmpty())
+        {
+            endCurrent(GattCommandSequence.Event.FINISHED_EXECUTION);
+        }
+        else if (issueTop(sequence))
+        {
+            Log.d(TAG, "Command Sequence resumed: " + sequence.NAME);
+        }
+        else
+        {
+            endCurrent(GattCommandSequence.Event.ENDED_EARLY);
+        }
+    }
+
+    /*
+     * Issues the top command of the given sequence, arming its callback deadline on success.
+     */
+    private boolean issueTop(GattCommandSequence sequence)
+    {
+        SmartBallLink link = smartBall.CONNECTION.getLink();
+
+        if (link == null || !sequence.executeTop(link, smartBall.getGattState()))
+        {
+            state = State.IDLE;
+            return false;
+        }
+
+        GattCommand<?> command = sequence.peek();
+        long timeoutMs = command.getTimeout();
+
+        if (timeoutMs <= 0L)
+            timeoutMs = callbackTimeoutMs;
+
+        writeWithoutResponse = command instanceof GattCommand.WriteGattCommand &&
+                ((GattCommand.WriteGattCommand<?>) command).isSentWithoutResponse(link);
+
+        if (writeWithoutResponse)
+            ++numWritesWithoutResponse;
+
+        if (link != lateLink)
+        {
+            // Callbacks of a closed link never arrive
+            lateCallbacks.clear();
+            lateLink = link;
+        }
+
+        ++numUnanswered;
+        ++numCommands;
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        state = State.AWAITING_CALLBACK;
+        return true;
+    }
+
+    /*
+     * Requests the pending MTU, arming its callback deadline on success.
+     */
+    private void issueMtuRequest()
+    {
+        SmartBallLink link = smartBall.CONNECTION.getLink();
+        int mtu = pendingMtu;
+        pendingMtu = 0;
+
+        if (link == null || !link.requestMtu(mtu))
+        {
+            Log.w(TAG, "Failed to request MTU " + mtu);
+            return;
+        }
+
+        Log.d(TAG, "Requested MTU " + mtu);
+        ++numCommands;
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(callbackTimeoutMs);
+        state = State.AWAITING_CALLBACK;
+        mtuOutstanding = true;
+    }
+
+    /*
+     * Reads the signal strength, arming its callback deadline on success.
+     */
+    private void issueRssiRead()
+    {
+        SmartBallLink link = smartBall.CONNECTION.getLink();
+        rssiRequested = false;
+
+        if (link == null || !link.readRssi())
+        {
+            Log.w(TAG, "Failed to read RSSI");
+            return;
+        }
+
+        ++numCommands;
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(callbackTimeoutMs);
+        state = State.AWAITING_CALLBACK;
+        rssiOutstanding = true;
+    }
+
+    /*
+     * Removes the commands at the top of the given sequence which would not change the state confirmed in the
+     * GattStateCache, returning whether any were removed.
+     */
+    private boolean skipRedundant(GattCommandSequence sequence)
+    {
+        boolean skipped = false;
+
+        while (!sequence.isEmpty() && smartBall.getGattState().isRedundant(sequence.peek()))
+        {
+            Log.d(TAG, sequence.NAME + ": Skipping redundant command " + sequence.peek().GATT_OBJECT);
+            sequence.pop();
+            ++numSkipped;
+            skipped = true;
+        }
+
+        return skipped;
+    }
+
+    /*
+     * Handles the result of a GATT operation. Attempts given up on leave their callbacks expected as late callbacks,
+     * which are discarded so that they do not complete a later command on the same characteristic or descriptor. Since
+     * a callback may also be dropped altogether, the last late callback discarded while a command is outstanding is
+     * kept, to complete that command if its deadline passes.
+     */
+    private void handleCallback(List<UUID> target, byte[] value, boolean wasRead, int status)
+    {
+        GattCommandSequence sequence = current;
+
+        // A callback arriving while waiting to retry completes the command after all
+        boolean outstanding = (state == State.AWAITING_CALLBACK || state == State.TIMED_OUT) && sequence != null &&
+                !sequence.isEmpty() && numUnanswered > 0 && target.equals(getTarget(sequence.peek()));
+        Integer numLate = lateCallbacks.get(target);
+
+        if (numLate != null)
+        {
+            // The callback of an attempt already given up on, which precedes any callback of a later command
+            if (numLate > 1)
+                lateCallbacks.put(target, numLate - 1);
+            else
+                lateCallbacks.remove(target);
+
+            // Unless the callback expected was dropped, and this one answers the outstanding command
+            if (outstanding)
+            {
+                deferredCallback = true;
+                deferredValue = value;
+                deferredWasRead = wasRead;
+                deferredStatus = status;
+            }
+
+            ++numStaleCallbacks;
+            Log.w(TAG, "Ignoring late callback for " + target);
+            return;
+        }
+
+        if (!outstanding)
+        {
+            // A callback arriving after its sequence ended, or for an operation not issued by this executor
+            ++numStaleCallbacks;
+            Log.w(TAG, "Ignoring callback for " + target + " in state " + state);
+            return;
+        }
+
+        --numUnanswered;
+        completeTop(sequence, value, wasRead, status);
+    }
+
+    /*
+     * Completes the top command of the current sequence with the result of its GATT operation, then continues.
+     */
+    private void completeTop(GattCommandSequence sequence, byte[] value, boolean wasRead, int status)
+    {
+        GattCommand<?> command = sequence.peek();
+
+        if (wasRead && command instanceof GattCommand.ReadGattCommand)
+        {
+            GattCommand.ReadGattCommand.ReadGattCommandCallback callback =
+                    ((GattCommand.ReadGattCommand<?>) command).CALLBACK;
+
+            if (callback != null)
+                callback.onCommandRead(((GattCommand.ReadGattCommand<?>) command).ID, value, status);
+        }
+        else if (!wasRead && command.GATT_OBJECT instanceof BluetoothGattDescriptor &&
+                status == SmartBallLink.STATUS_SUCCESS && command instanceof GattCommand.WriteGattCommand)
+        {
+            smartBall.getGattState().onDescriptorWritten((BluetoothGattDescriptor) command.GATT_OBJECT,
+                    ((GattCommand.WriteGattCommand<?>) command).WRITE_VALUE);
+        }
+
+        continueCurrent(sequence);
+    }
+
+    /*
+     * Pops the completed top command of the current sequence and issues the next, ending or suspending the sequence
+     * as needed.
+     */
+    private void continueCurrent(GattCommandSequence sequence)
+    {
+        abandonTop(sequence);
+        sequence.pop();
+        state = State.IDLE;
+        attempt = 0;
+        Log.d(TAG, "Command Sequence popped current command, continuing: " + sequence.NAME);
+
+        skipRedundant(sequence);
+
+        if (sequence.isEmpty())
+            endCurrent(GattCommandSequence.Event.FINISHED_EXECUTION);
+        else if (shouldPreempt(sequence))
+            suspendCurrent();
+        else if (!issueTop(sequence))
+            endCurrent(GattCommandSequence.Event.ENDED_EARLY);
+
+        executeNext();
+    }
+
+    /*
+     * Handles the outstanding command missing its deadline, since Android occasionally drops write callbacks. The
+     * command is retried after an exponential backoff, up to a bounded number of times, after which its sequence times
+     * out. A write without response is never retried, since resending it could apply it twice.
+     */
+    private void onTimeout()
+    {
+        GattCommandSequence sequence = current;
+        ++numTimeouts;
+
+        if (mtuOutstanding)
+        {
+            Log.w(TAG, "No callback for MTU request, continuing with the current MTU");
+            mtuOutstanding = false;
+            state = State.IDLE;
+            executeNext();
+            return;
+        }
+
+        if (rssiOutstanding)
+        {
+            Log.w(TAG, "No callback for RSSI read");
+            rssiOutstanding = false;
+            state = State.IDLE;
+            executeNext();
+            return;
+        }
+
+        if (sequence == null || sequence.isEmpty())
+        {
+            state = State.IDLE;
+            executeNext();
+            return;
+        }
+
+        GattCommand<?> command = sequence.peek();
+
+        // A write without response is always answered by its own callback, however late
+        if (deferredCallback && !writeWithoutResponse)
+        {
+            // The late callbacks expected were dropped, so the last one discarded was the answer to this command
+            Log.w(TAG, sequence.NAME + ": Expected late callbacks for " + getUuid(command) + " were dropped, " +
+                    "completing with the last callback");
+            lateCallbacks.remove(getTarget(command));
+            --numUnanswered;
+            completeTop(sequence, deferredValue, deferredWasRead, deferredStatus);
+            return;
+        }
+
+        if (writeWithoutResponse)
+        {
+            // The link accepted the write when it was issued, so resending it could apply it twice; its callback is
+            // discarded when it arrives
+            Log.w(TAG, sequence.NAME + ": No callback for write without response to " + getUuid(command) +
+                    ", continuing");
+            ++numUnconfirmedWrites;
+            continueCurrent(sequence);
+            return;
+        }
+
+        int retries = command.getMaxRetries() >= 0 ? command.getMaxRetries() : maxRetries;
+
+        if (attempt < retries)
+        {
+            long backoffMs = retryBackoffMs << Math.min(attempt, MAX_BACKOFF_SHIFT);
+
+            Log.w(TAG, sequence.NAME + ": No callback for " + getUuid(command) + ", retrying in " + backoffMs +
+                    " ms (" + (attempt + 1) + "/" + retries + ")");
+
+            deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+            state = State.TIMED_OUT;
+        }
+        else
+        {
+            Log.w(TAG, sequence.NAME + ": No callback for " + getUuid(command) + " after " + (attempt + 1) +
+                    " attempts, timing out");
+
+            state = State.IDLE;
+            endCurrent(GattCommandSequence.Event.TIMED_OUT);
+            executeNext();
+        }
+    }
+
+    /*
+     * Reissues the top command of the current sequence once its backoff has elapsed.
+     */
+    private void retry()
+    {
+        ++attempt;
+        ++numRetries;
+
+        if (current != null && !issueTop(current))
+            endCurrent(GattCommandSequence.Event.ENDED_EARLY);
+
+        executeNext();
+    }
+
+    /*
+     * Ends the current sequence with the given event.
+     */
+    private void endCurrent(GattCommandSequence.Event event)
+    {
+        GattCommandSequence sequence = current;
+        abandonTop(sequence);
+        current = null;
+
+        Log.d(TAG, "Command Sequence ended (" + event + "): " + sequence.NAME);
+        dispatch(sequence, event);
+    }
+
+    /*
+     * Expects the callbacks of the unanswered attempts of the top command of the given sequence as late callbacks,
+     * before the command is popped or its sequence ended.
+     */
+    private void abandonTop(GattCommandSequence sequence)
+    {
+        if (numUnanswered > 0 && !sequence.isEmpty())
+        {
+            List<UUID> target = getTarget(sequence.peek());
+            Integer numLate = lateCallbacks.get(target);
+
+            lateCallbacks.put(target, numLate == null ? numUnanswered : numLate + numUnanswered);
+        }
+
+        numUnanswered = 0;
+        deferredCallback = false;
+        deferredValue = null;
+    }
+
+    /*
+     * Notifies the callback of the given sequence of an event.
+     */
+    private static void dispatch(GattCommandSequence sequence, GattCommandSequence.Event event)
+    {
+        if (sequence.CALLBACK != null)
+            sequence.CALLBACK.onCommandSequenceEvent(sequence, event);
+    }
+
+    /*
+     * Gets the UUIDs of the characteristic accessed by the given command, or owning the descriptor it accesses, and
+     * of the descriptor, or null.
+     */
+    private static List<UUID> getTarget(GattCommand<?> command)
+    {
+        if (command.GATT_OBJECT instanceof BluetoothGattCharacteristic)
+            return Arrays.asList(((BluetoothGattCharacteristic) command.GATT_OBJECT).getUuid(), null);
+
+        BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) command.GATT_OBJECT;
+        return Arrays.asList(descriptor.getCharacteristic().getUuid(), descriptor.getUuid());
+    }
+
+    /*
+     * Gets the UUID of the characteristic or descriptor accessed by the given command.
+     */
+    private static UUID getUuid(GattCommand<?> command)
+    {
+        if (command.GATT_OBJECT instanceof BluetoothGattCharacteristic)
+            return ((BluetoothGattCharacteristic) command.GATT_OBJECT).getUuid();
+        else
+            return ((BluetoothGattDescriptor) command.GATT_OBJECT).getUuid();
+    }
+}
@@ -1,6 +1,5 @@
 package arena.arenasmartball.ball;
 
-import android.bluetooth.BluetoothGatt;
 import android.util.Log;
 
 import java.util.LinkedList;
@@ -20,7 +19,39 @@ public class GattCommandSequence
         BEGUN_EXECUTION,
         FINISHED_EXECUTION,
         FAILED_TO_BEGIN,
-        ENDED_EARLY
+        ENDED_EARLY,
+        TIMED_OUT
+    }
+
+    /**
+     * The priority classes of GattCommandSequences. A GattCommandExecutor begins the waiting sequence of the highest
+     * priority first, unless a sequence of a lower priority has waited longer than the limit of its class.
+     */
+    public enum Priority
+    {
+        /** Data transfers, whose latency after a kick is seen by the user. Preempts telemetry and diagnostics. */
+        REAL_TIME(0L, false),
+
+        /** Commands arming, ending and configuring the SmartBall. */
+        CONTROL(500L, false),
+
+        /** Periodic reads of the state of the SmartBall, such as its battery level. */
+        TELEMETRY(2000L, true),
+
+        /** Reads made while inspecting the SmartBall, such as those of the characteristic list. */
+        DIAGNOSTIC(5000L, true);
+
+        /** The wait after which a sequence is begun ahead of those of higher priorities, in milliseconds, or 0. */
+        public final long MAX_WAIT_MS;
+
+        /** Whether a sequence may be suspended between two of its commands for a REAL_TIME sequence. */
+        public final boolean PREEMPTIBLE;
+
+        Priority(long maxWaitMs, boolean preemptible)
+        {
+            MAX_WAIT_MS = maxWaitMs;
+            PREEMPTIBLE = preemptible;
+        }
     }
 
     /** The tag for this class */
@@ -32,21 +63,42 @@ public class GattCommandSequence
     /** The callback attached to this GattCommandSequence. */
     public final CommandSequenceCallback CALLBACK;
 
+    /** The priority class of this GattCommandSequence. */
+    public final Priority PRIORITY;
+
     /** Denotes whether or not this GattCommandSequence is currently executing. */
     private boolean isExecuting;
 
     /** The internal command queue of this GattCommandSequence. */
     private LinkedList<GattCommand<?>> commandQueue;
 
+    /** The System.nanoTime() at which this GattCommandSequence was queued, set by the GattCommandExecutor. */
+    long queuedNanos;
+
+    /** Whether this GattCommandSequence has begun and was suspended for a sequence of higher priority. */
+    boolean suspended;
+
     /**
+     * Creates a GattCommandSequence of CONTROL priority.
      * @param name The name of this GattCommandSequence
      * @param callback optional callback
      */
     public GattCommandSequence(String name, CommandSequenceCallback callback)
+    {
+        this(name, callback, Priority.CONTROL);
+    }
+
+    /**
+     * @param name The name of this GattCommandSequence
+     * @param callback optional callback
+     * @param priority The priority class of this GattCommandSequence
+     */
+    public GattCommandSequence(String name, CommandSequenceCallback callback, Priority priority)
     {
         isExecuting = false;
         NAME = name;
         CALLBACK = callback;
+        PRIORITY = priority;
         commandQueue = new LinkedList<>();
     }
 
@@ -100,10 +152,11 @@ public class GattCommandSequence
 
     /**
      * Method to execute the top command in this GattCommandSequence.
-     * @param gatt The BluetoothGatt of the SmartBall
+     * @param link The SmartBallLink of the SmartBall
+     * @param state The GattStateCache of the connection
      * @return True if the top command was executed successfully
      */
-    protected boolean executeTop(BluetoothGatt gatt)
+    protected boolean executeTop(SmartBallLink link, GattStateCache state)
     {
         if (commandQueue.isEmpty())
         {
@@ -114,7 +167,7 @@ public class GattCommandSequence
 
         Log.d(TAG, "Attempting to execute top command in sequence " + NAME + "...");
 
-        if (gatt != null && !head.execute(gatt, NAME))
+        if (link != null && !head.execute(link, NAME, state))
         {
             Log.w(TAG, "Failed to execute top command of GattCommandSequence " + NAME);
             isExecuting = false;
@@ -27,6 +27,12 @@ public class GattCommandUtils
     /** The identifier for the kick GattCommandSequence */
     public static final String KICK_SEQUENCE = "Kick Sequence";
 
+    /** The identifier for the GattCommandSequence enabling notifications */
+    public static final String ENABLE_NOTIFICATIONS_SEQUENCE = "Enable Notifications Sequence";
+
+    /** The largest number of samples which may be requested in a single data transmission */
+    public static final int MAX_SAMPLES_PER_REQUEST = 1096;
+
     /**
      * Static class.
      */
@@ -34,7 +40,7 @@ public class GattCommandUtils
     {   }
 
     /**
-     * Convenience method to create and execute a single GattCommand.
+     * Convenience method to create and execute a single GattCommand of CONTROL priority.
      * @param ball The SmartBall on which to execute
      * @param command The command to execute
      * @param name The name for the command sequence
@@ -43,7 +49,22 @@ public class GattCommandUtils
     public static void executeCommand(final SmartBall ball, GattCommand<?> command, @NonNull String name,
                                       GattCommandSequence.CommandSequenceCallback callback)
     {
-        GattCommandSequence sequence = new GattCommandSequence(name, callback);
+        executeCommand(ball, command, name, callback, GattCommandSequence.Priority.CONTROL);
+    }
+
+    /**
+     * Convenience method to create and execute a single GattCommand.
+     * @param ball The SmartBall on which to execute
+     * @param command The command to execute
+     * @param name The name for the command sequence
+     * @param callback An optional callback to listen for GattCommandSequence events
+     * @param priority The priority of the command sequence
+     */
+    public static void executeCommand(final SmartBall ball, GattCommand<?> command, @NonNull String name,
+                                      GattCommandSequence.CommandSequenceCallback callback,
+                                      GattCommandSequence.Priority priority)
+    {
+        GattCommandSequence sequence = new GattCommandSequence(name, callback, priority);
         sequence.addCommand(command);
         ball.addCommandSequenceToQueue(sequence);
     }
@@ -69,20 +90,39 @@ public class GattCommandUtils
     public static void executeDataTransmitCommandSequence(final SmartBall ball, int numSamples, int dataType,
                                                           GattCommandSequence.CommandSequenceCallback callback)
     {
-        // Calculate the num samples
-        if (numSamples > 1096)
-            numSamples = 1096;
+        executeDataTransmitCommandSequence(ball, 0, numSamples, dataType, callback);
+    }
+
+    /**
+     * Creates and executes the command to begin transmission of a range of kick data from the SmartBall, as when
+     * samples lost from an earlier transmission are downloaded again. Firmware ignoring the offset transmits from the
+     * first sample, and echoes an offset of 0 in its start frame.
+     * @param ball The SmartBall whose data field to read
+     * @param firstSample The offset of the first sample to read
+     * @param numSamples The number of samples to read, capped so the range ends by sample 1096
+     * @param dataType The type of data to request
+     */
+    public static void executeDataTransmitCommandSequence(final SmartBall ball, int firstSample, int numSamples,
+                                                          int dataType,
+                                                          GattCommandSequence.CommandSequenceCallback callback)
+    {
+        if (firstSample < 0 || firstSample >= MAX_SAMPLES_PER_REQUEST)
+            throw new IllegalArgumentException("First sample must be below " + MAX_SAMPLES_PER_REQUEST + ": " +
+                    firstSample);
 
-        byte lower = (byte)(numSamples & 255);
-        byte upper = (byte)((numSamples >> 8) & 255);
+        // Calculate the num samples
+        if (firstSample + numSamples > MAX_SAMPLES_PER_REQUEST)
+            numSamples = MAX_SAMPLES_PER_REQUEST - firstSample;
 
         GattCommandSequence sequence = new GattCommandSequence(
                 dataType == 1 ? DATA_TRANSMIT_SEQUENCE_1 : DATA_TRANSMIT_SEQUENCE_2,
-                callback);
-        sequence.addCommand(new GattCommand.WriteGattCommand<>(
-                ball.getCharacteristic(Services.Characteristic.COMMAND_FIELD),
-                new byte[] {10, 0, 0, 0, 0, lower, upper, 0, 0, (byte)dataType}
-        ));
+                callback, GattCommandSequence.Priority.REAL_TIME);
+        GattCommand<?> command = newCommandFieldCommand(ball,
+                SmartBallProtocol.createDataRequest(firstSample, numSamples, dataType));
+
+        // Resending a data request restarts the transmission, so a lost write callback is not retried
+        command.setMaxRetries(0);
+        sequence.addCommand(command);
 
         ball.addCommandSequenceToQueue(sequence);
     }
@@ -96,10 +136,34 @@ public class GattCommandUtils
     {
         GattCommandSequence sequence = new GattCommandSequence(END_DATA_TRANSMIT_SEQUENCE, callback);
 
-        // Write a 3 to CommandField
-        sequence.addCommand(new GattCommand.WriteGattCommand<>(
-                ball.getCharacteristic(Services.Characteristic.COMMAND_FIELD),
-                new byte[] {6}));
+        // Write a 6 to CommandField
+        sequence.addCommand(newCommandFieldCommand(ball, new byte[] {SmartBallProtocol.END_TRANSMISSION}));
+
+        ball.addCommandSequenceToQueue(sequence);
+    }
+
+    /**
+     * Creates and executes a new GattCommandSequence enabling the notifications of the kick bit and the data callback,
+     * as needed after a connection is re-established.
+     * @param ball The SmartBall to execute the sequence
+     */
+    public static void executeEnableNotificationsCommandSequence(final SmartBall ball,
+                                                                 GattCommandSequence.CommandSequenceCallback callback)
+    {
+        GattCommandSequence sequence = new GattCommandSequence(ENABLE_NOTIFICATIONS_SEQUENCE, callback);
+        BluetoothGattDescriptor descriptor;
+
+        for (Services.Characteristic characteristic: new Services.Characteristic[] {Services.Characteristic.KICK_BIT,
+                Services.Characteristic.DATA_CALLBACK})
+        {
+            descriptor = SmartBall.getDescriptor(ball.getCharacteristic(characteristic), "2902");
+
+            if (descriptor != null)
+                sequence.addCommand(new GattCommand.WriteGattCommand<>(descriptor,
+                        SmartBallProtocol.ENABLE_NOTIFICATIONS));
+            else
+                Log.w(TAG, "Could not find Descriptor 2902 in " + characteristic.name() + " characteristic");
+        }
 
         ball.addCommandSequenceToQueue(sequence);
     }
@@ -140,18 +204,32 @@ public class GattCommandUtils
         }
 
         // Write a 6 to CommandField
-        sequence.addCommand(new GattCommand.WriteGattCommand<>(
-                ball.getCharacteristic(Services.Characteristic.COMMAND_FIELD),
-                new byte[] {6}));
+        sequence.addCommand(newCommandFieldCommand(ball, new byte[] {SmartBallProtocol.END_TRANSMISSION}));
 
         // Write a 3 to CommandField
-        sequence.addCommand(new GattCommand.WriteGattCommand<>(
-                ball.getCharacteristic(Services.Characteristic.COMMAND_FIELD),
-                new byte[] {3}));
+        sequence.addCommand(newCommandFieldCommand(ball, new byte[] {SmartBallProtocol.ARM_KICK}));
 
         ball.addCommandSequenceToQueue(sequence);
     }
 
+    /**
+     * Creates a WriteGattCommand writing an opcode to the command field. The SmartBall reports the effect of the
+     * arm, end and data request opcodes through its notifications rather than the write response, so they are marked
+     * as safe to write without response, and are pipelined where the characteristic allows it.
+     * @param ball The SmartBall whose command field to write
+     * @param value The value to write
+     * @return A new WriteGattCommand writing the value
+     */
+    private static GattCommand.WriteGattCommand<BluetoothGattCharacteristic> newCommandFieldCommand(
+            final SmartBall ball, byte[] value)
+    {
+        GattCommand.WriteGattCommand<BluetoothGattCharacteristic> command = new GattCommand.WriteGattCommand<>(
+                ball.getCharacteristic(Services.Characteristic.COMMAND_FIELD), value);
+
+        command.setWithoutResponse(true);
+        return command;
+    }
+
     /**
      * Convenience method to create a WriteGattCommand.
      * @param characteristic The Characteristic to which to write
@@ -177,7 +255,7 @@ public class GattCommandUtils
         if (characteristic != null)
             sequence.addCommand(new GattCommand.WriteGattCommand<>(
                     characteristic,
-                    new byte[] {21}
+                    new byte[] {SmartBallProtocol.DISCONNECT}
             ));
 
         ball.addCommandSequenceToQueue(sequence);
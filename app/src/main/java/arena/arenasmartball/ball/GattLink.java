@@ -0,0 +1,167 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * SmartBallLink carrying operations over a BluetoothGatt. Results arrive through the BluetoothGattCallback of the
+ * connection rather than a SmartBallLink.Callback.
+ */
+public class GattLink implements SmartBallLink
+{
+    // The tag for this class
+    private static final String TAG = "GattLink";
+
+    // The BluetoothGatt of the connection
+    private final BluetoothGatt gatt;
+
+    // The discovered characteristics, by UUID
+    private final HashMap<UUID, BluetoothGattCharacteristic> characteristics;
+
+    /**
+     * Creates a GattLink.
+     * @param gatt The BluetoothGatt of the connection
+     */
+    public GattLink(BluetoothGatt gatt)
+    {
+        this.gatt = gatt;
+        characteristics = new HashMap<>();
+    }
+
+    /**
+     * Gets the BluetoothGatt behind this GattLink.
+     * @return The BluetoothGatt
+     */
+    public BluetoothGatt getBluetoothGatt()
+    {
+        return gatt;
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(UUID characteristic, boolean enabled)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        return c != null && gatt.setCharacteristicNotification(c, enabled);
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID characteristic)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        return c != null && gatt.readCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        return c != null && c.setValue(value) && gatt.writeCharacteristic(c);
+    }
+
+    @Override
+    public boolean canWriteWithoutResponse(UUID characteristic)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        return c != null && (c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    @Override
+    public boolean writeCharacteristicWithoutResponse(UUID characteristic, byte[] value)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+
+        if (c == null || !c.setValue(value))
+            return false;
+
+        // The write type is read when the write is issued, so the characteristic is restored for other writes
+        c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+
+        try
+        {
+            return gatt.writeCharacteristic(c);
+        }
+        finally
+        {
+            c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        }
+    }
+
+    @Override
+    public boolean readDescriptor(UUID characteristic, UUID descriptor)
+    {
+        BluetoothGattDescriptor d = findDescriptor(characteristic, descriptor);
+        return d != null && gatt.readDescriptor(d);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value)
+    {
+        BluetoothGattDescriptor d = findDescriptor(characteristic, descriptor);
+        return d != null && d.setValue(value) && gatt.writeDescriptor(d);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu)
+    {
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean readRssi()
+    {
+        return gatt.readRemoteRssi();
+    }
+
+    @Override
+    public void disconnect()
+    {
+        gatt.disconnect();
+    }
+
+    /*
+     * Finds a discovered characteristic by UUID.
+     */
+    private synchronized BluetoothGattCharacteristic findCharacteristic(UUID uuid)
+    {
+        BluetoothGattCharacteristic characteristic = characteristics.get(uuid);
+
+        if (characteristic == null)
+        {
+            for (BluetoothGattService service: gatt.getServices())
+            {
+                characteristic = service.getCharacteristic(uuid);
+
+                if (characteristic != null)
+                {
+                    characteristics.put(uuid, characteristic);
+                    break;
+                }
+            }
+        }
+
+        if (characteristic == null)
+            Log.w(TAG, "Characteristic not found: " + uuid);
+
+        return characteristic;
+    }
+
+    /*
+     * Finds a descriptor of a discovered characteristic by UUID.
+     */
+    private BluetoothGattDescriptor findDescriptor(UUID characteristic, UUID descriptor)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(characteristic);
+        BluetoothGattDescriptor d = c == null ? null : c.getDescriptor(descriptor);
+
+        if (c != null && d == null)
+            Log.w(TAG, "Descriptor not found: " + characteristic + "/" + descriptor);
+
+        return d;
+    }
+}
@@ -0,0 +1,131 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+
+/**
+ * Cache of the GATT state confirmed on a single connection to a SmartBall: the characteristics for which local
+ * notifications have been enabled, and the last value successfully written to each descriptor. Descriptor values
+ * such as the 2902 client configuration persist on the ball for the life of the connection, so writes which would not
+ * change a confirmed value can be dropped instead of costing a BLE round trip. The cache must be cleared whenever the
+ * connection is lost or the state of the ball is otherwise in doubt.
+ */
+public class GattStateCache
+{
+    // The tag for this class
+    private static final String TAG = "GattStateCache";
+
+    // The characteristics for which notifications have been enabled
+    private final HashSet<UUID> enabledCharacteristics;
+
+    // The confirmed value of each descriptor, keyed by the UUIDs of the characteristic and descriptor
+    private final HashMap<String, byte[]> descriptorValues;
+
+    // The number of writes found to be redundant
+    private long numRedundant;
+
+    /**
+     * Creates an empty GattStateCache.
+     */
+    public GattStateCache()
+    {
+        enabledCharacteristics = new HashSet<>();
+        descriptorValues = new HashMap<>();
+    }
+
+    /**
+     * Enables local notifications on the given characteristic, unless already enabled on this connection.
+     * @param link The SmartBallLink of the connection
+     * @param characteristic The UUID of the characteristic
+     * @return True if notifications are enabled
+     */
+    public synchronized boolean enableNotifications(SmartBallLink link, UUID characteristic)
+    {
+        if (link == null || characteristic == null)
+            return false;
+        if (enabledCharacteristics.contains(characteristic))
+            return true;
+
+        boolean success = link.setNotificationsEnabled(characteristic, true);
+        Log.d(TAG, "Enabled characteristic " + characteristic + ": " + success);
+
+        if (success)
+            enabledCharacteristics.add(characteristic);
+
+        return success;
+    }
+
+    /**
+     * Records that a value is about to be written to a descriptor, forgetting its confirmed value until the write is
+     * confirmed.
+     * @param descriptor The descriptor
+     */
+    public synchronized void onDescriptorWriteIssued(BluetoothGattDescriptor descriptor)
+    {
+        descriptorValues.remove(getKey(descriptor));
+    }
+
+    /**
+     * Records that a value was successfully written to a descriptor.
+     * @param descriptor The descriptor
+     * @param value The value written
+     */
+    public synchronized void onDescriptorWritten(BluetoothGattDescriptor descriptor, byte[] value)
+    {
+        descriptorValues.put(getKey(descriptor), value == null ? null : value.clone());
+    }
+
+    /**
+     * Determines whether the given GattCommand would not change any confirmed state, and so may be dropped.
+     * Only writes to descriptors whose confirmed value equals the value to write are redundant.
+     * @param command The GattCommand
+     * @return True if the command is redundant
+     */
+    public synchronized boolean isRedundant(GattCommand<?> command)
+    {
+        if (!(command instanceof GattCommand.WriteGattCommand) ||
+                !(command.GATT_OBJECT instanceof BluetoothGattDescriptor))
+            return false;
+
+        byte[] confirmed = descriptorValues.get(getKey((BluetoothGattDescriptor) command.GATT_OBJECT));
+
+        if (confirmed == null || !Arrays.equals(confirmed, ((GattCommand.WriteGattCommand<?>) command).WRITE_VALUE))
+            return false;
+
+        ++numRedundant;
+        return true;
+    }
+
+    /**
+     * Gets the number of writes found to be redundant.
+     * @return The number of redundant writes
+     */
+    public synchronized long getNumRedundant()
+    {
+        return numRedundant;
+    }
+
+    /**
+     * Forgets all cached state, so that notifications are enabled and descriptors written again.
+     */
+    public synchronized void clear()
+    {
+        enabledCharacteristics.clear();
+        descriptorValues.clear();
+    }
+
+    /*
+     * Gets the key of the given descriptor.
+     */
+    private static String getKey(BluetoothGattDescriptor descriptor)
+    {
+        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        return (characteristic == null ? "" : characteristic.getUuid().toString()) + "/" + descriptor.getUuid();
+    }
+}
@@ -0,0 +1,115 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.UUID;
+
+/**
+ * BluetoothGattCharacteristic of a SmartBall reached through a SmartBallLink other than a GattLink, such as a
+ * SmartBallSimulator, where there is no service discovery to supply one. Its UUID, value and client configuration
+ * descriptor are held by this class rather than by the Android Bluetooth stack, so that it also works where the stack
+ * is stubbed out, as in a unit test or a command line tool.
+ */
+class LinkCharacteristic extends BluetoothGattCharacteristic
+{
+    // The UUID of the characteristic
+    private final UUID uuid;
+
+    // The client configuration descriptor of the characteristic
+    private final Descriptor clientConfiguration;
+
+    // The last value written, read or notified
+    private volatile byte[] value;
+
+    /**
+     * Creates a LinkCharacteristic with a client configuration descriptor.
+     * @param uuid The UUID of the characteristic
+     */
+    LinkCharacteristic(UUID uuid)
+    {
+        super(uuid, PROPERTY_READ | PROPERTY_WRITE | PROPERTY_WRITE_NO_RESPONSE | PROPERTY_NOTIFY,
+                PERMISSION_READ | PERMISSION_WRITE);
+
+        this.uuid = uuid;
+        clientConfiguration = new Descriptor(this, SmartBallProtocol.CLIENT_CONFIGURATION);
+    }
+
+    @Override
+    public UUID getUuid()
+    {
+        return uuid;
+    }
+
+    @Override
+    public byte[] getValue()
+    {
+        return value;
+    }
+
+    @Override
+    public boolean setValue(byte[] value)
+    {
+        this.value = value;
+        return true;
+    }
+
+    @Override
+    public BluetoothGattDescriptor getDescriptor(UUID uuid)
+    {
+        return clientConfiguration.getUuid().equals(uuid) ? clientConfiguration : null;
+    }
+
+    /**
+     * A descriptor of a LinkCharacteristic.
+     */
+    static class Descriptor extends BluetoothGattDescriptor
+    {
+        // The characteristic owning the descriptor
+        private final LinkCharacteristic characteristic;
+
+        // The UUID of the descriptor
+        private final UUID uuid;
+
+        // The last value written or read
+        private volatile byte[] value;
+
+        /**
+         * Creates a Descriptor.
+         * @param characteristic The characteristic owning the descriptor
+         * @param uuid The UUID of the descriptor
+         */
+        Descriptor(LinkCharacteristic characteristic, UUID uuid)
+        {
+            super(uuid, PERMISSION_READ | PERMISSION_WRITE);
+
+            this.characteristic = characteristic;
+            this.uuid = uuid;
+        }
+
+        @Override
+        public UUID getUuid()
+        {
+            return uuid;
+        }
+
+        @Override
+        public BluetoothGattCharacteristic getCharacteristic()
+        {
+            return characteristic;
+        }
+
+        @Override
+        public byte[] getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public boolean setValue(byte[] value)
+        {
+            this.value = value;
+            return true;
+        }
+    }
+}
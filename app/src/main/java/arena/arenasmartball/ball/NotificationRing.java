@@ -0,0 +1,351 @@
+package arena.arenasmartball.ball;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer ring of preallocated notification buffers, handing notifications off from the
+ * Bluetooth callback thread to a dedicated consumer thread. The producer copies each notification into the next free
+ * slot and returns without locking or allocating; the consumer thread, started with the first notification, hands
+ * each slot to a Consumer and parks while the ring is empty. A notification arriving while the ring is full is
+ * dropped and counted as an overflow rather than blocking the callback thread.
+ * <p>
+ * Several rings may instead share the threads of an Executor: a ring with an Executor has no thread of its own, and
+ * schedules a drain task whenever a notification is published while none is scheduled. At most one drain task of a
+ * ring is scheduled at a time, so its notifications are still consumed in order by one thread at a time, and each task
+ * consumes a bounded batch before rescheduling itself so that busy rings do not starve the others.
+ * <p>
+ * shutdown() stops the consumer thread once the notifications are no longer needed, so that neither the thread nor
+ * the slots it references outlive the connection; a later notification starts a new consumer thread.
+ * <p>
+ * offer() must only ever be called from one thread at a time.
+ */
+public class NotificationRing
+{
+    /**
+     * Receives the notifications handed off through a NotificationRing, on its consumer thread.
+     */
+    public interface Consumer
+    {
+        /**
+         * Called with each notification, in the order offered. The buffer is reused once this method returns, so any
+         * bytes to be kept must be copied.
+         * @param buffer The buffer holding the notification
+         * @param length The length of the notification, in bytes
+         */
+        void onNotification(byte[] buffer, int length);
+    }
+
+    /** The largest value of an attribute, in bytes: the largest notification a slot must hold. */
+    public static final int MAX_VALUE_LENGTH = 512;
+
+    // The tag for this class
+    private static final String TAG = "NotificationRing";
+
+    // The largest number of notifications consumed by one drain task before it is rescheduled
+    private static final int DRAIN_BATCH = 32;
+
+    // The name of the consumer thread
+    private final String name;
+
+    // The Consumer of the notifications
+    private final Consumer consumer;
+
+    // The preallocated slots and the length of the notification in each
+    private final byte[][] slots;
+    private final int[] lengths;
+
+    // The mask mapping a sequence number to its slot
+    private final int mask;
+
+    // The sequence number of the next slot to consume, written only by the consumer
+    private volatile long head;
+
+    // The sequence number of the next slot to fill, written only by the producer
+    private volatile long tail;
+
+    // Whether the consumer is parked or about to park, waiting for a notification
+    private volatile boolean consumerWaiting;
+
+    // The consumer thread, null until a notification is offered and again once shut down, started only by the
+    // producer
+    private volatile Thread thread;
+
+    // The last consumer thread shut down, which a new consumer waits for before consuming
+    private volatile Thread stoppedThread;
+
+    // The Executor running the drain tasks, or null to use a consumer thread
+    private volatile Executor executor;
+
+    // Whether a drain task is scheduled or running
+    private final AtomicBoolean drainScheduled;
+
+    // The task consuming a batch of notifications on the executor
+    private final Runnable drainTask;
+
+    // Statistics, written only by the producer
+    private volatile long numOffered, numOverflows;
+    private volatile int maxOccupancy;
+
+    /**
+     * Creates a NotificationRing.
+     * @param name The name of the consumer thread
+     * @param capacity The number of slots, a power of two
+     * @param consumer The Consumer of the notifications
+     */
+    public NotificationRing(String name, int capacity, Consumer consumer)
+    {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("Capacity must be a positive power of two: " + capacity);
+
+        this.name = name;
+        this.consumer = consumer;
+        slots = new byte[capacity][MAX_VALUE_LENGTH];
+        lengths = new int[capacity];
+        mask = capacity - 1;
+        drainScheduled = new AtomicBoolean();
+
+        drainTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Sets the Executor on which notifications are consumed, in place of a consumer thread of this ring. Must be set
+     * before the first notification is offered.
+     * @param executor The Executor, shared with other rings
+     */
+    public void setExecutor(Executor executor)
+    {
+        if (thread != null)
+            throw new IllegalStateException("Consumer thread already started");
+
+        this.executor = executor;
+    }
+
+    /**
+     * Copies a notification into the next free slot, for the consumer thread. Called only by the producer.
+     * @param value The notification
+     * @return False if the notification was dropped because the ring was full or the notification too long
+     */
+    public boolean offer(byte[] value)
+    {
+        long t = tail;
+        int occupancy = (int) (t - head);
+
+        if (occupancy >= slots.length || value.length > MAX_VALUE_LENGTH)
+        {
+            numOverflows++;
+            return false;
+        }
+
+        int slot = (int) t & mask;
+        System.arraycopy(value, 0, slots[slot], 0, value.length);
+        lengths[slot] = value.length;
+
+        // Publish the slot, then wake the consumer if it may have missed it
+        tail = t + 1;
+        numOffered++;
+
+        if (occupancy + 1 > maxOccupancy)
+            maxOccupancy = occupancy + 1;
+
+        Thread consumerThread = thread;
+
+        if (executor != null)
+            scheduleDrain();
+        else if (consumerThread == null)
+            startConsumer();
+        else if (consumerWaiting)
+            LockSupport.unpark(consumerThread);
+
+        return true;
+    }
+
+    /**
+     * Stops the consumer thread once it has handed off the notification it is consuming, if any. Notifications still
+     * waiting are consumed by the consumer thread started by the next notification offered.
+     */
+    public synchronized void shutdown()
+    {
+        Thread consumerThread = thread;
+
+        if (consumerThread == null)
+            return;
+
+        thread = null;
+        stoppedThread = consumerThread;
+        consumerThread.interrupt();
+    }
+
+    /**
+     * Gets the number of notifications waiting for the consumer.
+     * @return The number of occupied slots
+     */
+    public int getOccupancy()
+    {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Gets the largest number of notifications that have waited for the consumer at once.
+     * @return The largest number of occupied slots
+     */
+    public int getMaxOccupancy()
+    {
+        return maxOccupancy;
+    }
+
+    /**
+     * Gets the number of slots of this ring.
+     * @return The capacity of this ring
+     */
+    public int getCapacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Gets the number of notifications dropped because the ring was full.
+     * @return The number of overflows
+     */
+    public long getOverflowCount()
+    {
+        return numOverflows;
+    }
+
+    /**
+     * Gets a String summarizing the notifications handed off through this ring.
+     * @return A String summarizing the notifications handed off
+     */
+    public String getStats()
+    {
+        return "offered = " + numOffered + ", occupancy = " + getOccupancy() + "/" + slots.length +
+                ", max occupancy = " + maxOccupancy + ", overflows = " + numOverflows;
+    }
+
+    /*
+     * Schedules a drain task on the executor unless one is already scheduled.
+     */
+    private void scheduleDrain()
+    {
+        if (drainScheduled.get() || !drainScheduled.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            executor.execute(drainTask);
+        }
+        catch (RejectedExecutionException e)
+        {
+            drainScheduled.set(false);
+            Log.w(TAG, "Drain rejected by executor, " + getOccupancy() + " notifications waiting");
+        }
+    }
+
+    /*
+     * Consumes a batch of notifications on the executor, then reschedules itself if more are waiting.
+     */
+    private void drain()
+    {
+        long h;
+
+        for (int n = 0; n < DRAIN_BATCH && (h = head) != tail; ++n)
+            consume(h);
+
+        // Clear the flag before checking again, so a notification published meanwhile either is seen here or
+        // schedules its own drain
+        drainScheduled.set(false);
+
+        if (head != tail)
+            scheduleDrain();
+    }
+
+    /*
+     * Starts the consumer thread.
+     */
+    private synchronized void startConsumer()
+    {
+        final Thread previous = stoppedThread;
+        stoppedThread = null;
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runConsumer(previous);
+            }
+        }, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Hands each published slot to the consumer in order, parking while the ring is empty, until interrupted. The
+     * ring is handed over from the previous consumer thread, if any, once it has stopped.
+     */
+    private void runConsumer(Thread previous)
+    {
+        long h;
+
+        try
+        {
+            if (previous != null)
+                previous.join();
+        }
+        catch (InterruptedException e)
+        {
+            return;
+        }
+
+        while (!Thread.currentThread().isInterrupted())
+        {
+            h = head;
+
+            if (h == tail)
+            {
+                // Announce the wait before checking again, so a slot published meanwhile either is seen here or
+                // unparks this thread
+                consumerWaiting = true;
+
+                if (h == tail)
+                    LockSupport.park(this);
+
+                consumerWaiting = false;
+                continue;
+            }
+
+            consume(h);
+        }
+    }
+
+    /*
+     * Hands a published slot to the consumer and releases it to the producer.
+     */
+    private void consume(long h)
+    {
+        int slot = (int) h & mask;
+
+        try
+        {
+            consumer.onNotification(slots[slot], lengths[slot]);
+        }
+        catch (RuntimeException e)
+        {
+            Log.e(TAG, "Consumer failed on notification " + h, e);
+        }
+
+        head = h + 1;
+    }
+}
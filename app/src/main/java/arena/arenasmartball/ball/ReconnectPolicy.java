@@ -0,0 +1,76 @@
+package arena.arenasmartball.ball;
+
+import java.util.Random;
+
+/**
+ * Policy for reconnecting automatically to a SmartBall after its connection is lost: a bounded number of attempts,
+ * spaced by an exponential backoff with jitter. The delay before each attempt is drawn uniformly from the upper half
+ * of its exponentially growing bound, so that several balls losing their connections at once do not retry in step.
+ */
+public class ReconnectPolicy
+{
+    /** The policy used unless another is set: 10 attempts, backing off from 250 ms up to 8 s. */
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(250L, 8000L, 10);
+
+    // The largest power of two by which the initial delay is multiplied
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    // The bound on the delay before the first attempt, in milliseconds
+    private final long initialDelayMs;
+
+    // The largest bound on the delay before an attempt, in milliseconds
+    private final long maxDelayMs;
+
+    // The number of attempts before giving up
+    private final int maxAttempts;
+
+    /**
+     * Creates a ReconnectPolicy.
+     * @param initialDelayMs The bound on the delay before the first attempt, doubled for each further attempt, in
+     *                       milliseconds
+     * @param maxDelayMs The largest bound on the delay before an attempt, in milliseconds
+     * @param maxAttempts The number of attempts before giving up
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, int maxAttempts)
+    {
+        if (initialDelayMs <= 0L || maxDelayMs < initialDelayMs)
+            throw new IllegalArgumentException("Invalid delays: " + initialDelayMs + ", " + maxDelayMs);
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("Number of attempts must be positive: " + maxAttempts);
+
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Gets the number of attempts before giving up.
+     * @return The number of attempts
+     */
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * Draws the delay before an attempt.
+     * @param attempt The index of the attempt, from 0
+     * @param random The source of jitter
+     * @return The delay, in milliseconds
+     */
+    public long getDelayMs(int attempt, Random random)
+    {
+        long bound = Math.min(maxDelayMs, initialDelayMs << Math.min(attempt, MAX_BACKOFF_SHIFT));
+        return bound / 2L + (long) (random.nextDouble() * (bound - bound / 2L));
+    }
+
+    /**
+     * Gets a String representation of this ReconnectPolicy.
+     * @return A String representation of this ReconnectPolicy
+     */
+    @Override
+    public String toString()
+    {
+        return "ReconnectPolicy: " + maxAttempts + " attempts, " + initialDelayMs + " - " + maxDelayMs + " ms";
+    }
+}
@@ -6,13 +6,12 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.util.Log;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Class representing a SmartBall.
@@ -41,6 +40,9 @@ public class SmartBall
     /** The tag for this class. */
     private static final String TAG = "SmartBall";
 
+    /** The number of notifications of the data callback which may wait for the data thread. */
+    private static final int DATA_RING_CAPACITY = 256;
+
     /** The SmartBall's BluetoothDevice. */
     public final BluetoothDevice DEVICE;
 
@@ -51,34 +53,57 @@ public class SmartBall
     private boolean kickBit;
 
     /** Flag to keep track of when data transmission has ended/begun. */
-    private boolean dataTransmitInProgress;
+    private volatile boolean dataTransmitInProgress;
 
     /** Denotes which type fo data is currently being transmitted. */
-    private byte dataTypeInTransit;
+    private volatile byte dataTypeInTransit;
+
+    /** The data request of the transmission in progress, and the callback of its sequence. */
+    private volatile byte[] requestInTransit;
+    private volatile GattCommandSequence.CommandSequenceCallback callbackInTransit;
+
+    /** The data request of a transmission interrupted by a lost connection, to be resumed on reconnection. */
+    private byte[] suspendedRequest;
+    private GattCommandSequence.CommandSequenceCallback suspendedCallback;
 
-    /** The command sequence currently in progress. */
-    private LinkedList<GattCommandSequence> commandSequenceQueue;
+    /** The executor running the command sequences of this SmartBall. */
+    private final GattCommandExecutor commandExecutor;
+
+    /** The GATT state confirmed on the connection to this SmartBall. */
+    private final GattStateCache gattState;
+
+    /** The ring handing notifications of the data callback off to the thread decoding them. */
+    private NotificationRing dataRing;
 
     /**
      * A repository of all characteristics contained in the SmartBall, populated on service discovery with the key
-     * SmartBall characteristics defined in Characteristic.
+     * SmartBall characteristics defined in Characteristic and indexed by Characteristic ordinal.
      */
-    private HashMap<Services.Characteristic, BluetoothGattCharacteristic> characteristicRepository;
+    private final BluetoothGattCharacteristic[] characteristicRepository;
 
     /**
-     * The array of CharacteristicListeners. Each Characteristic defined in the enum in this class may have a
-     * corresponding List of listeners.
+     * The CharacteristicListeners of each Characteristic, indexed by Characteristic ordinal. The table is replaced
+     * rather than modified when listeners are added or removed, so notifications are dispatched from a snapshot.
      */
-    private HashMap<UUID, Set<CharacteristicListener>> characteristicListeners;
+    private volatile CharacteristicListener[][] characteristicListeners;
 
     /** Integer to record the number of characteristics that have been found. */
     private int numCharacteristicsFound;
 
+    /** The ordinal of the Characteristic of the last notification dispatched, checked first on the next one. */
+    private int lastNotifiedOrdinal;
+
+    /** The number of notifications dispatched, written only by the thread delivering notifications. */
+    private volatile long numNotifications;
+
+    /** The total time spent dispatching notifications, in nanoseconds. */
+    private volatile long dispatchNanos;
+
     /** The set of event listeners attached to this SmartBall. */
-    private Set<EventListener> eventListeners;
+    private final Set<EventListener> eventListeners;
 
-    /** The set of data listeners attached to this SmartBall. */
-    private Set<DataListener> dataListeners;
+    /** The data listeners attached to this SmartBall, replaced rather than modified on every change. */
+    private volatile DataListener[] dataListeners;
 
     /**
      * Constructs a new SmartBall.
@@ -90,11 +115,12 @@ public class SmartBall
         // Initialize
         DEVICE = device;
         CONNECTION = connection;
-        eventListeners = new HashSet<>();
-        dataListeners = new HashSet<>();
-        commandSequenceQueue = new LinkedList<>();
-        characteristicRepository = new HashMap<>();
-        characteristicListeners = new HashMap<>();
+        eventListeners = new CopyOnWriteArraySet<>();
+        dataListeners = new DataListener[0];
+        gattState = new GattStateCache();
+        commandExecutor = new GattCommandExecutor(this);
+        characteristicRepository = new BluetoothGattCharacteristic[Services.Characteristic.values().length];
+        characteristicListeners = new CharacteristicListener[characteristicRepository.length][0];
 
         // Add CharacteristicListeners to listen for events
         createKickBitListener(this);
@@ -129,23 +155,63 @@ public class SmartBall
     }
 
     /**
-     * Method to get the List of CharacteristicListeners listening on the Characteristic with the given _UUID.
-     * @return The List of CharacteristicListeners listening on the Characteristic with the given _UUID
+     * Method to get a snapshot of the CharacteristicListeners listening on the Characteristic with the given _UUID.
+     * @param uuid The _UUID of the Characteristic
+     * @return The CharacteristicListeners listening on the Characteristic with the given _UUID, or null if the _UUID is
+     * not that of a known Characteristic
      */
     public Set<CharacteristicListener> getCharacteristicListeners(UUID uuid)
     {
-        return characteristicListeners.get(uuid);
+        Services.Characteristic characteristic = Services.Characteristic.findByUUID(uuid);
+
+        if (characteristic == null)
+            return null;
+
+        return Collections.unmodifiableSet(new LinkedHashSet<>(
+                Arrays.asList(characteristicListeners[characteristic.ordinal()])));
     }
 
     /**
-     * Method to get the list of SmartBallEventListeners attached to this SmartBall.
-     * @return The list of SmartBallEventListeners attached to this SmartBall
+     * Method to get the set of SmartBallEventListeners attached to this SmartBall. The set may be modified while
+     * events are being delivered.
+     * @return The set of SmartBallEventListeners attached to this SmartBall
      */
     public Set<EventListener> getEventListeners()
     {
         return eventListeners;
     }
 
+    /**
+     * Gets a String summarizing the notifications dispatched to the listeners of this SmartBall.
+     * @return A String summarizing the notifications dispatched
+     */
+    public String getDispatchStats()
+    {
+        long count = numNotifications;
+        long nanos = dispatchNanos;
+
+        return "notifications = " + count + ", mean dispatch = " + (count == 0 ? 0 : nanos / count) + " ns";
+    }
+
+    /**
+     * Gets the NotificationRing through which notifications of the data callback are handed off to the thread
+     * delivering them to the DataListeners of this SmartBall.
+     * @return The data NotificationRing of this SmartBall
+     */
+    public NotificationRing getDataRing()
+    {
+        return dataRing;
+    }
+
+    /**
+     * Gets the GattStateCache holding the GATT state confirmed on the connection to this SmartBall.
+     * @return The GattStateCache of this SmartBall
+     */
+    public GattStateCache getGattState()
+    {
+        return gattState;
+    }
+
     /**
      * Method to determine whether or not this SmartBall is transmitting data.
      * @return Whether or not this SmartBall is transmitting data
@@ -156,21 +222,31 @@ public class SmartBall
     }
 
     /**
-     * Method to flush all commands in the command queue of this SmartBall.
+     * Method to flush all commands in the command queue of this SmartBall. Sequences added after this call are
+     * unaffected.
      */
     public void flushCommandQueue()
     {
-        GattCommandSequence sequence;
-        Iterator<GattCommandSequence> it = commandSequenceQueue.iterator();
+        commandExecutor.flush();
+    }
 
-        while (it.hasNext())
-        {
-            sequence = it.next();
-            if (sequence.CALLBACK != null)
-                sequence.CALLBACK.onCommandSequenceEvent(sequence, GattCommandSequence.Event.ENDED_EARLY);
+    /**
+     * Releases the threads of this SmartBall once its connection is closed for good, ending every pending command
+     * sequence. They are started again if the SmartBall is connected again.
+     */
+    public void close()
+    {
+        commandExecutor.shutdown();
+        dataRing.shutdown();
+    }
 
-            it.remove();
-        }
+    /**
+     * Gets the GattCommandExecutor running the command sequences of this SmartBall.
+     * @return The GattCommandExecutor of this SmartBall
+     */
+    public GattCommandExecutor getCommandExecutor()
+    {
+        return commandExecutor;
     }
 
     /**
@@ -203,21 +279,18 @@ public class SmartBall
      * @param listener The CharacteristicListener to add
      * @param characteristic The Characteristic for which to listen
      */
-    public void addCharacteristicListener(CharacteristicListener listener, Services.Characteristic characteristic)
+    public synchronized void addCharacteristicListener(CharacteristicListener listener,
+                                                       Services.Characteristic characteristic)
     {
-        UUID uuid = characteristic._UUID;
-        Set<CharacteristicListener> listeners = characteristicListeners.get(uuid);
+        CharacteristicListener[] listeners = characteristicListeners[characteristic.ordinal()];
 
-        if (listeners == null)
-        {
-            listeners = new HashSet<>();
-            characteristicListeners.put(uuid, listeners);
-        }
-
-        if (!listeners.contains(listener))
+        if (indexOf(listeners, listener) < 0)
         {
             Log.d(TAG, "Added characteristic listener to existing listeners: " + characteristic.name());
-            listeners.add(listener);
+
+            CharacteristicListener[][] table = characteristicListeners.clone();
+            table[characteristic.ordinal()] = append(listeners, listener);
+            characteristicListeners = table;
         }
         else
             Log.d(TAG, "Attempted to add characteristic listener already contained in list: " + characteristic.name());
@@ -227,10 +300,14 @@ public class SmartBall
      * Method to remove a CharacteristicListener to listener from this SmartBall's list of CharacteristicListeners.
      * @param listener The CharacteristicListener to remove
      */
-    public void removeCharacteristicListener(CharacteristicListener listener)
+    public synchronized void removeCharacteristicListener(CharacteristicListener listener)
     {
-        for (Set<CharacteristicListener> set: characteristicListeners.values())
-            set.remove(listener);
+        CharacteristicListener[][] table = characteristicListeners.clone();
+
+        for (int i = 0; i < table.length; ++i)
+            table[i] = remove(table[i], listener);
+
+        characteristicListeners = table;
     }
 
     /**
@@ -255,18 +332,19 @@ public class SmartBall
      * Method to add a DataListener.
      * @param listener The DataListener to add
      */
-    public void addDataListener(DataListener listener)
+    public synchronized void addDataListener(DataListener listener)
     {
-        dataListeners.add(listener);
+        if (indexOf(dataListeners, listener) < 0)
+            dataListeners = append(dataListeners, listener);
     }
 
     /**
      * Method to remove the given DataListener.
      * @param listener The DataListener to remove
      */
-    public void removeDataListener(DataListener listener)
+    public synchronized void removeDataListener(DataListener listener)
     {
-        dataListeners.remove(listener);
+        dataListeners = remove(dataListeners, listener);
     }
 
     /**
@@ -275,7 +353,7 @@ public class SmartBall
      */
     public int getNumCharacteristicsFound()
     {
-        return characteristicRepository.size();
+        return numCharacteristicsFound;
     }
 
     /**
@@ -285,22 +363,18 @@ public class SmartBall
      */
     public BluetoothGattCharacteristic getCharacteristic(Services.Characteristic characteristic)
     {
-        return characteristicRepository.get(characteristic);
+        return characteristicRepository[characteristic.ordinal()];
     }
 
     /**
      * Adds a GattCommandSequence to the queue of command sequences waiting to execute. Only one GattCommandSequence may
-     * execute at a time so a queue is used. This method will begin the sequence if the queue is empty.
+     * execute at a time so a queue is used. The sequence is begun by the GattCommandExecutor of this SmartBall once
+     * every sequence ahead of it has finished; this method does not block.
      * @param sequence The GattCommandSequence to add
      */
     public void addCommandSequenceToQueue(GattCommandSequence sequence)
     {
-        // Add the sequence
-        commandSequenceQueue.add(sequence);
-        Log.d(TAG, "Command Sequence added to queue: " + sequence.NAME + " @ position " + (commandSequenceQueue.size() - 1));
-
-        // Attempt to execute the next sequence (this method will ensure that a sequence already executing is not restarted)
-        while (!executeTopCommandInSequence()) {/* Do nothing */}
+        commandExecutor.submit(sequence);
     }
 
     /**
@@ -309,31 +383,7 @@ public class SmartBall
      */
     public GattCommandSequence getCurrentCommandSequence()
     {
-        return commandSequenceQueue.peekFirst();
-    }
-
-    /**
-     * Ends the current GattCommandSequence and starts the next sequence if applicable.
-     */
-    public void endCurrentCommandSequence()
-    {
-        GattCommandSequence sequence = commandSequenceQueue.removeFirst();
-
-        if (sequence.isExecuting())
-        {
-            Log.d(TAG, "Command Sequence ended early: " + sequence.NAME);
-            if (sequence.CALLBACK != null)
-                sequence.CALLBACK.onCommandSequenceEvent(sequence, GattCommandSequence.Event.ENDED_EARLY);
-        }
-        else
-        {
-            Log.d(TAG, "Command Sequence finished: " + sequence.NAME);
-            if (sequence.CALLBACK != null)
-                sequence.CALLBACK.onCommandSequenceEvent(sequence, GattCommandSequence.Event.FINISHED_EXECUTION);
-        }
-
-        // Attempt to execute the next sequence (this method will ensure that a sequence already executing is not restarted)
-        while (!executeTopCommandInSequence());
+        return commandExecutor.getCurrentSequence();
     }
 
     /**
@@ -347,7 +397,8 @@ public class SmartBall
         Log.d(TAG, "Connection State: " + CONNECTION.getConnectionState().name());
 
         // Command Queue
-        GattCommandSequence sequence = commandSequenceQueue.peekFirst();
+        Log.d(TAG, "Command Executor: " + commandExecutor.getStats());
+        GattCommandSequence sequence = commandExecutor.getCurrentSequence();
 
         if (sequence != null)
         {
@@ -362,23 +413,30 @@ public class SmartBall
 
         // Data transmit state
         Log.d(TAG, "Is Transmiting Data: " + isDataTransmitInProgress() + " -> " + getDataTypeInTransit());
+        Log.d(TAG, "Data Ring: " + dataRing.getStats());
 
         // Listeners
-        Log.d(TAG, "Data Listeners: (" + dataListeners.size() + ")");
-        for (DataListener listener: dataListeners)
+        DataListener[] data = dataListeners;
+        Log.d(TAG, "Data Listeners: (" + data.length + ")");
+        for (DataListener listener: data)
             Log.d(TAG, "\t" + listener);
 
         Log.d(TAG, "Event Listeners: (" + eventListeners.size() + ")");
         for (EventListener listener: eventListeners)
             Log.d(TAG, "\t" + listener);
 
-        Log.d(TAG, "Characteristic Listeners: (" + characteristicListeners.size() + " characteristics)");
-        Collection<UUID> characteristics = characteristicListeners.keySet();
+        CharacteristicListener[][] table = characteristicListeners;
+        Log.d(TAG, "Characteristic Listeners: " + getDispatchStats());
 
-        for (UUID uuid: characteristics)
+        for (Services.Characteristic characteristic: Services.Characteristic.values())
         {
-            Log.d(TAG, "\tListeners on " + uuid + ": (" + getCharacteristicListeners(uuid).size() + ")");
-            for (CharacteristicListener listener: getCharacteristicListeners(uuid))
+            CharacteristicListener[] listeners = table[characteristic.ordinal()];
+
+            if (listeners.length == 0)
+                continue;
+
+            Log.d(TAG, "\tListeners on " + characteristic.name() + ": (" + listeners.length + ")");
+            for (CharacteristicListener listener: listeners)
                 Log.d(TAG, "\t\t" + listener);
         }
     }
@@ -392,7 +450,7 @@ public class SmartBall
     {
         String str = "SmartBall:";
 
-        str += "\tDevice = " + DEVICE.getName();
+        str += "\tDevice = " + (DEVICE == null ? null : DEVICE.getName());
         str += "\tConnection State = " + CONNECTION.getConnectionState().name();
 
         return str;
@@ -406,7 +464,10 @@ public class SmartBall
                                                  BluetoothGattCharacteristic bluetoothGattCharacteristic)
     {
         // Add the characteristic to the repository and notify listeners if the characteristic is new
-        if (characteristicRepository.put(characteristic, bluetoothGattCharacteristic) == null)
+        BluetoothGattCharacteristic previous = characteristicRepository[characteristic.ordinal()];
+        characteristicRepository[characteristic.ordinal()] = bluetoothGattCharacteristic;
+
+        if (previous == null)
         {
             // Increment the number of found characteristics
             numCharacteristicsFound++;
@@ -424,80 +485,171 @@ public class SmartBall
     }
 
     /**
-     * Executes the top GattCommand in the sequence. If the sequence fails to begin execution, it is removed.
-     * @return False if the top command failed to start and was removed, true in any other situation
+     * Called by the SmartBallConnection when its connection is lost but will be re-established. A transmission in
+     * progress is suspended rather than cancelled, so that it can be requested again once reconnected.
      */
-    protected synchronized boolean executeTopCommandInSequence()
+    synchronized void suspendTransmission()
     {
-        if (commandSequenceQueue.isEmpty())
-            return true;
-
-        // Get the top sequence in the queue
-        GattCommandSequence sequence = commandSequenceQueue.getFirst();
+        if (dataTransmitInProgress && requestInTransit != null)
+        {
+            suspendedRequest = requestInTransit;
+            suspendedCallback = callbackInTransit;
+            dataTransmitInProgress = false;
+            Log.d(TAG, "Suspended transmission of " + SmartBallProtocol.getRequestedSamples(suspendedRequest) +
+                    " samples");
+        }
+    }
 
-        // Return if the sequence is already executing
-        if (sequence.isExecuting())
+    /**
+     * Called by the SmartBallConnection when it gives up re-establishing its connection, cancelling any suspended
+     * transmission.
+     */
+    void cancelSuspendedTransmission()
+    {
+        synchronized (this)
         {
-            Log.w(TAG, "Attempted to execute a GattCommandSequence already in execution: " + sequence.NAME);
-            return true;
+            if (suspendedRequest == null)
+                return;
+
+            suspendedRequest = null;
+            suspendedCallback = null;
         }
 
-        Log.d(TAG, "Attempting to begin execution of top sequence in command queue: " + sequence.NAME + "...");
+        for (DataListener listener : dataListeners)
+            listener.onSmartBallDataTransmissionEvent(this, dataTypeInTransit, DataEvent.TRANSMISSION_CANCELLED, 0);
+    }
 
-        // TODO This line (below) causes confusing Log traces, due to the method call in the condition
-        if (sequence.executeTop(CONNECTION.getBluetoothGatt())) // If false, the sequence failed to start
+    /**
+     * Called by the SmartBallConnection once its connection has been re-established and the characteristics of this
+     * SmartBall are usable again. A suspended transmission is requested again from the first sample missing from its
+     * ResumableDataListeners, after notifications are re-enabled, and EventListeners are notified.
+     */
+    void onReconnected()
+    {
+        byte[] request;
+        GattCommandSequence.CommandSequenceCallback callback;
+
+        synchronized (this)
         {
-            Log.d(TAG, "Command Sequence begun: " + sequence.NAME);
+            request = suspendedRequest;
+            callback = suspendedCallback;
+            suspendedRequest = null;
+            suspendedCallback = null;
+        }
 
-            // Invoke callback if needed
-            if (sequence.CALLBACK != null)
-                sequence.CALLBACK.onCommandSequenceEvent(sequence, GattCommandSequence.Event.BEGUN_EXECUTION);
+        if (request != null)
+        {
+            int endSample = SmartBallProtocol.getRequestedFirstSample(request) +
+                    SmartBallProtocol.getRequestedSamples(request);
+            int resumeSample = getResumeSample(request);
+
+            Log.d(TAG, "Resuming transmission of samples " + resumeSample + " to " + endSample);
+            GattCommandUtils.executeEnableNotificationsCommandSequence(this, null);
+            GattCommandUtils.executeDataTransmitCommandSequence(this, resumeSample, endSample - resumeSample,
+                    SmartBallProtocol.getRequestedDataType(request), callback);
+        }
 
-            // Check for specific sequences and act accordingly
-            switch (sequence.NAME)
-            {
-                // Is data 1 transmit sequence
-                case GattCommandUtils.DATA_TRANSMIT_SEQUENCE_1:
-                    dataTransmitInProgress = true;
-                    dataTypeInTransit = 1;
+        for (EventListener listener: eventListeners)
+            listener.onBallReconnected(this, request != null);
+    }
 
-                    for (DataListener listener: dataListeners)
-                        listener.onSmartBallDataTransmissionEvent(this, dataTypeInTransit, DataEvent.TRANSMISSION_REQUESTED, 0);
+    /**
+     * Dispatches a changed characteristic to the CharacteristicListeners listening on it. Called for every
+     * notification, so the characteristic is resolved against the repository by identity and its listeners are read
+     * from the current snapshot of the listener table, without allocating.
+     * @param gatt The BluetoothGatt
+     * @param characteristic The changed characteristic
+     */
+    void dispatchCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic)
+    {
+        long start = System.nanoTime();
+        int ordinal = findOrdinal(characteristic);
 
-                    break;
+        if (ordinal >= 0)
+        {
+            for (CharacteristicListener listener: characteristicListeners[ordinal])
+                listener.onCharacteristicChanged(gatt, characteristic);
+        }
 
-                // Is data 2 transmit sequence
-                case GattCommandUtils.DATA_TRANSMIT_SEQUENCE_2:
-                    dataTransmitInProgress = true;
-                    dataTypeInTransit = 2;
+        dispatchNanos += System.nanoTime() - start;
+        numNotifications++;
+    }
 
-                    for (DataListener listener: dataListeners)
-                        listener.onSmartBallDataTransmissionEvent(this, dataTypeInTransit, DataEvent.TRANSMISSION_REQUESTED, 0);
+    /**
+     * Called by the GattCommandExecutor when a GattCommandSequence has begun execution, to track data transmissions.
+     * @param sequence The GattCommandSequence begun
+     */
+    void onCommandSequenceBegun(GattCommandSequence sequence)
+    {
+        // Check for specific sequences and act accordingly
+        switch (sequence.NAME)
+        {
+            // Is data 1 transmit sequence
+            case GattCommandUtils.DATA_TRANSMIT_SEQUENCE_1:
+                recordRequestInTransit(sequence);
+                dataTransmitInProgress = true;
+                dataTypeInTransit = 1;
 
-                    break;
+                for (DataListener listener: dataListeners)
+                    listener.onSmartBallDataTransmissionEvent(this, dataTypeInTransit, DataEvent.TRANSMISSION_REQUESTED, 0);
 
-                // Is end data transmit sequence flag
-                case GattCommandUtils.END_DATA_TRANSMIT_SEQUENCE:
-                    clearDataTransmitInProgressFlag();
-                    break;
-            }
+                break;
 
-            return true;
+            // Is data 2 transmit sequence
+            case GattCommandUtils.DATA_TRANSMIT_SEQUENCE_2:
+                recordRequestInTransit(sequence);
+                dataTransmitInProgress = true;
+                dataTypeInTransit = 2;
+
+                for (DataListener listener: dataListeners)
+                    listener.onSmartBallDataTransmissionEvent(this, dataTypeInTransit, DataEvent.TRANSMISSION_REQUESTED, 0);
+
+                break;
+
+            // Is end data transmit sequence flag
+            case GattCommandUtils.END_DATA_TRANSMIT_SEQUENCE:
+                clearDataTransmitInProgressFlag();
+                break;
         }
-        else
-        {
-            Log.d(TAG, "Command Sequence failed to start and was removed: " + sequence.NAME);
+    }
 
-            // Invoke the callback if needed
-            if (sequence.CALLBACK != null)
-                sequence.CALLBACK.onCommandSequenceEvent(sequence, GattCommandSequence.Event.FAILED_TO_BEGIN);
+    /**
+     * Gets the first sample of an interrupted transmission to request again: the earliest sample missing from a
+     * ResumableDataListener, or the first sample of the transmission if no listener can resume it.
+     * @param request The data request of the interrupted transmission
+     * @return The index of the first sample to request
+     */
+    private int getResumeSample(byte[] request)
+    {
+        int firstSample = SmartBallProtocol.getRequestedFirstSample(request);
+        int numSamples = SmartBallProtocol.getRequestedSamples(request);
+        int resumeSample = -1;
 
-            // Remove the command
-            if (!commandSequenceQueue.isEmpty())
-                commandSequenceQueue.removeFirst();
+        for (DataListener listener: dataListeners)
+        {
+            if (listener instanceof ResumableDataListener)
+            {
+                int sample = ((ResumableDataListener) listener).getResumeSample(this, firstSample, numSamples);
 
-            return false;
+                if (resumeSample < 0 || sample < resumeSample)
+                    resumeSample = sample;
+            }
         }
+
+        return resumeSample < 0 ? firstSample : resumeSample;
+    }
+
+    /**
+     * Records the data request of a data transmit sequence, so that its transmission can be resumed.
+     * @param sequence The data transmit sequence, whose top command writes the data request
+     */
+    private void recordRequestInTransit(GattCommandSequence sequence)
+    {
+        GattCommand<?> command = sequence.peek();
+
+        requestInTransit = command instanceof GattCommand.WriteGattCommand ?
+                ((GattCommand.WriteGattCommand<?>) command).WRITE_VALUE : null;
+        callbackInTransit = sequence.CALLBACK;
     }
 
     /**
@@ -506,11 +658,83 @@ public class SmartBall
     private void clearFoundCharacteristics()
     {
         Log.d(TAG, "Characteristic repository cleared");
-        if (characteristicRepository != null)
-            characteristicRepository.clear();
+        Arrays.fill(characteristicRepository, null);
         numCharacteristicsFound = 0;
     }
 
+    /**
+     * Finds the ordinal of the Characteristic of a BluetoothGattCharacteristic. The BluetoothGatt delivers the
+     * instances found on service discovery, so they are matched by identity, starting with the Characteristic of the
+     * previous notification; other instances are matched by _UUID.
+     * @param characteristic The BluetoothGattCharacteristic
+     * @return The ordinal of its Characteristic, or -1 if it is not a known Characteristic
+     */
+    private int findOrdinal(BluetoothGattCharacteristic characteristic)
+    {
+        if (characteristicRepository[lastNotifiedOrdinal] == characteristic)
+            return lastNotifiedOrdinal;
+
+        for (int i = 0; i < characteristicRepository.length; ++i)
+        {
+            if (characteristicRepository[i] == characteristic)
+            {
+                lastNotifiedOrdinal = i;
+                return i;
+            }
+        }
+
+        Services.Characteristic c = Services.Characteristic.findByUUID(characteristic.getUuid());
+        return c == null ? -1 : c.ordinal();
+    }
+
+    /**
+     * Finds a listener in an array of listeners.
+     * @param listeners The listeners
+     * @param listener The listener to find
+     * @return The index of the listener, or -1 if not found
+     */
+    private static <T> int indexOf(T[] listeners, T listener)
+    {
+        for (int i = 0; i < listeners.length; ++i)
+        {
+            if (listeners[i].equals(listener))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Copies an array of listeners with a listener appended.
+     * @param listeners The listeners
+     * @param listener The listener to append
+     * @return The new array of listeners
+     */
+    private static <T> T[] append(T[] listeners, T listener)
+    {
+        T[] copy = Arrays.copyOf(listeners, listeners.length + 1);
+        copy[listeners.length] = listener;
+        return copy;
+    }
+
+    /**
+     * Copies an array of listeners with a listener removed.
+     * @param listeners The listeners
+     * @param listener The listener to remove
+     * @return The new array of listeners, or the same array if it does not contain the listener
+     */
+    private static <T> T[] remove(T[] listeners, T listener)
+    {
+        int index = indexOf(listeners, listener);
+
+        if (index < 0)
+            return listeners;
+
+        T[] copy = Arrays.copyOf(listeners, listeners.length - 1);
+        System.arraycopy(listeners, index + 1, copy, index, listeners.length - index - 1);
+        return copy;
+    }
+
     /**
      * Helper method to initialize the kick bit listener.
      * @param ball A constant reference to this SmartBall for convenience
@@ -524,14 +748,14 @@ public class SmartBall
             {
                 byte[] value = characteristic.getValue();
 
-                if (value[0] == 0) // Been kicked
+                if (value[0] == SmartBallProtocol.KICKED) // Been kicked
                 {
                     kickBit = false;
                     Log.d(TAG, "Ball has been kicked");
                     for (EventListener listener: eventListeners)
                         listener.onBallKickEvent(ball, KickEvent.KICKED);
                 }
-                else if (value[0] == 1) // Ready to kick
+                else if (value[0] == SmartBallProtocol.READY_TO_KICK) // Ready to kick
                 {
                     kickBit = true;
                     Log.d(TAG, "Ball is ready to be kicked");
@@ -543,33 +767,43 @@ public class SmartBall
     }
 
     /**
-     * Helper method to initialize the data transmit listener.
+     * Helper method to initialize the data transmit listener. Notifications of the data callback are copied into the
+     * data ring on the Bluetooth callback thread, and split into lines and delivered to the DataListeners on the
+     * thread consuming the ring, so that decoding never delays the next notification.
      * @param ball A constant reference to this SmartBall for convenience
      */
     private void createDataTransmitListener(final SmartBall ball)
     {
-        addCharacteristicListener(new CharacteristicListener()
+        dataRing = new NotificationRing(TAG + "-data", DATA_RING_CAPACITY, new NotificationRing.Consumer()
         {
             private byte[] previousLine;
 
             @Override
-            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic)
+            public void onNotification(byte[] buffer, int length)
             {
-                byte[] value = characteristic.getValue();
+                // With a larger MTU a notification may carry several concatenated lines
+                for (int i = 0; i < length; i += SmartBallProtocol.LINE_LENGTH)
+                    onLine(Arrays.copyOfRange(buffer, i, Math.min(length, i + SmartBallProtocol.LINE_LENGTH)));
+            }
 
+            /*
+             * Handles a single line of transmitted data.
+             */
+            private void onLine(byte[] value)
+            {
                 if (dataTransmitInProgress && value.length > 3) // Data transmission currently in progress
                 {
-                    if (value[0] == -118 && value[1] == 10 && value[2] == 0 && value[3] == 0) // Start
+                    if (SmartBallProtocol.isStartFrame(value)) // Start
                     {
                         for (DataListener listener: dataListeners)
                         {
                             listener.onSmartBallDataTransmissionEvent(ball, dataTypeInTransit, DataEvent.TRANSMISSION_BEGUN,
-                                    value[6] | (value[7] << 8));
+                                    SmartBallProtocol.getStartFrameSamples(value));
 
                             listener.onSmartBallDataRead(ball, value, true, false, dataTypeInTransit);
                         }
                     }
-                    else if (previousLine != null && (value[0] == -102) && (previousLine[0] != -103)) // Finished
+                    else if (SmartBallProtocol.isEndFrame(value, previousLine)) // Finished
                     {
                         dataTransmitInProgress = false;
                         previousLine = null;
@@ -589,6 +823,18 @@ public class SmartBall
                     }
                 }
             }
+        });
+
+        addCharacteristicListener(new CharacteristicListener()
+        {
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic)
+            {
+                byte[] value = characteristic.getValue();
+
+                if (value != null && !dataRing.offer(value))
+                    Log.w(TAG, "Data ring overflow, notification dropped: " + dataRing.getStats());
+            }
         }, Services.Characteristic.DATA_CALLBACK);
     }
 
@@ -635,6 +881,23 @@ public class SmartBall
 
     }
 
+    /**
+     * DataListener which keeps the samples received before a lost connection interrupted a transmission, so that only
+     * the samples it is missing need to be transmitted again once reconnected.
+     */
+    public interface ResumableDataListener extends DataListener
+    {
+        /**
+         * Called once reconnected, before a transmission interrupted by the lost connection is requested again. The
+         * transmission is requested from the earliest sample returned by any ResumableDataListener.
+         * @param ball The SmartBall
+         * @param firstSample The first sample of the interrupted transmission
+         * @param numSamples The number of samples of the interrupted transmission
+         * @return The first sample missing, from firstSample to the last sample of the transmission
+         */
+        int getResumeSample(SmartBall ball, int firstSample, int numSamples);
+    }
+
     /**
      * Interface for any class monitoring a SmartBall.
      *
@@ -654,5 +917,13 @@ public class SmartBall
          * @param ball The SmartBall
          */
         void onBallCharacteristicDiscoveryCompleted(SmartBall ball);
+
+        /**
+         * Called when the connection to the SmartBall has been re-established automatically after being lost. Commands
+         * queued before the connection was lost have been discarded.
+         * @param ball The SmartBall
+         * @param transmissionResumed True if a transmission interrupted by the lost connection has been requested again
+         */
+        void onBallReconnected(SmartBall ball, boolean transmissionResumed);
     }
 }
\ No newline at end of file
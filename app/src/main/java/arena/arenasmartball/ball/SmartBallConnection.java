@@ -1,5 +1,6 @@
 package arena.arenasmartball.ball;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
@@ -12,13 +13,28 @@ import android.util.Log;
 
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class representing a Bluetooth connection to a SmartBall. Instances of this class are created with a ScanResult
  * which is assumed to represent a valid SmartBall.
+ * <p>
+ * A connection lost or failed other than through disconnect() is re-established automatically according to a
+ * ReconnectPolicy, the connection remaining CONNECTING meanwhile. The first attempt reuses the BluetoothGatt of the
+ * lost connection, whose discovered services and characteristics remain valid, so service discovery is not repeated;
+ * should it fail, later attempts open a new BluetoothGatt and discover services again. A transmission interrupted by
+ * the lost connection is requested again once reconnected.
+ * <p>
+ * A SmartBallConnection may instead be connected through any other SmartBallLink, such as a SmartBallSimulator, which
+ * delivers its results and notifications to getLinkCallback(). Such a link is not re-established when lost.
  *
  * Created by Theodore on 4/5/2016.
  */
@@ -46,30 +62,102 @@ public class SmartBallConnection extends BluetoothGattCallback
         }
     }
 
+    /** The ATT MTU in effect before any MTU exchange, in bytes. */
+    public static final int DEFAULT_MTU = 23;
+
+    /** The ATT MTU requested in high throughput mode, in bytes: room for 12 data lines per notification. */
+    public static final int HIGH_THROUGHPUT_MTU = 247;
+
+    // The size of the ATT header of a notification, in bytes.
+    private static final int ATT_HEADER_LENGTH = 3;
+
     // The tag for this class.
     private static final String TAG = "SmartBallConnection";
 
+    // The time a reconnection attempt may take before it is abandoned and the next one scheduled, in milliseconds.
+    private static final long RECONNECT_ATTEMPT_TIMEOUT_MS = 10000L;
+
+    // Schedules the reconnection attempts of every SmartBallConnection, null until first needed.
+    private static ScheduledExecutorService reconnectScheduler;
+
+    // Whether every GATT callback and notification is logged, compiled out unless set while debugging the protocol.
+    private static final boolean LOG_GATT_TRAFFIC = false;
+
     // The state of this SmartBallConnection.
     private ConnectionState connectionState;
 
     // The SmartBall attached to this SmartBallConnection.
     private SmartBall smartBall;
 
-    // The BluetoothGatt handling the connection.
-    private BluetoothGatt bluetoothGatt;
+    // The BluetoothGatt handling the connection, read by the command executor thread.
+    private volatile BluetoothGatt bluetoothGatt;
+
+    // The SmartBallLink through which commands are issued, null if not connected.
+    private volatile SmartBallLink link;
 
     // The Set of SmartBallConnectionListener attached to this SmartBallConnection.
     private Set<SmartBallConnectionListener> listeners;
 
+    // Whether the link is tuned for throughput after service discovery.
+    private volatile boolean highThroughputMode;
+
+    // The negotiated ATT MTU, in bytes.
+    private volatile int mtu;
+
+    // The Context of the last call to connect(), used to reconnect.
+    private Context context;
+
+    // The policy for reconnecting after the connection is lost, or null to not reconnect.
+    private volatile ReconnectPolicy reconnectPolicy;
+
+    // Whether the connection is being closed through disconnect(), and so is not to be re-established.
+    private volatile boolean disconnectRequested;
+
+    // Whether the connection is being re-established, guarded by this.
+    private boolean reconnecting;
+
+    // The number of reconnection attempts made since the connection was lost, guarded by this.
+    private int reconnectAttempt;
+
+    // The next scheduled reconnection attempt or attempt timeout, guarded by this.
+    private ScheduledFuture<?> reconnectTask;
+
+    // The source of the jitter of reconnection delays.
+    private final Random reconnectRandom;
+
+    // The BluetoothGatt whose discovered characteristics populate the repository of the SmartBall.
+    private volatile BluetoothGatt discoveredGatt;
+
+    // Polls the telemetry of the SmartBall for its subscribers.
+    private final TelemetryService telemetryService;
+
+    // Receives the callbacks of a link connected through connect(SmartBallLink).
+    private final SmartBallLink.Callback linkCallback;
+
     /**
      * Constructs a new SmartBallConnection.
      * @param result The ScanResult to use to connect to
      */
     public SmartBallConnection(ScanResult result)
+    {
+        this(result.getDevice());
+    }
+
+    /**
+     * Constructs a new SmartBallConnection.
+     * @param device The BluetoothDevice to connect to, or null if only connected through connect(SmartBallLink)
+     */
+    public SmartBallConnection(BluetoothDevice device)
     {
         connectionState = ConnectionState.NOT_CONNECTED;
-        smartBall = new SmartBall(this, result.getDevice());
+        smartBall = new SmartBall(this, device);
         listeners = new HashSet<>();
+        highThroughputMode = true;
+        mtu = DEFAULT_MTU;
+        reconnectPolicy = ReconnectPolicy.DEFAULT;
+        reconnectRandom = new Random();
+        telemetryService = new TelemetryService(this);
+        linkCallback = new LinkCallback();
     }
 
     /**
@@ -121,6 +209,16 @@ public class SmartBallConnection extends BluetoothGattCallback
         return smartBall;
     }
 
+    /**
+     * Gets the TelemetryService polling the battery level, charging state, timeout counter and signal strength of the
+     * SmartBall of this SmartBallConnection.
+     * @return The TelemetryService of this SmartBallConnection
+     */
+    public TelemetryService getTelemetryService()
+    {
+        return telemetryService;
+    }
+
     /**
      * Gets the BluetoothGatt behind this SmartBallConnection. Will be null if not connected.
      * @return The bluetoothGatt behind this SmartBallConnection
@@ -130,6 +228,80 @@ public class SmartBallConnection extends BluetoothGattCallback
         return bluetoothGatt;
     }
 
+    /**
+     * Gets the SmartBallLink through which commands are issued. Will be null if not connected.
+     * @return The SmartBallLink of this SmartBallConnection
+     */
+    public SmartBallLink getLink()
+    {
+        return link;
+    }
+
+    /**
+     * Gets the Callback to which a SmartBallLink connected through connect(SmartBallLink) delivers its results and
+     * notifications.
+     * @return The SmartBallLink.Callback of this SmartBallConnection
+     */
+    public SmartBallLink.Callback getLinkCallback()
+    {
+        return linkCallback;
+    }
+
+    /**
+     * Sets whether the link is tuned for throughput after service discovery, by requesting high connection priority
+     * and a larger MTU. Takes effect from the next service discovery.
+     * @param highThroughputMode Whether to tune the link for throughput
+     */
+    public void setHighThroughputMode(boolean highThroughputMode)
+    {
+        this.highThroughputMode = highThroughputMode;
+    }
+
+    /**
+     * Gets whether the link is tuned for throughput after service discovery.
+     * @return Whether the link is tuned for throughput
+     */
+    public boolean isHighThroughputMode()
+    {
+        return highThroughputMode;
+    }
+
+    /**
+     * Gets the ATT MTU negotiated on this SmartBallConnection.
+     * @return The MTU in bytes, DEFAULT_MTU if none was negotiated
+     */
+    public int getMtu()
+    {
+        return mtu;
+    }
+
+    /**
+     * Sets the policy for re-establishing the connection after it is lost other than through disconnect().
+     * @param policy The ReconnectPolicy, or null to not reconnect automatically
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy)
+    {
+        reconnectPolicy = policy;
+    }
+
+    /**
+     * Gets the policy for re-establishing the connection after it is lost.
+     * @return The ReconnectPolicy, or null if not reconnecting automatically
+     */
+    public ReconnectPolicy getReconnectPolicy()
+    {
+        return reconnectPolicy;
+    }
+
+    /**
+     * Gets whether the connection is being re-established after being lost.
+     * @return True if reconnecting
+     */
+    public synchronized boolean isReconnecting()
+    {
+        return reconnecting;
+    }
+
     /**
      * Gets the current ConnectionState of this SmartBallConnection.
      * @return The current ConnectionState of this SmartBallConnection
@@ -181,11 +353,47 @@ public class SmartBallConnection extends BluetoothGattCallback
         if (connectionState == ConnectionState.CONNECTED)
             return;
 
+        this.context = context;
+        disconnectRequested = false;
+        stopReconnecting();
+
         // Begin connecting
+        closeGatt();
         bluetoothGatt = smartBall.DEVICE.connectGatt(context, true, this);
+        link = bluetoothGatt == null ? null : new GattLink(bluetoothGatt);
         setConnectionState(ConnectionState.CONNECTING);
     }
 
+    /**
+     * Connects through a SmartBallLink other than a BluetoothGatt, such as a SmartBallSimulator, which must deliver
+     * its callbacks to getLinkCallback(). The link is taken to be open to a SmartBall with the known characteristics,
+     * so the connection is CONNECTED at once and the characteristics are created rather than discovered. The MTU
+     * exchange is queued in high throughput mode.
+     * @param link The open SmartBallLink
+     */
+    public void connect(SmartBallLink link)
+    {
+        if (connectionState == ConnectionState.CONNECTED)
+            return;
+
+        disconnectRequested = false;
+        stopReconnecting();
+        closeGatt();
+
+        this.link = link;
+
+        for (Services.Characteristic characteristic: Services.Characteristic.values())
+        {
+            if (smartBall.getCharacteristic(characteristic) == null)
+                smartBall.addCharacteristicToRepository(characteristic, new LinkCharacteristic(characteristic._UUID));
+        }
+
+        setConnectionState(ConnectionState.CONNECTED);
+
+        if (highThroughputMode)
+            smartBall.getCommandExecutor().requestMtu(HIGH_THROUGHPUT_MTU);
+    }
+
     /**
      * Called when the user wants to close the connection to the SmartBall.
      */
@@ -204,6 +412,24 @@ public class SmartBallConnection extends BluetoothGattCallback
         if (listener != null)
             addSmartBallConnectionListener(listener);
 
+        // Stop reconnecting, giving up any suspended transmission
+        disconnectRequested = true;
+
+        if (stopReconnecting())
+        {
+            smartBall.cancelSuspendedTransmission();
+            closeGatt();
+            setConnectionState(ConnectionState.DISCONNECTED);
+            return;
+        }
+
+        // A link other than a BluetoothGatt closes at once
+        if (bluetoothGatt == null && link != null)
+        {
+            closeLink();
+            return;
+        }
+
         // Quit if already disconnected
         if (bluetoothGatt == null || connectionState == ConnectionState.DISCONNECTED)
             return;
@@ -219,12 +445,17 @@ public class SmartBallConnection extends BluetoothGattCallback
     }
 
     /**
-     * Method to request the rssi of this SmartBallConnection.
-     * @return true if the request was sent successfully
+     * Method to request the rssi of this SmartBallConnection. The read is queued on the command executor, since it must
+     * not overlap other GATT operations, and is issued once no command sequence is waiting.
+     * @return true if the request was queued
      */
     public boolean requestRssi()
     {
-        return bluetoothGatt != null && bluetoothGatt.readRemoteRssi();
+        if (link == null)
+            return false;
+
+        smartBall.getCommandExecutor().requestRssi();
+        return true;
     }
 
     /**
@@ -239,6 +470,16 @@ public class SmartBallConnection extends BluetoothGattCallback
         Log.d(TAG, "Connection State Changed: New State = " + getConnectionStateString(newState) +
                 ", Status = " + getConnectionStatusString(status));
 
+        // Determine whether or not the connection was successful
+        boolean connected = status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED;
+
+        // Re-establish a connection lost or failed unless closed on request
+        if (!connected && !disconnectRequested && reconnectPolicy != null && context != null)
+        {
+            onConnectionLost(status);
+            return;
+        }
+
         // Check whether the state change was successful
         if (status != BluetoothGatt.GATT_SUCCESS)
         {
@@ -247,13 +488,23 @@ public class SmartBallConnection extends BluetoothGattCallback
             return;
         }
 
-        // Determine whether or not the connection was successful
-        boolean connected = (newState == BluetoothProfile.STATE_CONNECTED);
-
         if (connected)
         {
             setConnectionState(ConnectionState.CONNECTED);
 
+            // Reuse the characteristics discovered on this BluetoothGatt when reconnecting
+            if (isReconnecting() && gatt == discoveredGatt &&
+                    smartBall.getNumCharacteristicsFound() == Services.Characteristic.values().length)
+            {
+                Log.d(TAG, "Reconnected, reusing discovered services");
+
+                if (highThroughputMode)
+                    tuneLink(gatt);
+
+                onReconnected();
+                return;
+            }
+
             // Begin Service discovery
             boolean begun = this.bluetoothGatt.discoverServices();
 
@@ -282,6 +533,10 @@ public class SmartBallConnection extends BluetoothGattCallback
         BluetoothGattCharacteristic characteristic;
         List<BluetoothGattService> services = gatt.getServices();
 
+        // Tune the link before any listener queues commands, so the MTU exchange is the first operation
+        if (highThroughputMode)
+            tuneLink(gatt);
+
         // Add Characteristics to repository
         for (BluetoothGattService service: services)
         {
@@ -298,6 +553,34 @@ public class SmartBallConnection extends BluetoothGattCallback
                 }
             }
         }
+
+        discoveredGatt = gatt;
+
+        if (isReconnecting())
+            onReconnected();
+    }
+
+    /**
+     * Callback indicating the MTU for the connection has changed.
+     * @param gatt GATT client invoked requestMtu(int)
+     * @param mtu The new MTU size
+     * @param status GATT_SUCCESS if the MTU has been changed successfully
+     */
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status)
+    {
+        if (status == BluetoothGatt.GATT_SUCCESS)
+        {
+            this.mtu = mtu;
+            Log.d(TAG, "MTU changed to " + mtu + ": up to " +
+                    (mtu - ATT_HEADER_LENGTH) / SmartBallProtocol.LINE_LENGTH + " data lines per notification");
+        }
+        else
+        {
+            Log.w(TAG, "MTU exchange failed (" + status + "), MTU remains " + this.mtu);
+        }
+
+        smartBall.getCommandExecutor().onMtuChanged(this.mtu, status);
     }
 
     /**
@@ -308,20 +591,11 @@ public class SmartBallConnection extends BluetoothGattCallback
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic)
     {
-        Log.d(TAG, "onCharacteristicChanged: " + characteristic.getUuid() +
-                "\tValue = " + Arrays.toString(characteristic.getValue()));
+        if (LOG_GATT_TRAFFIC)
+            Log.v(TAG, "onCharacteristicChanged: " + characteristic.getUuid() +
+                    "\tValue = " + Arrays.toString(characteristic.getValue()));
 
-        SmartBall.CharacteristicListener listener;
-        Iterator<SmartBall.CharacteristicListener> it = null;
-
-        if (smartBall.getCharacteristicListeners(characteristic.getUuid()) != null)
-            it = smartBall.getCharacteristicListeners(characteristic.getUuid()).iterator();
-
-        while (it != null && it.hasNext())
-        {
-            listener = it.next();
-            listener.onCharacteristicChanged(gatt, characteristic);
-        }
+        smartBall.dispatchCharacteristicChanged(gatt, characteristic);
     }
 
     /**
@@ -333,9 +607,11 @@ public class SmartBallConnection extends BluetoothGattCallback
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
     {
-        Log.d(TAG, "onCharacteristicRead (" + status + "): " + characteristic.getUuid() +
-                "\tValue = " + Arrays.toString(characteristic.getValue()));
-        handleCallbackCommand(characteristic.getValue(), true, true, status);
+        if (LOG_GATT_TRAFFIC || status != BluetoothGatt.GATT_SUCCESS)
+            Log.d(TAG, "onCharacteristicRead (" + status + "): " + characteristic.getUuid() +
+                    "\tValue = " + Arrays.toString(characteristic.getValue()));
+        smartBall.getCommandExecutor().onGattCallback(characteristic.getUuid(), null, characteristic.getValue(),
+                true, status);
     }
 
     /**
@@ -350,9 +626,11 @@ public class SmartBallConnection extends BluetoothGattCallback
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
     {
-        Log.d(TAG, "onCharacteristicWrite (" + status + "): " + characteristic.getUuid() +
-                "\tValue = " + Arrays.toString(characteristic.getValue()));
-        handleCallbackCommand(characteristic.getValue(), true, false, status);
+        if (LOG_GATT_TRAFFIC || status != BluetoothGatt.GATT_SUCCESS)
+            Log.d(TAG, "onCharacteristicWrite (" + status + "): " + characteristic.getUuid() +
+                    "\tValue = " + Arrays.toString(characteristic.getValue()));
+        smartBall.getCommandExecutor().onGattCallback(characteristic.getUuid(), null, characteristic.getValue(),
+                false, status);
 
         // Notify that the Characteristic was changed
         onCharacteristicChanged(gatt, characteristic);
@@ -367,9 +645,11 @@ public class SmartBallConnection extends BluetoothGattCallback
     @Override
     public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status)
     {
-        Log.d(TAG, "onDescriptorRead (" + status + "): " + descriptor.getUuid() +
-                "\tValue = " + Arrays.toString(descriptor.getValue()));
-        handleCallbackCommand(descriptor.getValue(), false, true, status);
+        if (LOG_GATT_TRAFFIC || status != BluetoothGatt.GATT_SUCCESS)
+            Log.d(TAG, "onDescriptorRead (" + status + "): " + descriptor.getUuid() +
+                    "\tValue = " + Arrays.toString(descriptor.getValue()));
+        smartBall.getCommandExecutor().onGattCallback(descriptor.getCharacteristic().getUuid(), descriptor.getUuid(),
+                descriptor.getValue(), true, status);
     }
 
     /**
@@ -381,9 +661,11 @@ public class SmartBallConnection extends BluetoothGattCallback
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status)
     {
-        Log.d(TAG, "onDescriptorWrite (" + status + "): " + descriptor.getUuid() +
-                "\tValue = " + Arrays.toString(descriptor.getValue()));
-        handleCallbackCommand(descriptor.getValue(), false, false, status);
+        if (LOG_GATT_TRAFFIC || status != BluetoothGatt.GATT_SUCCESS)
+            Log.d(TAG, "onDescriptorWrite (" + status + "): " + descriptor.getUuid() +
+                    "\tValue = " + Arrays.toString(descriptor.getValue()));
+        smartBall.getCommandExecutor().onGattCallback(descriptor.getCharacteristic().getUuid(), descriptor.getUuid(),
+                descriptor.getValue(), false, status);
     }
 
     /**
@@ -395,10 +677,189 @@ public class SmartBallConnection extends BluetoothGattCallback
     @Override
     public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status)
     {
+        smartBall.getCommandExecutor().onRssiRead(rssi, status);
+
+        if (status == BluetoothGatt.GATT_SUCCESS)
+            telemetryService.onRssiRead(rssi);
+
         for (SmartBallConnectionListener listener: listeners)
             listener.onRssiRead(this, rssi);
     }
 
+    /**
+     * Helper method to request high connection priority and a larger MTU. The MTU exchange is queued on the command
+     * executor, since it must not overlap other GATT operations; whether notifications actually carry several data
+     * lines depends on the firmware of the SmartBall.
+     * @param gatt The BluetoothGatt of the connection
+     */
+    private void tuneLink(BluetoothGatt gatt)
+    {
+        boolean prioritized = gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        Log.d(TAG, "Requested high connection priority: " + prioritized);
+
+        smartBall.getCommandExecutor().requestMtu(HIGH_THROUGHPUT_MTU);
+    }
+
+    /**
+     * Helper method to handle a connection lost or failed other than through disconnect(), scheduling the next
+     * reconnection attempt after a backoff or giving up once the ReconnectPolicy is exhausted.
+     * @param status The status of the connection state change
+     */
+    private synchronized void onConnectionLost(int status)
+    {
+        ReconnectPolicy policy = reconnectPolicy;
+
+        if (!reconnecting)
+        {
+            Log.w(TAG, "Connection lost (" + getConnectionStatusString(status) + "), reconnecting: " + policy);
+            reconnecting = true;
+            reconnectAttempt = 0;
+            smartBall.suspendTransmission();
+        }
+        else
+        {
+            // The reused BluetoothGatt failed to reconnect, so open a new one on the next attempt
+            Log.w(TAG, "Reconnection attempt " + reconnectAttempt + " failed (" + getConnectionStatusString(status) +
+                    ")");
+            closeGatt();
+        }
+
+        // The policy may have been cleared by setReconnectPolicy() while reconnecting
+        if (policy == null || reconnectAttempt >= policy.getMaxAttempts())
+        {
+            Log.w(TAG, "Giving up reconnecting after " + reconnectAttempt + " attempts" +
+                    (policy == null ? ", reconnection disabled" : ""));
+            reconnecting = false;
+            smartBall.cancelSuspendedTransmission();
+            closeGatt();
+            setConnectionState(ConnectionState.DISCONNECTED);
+            return;
+        }
+
+        setConnectionState(ConnectionState.CONNECTING);
+
+        long delayMs = policy.getDelayMs(reconnectAttempt++, reconnectRandom);
+        Log.d(TAG, "Reconnection attempt " + reconnectAttempt + " in " + delayMs + " ms");
+
+        reconnectTask = getReconnectScheduler().schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                attemptReconnect();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Helper method to make a reconnection attempt, reusing the BluetoothGatt of the lost connection if it is still
+     * open or opening a new one otherwise.
+     */
+    private synchronized void attemptReconnect()
+    {
+        reconnectTask = null;
+
+        if (!reconnecting || disconnectRequested)
+            return;
+
+        boolean issued;
+
+        if (bluetoothGatt != null)
+            issued = bluetoothGatt.connect();
+        else
+        {
+            bluetoothGatt = smartBall.DEVICE.connectGatt(context, false, this);
+            link = bluetoothGatt == null ? null : new GattLink(bluetoothGatt);
+            issued = bluetoothGatt != null;
+        }
+
+        if (!issued)
+        {
+            onConnectionLost(BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+
+        // A reused BluetoothGatt waits indefinitely for the ball, so abandon the attempt if it takes too long
+        reconnectTask = getReconnectScheduler().schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onReconnectAttemptTimeout();
+            }
+        }, RECONNECT_ATTEMPT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Helper method to abandon a reconnection attempt which has not connected in time.
+     */
+    private synchronized void onReconnectAttemptTimeout()
+    {
+        reconnectTask = null;
+
+        if (!reconnecting || disconnectRequested || connectionState == ConnectionState.CONNECTED)
+            return;
+
+        if (bluetoothGatt != null)
+            bluetoothGatt.disconnect();
+
+        onConnectionLost(BluetoothGatt.GATT_FAILURE);
+    }
+
+    /**
+     * Helper method to finish re-establishing the connection once the characteristics of the SmartBall are usable.
+     */
+    private void onReconnected()
+    {
+        if (!stopReconnecting())
+            return;
+
+        Log.d(TAG, "Reconnected");
+        smartBall.onReconnected();
+    }
+
+    /**
+     * Helper method to stop re-establishing the connection.
+     * @return True if the connection was being re-established
+     */
+    private synchronized boolean stopReconnecting()
+    {
+        boolean wasReconnecting = reconnecting;
+
+        if (reconnectTask != null)
+        {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
+
+        reconnecting = false;
+        reconnectAttempt = 0;
+        return wasReconnecting;
+    }
+
+    /**
+     * Helper method to get the scheduler of reconnection attempts, creating it if needed.
+     * @return The scheduler of reconnection attempts
+     */
+    private static synchronized ScheduledExecutorService getReconnectScheduler()
+    {
+        if (reconnectScheduler == null)
+        {
+            reconnectScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return reconnectScheduler;
+    }
+
     /**
      * Helper method to close the GATT and set it to null.
      */
@@ -406,11 +867,27 @@ public class SmartBallConnection extends BluetoothGattCallback
     {
         if (this.bluetoothGatt != null)
         {
+            this.link = null;
             this.bluetoothGatt.close();
             this.bluetoothGatt = null;
         }
     }
 
+    /**
+     * Helper method to close a link other than a BluetoothGatt and set it to null.
+     */
+    private synchronized void closeLink()
+    {
+        SmartBallLink closed = link;
+
+        if (closed == null || bluetoothGatt != null)
+            return;
+
+        link = null;
+        closed.disconnect();
+        setConnectionState(ConnectionState.DISCONNECTED);
+    }
+
     /**
      * Sets the connection state of this SmartBallConnection.
      * @param connectionState The new connection state
@@ -433,63 +910,82 @@ public class SmartBallConnection extends BluetoothGattCallback
             // Flush unfinished commands from the SmartBall command queue
             smartBall.flushCommandQueue();
 
-            // Reset enable permissions
-            GattCommand.reset();
+            // Forget the notification and descriptor state of the connection
+            smartBall.getGattState().clear();
+
+            // A new connection starts with the default MTU
+            mtu = DEFAULT_MTU;
+
+            // Release the threads of a connection closed for good
+            if (connectionState == ConnectionState.DISCONNECTED || connectionState == ConnectionState.NOT_CONNECTED)
+                smartBall.close();
         }
     }
 
     /**
-     * Method to handle the SmartBall command sequences when one of the BluetoothGattCallback methods in this class
-     * is triggered.
-     * @param readValue The read value (if applicable)
-     * @param isChar True if a Characteristic was accessed, false for a Descriptor
-     * @param wasRead True if the bluetoothGatt object was read, false if was written
-     * @param status The callback status
+     * Delivers the callbacks of a link other than a BluetoothGatt as the BluetoothGattCallback methods of the
+     * SmartBallConnection deliver those of a BluetoothGatt, holding each notified value in the characteristic of the
+     * SmartBall as a BluetoothGatt would.
      */
-    private void handleCallbackCommand(byte[] readValue, boolean isChar, boolean wasRead, int status)
+    private class LinkCallback implements SmartBallLink.Callback
     {
-        GattCommand<?> command;
-        GattCommandSequence sequence = smartBall.getCurrentCommandSequence();
-
-        if (sequence == null)
-            return;
+        @Override
+        public void onCharacteristicRead(UUID characteristic, byte[] value, int status)
+        {
+            smartBall.getCommandExecutor().onGattCallback(characteristic, null, value, true, status);
+        }
 
-        command = sequence.peek();
+        @Override
+        public void onCharacteristicWrite(UUID characteristic, byte[] value, int status)
+        {
+            smartBall.getCommandExecutor().onGattCallback(characteristic, null, value, false, status);
 
-        // Placeholder variable
-        GattCommand.ReadGattCommand.ReadGattCommandCallback callback;
+            // Notify that the Characteristic was changed
+            onCharacteristicChanged(characteristic, value);
+        }
 
-        // Check whether the command references the appropriate Gatt object
-        if (isChar && command.GATT_OBJECT instanceof BluetoothGattCharacteristic)
+        @Override
+        public void onCharacteristicChanged(UUID characteristic, byte[] value)
         {
-            if (wasRead && command instanceof GattCommand.ReadGattCommand) // Read Characteristic
-            {
-                // Trigger user callback
-                callback = ((GattCommand.ReadGattCommand)command).CALLBACK;
+            Services.Characteristic known = Services.Characteristic.findByUUID(characteristic);
+            BluetoothGattCharacteristic changed = known == null ? null : smartBall.getCharacteristic(known);
 
-                if (callback != null)
-                    callback.onCommandRead(((GattCommand.ReadGattCommand) command).ID, readValue, status);
+            if (changed != null)
+            {
+                changed.setValue(value);
+                SmartBallConnection.this.onCharacteristicChanged(null, changed);
             }
         }
-        else if ((!isChar) && command.GATT_OBJECT instanceof BluetoothGattDescriptor)
+
+        @Override
+        public void onDescriptorRead(UUID characteristic, UUID descriptor, byte[] value, int status)
         {
-            if (wasRead && command instanceof GattCommand.ReadGattCommand) // Read Descriptor
-            {
-                // Trigger user callback
-                callback = ((GattCommand.ReadGattCommand)command).CALLBACK;
+            smartBall.getCommandExecutor().onGattCallback(characteristic, descriptor, value, true, status);
+        }
 
-                if (callback != null)
-                    callback.onCommandRead(((GattCommand.ReadGattCommand) command).ID, readValue, status);
-            }
+        @Override
+        public void onDescriptorWrite(UUID characteristic, UUID descriptor, byte[] value, int status)
+        {
+            smartBall.getCommandExecutor().onGattCallback(characteristic, descriptor, value, false, status);
         }
 
-        sequence.pop();
-        Log.d(TAG, "Command Sequence popped current command, continuing: " + sequence.NAME);
+        @Override
+        public void onMtuChanged(int mtu, int status)
+        {
+            SmartBallConnection.this.onMtuChanged(null, mtu, status);
+        }
 
-        if (sequence.isEmpty())
-            smartBall.endCurrentCommandSequence(); // This will begin the next sequence if applicable
-        else
-            sequence.executeTop(bluetoothGatt);
+        @Override
+        public void onRssiRead(int rssi, int status)
+        {
+            onReadRemoteRssi(null, rssi, status);
+        }
+
+        @Override
+        public void onDisconnected()
+        {
+            closeLink();
+        }
     }
 
     /**
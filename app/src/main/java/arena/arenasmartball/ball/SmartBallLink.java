@@ -0,0 +1,160 @@
+package arena.arenasmartball.ball;
+
+import java.util.UUID;
+
+/**
+ * The GATT operations used to talk to a SmartBall, addressed by UUID so that they can be implemented without the
+ * Android Bluetooth stack. A GattLink carries them over a BluetoothGatt, while a SmartBallSimulator answers them
+ * in process. As with a BluetoothGatt, only one read or write may be outstanding at a time, and each completes with a
+ * call to the Callback of the link. A write without response completes as soon as the link has accepted it for
+ * sending, so that its callback is a local flow control credit for the next operation rather than an acknowledgement
+ * from the ball, and several such writes may be in flight to the ball at once.
+ */
+public interface SmartBallLink
+{
+    /** The status of a successful operation, equal to BluetoothGatt.GATT_SUCCESS. */
+    int STATUS_SUCCESS = 0;
+
+    /** The status of a failed operation, equal to BluetoothGatt.GATT_FAILURE. */
+    int STATUS_FAILURE = 0x101;
+
+    /**
+     * Enables or disables local delivery of notifications of a characteristic.
+     * @param characteristic The UUID of the characteristic
+     * @param enabled Whether to deliver notifications
+     * @return True on success
+     */
+    boolean setNotificationsEnabled(UUID characteristic, boolean enabled);
+
+    /**
+     * Reads a characteristic.
+     * @param characteristic The UUID of the characteristic
+     * @return True if the read was issued
+     */
+    boolean readCharacteristic(UUID characteristic);
+
+    /**
+     * Writes a characteristic.
+     * @param characteristic The UUID of the characteristic
+     * @param value The value to write
+     * @return True if the write was issued
+     */
+    boolean writeCharacteristic(UUID characteristic, byte[] value);
+
+    /**
+     * Gets whether a characteristic may be written without response.
+     * @param characteristic The UUID of the characteristic
+     * @return True if the characteristic allows writes without response
+     */
+    boolean canWriteWithoutResponse(UUID characteristic);
+
+    /**
+     * Writes a characteristic without response. Completes with onCharacteristicWrite() once the link has accepted the
+     * write for sending.
+     * @param characteristic The UUID of the characteristic
+     * @param value The value to write
+     * @return True if the write was issued
+     */
+    boolean writeCharacteristicWithoutResponse(UUID characteristic, byte[] value);
+
+    /**
+     * Reads a descriptor.
+     * @param characteristic The UUID of the characteristic owning the descriptor
+     * @param descriptor The UUID of the descriptor
+     * @return True if the read was issued
+     */
+    boolean readDescriptor(UUID characteristic, UUID descriptor);
+
+    /**
+     * Writes a descriptor.
+     * @param characteristic The UUID of the characteristic owning the descriptor
+     * @param descriptor The UUID of the descriptor
+     * @param value The value to write
+     * @return True if the write was issued
+     */
+    boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value);
+
+    /**
+     * Requests an ATT MTU.
+     * @param mtu The MTU to request, in bytes
+     * @return True if the request was issued
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Reads the signal strength of the link.
+     * @return True if the read was issued
+     */
+    boolean readRssi();
+
+    /**
+     * Closes the link.
+     */
+    void disconnect();
+
+    /**
+     * Receives the results of the operations of a SmartBallLink and the notifications of the SmartBall.
+     */
+    interface Callback
+    {
+        /**
+         * Called when a characteristic read completes.
+         * @param characteristic The UUID of the characteristic
+         * @param value The value read
+         * @param status STATUS_SUCCESS on success
+         */
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        /**
+         * Called when a characteristic write completes.
+         * @param characteristic The UUID of the characteristic
+         * @param value The value written
+         * @param status STATUS_SUCCESS on success
+         */
+        void onCharacteristicWrite(UUID characteristic, byte[] value, int status);
+
+        /**
+         * Called when a notification of a characteristic arrives.
+         * @param characteristic The UUID of the characteristic
+         * @param value The notified value
+         */
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+
+        /**
+         * Called when a descriptor read completes.
+         * @param characteristic The UUID of the characteristic owning the descriptor
+         * @param descriptor The UUID of the descriptor
+         * @param value The value read
+         * @param status STATUS_SUCCESS on success
+         */
+        void onDescriptorRead(UUID characteristic, UUID descriptor, byte[] value, int status);
+
+        /**
+         * Called when a descriptor write completes.
+         * @param characteristic The UUID of the characteristic owning the descriptor
+         * @param descriptor The UUID of the descriptor
+         * @param value The value written
+         * @param status STATUS_SUCCESS on success
+         */
+        void onDescriptorWrite(UUID characteristic, UUID descriptor, byte[] value, int status);
+
+        /**
+         * Called when an MTU exchange completes.
+         * @param mtu The MTU in effect
+         * @param status STATUS_SUCCESS on success
+         */
+        void onMtuChanged(int mtu, int status);
+
+        /**
+         * Called when a signal strength read completes.
+         * @param rssi The signal strength, in dBm
+         * @param status STATUS_SUCCESS on success
+         */
+        void onRssiRead(int rssi, int status);
+
+        /**
+         * Called when the link is closed by either side.
+         */
+        void onDisconnected();
+    }
+}
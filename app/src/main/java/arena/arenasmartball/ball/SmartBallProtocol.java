@@ -0,0 +1,209 @@
+package arena.arenasmartball.ball;
+
+import java.util.UUID;
+
+/**
+ * The observed SmartBall protocol: the opcodes written to the command field, the values notified on the kick bit and
+ * the framing of data transmissions on the data callback. Shared by the client and the SmartBallSimulator so both
+ * speak the same protocol.
+ * <p>
+ * A data request may ask for a range of samples beginning at an offset, carried in the reserved bytes 1 and 2 of the
+ * request. Firmware supporting ranges echoes the offset in bytes 4 and 5 of the start frame, and numbers the lines of
+ * each transmission from 0 so that lost lines can be detected; the first sample of a range is never delta encoded.
+ * Firmware ignoring the reserved bytes transmits from the first sample, and its start frame echoes an offset of 0.
+ */
+public class SmartBallProtocol
+{
+    /** The UUID of the client characteristic configuration descriptor, written to enable notifications. */
+    public static final UUID CLIENT_CONFIGURATION = Services.createSmartBallUUID("2902");
+
+    /** The value of the client characteristic configuration descriptor enabling notifications. */
+    public static final byte[] ENABLE_NOTIFICATIONS = {1, 0};
+
+    /** Command field opcode arming the kick bit. */
+    public static final byte ARM_KICK = 3;
+
+    /** Command field opcode ending any data transmission. */
+    public static final byte END_TRANSMISSION = 6;
+
+    /** Command field opcode requesting a data transmission. */
+    public static final byte REQUEST_DATA = 10;
+
+    /** Command field opcode asking the ball to disconnect. */
+    public static final byte DISCONNECT = 21;
+
+    /** Kick bit value notified when the ball has been kicked. */
+    public static final byte KICKED = 0;
+
+    /** Kick bit value notified when the ball is ready to be kicked. */
+    public static final byte READY_TO_KICK = 1;
+
+    /** The length of a line of transmitted data, in bytes. */
+    public static final int LINE_LENGTH = 20;
+
+    /** The first byte of the line ending a data transmission. */
+    public static final byte END_FRAME = -102;
+
+    /** The first byte of the last line of data before an end frame may not take this value. */
+    public static final byte NOT_BEFORE_END_FRAME = -103;
+
+    /** The mask of the sequence number in the first byte of a line of type 2 data. */
+    public static final int LINE_SEQUENCE_MASK = 0xFF;
+
+    /** The largest offset of the first sample of a ranged data request. */
+    public static final int MAX_FIRST_SAMPLE = 0xFFFF;
+
+    /**
+     * Static class.
+     */
+    private SmartBallProtocol()
+    {   }
+
+    /**
+     * Creates the command field value requesting a data transmission.
+     * @param numSamples The number of samples to transmit
+     * @param dataType The type of data to transmit
+     * @return The value to write to the command field
+     */
+    public static byte[] createDataRequest(int numSamples, int dataType)
+    {
+        return createDataRequest(0, numSamples, dataType);
+    }
+
+    /**
+     * Creates the command field value requesting the transmission of a range of samples.
+     * @param firstSample The offset of the first sample to transmit
+     * @param numSamples The number of samples to transmit
+     * @param dataType The type of data to transmit
+     * @return The value to write to the command field
+     */
+    public static byte[] createDataRequest(int firstSample, int numSamples, int dataType)
+    {
+        if (firstSample < 0 || firstSample > MAX_FIRST_SAMPLE)
+            throw new IllegalArgumentException("Invalid first sample: " + firstSample);
+
+        return new byte[] {REQUEST_DATA, (byte) (firstSample & 255), (byte) ((firstSample >> 8) & 255), 0, 0,
+                (byte) (numSamples & 255), (byte) ((numSamples >> 8) & 255), 0, 0, (byte) dataType};
+    }
+
+    /**
+     * Gets the offset of the first sample requested by a data request.
+     * @param request The command field value
+     * @return The offset of the first sample requested, 0 for a request from the first sample
+     */
+    public static int getRequestedFirstSample(byte[] request)
+    {
+        return (request[1] & 0xFF) | ((request[2] & 0xFF) << 8);
+    }
+
+    /**
+     * Gets the number of samples requested by a data request.
+     * @param request The command field value
+     * @return The number of samples requested
+     */
+    public static int getRequestedSamples(byte[] request)
+    {
+        return (request[5] & 0xFF) | ((request[6] & 0xFF) << 8);
+    }
+
+    /**
+     * Gets the type of data requested by a data request.
+     * @param request The command field value
+     * @return The type of data requested
+     */
+    public static int getRequestedDataType(byte[] request)
+    {
+        return request[9];
+    }
+
+    /**
+     * Creates the line starting a data transmission.
+     * @param numSamples The number of samples in the transmission
+     * @return The start line
+     */
+    public static byte[] createStartFrame(int numSamples)
+    {
+        return createStartFrame(0, numSamples);
+    }
+
+    /**
+     * Creates the line starting the transmission of a range of samples.
+     * @param firstSample The offset of the first sample in the transmission
+     * @param numSamples The number of samples in the transmission
+     * @return The start line
+     */
+    public static byte[] createStartFrame(int firstSample, int numSamples)
+    {
+        byte[] line = new byte[LINE_LENGTH];
+        line[0] = -118;
+        line[1] = 10;
+        line[4] = (byte) (firstSample & 255);
+        line[5] = (byte) ((firstSample >> 8) & 255);
+        line[6] = (byte) (numSamples & 255);
+        line[7] = (byte) ((numSamples >> 8) & 255);
+        return line;
+    }
+
+    /**
+     * Tests whether a line starts a data transmission.
+     * @param line The line
+     * @return True if the line is a start frame
+     */
+    public static boolean isStartFrame(byte[] line)
+    {
+        return line.length > 3 && line[0] == -118 && line[1] == 10 && line[2] == 0 && line[3] == 0;
+    }
+
+    /**
+     * Gets the number of samples announced by a start frame.
+     * @param line The start frame
+     * @return The number of samples in the transmission
+     */
+    public static int getStartFrameSamples(byte[] line)
+    {
+        return (line[6] & 0xFF) | ((line[7] & 0xFF) << 8);
+    }
+
+    /**
+     * Gets the offset of the first sample of a transmission, as echoed by its start frame.
+     * @param line The start frame
+     * @return The offset of the first sample in the transmission, 0 if the firmware does not support ranges
+     */
+    public static int getStartFrameFirstSample(byte[] line)
+    {
+        return (line[4] & 0xFF) | ((line[5] & 0xFF) << 8);
+    }
+
+    /**
+     * Gets the sequence number of a line of type 2 data, counting the lines of a transmission from 0. The number is
+     * held in the first byte alone and wraps after 255; the low bits of the second byte are not set by the firmware.
+     * @param line The line
+     * @return The sequence number, modulo LINE_SEQUENCE_MASK + 1
+     */
+    public static int getLineSequence(byte[] line)
+    {
+        return line[0] & LINE_SEQUENCE_MASK;
+    }
+
+    /**
+     * Creates the line ending a data transmission.
+     * @return The end line
+     */
+    public static byte[] createEndFrame()
+    {
+        byte[] line = new byte[LINE_LENGTH];
+        line[0] = END_FRAME;
+        return line;
+    }
+
+    /**
+     * Tests whether a line ends a data transmission.
+     * @param line The line
+     * @param previousLine The previous line of the transmission, or null if none
+     * @return True if the line is an end frame
+     */
+    public static boolean isEndFrame(byte[] line, byte[] previousLine)
+    {
+        return previousLine != null && line[0] == END_FRAME && previousLine[0] != NOT_BEFORE_END_FRAME;
+    }
+}
@@ -0,0 +1,322 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.le.ScanResult;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arena.arenasmartball.correlation.ClassificationStage;
+
+/**
+ * Manages concurrent sessions with several SmartBalls, for reading from a team of balls at once. Each session has its
+ * own SmartBallConnection, and so its own GattCommandExecutor, and its own ContinuousReadController. The data
+ * notifications of every ball are decoded on a shared, fixed size pool of threads, and their transmissions are
+ * classified by a single ClassificationStage with a bounded queue, so the number of processing threads does not grow
+ * with the number of balls.
+ * <p>
+ * Sessions are keyed by the address of the ball. A session records continuously from when the characteristics of its
+ * ball have been discovered until it disconnects, if recording on connection is enabled.
+ */
+public class SmartBallSessionManager implements SmartBallConnection.SmartBallConnectionListener, SmartBall.EventListener
+{
+    /**
+     * A session with a single SmartBall.
+     */
+    public static final class Session
+    {
+        /** The connection to the SmartBall of this session. */
+        public final SmartBallConnection CONNECTION;
+
+        /** The controller reading continuously from the SmartBall of this session. */
+        public final ContinuousReadController CONTROLLER;
+
+        private Session(SmartBallConnection connection, ContinuousReadController controller)
+        {
+            CONNECTION = connection;
+            CONTROLLER = controller;
+        }
+
+        /**
+         * Gets the SmartBall of this session.
+         * @return The SmartBall of this session
+         */
+        public SmartBall getSmartBall()
+        {
+            return CONNECTION.getSmartBall();
+        }
+    }
+
+    // The tag for this class
+    private static final String TAG = "SmartBallSessionManager";
+
+    // The number of transmissions per ball which may wait to be classified
+    private static final int CLASSIFICATION_QUEUE_CAPACITY_PER_BALL = 4;
+
+    // Target latency from the end of a transmission to its classification, in milliseconds
+    private static final double CLASSIFICATION_TARGET_LATENCY_MS = 50.0;
+
+    // The largest number of concurrent sessions
+    private final int maxSessions;
+
+    // The sessions, by the address of their ball, guarded by this
+    private final LinkedHashMap<String, Session> sessions;
+
+    // Decodes the data notifications of every ball
+    private final ExecutorService decodePool;
+
+    // Classifies the transmissions of every ball
+    private final ClassificationStage classificationStage;
+
+    // Whether sessions record continuously once connected
+    private volatile boolean recordOnConnect;
+
+    /**
+     * Creates a SmartBallSessionManager.
+     * @param maxSessions The largest number of concurrent sessions
+     * @param processingThreads The number of threads decoding data, and of threads classifying transmissions
+     */
+    public SmartBallSessionManager(int maxSessions, int processingThreads)
+    {
+        if (maxSessions <= 0)
+            throw new IllegalArgumentException("Maximum number of sessions must be positive: " + maxSessions);
+        if (processingThreads <= 0)
+            throw new IllegalArgumentException("Number of processing threads must be positive: " + processingThreads);
+
+        this.maxSessions = maxSessions;
+        sessions = new LinkedHashMap<>();
+        recordOnConnect = true;
+
+        decodePool = Executors.newFixedThreadPool(processingThreads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, TAG + "-decode-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        classificationStage = new ClassificationStage(CLASSIFICATION_QUEUE_CAPACITY_PER_BALL * maxSessions,
+                CLASSIFICATION_TARGET_LATENCY_MS, processingThreads);
+        classificationStage.start();
+    }
+
+    /**
+     * Sets whether sessions record continuously from when the characteristics of their ball have been discovered.
+     * Takes effect on the next connection of each session.
+     * @param recordOnConnect Whether to record once connected
+     */
+    public void setRecordOnConnect(boolean recordOnConnect)
+    {
+        this.recordOnConnect = recordOnConnect;
+    }
+
+    /**
+     * Gets the ClassificationStage shared by all sessions, to which listeners may be added. The SOURCE of each of its
+     * Results is the SmartBall of the session.
+     * @return The shared ClassificationStage
+     */
+    public ClassificationStage getClassificationStage()
+    {
+        return classificationStage;
+    }
+
+    /**
+     * Opens a session with the SmartBall of a ScanResult and begins connecting. If a session with the ball is already
+     * open it is reconnected instead.
+     * @param context The current Context
+     * @param result The ScanResult of the SmartBall
+     * @return The Session, or null if the largest number of sessions are already open
+     */
+    public Session open(Context context, ScanResult result)
+    {
+        String address = result.getDevice().getAddress();
+        Session session;
+
+        synchronized (this)
+        {
+            session = sessions.get(address);
+
+            if (session == null)
+            {
+                if (sessions.size() >= maxSessions)
+                {
+                    Log.w(TAG, "Cannot open a session with " + address + ": " + maxSessions + " sessions already open");
+                    return null;
+                }
+
+                SmartBallConnection connection = new SmartBallConnection(result);
+                connection.getSmartBall().getDataRing().setExecutor(decodePool);
+                connection.getSmartBall().addEventListener(this);
+
+                session = new Session(connection, new ContinuousReadController(connection.getSmartBall(),
+                        classificationStage));
+                sessions.put(address, session);
+            }
+        }
+
+        Log.d(TAG, "Opening session with " + address);
+        session.CONNECTION.connect(context, this);
+        return session;
+    }
+
+    /**
+     * Closes the session with a SmartBall, stopping recording and disconnecting.
+     * @param address The address of the SmartBall
+     */
+    public void close(String address)
+    {
+        Session session;
+
+        synchronized (this)
+        {
+            session = sessions.remove(address);
+        }
+
+        if (session == null)
+        {
+            Log.w(TAG, "No session with " + address + " to close");
+            return;
+        }
+
+        session.CONTROLLER.stopRecording();
+        session.getSmartBall().removeEventListener(this);
+        session.CONNECTION.disconnect();
+        session.getSmartBall().close();
+    }
+
+    /**
+     * Closes every session.
+     */
+    public void closeAll()
+    {
+        for (Session session: getSessions())
+            close(session.getSmartBall().DEVICE.getAddress());
+    }
+
+    /**
+     * Closes every session and stops the processing threads. The SmartBallSessionManager may not be used afterwards.
+     */
+    public void shutdown()
+    {
+        closeAll();
+        decodePool.shutdown();
+        classificationStage.stop();
+    }
+
+    /**
+     * Gets the session with a SmartBall.
+     * @param address The address of the SmartBall
+     * @return The Session, or null if no session with the ball is open
+     */
+    public synchronized Session getSession(String address)
+    {
+        return sessions.get(address);
+    }
+
+    /**
+     * Gets a snapshot of the open sessions, in the order opened.
+     * @return The open Sessions
+     */
+    public synchronized List<Session> getSessions()
+    {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * Gets a String summarizing the throughput and drops of each session: the samples read per second, the
+     * notifications dropped by the data ring of the ball, the transmissions dropped by the shared ClassificationStage
+     * and the commands timed out by the GattCommandExecutor of the ball.
+     * @return A String summarizing each session, one per line
+     */
+    public String getStats()
+    {
+        Collection<Session> open = getSessions();
+        StringBuilder stats = new StringBuilder("sessions = " + open.size() + "/" + maxSessions + ", classification: " +
+                classificationStage.getStats());
+
+        for (Session session: open)
+        {
+            SmartBall ball = session.getSmartBall();
+
+            stats.append(String.format(Locale.US, "\n%s (%s): samples/s = %.0f, ring overflows = %d, " +
+                    "classification drops = %d, executor: %s", ball.DEVICE.getAddress(),
+                    session.CONNECTION.getConnectionState().displayName, session.CONTROLLER.getSamplesPerSecond(),
+                    ball.getDataRing().getOverflowCount(), classificationStage.getDroppedCount(ball),
+                    ball.getCommandExecutor().getStats()));
+        }
+
+        return stats.toString();
+    }
+
+    /**
+     * Called when the state of a SmartBallConnection changes.
+     * @param connection The SmartBallConnection
+     * @param state The new state
+     */
+    @Override
+    public void onConnectionStateChanged(SmartBallConnection connection, SmartBallConnection.ConnectionState state)
+    {
+        Session session = getSession(connection.getSmartBall().DEVICE.getAddress());
+
+        // A connection being re-established stays CONNECTING, and its session resumes recording once reconnected
+        if (session != null && (state == SmartBallConnection.ConnectionState.DISCONNECTED ||
+                state == SmartBallConnection.ConnectionState.NOT_CONNECTED))
+            session.CONTROLLER.stopRecording();
+    }
+
+    /**
+     * Called when the rssi has been read.
+     * @param connection The SmartBallConnection
+     * @param rssi The read rssi (in dbm)
+     */
+    @Override
+    public void onRssiRead(SmartBallConnection connection, int rssi)
+    {    }
+
+    /**
+     * Called when the SmartBall experiences a kick event.
+     * @param ball The SmartBall
+     * @param event The kick event
+     */
+    @Override
+    public void onBallKickEvent(SmartBall ball, SmartBall.KickEvent event)
+    {    }
+
+    /**
+     * Called when all BLE characteristics have been discovered, starting recording if enabled.
+     * @param ball The SmartBall
+     */
+    @Override
+    public void onBallCharacteristicDiscoveryCompleted(SmartBall ball)
+    {
+        Session session = getSession(ball.DEVICE.getAddress());
+
+        if (session != null && recordOnConnect)
+            session.CONTROLLER.startRecording();
+    }
+
+    /**
+     * Called when the connection to the SmartBall has been re-established. Recording sessions are resumed by their
+     * ContinuousReadController.
+     * @param ball The SmartBall
+     * @param transmissionResumed True if a transmission interrupted by the lost connection has been requested again
+     */
+    @Override
+    public void onBallReconnected(SmartBall ball, boolean transmissionResumed)
+    {
+        Log.d(TAG, "Session with " + ball.DEVICE.getAddress() + " reconnected");
+    }
+}
@@ -0,0 +1,870 @@
+package arena.arenasmartball.ball;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In process stand-in for a SmartBall, answering the operations of a SmartBallLink with the observed protocol of the
+ * ball so that the client can be exercised and measured without a ball or the Android Bluetooth stack:
+ * <ul>
+ *     <li>Writing the client configuration descriptor enables notifications of a characteristic.</li>
+ *     <li>Opcode 3 arms the kick bit, notifying READY_TO_KICK. The kick follows after the auto kick delay, or when
+ *     kick() is called, capturing the next samples of the waveform and notifying KICKED.</li>
+ *     <li>Opcode 10 transmits the requested number of captured samples on the data callback, framed by a start and an
+ *     end line, with type 2 delta compression. Other data types are answered with an empty transmission. A
+ *     requested range is transmitted from its first sample if range support is enabled.</li>
+ *     <li>Opcode 6 ends any transmission and disarms the kick bit; opcode 21 closes the link.</li>
+ *     <li>The command field may be written without response, if enabled. The link accepts such a write after one
+ *     packet interval, completing it locally, and the ball applies it after the latency without replying.</li>
+ * </ul>
+ * Every message takes the one way latency to cross the link, and the ball sends one notification per packet interval,
+ * packing as many lines as the negotiated MTU allows if line packing is enabled. Jitter, loss and reordering may be
+ * injected into every message sent to the client. All ball state is owned by a single thread, on which the Callback
+ * is also invoked.
+ */
+public class SmartBallSimulator implements SmartBallLink
+{
+    // The name of the simulator thread
+    private static final String TAG = "SmartBallSimulator";
+
+    // The number of samples captured on each kick, with room for the last line of a full transmission to overrun
+    private static final int CAPTURE_LENGTH = GattCommandUtils.MAX_SAMPLES_PER_REQUEST + 5;
+
+    // The size of the ATT header of a notification, in bytes
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    // The callback receiving results and notifications
+    private final Callback callback;
+
+    // Runs the ball and delivers messages
+    private final ScheduledExecutorService scheduler;
+
+    // Link parameters, in milliseconds where timed
+    private volatile double latencyMs, jitterMs, reorderDelayMs, packetIntervalMs, autoKickDelayMs;
+    private volatile double lossRate, reorderRate;
+    private volatile int maxMtu, rssi;
+    private volatile boolean packLines, rangeSupport, writeWithoutResponse;
+
+    // The characteristics whose notifications are delivered by the client, written by the client
+    private final HashSet<UUID> localNotifications;
+
+    // Ball state, accessed only by the simulator thread
+    private final Random random;
+    private final HashSet<UUID> notifyingCharacteristics;
+    private final HashMap<UUID, byte[]> values;
+    private final ArrayDeque<byte[]> transmission;
+    private short[] waveform;
+    private int waveformPosition;
+    private short[] capture;
+    private boolean armed, connected;
+    private int mtu, transmissionId, kickId;
+
+    // Statistics, written only by the simulator thread
+    private volatile long numCommands, numNotifications, numLines, numSamplesSent, numLost, numReordered;
+
+    /**
+     * Creates a SmartBallSimulator transmitting a synthetic waveform, with a 15 ms latency, a 1.875 ms packet interval
+     * (four packets per 7.5 ms connection interval), a 20 ms auto kick delay and no impairments.
+     * @param callback The Callback receiving results and notifications
+     */
+    public SmartBallSimulator(Callback callback)
+    {
+        this.callback = callback;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        latencyMs = 15.0;
+        packetIntervalMs = 1.875;
+        autoKickDelayMs = 20.0;
+        reorderDelayMs = 4.0 * packetIntervalMs;
+        maxMtu = SmartBallConnection.HIGH_THROUGHPUT_MTU;
+        rssi = -60;
+        packLines = true;
+        rangeSupport = true;
+        writeWithoutResponse = true;
+
+        localNotifications = new HashSet<>();
+        random = new Random(0L);
+        notifyingCharacteristics = new HashSet<>();
+        values = new HashMap<>();
+        transmission = new ArrayDeque<>();
+        waveform = createSyntheticWaveform(100000, 0L);
+        mtu = SmartBallConnection.DEFAULT_MTU;
+        connected = true;
+    }
+
+    /**
+     * Creates a synthetic waveform: gravity on the z axis with sensor noise, and a damped oscillation of random
+     * amplitude, frequency and axis every one to two seconds.
+     * @param numSamples The number of samples
+     * @param seed The seed of the random impacts and noise
+     * @return The x, y and z values of each sample in raw units
+     */
+    public static short[] createSyntheticWaveform(int numSamples, long seed)
+    {
+        Random random = new Random(seed);
+        short[] xyz = new short[numSamples * 3];
+        double gravity = 500.0;
+        int nextImpact = 500, impactStart = -1;
+        double amplitude = 0.0, frequency = 0.0;
+        double[] axis = new double[3];
+
+        for (int i = 0; i < numSamples; ++i)
+        {
+            if (i == nextImpact)
+            {
+                impactStart = i;
+                amplitude = 2000.0 + 6000.0 * random.nextDouble();
+                frequency = 80.0 + 120.0 * random.nextDouble();
+                axis[0] = random.nextGaussian();
+                axis[1] = random.nextGaussian();
+                axis[2] = random.nextGaussian();
+                nextImpact = i + 1000 + random.nextInt(1000);
+            }
+
+            double t = (i - impactStart) * 0.001, impact = 0.0;
+
+            if (impactStart >= 0)
+                impact = amplitude * Math.exp(-t / 0.015) * Math.sin(2.0 * Math.PI * frequency * t);
+
+            for (int j = 0; j < 3; ++j)
+            {
+                double value = impact * axis[j] + 3.0 * random.nextGaussian() + (j == 2 ? gravity : 0.0);
+                xyz[i * 3 + j] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            }
+        }
+
+        return xyz;
+    }
+
+    /**
+     * Sets the waveform sampled by the ball, such as a recorded impact. The waveform is repeated as needed.
+     * @param xyz The x, y and z values of each sample in raw units
+     */
+    public void setWaveform(final short[] xyz)
+    {
+        if (xyz.length < 3 || xyz.length % 3 != 0)
+            throw new IllegalArgumentException("Waveform must hold x, y and z values of at least one sample");
+
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                waveform = xyz.clone();
+                waveformPosition = 0;
+            }
+        });
+    }
+
+    /**
+     * Sets the time each message takes to cross the link in either direction.
+     * @param latencyMs The one way latency, in milliseconds
+     */
+    public void setLatency(double latencyMs)
+    {
+        this.latencyMs = checkNotNegative(latencyMs);
+    }
+
+    /**
+     * Sets the largest random delay added to each message sent to the client, which may reorder messages.
+     * @param jitterMs The largest added delay, in milliseconds
+     */
+    public void setJitter(double jitterMs)
+    {
+        this.jitterMs = checkNotNegative(jitterMs);
+    }
+
+    /**
+     * Sets the probability that a message sent to the client, whether a notification or the result of an operation,
+     * is lost.
+     * @param lossRate The probability of loss, between 0 and 1
+     */
+    public void setLossRate(double lossRate)
+    {
+        this.lossRate = checkProbability(lossRate);
+    }
+
+    /**
+     * Sets the probability that a message sent to the client is held back, so that later messages overtake it.
+     * @param reorderRate The probability of reordering, between 0 and 1
+     * @param delayMs The time by which a reordered message is held back, in milliseconds
+     */
+    public void setReordering(double reorderRate, double delayMs)
+    {
+        this.reorderRate = checkProbability(reorderRate);
+        this.reorderDelayMs = checkNotNegative(delayMs);
+    }
+
+    /**
+     * Sets the time between notifications sent by the ball.
+     * @param intervalMs The packet interval, in milliseconds
+     */
+    public void setPacketInterval(double intervalMs)
+    {
+        if (intervalMs <= 0.0)
+            throw new IllegalArgumentException("Packet interval must be positive: " + intervalMs);
+
+        packetIntervalMs = intervalMs;
+    }
+
+    /**
+     * Sets the largest MTU the ball accepts, and whether it packs several lines into each notification when the
+     * MTU allows.
+     * @param maxMtu The largest MTU, in bytes
+     * @param packLines Whether to pack lines into notifications
+     */
+    public void setMtuSupport(int maxMtu, boolean packLines)
+    {
+        if (maxMtu < SmartBallConnection.DEFAULT_MTU)
+            throw new IllegalArgumentException("MTU must be at least " + SmartBallConnection.DEFAULT_MTU + ": " +
+                    maxMtu);
+
+        this.maxMtu = maxMtu;
+        this.packLines = packLines;
+    }
+
+    /**
+     * Sets whether the ball honours the first sample of ranged data requests, or transmits from the first sample of
+     * the capture as firmware ignoring the reserved bytes of the request would.
+     * @param rangeSupport Whether to honour ranged requests
+     */
+    public void setRangeSupport(boolean rangeSupport)
+    {
+        this.rangeSupport = rangeSupport;
+    }
+
+    /**
+     * Sets whether the command field may be written without response.
+     * @param writeWithoutResponse Whether to allow writes without response to the command field
+     */
+    public void setWriteWithoutResponseSupport(boolean writeWithoutResponse)
+    {
+        this.writeWithoutResponse = writeWithoutResponse;
+    }
+
+    /**
+     * Sets the signal strength reported by the link.
+     * @param rssi The signal strength, in dBm
+     */
+    public void setRssi(int rssi)
+    {
+        this.rssi = rssi;
+    }
+
+    /**
+     * Sets the delay between arming the kick bit and the kick.
+     * @param delayMs The delay in milliseconds, or a negative value to kick only when kick() is called
+     */
+    public void setAutoKickDelay(double delayMs)
+    {
+        autoKickDelayMs = delayMs;
+    }
+
+    /**
+     * Sets the seed of the injected impairments.
+     * @param seed The seed
+     */
+    public void setSeed(final long seed)
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                random.setSeed(seed);
+            }
+        });
+    }
+
+    /**
+     * Kicks the ball, if armed.
+     */
+    public void kick()
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onKick();
+            }
+        });
+    }
+
+    /**
+     * Gets a String summarizing the traffic sent by the simulated ball.
+     * @return A String summarizing the traffic
+     */
+    public String getStats()
+    {
+        return "commands = " + numCommands + ", notifications = " + numNotifications + ", lines = " + numLines +
+                ", samples = " + numSamplesSent + ", lost = " + numLost + ", reordered = " + numReordered;
+    }
+
+    /**
+     * Stops the simulator thread. No further callbacks are made.
+     */
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(UUID characteristic, boolean enabled)
+    {
+        synchronized (localNotifications)
+        {
+            if (enabled)
+                localNotifications.add(characteristic);
+            else
+                localNotifications.remove(characteristic);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(final UUID characteristic)
+    {
+        return send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                byte[] value = values.get(characteristic);
+                reply(characteristic, null, value == null ? new byte[0] : value.clone(), true);
+            }
+        });
+    }
+
+    @Override
+    public boolean writeCharacteristic(final UUID characteristic, byte[] value)
+    {
+        final byte[] copy = value.clone();
+
+        return send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (Services.Characteristic.COMMAND_FIELD._UUID.equals(characteristic))
+                    onCommand(copy);
+                else
+                    values.put(characteristic, copy);
+
+                reply(characteristic, null, copy, false);
+            }
+        });
+    }
+
+    @Override
+    public boolean canWriteWithoutResponse(UUID characteristic)
+    {
+        return writeWithoutResponse && Services.Characteristic.COMMAND_FIELD._UUID.equals(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristicWithoutResponse(final UUID characteristic, byte[] value)
+    {
+        if (!canWriteWithoutResponse(characteristic))
+            return false;
+
+        final byte[] copy = value.clone();
+        Runnable accepted = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                callback.onCharacteristicWrite(characteristic, copy, STATUS_SUCCESS);
+            }
+        };
+
+        boolean sent = send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onCommand(copy);
+            }
+        });
+
+        // The link accepts the write in its next connection event, without a round trip to the ball
+        if (sent)
+            schedule(accepted, packetIntervalMs);
+
+        return sent;
+    }
+
+    @Override
+    public boolean readDescriptor(final UUID characteristic, final UUID descriptor)
+    {
+        return send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean notifying = notifyingCharacteristics.contains(characteristic);
+                reply(characteristic, descriptor, new byte[] {(byte) (notifying ? 1 : 0), 0}, true);
+            }
+        });
+    }
+
+    @Override
+    public boolean writeDescriptor(final UUID characteristic, final UUID descriptor, byte[] value)
+    {
+        final byte[] copy = value.clone();
+
+        return send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (SmartBallProtocol.CLIENT_CONFIGURATION.equals(descriptor))
+                {
+                    if (copy.length > 0 && (copy[0] & 1) != 0)
+                        notifyingCharacteristics.add(characteristic);
+                    else
+                        notifyingCharacteristics.remove(characteristic);
+                }
+
+                reply(characteristic, descriptor, copy, false);
+            }
+        });
+    }
+
+    @Override
+    public boolean requestMtu(final int requested)
+    {
+        return send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mtu = Math.max(SmartBallConnection.DEFAULT_MTU, Math.min(requested, maxMtu));
+
+                toClient(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        callback.onMtuChanged(mtu, STATUS_SUCCESS);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public boolean readRssi()
+    {
+        return send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final int value = rssi;
+
+                toClient(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        callback.onRssiRead(value, STATUS_SUCCESS);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void disconnect()
+    {
+        send(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onDisconnect();
+            }
+        });
+    }
+
+    /*
+     * Runs a task on the simulator thread at once.
+     */
+    private void post(Runnable task)
+    {
+        schedule(task, 0.0);
+    }
+
+    /*
+     * Runs a task on the simulator thread after the given delay.
+     */
+    private void schedule(Runnable task, double delayMs)
+    {
+        if (!scheduler.isShutdown())
+            scheduler.schedule(task, (long) (delayMs * 1e6), TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * Sends a request to the ball, which handles it after the link latency.
+     */
+    private boolean send(final Runnable request)
+    {
+        if (scheduler.isShutdown())
+            return false;
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (connected)
+                {
+                    ++numCommands;
+                    request.run();
+                }
+            }
+        }, latencyMs);
+
+        return true;
+    }
+
+    /*
+     * Sends a message to the client, subject to the latency and the injected impairments.
+     */
+    private void toClient(Runnable message)
+    {
+        if (random.nextDouble() < lossRate)
+        {
+            ++numLost;
+            return;
+        }
+
+        double delayMs = latencyMs + jitterMs * random.nextDouble();
+
+        if (reorderRate > 0.0 && random.nextDouble() < reorderRate)
+        {
+            delayMs += reorderDelayMs;
+            ++numReordered;
+        }
+
+        schedule(message, delayMs);
+    }
+
+    /*
+     * Sends the result of a read or write to the client.
+     */
+    private void reply(final UUID characteristic, final UUID descriptor, final byte[] value, final boolean read)
+    {
+        toClient(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (descriptor == null && read)
+                    callback.onCharacteristicRead(characteristic, value, STATUS_SUCCESS);
+                else if (descriptor == null)
+                    callback.onCharacteristicWrite(characteristic, value, STATUS_SUCCESS);
+                else if (read)
+                    callback.onDescriptorRead(characteristic, descriptor, value, STATUS_SUCCESS);
+                else
+                    callback.onDescriptorWrite(characteristic, descriptor, value, STATUS_SUCCESS);
+            }
+        });
+    }
+
+    /*
+     * Sends a notification to the client, if notifications of the characteristic are enabled on both sides.
+     */
+    private void sendNotification(final UUID characteristic, final byte[] value)
+    {
+        if (!notifyingCharacteristics.contains(characteristic))
+            return;
+
+        ++numNotifications;
+
+        toClient(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean enabled;
+
+                synchronized (localNotifications)
+                {
+                    enabled = localNotifications.contains(characteristic);
+                }
+
+                if (enabled)
+                    callback.onCharacteristicChanged(characteristic, value);
+            }
+        });
+    }
+
+    /*
+     * Handles a value written to the command field.
+     */
+    private void onCommand(byte[] command)
+    {
+        if (command.length == 0)
+            return;
+
+        switch (command[0])
+        {
+            case SmartBallProtocol.ARM_KICK:
+                armed = true;
+                values.put(Services.Characteristic.KICK_BIT._UUID, new byte[] {SmartBallProtocol.READY_TO_KICK});
+                sendNotification(Services.Characteristic.KICK_BIT._UUID, new byte[] {SmartBallProtocol.READY_TO_KICK});
+
+                if (autoKickDelayMs >= 0.0)
+                {
+                    final int id = ++kickId;
+
+                    schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            if (id == kickId)
+                                onKick();
+                        }
+                    }, autoKickDelayMs);
+                }
+                break;
+
+            case SmartBallProtocol.END_TRANSMISSION:
+                armed = false;
+                ++kickId;
+                ++transmissionId;
+                transmission.clear();
+                break;
+
+            case SmartBallProtocol.REQUEST_DATA:
+                if (command.length >= 10)
+                    onDataRequest(rangeSupport ? SmartBallProtocol.getRequestedFirstSample(command) : 0,
+                            SmartBallProtocol.getRequestedSamples(command), command[9]);
+                break;
+
+            case SmartBallProtocol.DISCONNECT:
+                onDisconnect();
+                break;
+        }
+    }
+
+    /*
+     * Captures the next samples of the waveform if armed.
+     */
+    private void onKick()
+    {
+        if (!armed || !connected)
+            return;
+
+        armed = false;
+        capture = new short[CAPTURE_LENGTH * 3];
+
+        for (int i = 0; i < capture.length; ++i)
+        {
+            capture[i] = waveform[waveformPosition];
+            waveformPosition = (waveformPosition + 1) % waveform.length;
+        }
+
+        values.put(Services.Characteristic.KICK_BIT._UUID, new byte[] {SmartBallProtocol.KICKED});
+        sendNotification(Services.Characteristic.KICK_BIT._UUID, new byte[] {SmartBallProtocol.KICKED});
+    }
+
+    /*
+     * Begins a transmission of the requested range of samples, replacing any transmission in progress.
+     */
+    private void onDataRequest(int firstSample, int numSamples, int dataType)
+    {
+        firstSample = Math.min(firstSample, GattCommandUtils.MAX_SAMPLES_PER_REQUEST);
+        numSamples = Math.min(numSamples, GattCommandUtils.MAX_SAMPLES_PER_REQUEST - firstSample);
+
+        if (dataType != 2 || capture == null)
+            numSamples = 0;
+
+        transmission.clear();
+        transmission.add(SmartBallProtocol.createStartFrame(firstSample, numSamples));
+
+        if (numSamples > 0)
+            transmission.addAll(encodeTypeTwo(capture, firstSample, numSamples));
+
+        transmission.add(SmartBallProtocol.createEndFrame());
+        numSamplesSent += numSamples;
+
+        final int id = ++transmissionId;
+
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sendPacket(id, this);
+            }
+        });
+    }
+
+    /*
+     * Sends the next notification of a transmission and schedules the following one, unless it has been replaced.
+     */
+    private void sendPacket(int id, Runnable next)
+    {
+        if (id != transmissionId || transmission.isEmpty() || !connected)
+            return;
+
+        int linesPerPacket = packLines ? Math.max(1, (mtu - ATT_HEADER_LENGTH) / SmartBallProtocol.LINE_LENGTH) : 1;
+        int count = Math.min(linesPerPacket, transmission.size());
+        byte[] packet = new byte[count * SmartBallProtocol.LINE_LENGTH];
+
+        for (int i = 0; i < count; ++i)
+            System.arraycopy(transmission.poll(), 0, packet, i * SmartBallProtocol.LINE_LENGTH,
+                    SmartBallProtocol.LINE_LENGTH);
+
+        numLines += count;
+        sendNotification(Services.Characteristic.DATA_CALLBACK._UUID, packet);
+
+        if (!transmission.isEmpty())
+            schedule(next, packetIntervalMs);
+    }
+
+    /*
+     * Closes the link from the ball.
+     */
+    private void onDisconnect()
+    {
+        if (!connected)
+            return;
+
+        connected = false;
+        ++transmissionId;
+        transmission.clear();
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                callback.onDisconnected();
+            }
+        }, latencyMs);
+    }
+
+    /*
+     * Encodes the first samples of a capture as lines of type 2 data.
+     */
+    static List<byte[]> encodeTypeTwo(short[] xyz, int numSamples)
+    {
+        return encodeTypeTwo(xyz, 0, numSamples);
+    }
+
+    /*
+     * Encodes a range of samples of a capture as lines of type 2 data. Each line holds an 8 bit sequence number,
+     * counted from 0 and wrapping after 255, and three groups of six bytes, each either one absolute sample or the
+     * byte deltas of two samples, marked by the top three bits of the header. The first sample of the range is
+     * absolute. The last line is filled with the samples following those requested.
+     */
+    static List<byte[]> encodeTypeTwo(short[] xyz, int firstSample, int numSamples)
+    {
+        List<byte[]> lines = new ArrayList<>();
+        int available = xyz.length / 3, sample = firstSample, end = firstSample + numSamples;
+
+        while (sample < end)
+        {
+            byte[] line = new byte[SmartBallProtocol.LINE_LENGTH];
+            int header = lines.size() & SmartBallProtocol.LINE_SEQUENCE_MASK;
+
+            for (int group = 0; group < 3; ++group)
+            {
+                int offset = 2 + group * 6;
+
+                if (sample > firstSample && sample + 1 < available && isDelta(xyz, sample - 1, sample) &&
+                        isDelta(xyz, sample, sample + 1))
+                {
+                    for (int j = 0; j < 3; ++j)
+                    {
+                        line[offset + j] = (byte) (xyz[sample * 3 + j] - xyz[(sample - 1) * 3 + j]);
+                        line[offset + 3 + j] = (byte) (xyz[(sample + 1) * 3 + j] - xyz[sample * 3 + j]);
+                    }
+
+                    header |= 0x8000 >>> group;
+                    sample += 2;
+                }
+                else
+                {
+                    for (int j = 0; j < 3; ++j)
+                    {
+                        short value = sample < available ? xyz[sample * 3 + j] : 0;
+                        line[offset + j * 2] = (byte) (value & 0xFF);
+                        line[offset + j * 2 + 1] = (byte) ((value >> 8) & 0xFF);
+                    }
+
+                    ++sample;
+                }
+            }
+
+            line[0] = (byte) (header & 0xFF);
+            line[1] = (byte) ((header >> 8) & 0xFF);
+            lines.add(line);
+        }
+
+        return lines;
+    }
+
+    /*
+     * Tests whether the change from one sample to another fits in a byte on every axis.
+     */
+    private static boolean isDelta(short[] xyz, int from, int to)
+    {
+        for (int j = 0; j < 3; ++j)
+        {
+            int delta = xyz[to * 3 + j] - xyz[from * 3 + j];
+
+            if (delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE)
+                return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * Checks that a value is not negative.
+     */
+    private static double checkNotNegative(double value)
+    {
+        if (value < 0.0)
+            throw new IllegalArgumentException("Value must not be negative: " + value);
+
+        return value;
+    }
+
+    /*
+     * Checks that a value is a probability.
+     */
+    private static double checkProbability(double value)
+    {
+        if (value < 0.0 || value > 1.0)
+            throw new IllegalArgumentException("Probability must be between 0 and 1: " + value);
+
+        return value;
+    }
+}
@@ -0,0 +1,442 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Polls the telemetry of the SmartBall of a SmartBallConnection on behalf of any number of subscribers: its battery
+ * level, charging state and timeout counter, and the signal strength of the connection. Each metric is read at its
+ * own period while it has a subscriber, and the characteristic reads falling due together are coalesced into a single
+ * TELEMETRY GattCommandSequence. Reads are only submitted in idle gaps of the command queue of the ball, and polling is
+ * suspended while a data transmission is in progress, so that telemetry does not delay transfers.
+ * <p>
+ * The last value of each metric is cached and published to the subscribers of the metric, and delivered to a new
+ * subscriber at once. Listeners are notified on a Bluetooth or polling thread, and must post any view updates to the
+ * UI thread.
+ */
+public class TelemetryService implements GattCommandSequence.CommandSequenceCallback,
+        GattCommand.ReadGattCommand.ReadGattCommandCallback
+{
+    /**
+     * The metrics polled by a TelemetryService.
+     */
+    public enum Metric
+    {
+        /** The battery level, in percent. */
+        BATTERY(Services.Characteristic.BATTERY, 10000L),
+
+        /** Whether the SmartBall is charging. */
+        CHARGING_STATE(Services.Characteristic.CHARGING_STATE, 10000L),
+
+        /** The raw value of the timeout counter of the SmartBall. */
+        TIMEOUT_COUNTER(Services.Characteristic.TIMEOUT_COUNTER, 1000L),
+
+        /** The signal strength of the connection, in dBm. */
+        RSSI(null, 1000L);
+
+        /** The Characteristic read for this metric, or null if it is not a characteristic. */
+        public final Services.Characteristic CHARACTERISTIC;
+
+        /** The period at which this metric is read while subscribed to, in milliseconds. */
+        public final long PERIOD_MS;
+
+        Metric(Services.Characteristic characteristic, long periodMs)
+        {
+            CHARACTERISTIC = characteristic;
+            PERIOD_MS = periodMs;
+        }
+    }
+
+    /**
+     * Listener for updates of the metrics of a TelemetryService.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when a subscribed metric has been read, and once on subscription for each metric already read.
+         * @param service The TelemetryService
+         * @param metric The updated Metric, whose value may be got from the service
+         */
+        void onTelemetryUpdated(TelemetryService service, Metric metric);
+    }
+
+    // The tag for this class
+    private static final String TAG = "TelemetryService";
+
+    // The name of the command sequences reading the telemetry
+    private static final String TELEMETRY_SEQUENCE = "Telemetry Sequence";
+
+    // The interval at which due metrics are checked for, in milliseconds
+    private static final long POLL_INTERVAL_MS = 250L;
+
+    // The metrics
+    private static final Metric[] METRICS = Metric.values();
+
+    // Polls the telemetry of every connection, created when first needed
+    private static ScheduledExecutorService pollScheduler;
+
+    // The connection whose SmartBall is polled
+    private final SmartBallConnection connection;
+
+    // The metrics subscribed to by each listener, guarded by this
+    private final LinkedHashMap<Listener, Set<Metric>> subscriptions;
+
+    // The number of listeners subscribed to each metric, by ordinal, guarded by this
+    private final int[] numSubscribers;
+
+    // The time at which each metric was last requested, by ordinal, accessed only by the polling thread
+    private final long[] requestTimes;
+
+    // The time at which each metric was last updated, by ordinal, or 0 if it has not been read
+    private final AtomicLongArray updateTimes;
+
+    // The polling task, or null while there are no subscribers, guarded by this
+    private ScheduledFuture<?> pollTask;
+
+    // Whether a telemetry sequence has been submitted and has not ended
+    private volatile boolean sequenceInFlight;
+
+    // The cached values of the metrics
+    private volatile double batteryLevel;
+    private volatile boolean charging;
+    private volatile int timeoutCounter, rssi;
+
+    // Statistics
+    private volatile long numSequences, numReads, numSuspendedPolls, numDeferredPolls;
+
+    /**
+     * Creates a TelemetryService.
+     * @param connection The SmartBallConnection whose SmartBall to poll
+     */
+    public TelemetryService(SmartBallConnection connection)
+    {
+        this.connection = connection;
+        subscriptions = new LinkedHashMap<>();
+        numSubscribers = new int[METRICS.length];
+        requestTimes = new long[METRICS.length];
+        updateTimes = new AtomicLongArray(METRICS.length);
+    }
+
+    /**
+     * Subscribes a Listener to metrics, in addition to those it is already subscribed to. Polling begins with the
+     * first subscription, and the cached value of each metric already read is delivered at once.
+     * @param listener The Listener
+     * @param metrics The Metrics to subscribe to
+     */
+    public void subscribe(Listener listener, Metric... metrics)
+    {
+        List<Metric> cached = new ArrayList<>();
+
+        synchronized (this)
+        {
+            Set<Metric> subscribed = subscriptions.get(listener);
+
+            if (subscribed == null)
+            {
+                subscribed = EnumSet.noneOf(Metric.class);
+                subscriptions.put(listener, subscribed);
+            }
+
+            for (Metric metric: metrics)
+            {
+                if (subscribed.add(metric))
+                    ++numSubscribers[metric.ordinal()];
+
+                if (updateTimes.get(metric.ordinal()) > 0L)
+                    cached.add(metric);
+            }
+
+            if (pollTask == null)
+            {
+                pollTask = getPollScheduler().scheduleWithFixedDelay(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // An exception would cancel the periodic task
+                        try
+                        {
+                            poll();
+                        }
+                        catch (RuntimeException e)
+                        {
+                            Log.e(TAG, "Error polling telemetry", e);
+                        }
+                    }
+                }, 0L, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        for (Metric metric: cached)
+            listener.onTelemetryUpdated(this, metric);
+    }
+
+    /**
+     * Unsubscribes a Listener from every metric. Polling stops when no listener is subscribed.
+     * @param listener The Listener
+     */
+    public synchronized void unsubscribe(Listener listener)
+    {
+        Set<Metric> subscribed = subscriptions.remove(listener);
+
+        if (subscribed == null)
+            return;
+
+        for (Metric metric: subscribed)
+            --numSubscribers[metric.ordinal()];
+
+        if (subscriptions.isEmpty() && pollTask != null)
+        {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+    }
+
+    /**
+     * Gets the last read battery level.
+     * @return The battery level, in percent
+     */
+    public double getBatteryLevel()
+    {
+        return batteryLevel;
+    }
+
+    /**
+     * Gets the last read charging state.
+     * @return True if the SmartBall is charging
+     */
+    public boolean isCharging()
+    {
+        return charging;
+    }
+
+    /**
+     * Gets the last read raw value of the timeout counter.
+     * @return The timeout counter
+     */
+    public int getTimeoutCounter()
+    {
+        return timeoutCounter;
+    }
+
+    /**
+     * Gets the last read signal strength of the connection.
+     * @return The signal strength, in dBm
+     */
+    public int getRssi()
+    {
+        return rssi;
+    }
+
+    /**
+     * Gets the time at which a metric was last updated.
+     * @param metric The Metric
+     * @return The time in milliseconds, as given by System.currentTimeMillis(), or 0 if the metric has not been read
+     */
+    public long getUpdateTime(Metric metric)
+    {
+        return updateTimes.get(metric.ordinal());
+    }
+
+    /**
+     * Gets a String summarizing the polling of this TelemetryService.
+     * @return A String summarizing the polling
+     */
+    public String getStats()
+    {
+        return "sequences = " + numSequences + ", reads = " + numReads + ", suspended polls = " + numSuspendedPolls +
+                ", deferred polls = " + numDeferredPolls;
+    }
+
+    /**
+     * Called when the GattCommandSequence experiences some event.
+     * @param sequence The GattCommandSequence that has experienced the event
+     * @param event The Event describing the state of the command sequence
+     */
+    @Override
+    public void onCommandSequenceEvent(GattCommandSequence sequence, GattCommandSequence.Event event)
+    {
+        if (event == GattCommandSequence.Event.BEGUN_EXECUTION)
+            return;
+
+        if (event != GattCommandSequence.Event.FINISHED_EXECUTION)
+            Log.w(TAG, "Telemetry sequence did not finish: " + event);
+
+        sequenceInFlight = false;
+    }
+
+    /**
+     * Called when the requested value is read.
+     * @param id The name of the read Metric
+     * @param data The read data
+     * @param status The status of the callback
+     */
+    @Override
+    public void onCommandRead(String id, byte[] data, int status)
+    {
+        if (status != SmartBallLink.STATUS_SUCCESS || data == null || data.length == 0)
+            return;
+
+        Metric metric = Metric.valueOf(id);
+
+        switch (metric)
+        {
+            case BATTERY:
+                batteryLevel = Math.ceil(0.0085 * data[0] * data[0] + 0.143 * data[0]);
+                break;
+            case CHARGING_STATE:
+                charging = data.length > 1 && data[0] > 0 && data[1] == 0;
+                break;
+            case TIMEOUT_COUNTER:
+                timeoutCounter = data[0] & 0xFF;
+                break;
+            default:
+                return;
+        }
+
+        publish(metric);
+    }
+
+    /**
+     * Called by the SmartBallConnection when the signal strength has been read.
+     * @param rssi The signal strength, in dBm
+     */
+    void onRssiRead(int rssi)
+    {
+        this.rssi = rssi;
+        publish(Metric.RSSI);
+    }
+
+    /*
+     * Records the update of a metric and notifies its subscribers.
+     */
+    private void publish(Metric metric)
+    {
+        List<Listener> listeners = new ArrayList<>();
+
+        updateTimes.set(metric.ordinal(), System.currentTimeMillis());
+
+        synchronized (this)
+        {
+            // Metrics are published from both the command executor and the RSSI callback
+            ++numReads;
+
+            for (Map.Entry<Listener, Set<Metric>> entry: subscriptions.entrySet())
+            {
+                if (entry.getValue().contains(metric))
+                    listeners.add(entry.getKey());
+            }
+        }
+
+        for (Listener listener: listeners)
+            listener.onTelemetryUpdated(this, metric);
+    }
+
+    /*
+     * Requests the subscribed metrics which are due, if the command queue of the SmartBall is idle and no data
+     * transmission is in progress.
+     */
+    private void poll()
+    {
+        SmartBall ball = connection.getSmartBall();
+
+        if (connection.getConnectionState() != SmartBallConnection.ConnectionState.CONNECTED)
+            return;
+
+        if (ball.isDataTransmitInProgress())
+        {
+            ++numSuspendedPolls;
+            return;
+        }
+
+        if (sequenceInFlight || !ball.getCommandExecutor().isIdle())
+        {
+            ++numDeferredPolls;
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        boolean[] subscribed = getSubscribedMetrics();
+        GattCommandSequence sequence = null;
+        BluetoothGattCharacteristic characteristic;
+
+        for (Metric metric: METRICS)
+        {
+            if (!subscribed[metric.ordinal()] || now - requestTimes[metric.ordinal()] < metric.PERIOD_MS)
+                continue;
+
+            requestTimes[metric.ordinal()] = now;
+
+            if (metric.CHARACTERISTIC == null)
+            {
+                connection.requestRssi();
+                continue;
+            }
+
+            characteristic = ball.getCharacteristic(metric.CHARACTERISTIC);
+
+            if (characteristic == null)
+                continue;
+
+            if (sequence == null)
+                sequence = new GattCommandSequence(TELEMETRY_SEQUENCE, this, GattCommandSequence.Priority.TELEMETRY);
+
+            sequence.addCommand(new GattCommand.ReadGattCommand<>(characteristic, metric.name(), this));
+        }
+
+        if (sequence != null)
+        {
+            sequenceInFlight = true;
+            ++numSequences;
+            ball.addCommandSequenceToQueue(sequence);
+        }
+    }
+
+    /*
+     * Gets whether each metric, by ordinal, has a subscriber.
+     */
+    private synchronized boolean[] getSubscribedMetrics()
+    {
+        boolean[] subscribed = new boolean[METRICS.length];
+
+        for (int i = 0; i < subscribed.length; ++i)
+            subscribed[i] = numSubscribers[i] > 0;
+
+        return subscribed;
+    }
+
+    /*
+     * Gets the scheduler polling the telemetry of every connection, creating it if needed.
+     */
+    private static synchronized ScheduledExecutorService getPollScheduler()
+    {
+        if (pollScheduler == null)
+        {
+            pollScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return pollScheduler;
+    }
+}
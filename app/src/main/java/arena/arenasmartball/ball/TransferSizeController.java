@@ -0,0 +1,164 @@
+package arena.arenasmartball.ball;
+
+import java.util.Locale;
+
+/**
+ * Chooses the number of samples to request in each transfer of a continuous read. Each transfer costs a command round
+ * trip before its first notification arrives, after which samples arrive at the notification throughput of the link,
+ * so the time until the last sample of a request of n samples is available is about rtt + n / throughput. The
+ * controller measures both from recent transfers and requests the largest size meeting the latency target, which
+ * amortizes the command overhead over as many samples as the target allows. Uses no Android classes, so it can be
+ * driven by a SmartBallSimulator on a plain JVM.
+ */
+public class TransferSizeController
+{
+    // The weight of each new measurement in the moving averages
+    private static final double SMOOTHING = 0.25;
+
+    // The smallest and largest request sizes
+    private final int minSamples, maxSamples;
+
+    // The latency target, in milliseconds
+    private volatile double targetLatencyMs;
+
+    // The moving average of the command round trip time, in milliseconds, or NaN before the first measurement
+    private double roundTripMs;
+
+    // The moving average of the notification throughput, in samples per millisecond, or NaN before the first measurement
+    private double samplesPerMs;
+
+    // The System.nanoTime() at which the current request and transfer began, or 0
+    private long requestNanos, transferNanos;
+
+    // The last request size chosen
+    private int lastSize;
+
+    /**
+     * Creates a TransferSizeController.
+     * @param minSamples The smallest request size
+     * @param maxSamples The largest request size
+     * @param targetLatencyMs The target time from issuing a request to its last sample arriving, in milliseconds
+     */
+    public TransferSizeController(int minSamples, int maxSamples, double targetLatencyMs)
+    {
+        if (minSamples <= 0 || maxSamples < minSamples)
+            throw new IllegalArgumentException("Invalid request size range: " + minSamples + " to " + maxSamples);
+
+        this.minSamples = minSamples;
+        this.maxSamples = maxSamples;
+        this.targetLatencyMs = targetLatencyMs;
+        roundTripMs = Double.NaN;
+        samplesPerMs = Double.NaN;
+        lastSize = maxSamples;
+    }
+
+    /**
+     * Sets the target time from issuing a request to its last sample arriving.
+     * @param targetLatencyMs The latency target, in milliseconds
+     */
+    public void setTargetLatency(double targetLatencyMs)
+    {
+        if (targetLatencyMs <= 0.0)
+            throw new IllegalArgumentException("Latency target must be positive: " + targetLatencyMs);
+
+        this.targetLatencyMs = targetLatencyMs;
+    }
+
+    /**
+     * Gets the target time from issuing a request to its last sample arriving.
+     * @return The latency target, in milliseconds
+     */
+    public double getTargetLatency()
+    {
+        return targetLatencyMs;
+    }
+
+    /**
+     * Chooses the size of the next request. Until a transfer has been measured the largest size is used.
+     * @return The number of samples to request
+     */
+    public synchronized int nextRequestSize()
+    {
+        int size = maxSamples;
+
+        if (!Double.isNaN(roundTripMs) && !Double.isNaN(samplesPerMs))
+        {
+            double budget = (targetLatencyMs - roundTripMs) * samplesPerMs;
+            size = (int) Math.max(minSamples, Math.min(maxSamples, budget));
+        }
+
+        lastSize = size;
+        return size;
+    }
+
+    /**
+     * Records that a request was issued.
+     * @param nanos The System.nanoTime() at which the request was issued
+     */
+    public synchronized void onRequestIssued(long nanos)
+    {
+        requestNanos = nanos;
+    }
+
+    /**
+     * Records that the first notification of a transfer arrived.
+     * @param nanos The System.nanoTime() at which the transfer started
+     */
+    public synchronized void onTransferStarted(long nanos)
+    {
+        if (requestNanos != 0L)
+            roundTripMs = average(roundTripMs, (nanos - requestNanos) / 1e6);
+
+        requestNanos = 0L;
+        transferNanos = nanos;
+    }
+
+    /**
+     * Records that the last notification of a transfer arrived.
+     * @param nanos The System.nanoTime() at which the transfer ended
+     * @param numSamples The number of samples received in the transfer
+     */
+    public synchronized void onTransferEnded(long nanos, int numSamples)
+    {
+        if (transferNanos != 0L && nanos > transferNanos && numSamples > 0)
+            samplesPerMs = average(samplesPerMs, numSamples / ((nanos - transferNanos) / 1e6));
+
+        transferNanos = 0L;
+    }
+
+    /**
+     * Gets the measured command round trip time.
+     * @return The round trip time in milliseconds, or NaN before the first measurement
+     */
+    public synchronized double getRoundTripMs()
+    {
+        return roundTripMs;
+    }
+
+    /**
+     * Gets the measured notification throughput.
+     * @return The throughput in samples per second, or NaN before the first measurement
+     */
+    public synchronized double getSamplesPerSecond()
+    {
+        return samplesPerMs * 1000.0;
+    }
+
+    /**
+     * Gets a String summarizing the state of this controller.
+     * @return A String summarizing the state of this controller
+     */
+    public synchronized String getStats()
+    {
+        return String.format(Locale.US, "request size = %d, round trip = %.1f ms, throughput = %.0f samples/s, " +
+                "target = %.0f ms", lastSize, roundTripMs, samplesPerMs * 1000.0, targetLatencyMs);
+    }
+
+    /*
+     * Updates a moving average with a new measurement.
+     */
+    private static double average(double average, double value)
+    {
+        return Double.isNaN(average) ? value : average + SMOOTHING * (value - average);
+    }
+}
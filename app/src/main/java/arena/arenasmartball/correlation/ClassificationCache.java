@@ -0,0 +1,442 @@
+package arena.arenasmartball.correlation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import arena.arenasmartball.data.Impact;
+import arena.arenasmartball.data.ImpactRegionExtractor;
+
+/**
+ * Bounded least recently used cache of the FeatureSets and Correlator outputs computed for impact regions. Entries are
+ * keyed by the identity of the impact, the bounds of the region and the version of the classification pipeline, and
+ * are evicted once either the entry count or the estimated memory footprint of the cache exceeds its limits.
+ * The cache may optionally be persisted to a File so that previously browsed impacts do not need to be recomputed.
+ */
+public class ClassificationCache
+{
+    // Magic number identifying a persisted ClassificationCache
+    private static final int FILE_MAGIC = 0x53424343; // "SBCC"
+
+    // Version of the persisted file layout
+    private static final int FILE_VERSION = 1;
+
+    // Estimated overhead of a single cache entry, in bytes
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    // Estimated cost of a single feature held in a FeatureSet, in bytes
+    private static final int FEATURE_BYTES = 96;
+
+    // The maximum number of entries held by this cache
+    private final int maxEntries;
+
+    // The maximum estimated size of this cache, in bytes
+    private final long maxBytes;
+
+    // The entries of this cache, in access order
+    private final LinkedHashMap<Key, Entry> entries;
+
+    // The regions found for each impact, in access order
+    private final LinkedHashMap<String, List<ImpactRegionExtractor.ImpactRegion>> regions;
+
+    // The current estimated size of this cache, in bytes
+    private long size;
+
+    // Statistics
+    private long hits, misses, evictions;
+
+    /**
+     * Creates a ClassificationCache.
+     * @param maxEntries The maximum number of entries to hold
+     * @param maxBytes The maximum estimated size of the cache, in bytes
+     */
+    public ClassificationCache(int maxEntries, long maxBytes)
+    {
+        if (maxEntries <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("ClassificationCache limits must be positive: " + maxEntries + ", " + maxBytes);
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        regions = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets the cached Entry for the given Key.
+     * @param key The Key
+     * @return The cached Entry, or null if none is cached
+     */
+    public synchronized Entry get(Key key)
+    {
+        Entry entry = entries.get(key);
+
+        if (entry == null)
+            ++misses;
+        else
+            ++hits;
+
+        return entry;
+    }
+
+    /**
+     * Caches the given FeatureSet and Correlator result under the given Key, evicting old entries as needed.
+     * @param key The Key
+     * @param features The FeatureSet of the region
+     * @param result The Correlator output for the region
+     * @return The new Entry
+     */
+    public synchronized Entry put(Key key, FeatureSet features, double[] result)
+    {
+        Entry entry = new Entry(features, result);
+        Entry old = entries.put(key, entry);
+
+        if (old != null)
+            size -= old.SIZE;
+
+        size += entry.SIZE;
+        trimToSize(maxBytes);
+
+        return entry;
+    }
+
+    /**
+     * Gets the cached impact regions for the given impact.
+     * @param impactId The impact identity, see {@link Key#impactId(Impact)}
+     * @return The cached regions, or null if none are cached
+     */
+    public synchronized List<ImpactRegionExtractor.ImpactRegion> getRegions(String impactId)
+    {
+        return regions.get(impactId);
+    }
+
+    /**
+     * Caches the impact regions found for the given impact.
+     * @param impactId The impact identity, see {@link Key#impactId(Impact)}
+     * @param impactRegions The regions found in the impact
+     */
+    public synchronized void putRegions(String impactId, List<ImpactRegionExtractor.ImpactRegion> impactRegions)
+    {
+        regions.put(impactId, impactRegions);
+
+        // Region lists are tiny, bound them by the entry count alone
+        Iterator<String> it = regions.keySet().iterator();
+
+        while (regions.size() > maxEntries && it.hasNext())
+        {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the estimated size of this cache is at most the given size.
+     * @param targetBytes The target size, in bytes
+     */
+    public synchronized void trimToSize(long targetBytes)
+    {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+
+        while ((size > targetBytes || entries.size() > maxEntries) && it.hasNext())
+        {
+            size -= it.next().getValue().SIZE;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Removes all entries from this cache.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        regions.clear();
+        size = 0;
+    }
+
+    /**
+     * Gets the number of entries in this cache.
+     * @return The number of entries in this cache
+     */
+    public synchronized int getNumEntries()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Gets the estimated size of this cache.
+     * @return The estimated size of this cache, in bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the maximum estimated size of this cache.
+     * @return The maximum estimated size of this cache, in bytes
+     */
+    public long getMaxSize()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Gets a String summarizing the hit rate of this cache.
+     * @return A String summarizing the hit rate of this cache
+     */
+    public synchronized String getStats()
+    {
+        return "entries = " + entries.size() + ", size = " + size + " B, hits = " + hits + ", misses = " + misses +
+                ", evictions = " + evictions;
+    }
+
+    /**
+     * Writes the entries of this cache to the given File, most recently used last.
+     * @param file The File to which to write
+     * @throws IOException If the File could not be written
+     */
+    public synchronized void save(File file) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try
+        {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+
+            for (Map.Entry<Key, Entry> e: entries.entrySet())
+            {
+                e.getKey().write(out);
+                e.getValue().FEATURES.write(out);
+
+                out.writeInt(e.getValue().RESULT.length);
+                for (double value: e.getValue().RESULT)
+                    out.writeDouble(value);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads entries saved by {@link #save(File)} into this cache. Entries computed by a pipeline version other than
+     * the given one are discarded.
+     * @param file The File from which to read
+     * @param pipelineVersion The current pipeline version
+     * @return The number of entries loaded
+     * @throws IOException If the File could not be read or is not a saved ClassificationCache
+     */
+    public synchronized int load(File file, int pipelineVersion) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int numLoaded = 0;
+
+        try
+        {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+                throw new IOException("Not a ClassificationCache file: " + file.getName());
+
+            final int numEntries = in.readInt();
+            Key key;
+            FeatureSet features;
+            double[] result;
+
+            for (int i = 0; i < numEntries; ++i)
+            {
+                key = Key.read(in);
+                features = FeatureSet.read(in);
+                result = new double[in.readInt()];
+
+                for (int j = 0; j < result.length; ++j)
+                    result[j] = in.readDouble();
+
+                if (key.VERSION == pipelineVersion)
+                {
+                    put(key, features, result);
+                    ++numLoaded;
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return numLoaded;
+    }
+
+    /**
+     * Key identifying a single impact region.
+     */
+    public static final class Key
+    {
+        /** The identity of the impact containing the region. */
+        public final String IMPACT_ID;
+
+        /** The first sample of the region. */
+        public final int START;
+
+        /** The last sample of the region. */
+        public final int END;
+
+        /** The version of the pipeline that computed the cached values. */
+        public final int VERSION;
+
+        /**
+         * Creates a Key.
+         * @param impactId The identity of the impact containing the region
+         * @param start The first sample of the region
+         * @param end The last sample of the region
+         * @param version The version of the pipeline
+         */
+        public Key(String impactId, int start, int end, int version)
+        {
+            IMPACT_ID = impactId;
+            START = start;
+            END = end;
+            VERSION = version;
+        }
+
+        /**
+         * Creates a Key.
+         * @param impactId The identity of the impact containing the region
+         * @param region The region
+         * @param version The version of the pipeline
+         */
+        public Key(String impactId, ImpactRegionExtractor.ImpactRegion region, int version)
+        {
+            this (impactId, region.getStart(), region.getEnd(), version);
+        }
+
+        /**
+         * Creates an identity String for the given Impact. The identity includes the number of samples held so that
+         * partially downloaded data is never confused with the complete data.
+         * @param impact The Impact
+         * @return The identity of the Impact
+         */
+        public static String impactId(Impact impact)
+        {
+            int numSamples = impact.getImpactData() == null ? 0 : impact.getImpactData().getNumSamples();
+            return impact.getBallName() + "_" + impact.getTime() + "_" + numSamples;
+        }
+
+        /*
+         * Writes this Key.
+         */
+        private void write(DataOutputStream out) throws IOException
+        {
+            out.writeUTF(IMPACT_ID);
+            out.writeInt(START);
+            out.writeInt(END);
+            out.writeInt(VERSION);
+        }
+
+        /*
+         * Reads a Key.
+         */
+        private static Key read(DataInputStream in) throws IOException
+        {
+            return new Key(in.readUTF(), in.readInt(), in.readInt(), in.readInt());
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return START == key.START && END == key.END && VERSION == key.VERSION && IMPACT_ID.equals(key.IMPACT_ID);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = IMPACT_ID.hashCode();
+            result = 31 * result + START;
+            result = 31 * result + END;
+            result = 31 * result + VERSION;
+            return result;
+        }
+
+        @Override
+        public String toString()
+        {
+            return IMPACT_ID + "[" + START + ", " + END + "]v" + VERSION;
+        }
+    }
+
+    /**
+     * A cached FeatureSet and Correlator result.
+     */
+    public static final class Entry
+    {
+        /** The FeatureSet of the region. */
+        public final FeatureSet FEATURES;
+
+        /** The Correlator output for the region. */
+        public final double[] RESULT;
+
+        /** The estimated size of this Entry, in bytes. */
+        public final int SIZE;
+
+        /**
+         * Creates an Entry.
+         * @param features The FeatureSet of the region
+         * @param result The Correlator output for the region
+         */
+        private Entry(FeatureSet features, double[] result)
+        {
+            FEATURES = features;
+            RESULT = result;
+            SIZE = ENTRY_OVERHEAD_BYTES + FEATURE_BYTES * features.size() + 8 * result.length;
+        }
+
+        /**
+         * Gets a copy of the cached Correlator output.
+         * @return A copy of the cached Correlator output
+         */
+        public double[] getResult()
+        {
+            return RESULT.clone();
+        }
+    }
+
+    /**
+     * Result of classifying a single impact region.
+     */
+    public static final class Classification
+    {
+        /** The classified region. */
+        public final ImpactRegionExtractor.ImpactRegion REGION;
+
+        /** The Correlator output for the region. */
+        public final double[] RESULT;
+
+        /**
+         * Creates a Classification.
+         * @param region The classified region
+         * @param result The Correlator output for the region
+         */
+        public Classification(ImpactRegionExtractor.ImpactRegion region, double[] result)
+        {
+            REGION = region;
+            RESULT = result;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package arena.arenasmartball.correlation;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import arena.arenasmartball.data.ImpactData;
+import arena.arenasmartball.data.ImpactRegionExtractor;
+
+/**
+ * Background stage that classifies impacts as their data arrives. Segments of decoded samples are submitted from the
+ * thread receiving data and queued on a bounded queue; a worker thread finds the impact regions of each segment,
+ * extracts their features, evaluates the Correlator and publishes the results to listeners. The latency from the last
+ * packet of a segment to its classification is tracked against a target.
+ * <p>
+ * A stage may be shared by several SmartBalls, each submitting its segments with itself as the source, in which case
+ * several workers may classify segments concurrently and segments dropped are also counted per source.
+ */
+public class ClassificationStage
+{
+    // The tag for this class
+    private static final String TAG = "ClassificationStage";
+
+    /**
+     * Listener for classified segments.
+     */
+    public interface Listener
+    {
+        /**
+         * Called on the worker thread of the stage when a segment has been classified.
+         * @param stage The ClassificationStage
+         * @param result The Result of the segment
+         */
+        void onSegmentClassified(ClassificationStage stage, Result result);
+    }
+
+    /**
+     * The classification of a single segment of samples.
+     */
+    public static final class Result
+    {
+        /** The source which submitted the segment, or null if none was given. */
+        public final Object SOURCE;
+
+        /** The ImpactData from which the segment was taken. */
+        public final ImpactData DATA;
+
+        /** The Classification of each impact region found, with bounds relative to DATA. */
+        public final List<ClassificationCache.Classification> CLASSIFICATIONS;
+
+        /** The time from the last packet of the segment to its classification, in milliseconds. */
+        public final double LATENCY_MS;
+
+        private Result(Object source, ImpactData data, List<ClassificationCache.Classification> classifications,
+                       double latencyMs)
+        {
+            SOURCE = source;
+            DATA = data;
+            CLASSIFICATIONS = classifications;
+            LATENCY_MS = latencyMs;
+        }
+    }
+
+    /**
+     * A queued segment.
+     */
+    private static final class Job
+    {
+        final Object SOURCE;
+        final ImpactData DATA;
+        final ImpactData SEGMENT;
+        final int OFFSET;
+        final long LAST_PACKET_NANOS;
+
+        Job(Object source, ImpactData data, ImpactData segment, int offset, long lastPacketNanos)
+        {
+            SOURCE = source;
+            DATA = data;
+            SEGMENT = segment;
+            OFFSET = offset;
+            LAST_PACKET_NANOS = lastPacketNanos;
+        }
+    }
+
+    // Job used to wake the worker when stopping
+    private static final Job STOP = new Job(null, null, null, 0, 0L);
+
+    // The queued segments
+    private final BlockingQueue<Job> queue;
+
+    // The target latency, in milliseconds
+    private final double targetLatencyMs;
+
+    // The listeners of this stage
+    private final CopyOnWriteArrayList<Listener> listeners;
+
+    // The number of worker threads
+    private final int numWorkers;
+
+    // The worker threads, null when stopped
+    private Thread[] workers;
+
+    // The number of segments dropped, by any thread
+    private final AtomicLong numDropped;
+
+    // The number of segments dropped by source
+    private final ConcurrentHashMap<Object, AtomicLong> numDroppedBySource;
+
+    // Statistics, written by the workers while holding this and read by any thread
+    private volatile long numClassified, numOverTarget;
+    private volatile double totalLatencyMs, maxLatencyMs;
+
+    /**
+     * Creates a ClassificationStage with a single worker.
+     * @param queueCapacity The largest number of segments waiting to be classified
+     * @param targetLatencyMs The target latency from the last packet of a segment to its classification, in milliseconds
+     */
+    public ClassificationStage(int queueCapacity, double targetLatencyMs)
+    {
+        this(queueCapacity, targetLatencyMs, 1);
+    }
+
+    /**
+     * Creates a ClassificationStage.
+     * @param queueCapacity The largest number of segments waiting to be classified
+     * @param targetLatencyMs The target latency from the last packet of a segment to its classification, in milliseconds
+     * @param numWorkers The number of worker threads classifying segments concurrently
+     */
+    public ClassificationStage(int queueCapacity, double targetLatencyMs, int numWorkers)
+    {
+        if (numWorkers <= 0)
+            throw new IllegalArgumentException("Number of workers must be positive: " + numWorkers);
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        listeners = new CopyOnWriteArrayList<>();
+        numDropped = new AtomicLong();
+        numDroppedBySource = new ConcurrentHashMap<>();
+        this.targetLatencyMs = targetLatencyMs;
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Adds a Listener.
+     * @param listener The Listener to add
+     */
+    public void addListener(Listener listener)
+    {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a Listener.
+     * @param listener The Listener to remove
+     */
+    public void removeListener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts the worker threads of this stage, if not already started.
+     */
+    public synchronized void start()
+    {
+        if (workers != null)
+            return;
+
+        workers = new Thread[numWorkers];
+
+        for (int i = 0; i < numWorkers; ++i)
+        {
+            workers[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runWorker();
+                }
+            }, numWorkers == 1 ? TAG : TAG + "-" + i);
+
+            workers[i].setPriority(Thread.NORM_PRIORITY + 1);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Stops the worker threads of this stage, discarding queued segments.
+     */
+    public synchronized void stop()
+    {
+        if (workers == null)
+            return;
+
+        queue.clear();
+
+        for (Thread worker: workers)
+        {
+            if (!queue.offer(STOP))
+                worker.interrupt();
+        }
+
+        workers = null;
+    }
+
+    /**
+     * Submits a segment of samples for classification, to be called from the thread adding samples to the data once
+     * the last packet of the segment has been decoded. The samples are captured immediately, so the data may continue
+     * to grow. If the queue is full the oldest queued segment is dropped.
+     * @param data The ImpactData holding the segment
+     * @param start The index of the first sample of the segment
+     * @param end One past the index of the last sample of the segment
+     * @param lastPacketNanos The System.nanoTime() at which the last packet of the segment was received
+     */
+    public void submit(ImpactData data, int start, int end, long lastPacketNanos)
+    {
+        submit(null, data, start, end, lastPacketNanos);
+    }
+
+    /**
+     * Submits a segment of samples for classification on behalf of a source, as submit(ImpactData, int, int, long).
+     * @param source The source of the segment, passed on in its Result, or null if none
+     * @param data The ImpactData holding the segment
+     * @param start The index of the first sample of the segment
+     * @param end One past the index of the last sample of the segment
+     * @param lastPacketNanos The System.nanoTime() at which the last packet of the segment was received
+     */
+    public void submit(Object source, ImpactData data, int start, int end, long lastPacketNanos)
+    {
+        if (end - start <= 1)
+            return;
+
+        ImpactData segment = new ImpactData(end - start);
+
+        for (int i = start; i < end; ++i)
+            segment.onNewSample(data.SAMPLES.get(i));
+
+        Job job = new Job(source, data, segment, start, lastPacketNanos);
+        Job dropped;
+
+        while (!queue.offer(job))
+        {
+            if ((dropped = queue.poll()) != null)
+                onDropped(dropped);
+        }
+    }
+
+    /**
+     * Gets the number of segments of a source dropped, because the queue was full or the Correlator was not ready.
+     * @param source The source
+     * @return The number of segments of the source dropped
+     */
+    public long getDroppedCount(Object source)
+    {
+        AtomicLong count = numDroppedBySource.get(source);
+        return count == null ? 0L : count.get();
+    }
+
+    /**
+     * Gets the number of segments waiting to be classified.
+     * @return The number of segments waiting to be classified
+     */
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Gets a String summarizing the latency of this stage.
+     * @return A String summarizing the latency of this stage
+     */
+    public String getStats()
+    {
+        long classified = numClassified;
+
+        return String.format(Locale.US, "classified = %d, dropped = %d, mean latency = %.1f ms, " +
+                "max latency = %.1f ms, over %.0f ms = %d", classified, numDropped.get(),
+                classified == 0 ? 0.0 : totalLatencyMs / classified, maxLatencyMs, targetLatencyMs, numOverTarget);
+    }
+
+    /*
+     * Classifies queued segments until stopped.
+     */
+    private void runWorker()
+    {
+        Job job;
+
+        try
+        {
+            while ((job = queue.take()) != STOP)
+                classify(job);
+        }
+        catch (InterruptedException ignore)
+        {   }
+    }
+
+    /*
+     * Classifies a single segment and publishes its Result.
+     */
+    private void classify(Job job)
+    {
+        if (!Correlator.isReady())
+        {
+            Log.w(TAG, "Dropping segment, Correlator is not ready");
+            onDropped(job);
+            return;
+        }
+
+        List<ImpactRegionExtractor.ImpactRegion> regions = ImpactRegionExtractor.findImpactRegions(job.SEGMENT);
+        ArrayList<FeatureSet> features = new ArrayList<>(regions.size());
+
+        for (ImpactRegionExtractor.ImpactRegion region: regions)
+            features.add(Correlator.extractFeatures(job.SEGMENT.toDataSeriesFeaturable(region)));
+
+        double[][] values = Correlator.evaluate(features);
+        ArrayList<ClassificationCache.Classification> classifications = new ArrayList<>(regions.size());
+
+        for (int i = 0; i < values.length; ++i)
+        {
+            classifications.add(new ClassificationCache.Classification(new ImpactRegionExtractor.ImpactRegion(
+                    regions.get(i).getStart() + job.OFFSET, regions.get(i).getEnd() + job.OFFSET), values[i]));
+        }
+
+        double latencyMs = (System.nanoTime() - job.LAST_PACKET_NANOS) / 1000000.0;
+
+        if (recordLatency(latencyMs))
+        {
+            Log.w(TAG, String.format(Locale.US, "Classified %d regions in %.1f ms, over the %.0f ms target",
+                    regions.size(), latencyMs, targetLatencyMs));
+        }
+
+        Result result = new Result(job.SOURCE, job.DATA, classifications, latencyMs);
+
+        for (Listener listener: listeners)
+            listener.onSegmentClassified(this, result);
+    }
+
+    /*
+     * Records the latency of a classified segment, returning whether it was over the target.
+     */
+    private synchronized boolean recordLatency(double latencyMs)
+    {
+        ++numClassified;
+        totalLatencyMs += latencyMs;
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+
+        if (latencyMs > targetLatencyMs)
+        {
+            ++numOverTarget;
+            return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Counts a dropped segment, in total and for its source.
+     */
+    private void onDropped(Job job)
+    {
+        numDropped.incrementAndGet();
+
+        if (job.SOURCE != null)
+        {
+            AtomicLong count = numDroppedBySource.get(job.SOURCE);
+
+            if (count == null)
+            {
+                AtomicLong created = new AtomicLong();
+                count = numDroppedBySource.putIfAbsent(job.SOURCE, created);
+
+                if (count == null)
+                    count = created;
+            }
+
+            count.incrementAndGet();
+        }
+    }
+}
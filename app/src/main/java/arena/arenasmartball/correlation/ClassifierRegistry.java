@@ -0,0 +1,411 @@
+package arena.arenasmartball.correlation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Registry of the classifiers evaluated on each impact region. Each classifier declares the Features and scales it
+ * takes as inputs; the registry extracts the union of those Features once per region and gathers each classifier's
+ * inputs from the shared FeatureSet by index, so adding a classifier costs only its own evaluation.
+ * Registration is expected to be rare; evaluation is safe to call concurrently, each thread using its own Sessions.
+ */
+public class ClassifierRegistry
+{
+    /**
+     * A registered classifier.
+     */
+    public static final class Classifier
+    {
+        /** The name of this Classifier. */
+        public final String NAME;
+
+        /** The floating point model of this Classifier. */
+        public final NeuralNetworkModel MODEL;
+
+        /** The Features taken as inputs, in model input order. */
+        public final FeatureExtractor.Feature[] FEATURES;
+
+        /** The scale applied to each Feature before evaluation. */
+        public final float[] SCALES;
+
+        /**
+         * Creates a Classifier.
+         * @param name The name of the classifier
+         * @param model The floating point model of the classifier
+         * @param features The Features taken as inputs, in model input order
+         * @param scales The scale applied to each Feature before evaluation, or null for no scaling
+         * @throws IllegalArgumentException If the numbers of features and scales do not match the model inputs
+         */
+        public Classifier(String name, NeuralNetworkModel model, FeatureExtractor.Feature[] features, float[] scales)
+        {
+            if (scales == null)
+            {
+                scales = new float[features.length];
+                Arrays.fill(scales, 1.0f);
+            }
+
+            if (model.getNumInputs() != features.length || scales.length != features.length)
+                throw new IllegalArgumentException("Classifier " + name + " takes " + model.getNumInputs() +
+                        " inputs, but " + features.length + " features and " + scales.length + " scales were given");
+
+            NAME = name;
+            MODEL = model;
+            FEATURES = features.clone();
+            SCALES = scales.clone();
+        }
+    }
+
+    // The largest batch of FeatureSets evaluated at once
+    private final int maxBatchSize;
+
+    // The current immutable configuration
+    private volatile Snapshot snapshot;
+
+    // The evaluation state of each calling thread
+    private final ThreadLocal<State> states;
+
+    /**
+     * Creates an empty ClassifierRegistry.
+     * @param maxBatchSize The largest batch of FeatureSets evaluated at once
+     */
+    public ClassifierRegistry(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+        snapshot = new Snapshot(new Classifier[0], null);
+        states = new ThreadLocal<>();
+    }
+
+    /**
+     * Registers a classifier, replacing any registered under the same name. Outputs are reported in registration
+     * order.
+     * @param name The name of the classifier
+     * @param model The floating point model of the classifier
+     * @param features The Features taken as inputs, in model input order
+     * @param scales The scale applied to each Feature before evaluation, or null for no scaling
+     */
+    public void register(String name, NeuralNetworkModel model, FeatureExtractor.Feature[] features, float[] scales)
+    {
+        registerAll(Collections.singletonList(new Classifier(name, model, features, scales)));
+    }
+
+    /**
+     * Registers each of the given classifiers, replacing any registered under the same names, as a single change so
+     * that no evaluation sees only some of them. Outputs are reported in registration order.
+     * @param toRegister The classifiers to register
+     */
+    public synchronized void registerAll(List<Classifier> toRegister)
+    {
+        ArrayList<Classifier> classifiers = new ArrayList<>(Arrays.asList(snapshot.CLASSIFIERS));
+        boolean replaced;
+
+        for (Classifier classifier: toRegister)
+        {
+            replaced = false;
+
+            for (int i = 0; i < classifiers.size() && !replaced; ++i)
+            {
+                if (classifiers.get(i).NAME.equals(classifier.NAME))
+                {
+                    classifiers.set(i, classifier);
+                    replaced = true;
+                }
+            }
+
+            if (!replaced)
+                classifiers.add(classifier);
+        }
+
+        snapshot = new Snapshot(classifiers.toArray(new Classifier[classifiers.size()]), snapshot.PRECISION);
+    }
+
+    /**
+     * Unregisters the classifier of the given name.
+     * @param name The name of the classifier
+     * @return Whether a classifier was unregistered
+     */
+    public synchronized boolean unregister(String name)
+    {
+        ArrayList<Classifier> classifiers = new ArrayList<>(Arrays.asList(snapshot.CLASSIFIERS));
+
+        for (int i = 0; i < classifiers.size(); ++i)
+        {
+            if (classifiers.get(i).NAME.equals(name))
+            {
+                classifiers.remove(i);
+                snapshot = new Snapshot(classifiers.toArray(new Classifier[classifiers.size()]), snapshot.PRECISION);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sets the precision with which every classifier is evaluated.
+     * @param precision The precision of the quantized weights, or null to evaluate in floating point
+     */
+    public synchronized void setPrecision(QuantizedNetworkModel.Precision precision)
+    {
+        snapshot = new Snapshot(snapshot.CLASSIFIERS, precision);
+    }
+
+    /**
+     * Gets the precision with which every classifier is evaluated.
+     * @return The precision of the quantized weights, or null if classifiers are evaluated in floating point
+     */
+    public QuantizedNetworkModel.Precision getPrecision()
+    {
+        return snapshot.PRECISION;
+    }
+
+    /**
+     * Gets the registered classifier of the given name.
+     * @param name The name of the classifier
+     * @return The classifier, or null if none is registered under the name
+     */
+    public Classifier get(String name)
+    {
+        for (Classifier classifier: snapshot.CLASSIFIERS)
+        {
+            if (classifier.NAME.equals(name))
+                return classifier;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the union of the Features taken by every registered classifier, in the order in which FeatureSets passed
+     * to evaluate() are expected to hold them.
+     * @return The union of the Features of every classifier
+     */
+    public FeatureExtractor.Feature[] getFeatures()
+    {
+        return snapshot.FEATURES.clone();
+    }
+
+    /**
+     * Gets the index of the first output of the given classifier within the values returned by evaluate().
+     * @param name The name of the classifier
+     * @return The index of the first output of the classifier, or -1 if none is registered under the name
+     */
+    public int getOutputOffset(String name)
+    {
+        Snapshot current = snapshot;
+
+        for (int c = 0; c < current.CLASSIFIERS.length; ++c)
+        {
+            if (current.CLASSIFIERS[c].NAME.equals(name))
+                return current.OUTPUT_OFFSETS[c];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Gets the total number of outputs of every registered classifier.
+     * @return The total number of outputs
+     */
+    public int getNumOutputs()
+    {
+        return snapshot.NUM_OUTPUTS;
+    }
+
+    /**
+     * Gets a name for each output of every registered classifier, in the order of the values returned by evaluate().
+     * Single output classifiers are named by the classifier; outputs of others are suffixed by their index.
+     * @return The name of each output
+     */
+    public String[] getOutputNames()
+    {
+        Snapshot current = snapshot;
+        String[] names = new String[current.NUM_OUTPUTS];
+        int numOut;
+
+        for (int c = 0; c < current.CLASSIFIERS.length; ++c)
+        {
+            numOut = current.CLASSIFIERS[c].MODEL.getNumOutputs();
+
+            for (int j = 0; j < numOut; ++j)
+                names[current.OUTPUT_OFFSETS[c] + j] = numOut == 1 ? current.CLASSIFIERS[c].NAME :
+                        current.CLASSIFIERS[c].NAME + "_" + j;
+        }
+
+        return names;
+    }
+
+    /**
+     * Gets the number of registered classifiers.
+     * @return The number of registered classifiers
+     */
+    public int size()
+    {
+        return snapshot.CLASSIFIERS.length;
+    }
+
+    /**
+     * Gets an identifier of the current configuration, which changes whenever the names, inputs, scales or weights of
+     * the classifiers or the precision change. Identifiers are stable across runs.
+     * @return An identifier of the current configuration
+     */
+    public int getId()
+    {
+        return snapshot.ID;
+    }
+
+    /**
+     * Evaluates every registered classifier on each of the given FeatureSets. FeatureSets recorded as holding exactly
+     * the Features of getFeatures(), in order, are gathered by index; any other FeatureSet is gathered by feature name.
+     * @param featureSets The FeatureSets to evaluate
+     * @return The outputs of every classifier, in registration order, for each FeatureSet
+     */
+    public double[][] evaluate(List<FeatureSet> featureSets)
+    {
+        Snapshot current = snapshot;
+        State state = states.get();
+
+        if (state == null || state.SNAPSHOT != current)
+        {
+            state = new State(current, maxBatchSize);
+            states.set(state);
+        }
+
+        final Classifier[] classifiers = current.CLASSIFIERS;
+        double[][] values = new double[featureSets.size()][];
+        ArrayList<Double> features;
+        FeatureSet featureSet;
+        float[] inputs, outputs;
+        int[] indices;
+        int batchSize, numIn, numOut, offset;
+
+        for (int start = 0; start < values.length; start += maxBatchSize)
+        {
+            batchSize = Math.min(maxBatchSize, values.length - start);
+
+            for (int b = 0; b < batchSize; ++b)
+                values[start + b] = new double[current.NUM_OUTPUTS];
+
+            for (int c = 0; c < classifiers.length; ++c)
+            {
+                inputs = state.SESSIONS[c].getInputs();
+                indices = current.INDICES[c];
+                numIn = indices.length;
+
+                // Gather inputs from the shared feature vectors
+                for (int b = 0; b < batchSize; ++b)
+                {
+                    featureSet = featureSets.get(start + b);
+                    features = featureSet.getFeatureArray();
+
+                    if (hasFeaturesOf(featureSet, current))
+                    {
+                        for (int i = 0; i < numIn; ++i)
+                            inputs[b * numIn + i] = features.get(indices[i]).floatValue() * classifiers[c].SCALES[i];
+                    }
+                    else
+                    {
+                        for (int i = 0; i < numIn; ++i)
+                            inputs[b * numIn + i] = (float) featureSet.get(classifiers[c].FEATURES[i].NAME) *
+                                    classifiers[c].SCALES[i];
+                    }
+                }
+
+                outputs = state.SESSIONS[c].evaluate(batchSize);
+                numOut = classifiers[c].MODEL.getNumOutputs();
+                offset = current.OUTPUT_OFFSETS[c];
+
+                for (int b = 0; b < batchSize; ++b)
+                {
+                    for (int j = 0; j < numOut; ++j)
+                        values[start + b][offset + j] = outputs[b * numOut + j];
+                }
+            }
+        }
+
+        return values;
+    }
+
+    /*
+     * Gets whether the given FeatureSet is recorded as holding exactly the Features of the given Snapshot, in order.
+     */
+    private static boolean hasFeaturesOf(FeatureSet featureSet, Snapshot snapshot)
+    {
+        return Arrays.equals(featureSet.getFeatures(), snapshot.FEATURES);
+    }
+
+    /**
+     * Immutable configuration of the registry.
+     */
+    private static final class Snapshot
+    {
+        final Classifier[] CLASSIFIERS;
+        final QuantizedNetworkModel.Precision PRECISION;
+        final InferenceModel[] MODELS;
+        final FeatureExtractor.Feature[] FEATURES;
+        final int[][] INDICES;
+        final int[] OUTPUT_OFFSETS;
+        final int NUM_OUTPUTS;
+        final int ID;
+
+        Snapshot(Classifier[] classifiers, QuantizedNetworkModel.Precision precision)
+        {
+            CLASSIFIERS = classifiers;
+            PRECISION = precision;
+            MODELS = new InferenceModel[classifiers.length];
+            INDICES = new int[classifiers.length][];
+            OUTPUT_OFFSETS = new int[classifiers.length];
+
+            ArrayList<FeatureExtractor.Feature> union = new ArrayList<>();
+            int numOutputs = 0, id = precision == null ? 0 : precision.ordinal() + 1, index;
+
+            for (int c = 0; c < classifiers.length; ++c)
+            {
+                MODELS[c] = precision == null ? classifiers[c].MODEL : new QuantizedNetworkModel(classifiers[c].MODEL, precision);
+                INDICES[c] = new int[classifiers[c].FEATURES.length];
+                OUTPUT_OFFSETS[c] = numOutputs;
+                numOutputs += classifiers[c].MODEL.getNumOutputs();
+                id = 31 * id + classifiers[c].NAME.hashCode();
+                id = 31 * id + classifiers[c].MODEL.getWeightsHash();
+
+                for (int i = 0; i < classifiers[c].FEATURES.length; ++i)
+                {
+                    index = union.indexOf(classifiers[c].FEATURES[i]);
+
+                    if (index < 0)
+                    {
+                        index = union.size();
+                        union.add(classifiers[c].FEATURES[i]);
+                    }
+
+                    INDICES[c][i] = index;
+                    id = 31 * id + classifiers[c].FEATURES[i].NAME.hashCode();
+                    id = 31 * id + Float.floatToIntBits(classifiers[c].SCALES[i]);
+                }
+            }
+
+            FEATURES = union.toArray(new FeatureExtractor.Feature[union.size()]);
+            NUM_OUTPUTS = numOutputs;
+            ID = id;
+        }
+    }
+
+    /**
+     * Evaluation state of a single thread for a single Snapshot.
+     */
+    private static final class State
+    {
+        final Snapshot SNAPSHOT;
+        final InferenceModel.Session[] SESSIONS;
+
+        State(Snapshot snapshot, int maxBatchSize)
+        {
+            SNAPSHOT = snapshot;
+            SESSIONS = new InferenceModel.Session[snapshot.MODELS.length];
+
+            for (int c = 0; c < SESSIONS.length; ++c)
+                SESSIONS[c] = snapshot.MODELS[c].newSession(maxBatchSize);
+        }
+    }
+}
@@ -1,17 +1,31 @@
 package arena.arenasmartball.correlation;
 
-import android.app.Activity;
+import android.content.Context;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import arena.arenasmartball.R;
-import neuralNetwork.NetworkUtil;
-import neuralNetwork.NeuralNetwork;
+import arena.arenasmartball.data.Impact;
+import arena.arenasmartball.data.ImpactData;
+import arena.arenasmartball.data.ImpactRegionExtractor;
+import arena.arenasmartball.data.Sample;
 
 /**
- * Class for calculating force from data features, using coefficients from an offline MLR.
+ * Class for classifying impacts from data features, using neural networks trained offline.
  * Created by Theodore on 4/17/2016.
  */
 public class Correlator
@@ -19,68 +33,88 @@ public class Correlator
     // The tag for this class
     private static final String TAG = "Correlator";
 
-    private static NeuralNetwork nn_hardSoft;
-
-    private static NeuralNetwork nn_hitDrop;
-
     /**
-     * Skewness, Energy, Flatness, Spec Crest
+     * The version of the feature extraction and classification pipeline. Increment whenever the extraction of features
+     * changes so that stale cached classifications are discarded; changes to the registered classifiers, including
+     * retrained weights, change the pipeline version on their own.
      */
-    private static final int[] HARD_SOFT_FEATURES = new int[] {4, 8, 20, 17};
+    private static final int PIPELINE_VERSION = 3;
 
-    private static final float[] HARD_SOFT_FEATURE_SCALES = new float[] {1, 0.0001f, 1, 1};
+    // The name of the file, in the cache directory, in which classifications are persisted
+    private static final String CACHE_FILE_NAME = "classifications.bin";
 
-    /**
-     * Std Dev, ...
-     */
-    private static final int[] HIT_DROP_FEATURES = new int[] {0, 5, 6, 7, 10, 11, 12, 25, 17};
+    // The maximum number of cached impact regions
+    private static final int CACHE_MAX_ENTRIES = 512;
 
-    private static final float[] HIT_DROP_FEATURE_SCALES = new float[] {1, 1, 1, 1, 1, 1, 1, 1, 1};
+    // The maximum estimated size of the cache, in bytes
+    private static final long CACHE_MAX_BYTES = 1024 * 1024;
 
+    // Cache of computed FeatureSets and classifications
+    private static final ClassificationCache CACHE = new ClassificationCache(CACHE_MAX_ENTRIES, CACHE_MAX_BYTES);
 
-    private static final int NUM_HARD_SOFT_FEATURES = HARD_SOFT_FEATURES.length;
-    private static final int NUM_HIT_DROP_FEATURES = HIT_DROP_FEATURES.length;
+    // The file in which the cache is persisted
+    private static volatile File cacheFile;
 
-    private static final float[] SOFT = new float[] {0.001f};
-    private static final float[] HARD = new float[] {0.999f};
+    // The largest batch of FeatureSets evaluated at once
+    private static final int MAX_BATCH_SIZE = 32;
 
-    private static final float[] HIT = new float[] {0.001f};
-    private static final float[] DROP = new float[] {0.999f};
+    /** The name of the hard/soft classifier, whose output is the first value of each result. */
+    public static final String HARD_SOFT = "hardSoft";
+
+    /** The name of the hit/drop classifier, whose output is the second value of each result. */
+    public static final String HIT_DROP = "hitDrop";
+
+    // The classifiers evaluated on each impact region
+    private static final ClassifierRegistry REGISTRY = new ClassifierRegistry(MAX_BATCH_SIZE);
+
+    // The number of samples in the synthetic impact used to warm up the pipeline
+    private static final int WARM_UP_NUM_SAMPLES = 512;
+
+    // The number of times the synthetic impact is run through the pipeline when warming up
+    private static final int WARM_UP_ITERATIONS = 3;
 
-    /** The Features to use */
-    public static final FeatureExtractor.Feature[] FEATURES_TO_USE = new FeatureExtractor.Feature[]
+    // The executor on which the Correlator is initialized and impacts are classified in the background
+    private static ExecutorService executor;
+
+    // The result of the pending or completed background initialization
+    private static Future<Boolean> initFuture;
+
+    /**
+     * Skewness, Energy, Flatness, Spec Crest
+     */
+    private static final FeatureExtractor.Feature[] HARD_SOFT_FEATURES = new FeatureExtractor.Feature[]
     {
-        Features.AVERAGE,
-        Features.KURT,
-        Features.MAX,
-        Features.MIN,
         Features.SKEW,
+        Features.ENERGY,
+        Features.FLATNESS,
+        Features.SPEC_CREST
+    };
+
+    private static final float[] HARD_SOFT_FEATURE_SCALES = new float[] {1, 0.0001f, 1, 1};
+
+    /**
+     * Average, Std Dev, Avg Dev, RMS Amplitude, SCor, KCor, Cov, Zero Crossing Rate, Spec Crest
+     */
+    private static final FeatureExtractor.Feature[] HIT_DROP_FEATURES = new FeatureExtractor.Feature[]
+    {
+        Features.AVERAGE,
         Features.STD_DEV,
         Features.AVG_DEV,
         Features.RMS_AMPLITUDE,
-        Features.ENERGY,
-        Features.PCOR,
         Features.SCOR,
         Features.KCOR,
         Features.COV,
-        Features.SPEC_STD_DEV,
-        Features.SPEC_CENTROID,
-        Features.SPEC_SKEWNESS,
-        Features.SPEC_KURTOSIS,
-        Features.SPEC_CREST,
-        Features.IRREG_K,
-        Features.IRREG_J,
-        Features.FLATNESS,
-        Features.SMOOTHNESS,
-        Features.RMSSD,
-        Features.MeanFirstDifferences,
-        Features.MeanSecondDifferences,
-        Features.ZeroCrossingRate
+        Features.ZeroCrossingRate,
+        Features.SPEC_CREST
     };
 
-    // Temporary input arrays
-    private static final float[] TEMP_INPUTS_HARD_SOFT = new float[HARD_SOFT_FEATURES.length];
-    private static final float[] TEMP_INPUTS_HIT_DROP = new float[HIT_DROP_FEATURES.length];
+    private static final float[] HIT_DROP_FEATURE_SCALES = new float[] {1, 1, 1, 1, 1, 1, 1, 1, 1};
+
+    private static final float[] SOFT = new float[] {0.001f};
+    private static final float[] HARD = new float[] {0.999f};
+
+    private static final float[] HIT = new float[] {0.001f};
+    private static final float[] DROP = new float[] {0.999f};
 
     /**
      * Static class.
@@ -89,51 +123,370 @@ public class Correlator
     {   }
 
     /**
-     * Initializes this Correlator.
-     * @param activity The current Activity
+     * Initializes this Correlator on a background thread, so that startup does not block on loading the models.
+     * Repeated calls return the pending or successful initialization, and retry one that failed.
+     * @param context The current Context
+     * @param warmUp Whether to run a synthetic impact through the pipeline once the models are loaded, so that the
+     *               first real impact is classified at steady state latency
+     * @return A Future whose value is whether the models were loaded
      */
-    public static void initialize(Activity activity)
+    public static synchronized Future<Boolean> initializeAsync(Context context, final boolean warmUp)
     {
-        InputStream in =  activity.getResources().openRawResource(R.raw.nn_hardsoft);
-        nn_hardSoft = NetworkUtil.createFromInputStream(in);
+        if (initFuture != null && !hasFailed(initFuture))
+            return initFuture;
+
+        final Context appContext = context.getApplicationContext();
+
+        initFuture = getExecutor().submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                long start = System.nanoTime();
+                initialize(appContext);
+
+                if (!isReady())
+                    return false;
+
+                Log.d(TAG, "Loaded models in " + (System.nanoTime() - start) / 1000000 + " ms");
 
-        in =  activity.getResources().openRawResource(R.raw.nn_hitdrop);
-        nn_hitDrop = NetworkUtil.createFromInputStream(in);
+                if (warmUp)
+                {
+                    start = System.nanoTime();
+                    warmUp();
+                    Log.d(TAG, "Warmed up in " + (System.nanoTime() - start) / 1000000 + " ms");
+                }
+
+                return true;
+            }
+        });
+
+        return initFuture;
+    }
+
+    /*
+     * Gets whether the given initialization completed without loading the models, or with an exception.
+     */
+    private static boolean hasFailed(Future<Boolean> future)
+    {
+        if (!future.isDone())
+            return false;
+
+        try
+        {
+            return !future.get();
+        }
+        catch (InterruptedException | ExecutionException | CancellationException e)
+        {
+            return true;
+        }
+    }
+
+    /*
+     * Gets the executor on which the Correlator works in the background, creating it if necessary.
+     */
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Correlator");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
     }
 
     /**
-     * Calculates the value from the given FeatureSet using the MLR coefficients of this class.
-     * @param featureSet The feature set to evaluate
-     * @return The calculated value
+     * Gets whether the models of this Correlator are loaded and impacts may be evaluated.
+     * @return Whether this Correlator is ready
      */
-    public static double[] evaluate(FeatureSet featureSet)
+    public static boolean isReady()
+    {
+        return REGISTRY.get(HARD_SOFT) != null && REGISTRY.get(HIT_DROP) != null;
+    }
+
+    /**
+     * Runs a synthetic impact through region extraction, feature extraction and inference, so that classes are loaded,
+     * code is compiled and per thread state exists before the first real impact. Nothing is cached.
+     */
+    public static void warmUp()
+    {
+        ImpactData data = new ImpactData(-1);
+        double envelope;
+
+        // A damped oscillation following a short quiet period
+        for (int i = 0; i < WARM_UP_NUM_SAMPLES; ++i)
+        {
+            envelope = i < WARM_UP_NUM_SAMPLES / 4 ? 0.0 : Math.exp(-(i - WARM_UP_NUM_SAMPLES / 4) / 40.0);
+            data.onNewSample(new Sample(i * Sample.SAMPLE_PERIOD, (int) (8000 * envelope * Math.sin(i * 0.3)),
+                    (int) (6000 * envelope * Math.cos(i * 0.2)), (int) (500 + 4000 * envelope * Math.sin(i * 0.5))));
+        }
+
+        List<ImpactRegionExtractor.ImpactRegion> regions = ImpactRegionExtractor.findImpactRegions(data);
+
+        if (regions.isEmpty())
+            regions = Collections.singletonList(new ImpactRegionExtractor.ImpactRegion(0, WARM_UP_NUM_SAMPLES - 1));
+
+        ArrayList<FeatureSet> features = new ArrayList<>(regions.size());
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; ++i)
+        {
+            features.clear();
+
+            for (ImpactRegionExtractor.ImpactRegion region: regions)
+                features.add(extractFeatures(data.toDataSeriesFeaturable(region)));
+
+            evaluate(features);
+        }
+    }
+
+    /**
+     * Initializes this Correlator, blocking until the models are loaded.
+     * @param context The current Context
+     */
+    public static void initialize(Context context)
+    {
+        try
+        {
+            initializeCompiled(context.getResources().openRawResource(R.raw.nn_hardsoft_model),
+                    context.getResources().openRawResource(R.raw.nn_hitdrop_model));
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Error loading compiled neural networks, falling back to text: " + e.getMessage());
+
+            try
+            {
+                initialize(context.getResources().openRawResource(R.raw.nn_hardsoft),
+                        context.getResources().openRawResource(R.raw.nn_hitdrop));
+            }
+            catch (IOException e2)
+            {
+                Log.e(TAG, "Error loading neural networks: " + e2.getMessage());
+            }
+        }
+
+        loadCache(new File(context.getCacheDir(), CACHE_FILE_NAME));
+    }
+
+    /**
+     * Initializes the neural networks of this Correlator from the given streams in the trainer's text format.
+     * @param hardSoft The stream containing the hard/soft network
+     * @param hitDrop The stream containing the hit/drop network
+     * @throws IOException If either network could not be read
+     */
+    public static void initialize(InputStream hardSoft, InputStream hitDrop) throws IOException
+    {
+        setModels(NeuralNetworkModel.fromText(hardSoft), NeuralNetworkModel.fromText(hitDrop));
+    }
+
+    /**
+     * Initializes the neural networks of this Correlator from the given streams in the compiled binary format, see
+     * {@link arena.arenasmartball.tools.ModelCompiler}.
+     * @param hardSoft The stream containing the compiled hard/soft network
+     * @param hitDrop The stream containing the compiled hit/drop network
+     * @throws IOException If either network could not be read
+     */
+    public static void initializeCompiled(InputStream hardSoft, InputStream hitDrop) throws IOException
+    {
+        setModels(NeuralNetworkModel.fromBinary(hardSoft), NeuralNetworkModel.fromBinary(hitDrop));
+    }
+
+    /*
+     * Registers the hard/soft and hit/drop classifiers, replacing any previously registered.
+     */
+    private static void setModels(NeuralNetworkModel hardSoftModel, NeuralNetworkModel hitDropModel) throws IOException
+    {
+        try
+        {
+            REGISTRY.registerAll(Arrays.asList(new ClassifierRegistry.Classifier(HARD_SOFT, hardSoftModel,
+                    HARD_SOFT_FEATURES, HARD_SOFT_FEATURE_SCALES), new ClassifierRegistry.Classifier(HIT_DROP,
+                    hitDropModel, HIT_DROP_FEATURES, HIT_DROP_FEATURE_SCALES)));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the registry of classifiers evaluated on each impact region. Further classifiers may be registered at any
+     * time; their outputs follow the hard/soft and hit/drop values in the results of this class.
+     * @return The ClassifierRegistry of this Correlator
+     */
+    public static ClassifierRegistry getRegistry()
+    {
+        return REGISTRY;
+    }
+
+    /**
+     * Gets the Features extracted from each impact region, the union of the inputs of every registered classifier.
+     * @return The Features extracted from each impact region
+     */
+    public static FeatureExtractor.Feature[] getFeatures()
+    {
+        return REGISTRY.getFeatures();
+    }
+
+    /**
+     * Extracts the Features of every registered classifier from the given DataSeriesFeaturable.
+     * @param dataSeriesFeaturable The DataSeriesFeaturable
+     * @return The FeatureSet, holding the Features of getFeatures() in order
+     */
+    public static FeatureSet extractFeatures(FeatureExtractor.DataSeriesFeaturable dataSeriesFeaturable)
+    {
+        return FeatureExtractor.getFeatureValues(dataSeriesFeaturable, REGISTRY.getFeatures());
+    }
+
+    /**
+     * Sets the precision with which the neural networks are evaluated. Fixed point evaluation trades a small, bounded
+     * deviation in the outputs for integer arithmetic. Changing the precision changes the pipeline version, so
+     * previously cached classifications are not reused.
+     * @param precision The precision of the quantized weights, or null to evaluate in floating point
+     */
+    public static void setPrecision(QuantizedNetworkModel.Precision precision)
     {
-        ArrayList<Double> features = featureSet.getFeatureArray();
+        REGISTRY.setPrecision(precision);
+    }
+
+    /**
+     * Gets the version of the feature extraction and classification pipeline.
+     * @return The version of the pipeline
+     */
+    public static int getPipelineVersion()
+    {
+        SpectralStage stage = SensorData.getSpectralStage();
+        return 31 * (31 * PIPELINE_VERSION + (stage == null ? 0 : stage.getId())) + REGISTRY.getId();
+    }
 
-//        // TODO print feature values
-//        for (int i = 0; i < features.size(); ++i)
-//            System.out.println("\t" + FEATURES_TO_USE[i].NAME + "\t" + features.get(i));
+    /**
+     * Sets the fixed length at which spectral features are calculated. Changing the length changes the pipeline
+     * version, so previously cached classifications are not reused.
+     * @param length The transform length, a power of two, or 0 to transform each region at its natural length
+     * @param mode How regions shorter than the length are fit to it
+     */
+    public static void setSpectralLength(int length, SpectralStage.Mode mode)
+    {
+        SensorData.setSpectralStage(length <= 0 ? null: new SpectralStage(length, mode));
+    }
+
+    /**
+     * Gets the cache of computed FeatureSets and classifications.
+     * @return The ClassificationCache of this Correlator
+     */
+    public static ClassificationCache getCache()
+    {
+        return CACHE;
+    }
 
-        // Get inputs
-        for (int i = 0; i < HARD_SOFT_FEATURES.length; ++i)
+    /**
+     * Loads previously persisted classifications into the cache.
+     * @param file The File from which to load
+     */
+    private static void loadCache(File file)
+    {
+        cacheFile = file;
+
+        if (!file.exists())
+            return;
+
+        try
         {
-            TEMP_INPUTS_HARD_SOFT[i] = features.get(HARD_SOFT_FEATURES[i]).floatValue() * HARD_SOFT_FEATURE_SCALES[i];
+            int numLoaded = CACHE.load(file, getPipelineVersion());
+            Log.d(TAG, "Loaded " + numLoaded + " cached classifications");
         }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Error loading classification cache: " + e.getMessage());
+            CACHE.clear();
 
-        for (int i = 0; i < HIT_DROP_FEATURES.length; ++i)
+            if (!file.delete())
+                Log.w(TAG, "Unable to delete classification cache " + file.getName());
+        }
+    }
+
+    /**
+     * Persists the cache of classifications, if the Correlator has been initialized.
+     */
+    public static void saveCache()
+    {
+        if (cacheFile == null)
+            return;
+
+        try
+        {
+            CACHE.save(cacheFile);
+        }
+        catch (IOException e)
         {
-            TEMP_INPUTS_HIT_DROP[i] = features.get(HIT_DROP_FEATURES[i]).floatValue() * HIT_DROP_FEATURE_SCALES[i];
+            Log.w(TAG, "Error saving classification cache: " + e.getMessage());
         }
+    }
 
+    /**
+     * Persists the cache of classifications on the background thread of the Correlator, so that the caller is not
+     * blocked on file I/O.
+     */
+    public static void saveCacheAsync()
+    {
+        if (cacheFile == null)
+            return;
 
-        // Calculate Impact value (0, 1)
-        float[] hitDropValue = nn_hitDrop.evaluate(TEMP_INPUTS_HIT_DROP);
-        float[] hardSoftValue = nn_hardSoft.evaluate(TEMP_INPUTS_HARD_SOFT);
+        getExecutor().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                saveCache();
+            }
+        });
+    }
 
-        Log.w(TAG, "Hit/Drop Value = " + hitDropValue[0]);
-        Log.w(TAG, "Hard/Soft = " + hardSoftValue[0]);
+    /**
+     * Trims the cache of classifications in response to memory pressure.
+     * @param fraction The fraction of the maximum cache size to retain, in [0, 1]
+     */
+    public static void trimCache(float fraction)
+    {
+        CACHE.trimToSize((long) (CACHE.getMaxSize() * Math.max(0.0f, Math.min(1.0f, fraction))));
+    }
 
-        return new double[] {hardSoftValue[0], hitDropValue[0]};
+    /**
+     * Calculates the value from the given FeatureSet using the neural networks of this class.
+     * @param featureSet The feature set to evaluate
+     * @return The calculated value
+     */
+    public static double[] evaluate(FeatureSet featureSet)
+    {
+        double[] values = evaluate(Collections.singletonList(featureSet))[0];
+
+        Log.d(TAG, "Hit/Drop Value = " + values[1]);
+        Log.d(TAG, "Hard/Soft = " + values[0]);
+
+        return values;
+    }
+
+    /**
+     * Calculates the values from each of the given FeatureSets, evaluating every registered classifier in batches.
+     * Safe to call concurrently; each calling thread evaluates with its own preallocated state.
+     * @param featureSets The feature sets to evaluate, ideally extracted with extractFeatures()
+     * @return The calculated values of each FeatureSet, in the same order
+     */
+    public static double[][] evaluate(List<FeatureSet> featureSets)
+    {
+        if (!isReady())
+            throw new IllegalStateException("Correlator has not been initialized");
+
+        return REGISTRY.evaluate(featureSets);
     }
 
     /**
@@ -143,6 +496,130 @@ public class Correlator
      */
     public static double[] evaluate(FeatureExtractor.DataSeriesFeaturable dataSeriesFeaturable)
     {
-        return evaluate(FeatureExtractor.getFeatureValues(dataSeriesFeaturable, FEATURES_TO_USE));
+        return evaluate(extractFeatures(dataSeriesFeaturable));
+    }
+
+    /**
+     * Calculates the values for the given region of the given Impact, reusing the cached values when available.
+     * @param impact The Impact
+     * @param region The region of the Impact to evaluate
+     * @return The calculated values
+     */
+    public static double[] evaluate(Impact impact, ImpactRegionExtractor.ImpactRegion region)
+    {
+        return evaluate(ClassificationCache.Key.impactId(impact), impact.getImpactData(), region);
+    }
+
+    /*
+     * Calculates the values for the given region of the given ImpactData, reusing the cached values when available.
+     */
+    private static double[] evaluate(String impactId, ImpactData data, ImpactRegionExtractor.ImpactRegion region)
+    {
+        ClassificationCache.Key key = new ClassificationCache.Key(impactId, region, getPipelineVersion());
+        ClassificationCache.Entry entry = CACHE.get(key);
+
+        if (entry == null)
+        {
+            FeatureSet features = extractFeatures(data.toDataSeriesFeaturable(region));
+            entry = CACHE.put(key, features, evaluate(features));
+        }
+
+        return entry.getResult();
+    }
+
+    /**
+     * Classifies each impact region of the given Impact in the background, once the Correlator is initialized.
+     * Impacts that were classified before return their cached classifications without recomputing anything.
+     * @param impact The Impact to classify
+     * @param listener The ClassificationListener to notify, on the background thread, when the Impact is classified
+     * @return A Future for the classifications
+     */
+    public static Future<List<ClassificationCache.Classification>> classifyAsync(final Impact impact,
+            final ClassificationListener listener)
+    {
+        return getExecutor().submit(new Callable<List<ClassificationCache.Classification>>()
+        {
+            @Override
+            public List<ClassificationCache.Classification> call()
+            {
+                if (!isReady())
+                    return null;
+
+                List<ClassificationCache.Classification> classifications = classify(impact);
+
+                if (listener != null)
+                    listener.onImpactClassified(impact, classifications);
+
+                return classifications;
+            }
+        });
+    }
+
+    /**
+     * Classifies each impact region of the given Impact, reusing the cached regions and values when available.
+     * @param impact The Impact to classify
+     * @return The Classification of each impact region of the Impact
+     */
+    public static List<ClassificationCache.Classification> classify(Impact impact)
+    {
+        ImpactData data = impact.getImpactData();
+        List<ClassificationCache.Classification> classifications = new ArrayList<>();
+
+        if (data == null)
+            return classifications;
+
+        String impactId = ClassificationCache.Key.impactId(impact);
+        List<ImpactRegionExtractor.ImpactRegion> regions = CACHE.getRegions(impactId);
+
+        if (regions == null)
+        {
+            regions = ImpactRegionExtractor.findImpactRegions(data);
+            CACHE.putRegions(impactId, regions);
+        }
+
+        // Compute the features of uncached regions, then evaluate them in a single batch
+        ClassificationCache.Entry[] entries = new ClassificationCache.Entry[regions.size()];
+        ArrayList<FeatureSet> missedFeatures = new ArrayList<>();
+        ArrayList<Integer> missedIndices = new ArrayList<>();
+        final int version = getPipelineVersion();
+
+        for (int i = 0; i < entries.length; ++i)
+        {
+            entries[i] = CACHE.get(new ClassificationCache.Key(impactId, regions.get(i), version));
+
+            if (entries[i] == null)
+            {
+                missedFeatures.add(extractFeatures(data.toDataSeriesFeaturable(regions.get(i))));
+                missedIndices.add(i);
+            }
+        }
+
+        double[][] missedValues = evaluate(missedFeatures);
+        int index;
+
+        for (int i = 0; i < missedValues.length; ++i)
+        {
+            index = missedIndices.get(i);
+            entries[index] = CACHE.put(new ClassificationCache.Key(impactId, regions.get(index), version),
+                    missedFeatures.get(i), missedValues[i]);
+        }
+
+        for (int i = 0; i < entries.length; ++i)
+            classifications.add(new ClassificationCache.Classification(regions.get(i), entries[i].getResult()));
+
+        return classifications;
+    }
+
+    /**
+     * Listener for Impacts classified in the background.
+     */
+    public interface ClassificationListener
+    {
+        /**
+         * Called on the background thread of the Correlator when an Impact is classified.
+         * @param impact The Impact
+         * @param classifications The Classification of each impact region of the Impact
+         */
+        void onImpactClassified(Impact impact, List<ClassificationCache.Classification> classifications);
     }
 }
@@ -47,4 +47,23 @@ public class DFT
 			imags[i] = Math.abs(fft[i * 2 + 1]);
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Constructs a new DFT from the interleaved output of a full real forward transform.
+	 * @param fullTransform The interleaved real and imaginary components, of at least 2 * length entries
+	 * @param length The number of frequency samples
+	 */
+	DFT(double[] fullTransform, int length)
+	{
+		this.length = length;
+		reals = new double[length];
+		imags = new double[length];
+		
+		// Copy to arrays
+		for (int i = 0; i < length; ++i)
+		{
+			reals[i] = Math.abs(fullTransform[i * 2]);
+			imags[i] = Math.abs(fullTransform[i * 2 + 1]);
+		}
+	}
+}
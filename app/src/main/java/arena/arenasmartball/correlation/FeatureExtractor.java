@@ -41,6 +41,7 @@ public class FeatureExtractor
 	{
 		FeatureSet set = new FeatureSet();
 		getFeatureValues(object, features, set);
+		set.setFeatures(features.clone());
 		return set;
 	}
 	
@@ -1,5 +1,8 @@
 package arena.arenasmartball.correlation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -16,6 +19,9 @@ public class FeatureSet
 	
 	/** A Map from feature names to their indices in the array. */
 	private Map<String, Integer> featureMap;
+
+	/** The Features whose values the array holds, in order, or null if unknown. */
+	private FeatureExtractor.Feature[] features;
 	
 	/**
 	 * Default constructor.
@@ -83,8 +89,79 @@ public class FeatureSet
 	{
 		featureMap.put(name,  featureArray.size());
 		featureArray.add(value); 
+		features = null;
+	}
+
+	/**
+	 * Records the Features whose values this FeatureSet holds, in order, so that consumers expecting the same Features
+	 * may read values by index. Cleared by put().
+	 * @param features The Features, in the order of the feature array
+	 */
+	public void setFeatures(FeatureExtractor.Feature[] features)
+	{
+		if (features.length != featureArray.size())
+			throw new IllegalArgumentException("FeatureSet holds " + featureArray.size() + " values, but " +
+					features.length + " features were given");
+
+		this.features = features;
+	}
+
+	/**
+	 * Gets the Features whose values this FeatureSet holds, in order.
+	 * @return The Features in the order of the feature array, or null if unknown
+	 */
+	public FeatureExtractor.Feature[] getFeatures()
+	{
+		return features;
 	}
 	
+	/**
+	 * Gets the number of features in this FeatureSet.
+	 * @return The number of features in this FeatureSet
+	 */
+	public int size()
+	{
+		return featureArray.size();
+	}
+
+	/**
+	 * Writes this FeatureSet in a compact binary format.
+	 * @param out The DataOutputStream to which to write
+	 * @throws IOException If writing fails
+	 */
+	public void write(DataOutputStream out) throws IOException
+	{
+		String[] names = new String[featureArray.size()];
+
+		for (Map.Entry<String, Integer> entry: featureMap.entrySet())
+			names[entry.getValue()] = entry.getKey();
+
+		out.writeInt(names.length);
+
+		for (int i = 0; i < names.length; ++i)
+		{
+			out.writeUTF(names[i] == null ? "" : names[i]);
+			out.writeDouble(featureArray.get(i));
+		}
+	}
+
+	/**
+	 * Reads a FeatureSet saved by write(DataOutputStream).
+	 * @param in The DataInputStream from which to read
+	 * @return The FeatureSet read
+	 * @throws IOException If reading fails
+	 */
+	public static FeatureSet read(DataInputStream in) throws IOException
+	{
+		FeatureSet set = new FeatureSet();
+		final int size = in.readInt();
+
+		for (int i = 0; i < size; ++i)
+			set.put(in.readUTF(), in.readDouble());
+
+		return set;
+	}
+
 //	/**
 //	 * Normalizes this FeatureSet using the given FeatureScaler.
 //	 * @param scaler The FeatureScaler to use to normalize
@@ -0,0 +1,486 @@
+package arena.arenasmartball.correlation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import arena.arenasmartball.data.ImpactRegionExtractor;
+
+/**
+ * Read only, memory mapped store of the feature vectors of many impact regions, for retraining classifiers. The store
+ * is columnar: every feature is held as one contiguous column of doubles, preceded by columns of row metadata giving
+ * the ball, time and region of each row, so a column can be read in place without parsing. Stores are written with
+ * a {@link Writer}.
+ * <p>
+ * The layout is little endian: a header of the magic number, version, number of rows, number of columns and number
+ * of ball names, followed by the column names and ball names as UTF-8 strings prefixed by their length in bytes, padded
+ * to a multiple of 8 bytes; then the time of each row as longs, the ball name index, region start and region end of
+ * each row as ints, padded to a multiple of 8 bytes; then each feature column as doubles.
+ */
+public class FeatureStore
+{
+    // Magic number identifying a FeatureStore
+    private static final int MAGIC = 0x53424653; // "SBFS"
+
+    // Version of the layout
+    private static final int VERSION = 1;
+
+    // The charset of the column and ball names
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The number of rows
+    private final int numRows;
+
+    // The names of the feature columns
+    private final String[] columnNames;
+
+    // The index of each feature column by name
+    private final HashMap<String, Integer> columnIndices;
+
+    // The distinct ball names, indexed by the ball column
+    private final String[] ballNames;
+
+    // The buffer holding the store
+    private final ByteBuffer buffer;
+
+    // The offsets of the metadata columns and of the first feature column within the buffer
+    private final int timeOffset, ballOffset, startOffset, endOffset, featureOffset;
+
+    /**
+     * Creates a FeatureStore reading the given buffer.
+     * @param buffer The buffer holding the store, from its position
+     * @throws IOException If the buffer does not hold a FeatureStore
+     */
+    private FeatureStore(ByteBuffer buffer) throws IOException
+    {
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+        try
+        {
+            if (this.buffer.getInt() != MAGIC)
+                throw new IOException("Not a FeatureStore");
+            if (this.buffer.getInt() != VERSION)
+                throw new IOException("Unsupported FeatureStore version");
+
+            numRows = this.buffer.getInt();
+            columnNames = new String[this.buffer.getInt()];
+            ballNames = new String[this.buffer.getInt()];
+
+            if (numRows < 0)
+                throw new IOException("Corrupt FeatureStore header");
+
+            columnIndices = new HashMap<>();
+
+            for (int i = 0; i < columnNames.length; ++i)
+            {
+                columnNames[i] = readString(this.buffer);
+                columnIndices.put(columnNames[i], i);
+            }
+
+            for (int i = 0; i < ballNames.length; ++i)
+                ballNames[i] = readString(this.buffer);
+
+            timeOffset = align(this.buffer.position());
+            ballOffset = timeOffset + 8 * numRows;
+            startOffset = ballOffset + 4 * numRows;
+            endOffset = startOffset + 4 * numRows;
+            featureOffset = align(endOffset + 4 * numRows);
+
+            if ((long) featureOffset + 8L * numRows * columnNames.length > this.buffer.limit())
+                throw new IOException("Truncated FeatureStore");
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Corrupt FeatureStore: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the FeatureStore saved in the given File by mapping it into memory. Columns are read from the mapping as
+     * they are accessed.
+     * @param file The File holding the store
+     * @return The FeatureStore
+     * @throws IOException If the File could not be mapped or does not hold a FeatureStore
+     */
+    public static FeatureStore open(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            // The mapping remains valid once the channel is closed
+            FileChannel channel = raf.getChannel();
+            return new FeatureStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the FeatureStore held by the given buffer, from its position. The buffer is not copied.
+     * @param buffer The buffer holding the store
+     * @return The FeatureStore
+     * @throws IOException If the buffer does not hold a FeatureStore
+     */
+    public static FeatureStore wrap(ByteBuffer buffer) throws IOException
+    {
+        return new FeatureStore(buffer);
+    }
+
+    /**
+     * Gets the number of rows in this FeatureStore.
+     * @return The number of rows
+     */
+    public int getNumRows()
+    {
+        return numRows;
+    }
+
+    /**
+     * Gets the number of feature columns in this FeatureStore.
+     * @return The number of feature columns
+     */
+    public int getNumColumns()
+    {
+        return columnNames.length;
+    }
+
+    /**
+     * Gets the names of the feature columns of this FeatureStore.
+     * @return The names of the feature columns
+     */
+    public String[] getColumnNames()
+    {
+        return columnNames.clone();
+    }
+
+    /**
+     * Gets the index of the feature column of the given name.
+     * @param name The name of the feature
+     * @return The index of the column, or -1 if the feature is not stored
+     */
+    public int getColumnIndex(String name)
+    {
+        Integer index = columnIndices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Gets a read only view of the given feature column, backed by the store.
+     * @param column The index of the column
+     * @return A DoubleBuffer holding the value of the feature for each row
+     */
+    public DoubleBuffer getColumn(int column)
+    {
+        if (column < 0 || column >= columnNames.length)
+            throw new IndexOutOfBoundsException("Column " + column + " of " + columnNames.length);
+
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position(featureOffset + 8 * numRows * column);
+        view.limit(view.position() + 8 * numRows);
+
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets a read only view of the feature column of the given name, backed by the store.
+     * @param name The name of the feature
+     * @return A DoubleBuffer holding the value of the feature for each row, or null if the feature is not stored
+     */
+    public DoubleBuffer getColumn(String name)
+    {
+        int column = getColumnIndex(name);
+        return column < 0 ? null : getColumn(column);
+    }
+
+    /**
+     * Gets the value of a single feature.
+     * @param row The index of the row
+     * @param column The index of the feature column
+     * @return The value of the feature
+     */
+    public double getValue(int row, int column)
+    {
+        checkRow(row);
+        return buffer.getDouble(featureOffset + 8 * (numRows * column + row));
+    }
+
+    /**
+     * Gets the name of the ball of the given row.
+     * @param row The index of the row
+     * @return The name of the ball
+     */
+    public String getBallName(int row)
+    {
+        checkRow(row);
+        return ballNames[buffer.getInt(ballOffset + 4 * row)];
+    }
+
+    /**
+     * Gets the time of the impact of the given row.
+     * @param row The index of the row
+     * @return The time of the impact, in milliseconds since the epoch
+     */
+    public long getTime(int row)
+    {
+        checkRow(row);
+        return buffer.getLong(timeOffset + 8 * row);
+    }
+
+    /**
+     * Gets the impact region of the given row.
+     * @param row The index of the row
+     * @return The ImpactRegion
+     */
+    public ImpactRegionExtractor.ImpactRegion getRegion(int row)
+    {
+        checkRow(row);
+        return new ImpactRegionExtractor.ImpactRegion(buffer.getInt(startOffset + 4 * row),
+                buffer.getInt(endOffset + 4 * row));
+    }
+
+    /**
+     * Gets the features of the given row as a FeatureSet, in column order.
+     * @param row The index of the row
+     * @return The FeatureSet of the row
+     */
+    public FeatureSet getFeatureSet(int row)
+    {
+        FeatureSet set = new FeatureSet();
+
+        for (int c = 0; c < columnNames.length; ++c)
+            set.put(columnNames[c], getValue(row, c));
+
+        return set;
+    }
+
+    /*
+     * Checks that the given row index is valid.
+     */
+    private void checkRow(int row)
+    {
+        if (row < 0 || row >= numRows)
+            throw new IndexOutOfBoundsException("Row " + row + " of " + numRows);
+    }
+
+    /*
+     * Rounds the given offset up to a multiple of 8.
+     */
+    private static int align(int offset)
+    {
+        return (offset + 7) & ~7;
+    }
+
+    /*
+     * Reads a string prefixed by its length in bytes.
+     */
+    private static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Accumulates rows in memory and writes them as a FeatureStore. Rows may be added from several threads.
+     */
+    public static class Writer
+    {
+        // The initial capacity of each column, in rows
+        private static final int INITIAL_CAPACITY = 1024;
+
+        // The names of the feature columns
+        private final String[] columnNames;
+
+        // The distinct ball names, in order of first appearance
+        private final ArrayList<String> ballNames;
+
+        // The index of each ball name
+        private final HashMap<String, Integer> ballIndices;
+
+        // The metadata columns
+        private long[] times;
+        private int[] balls, starts, ends;
+
+        // The feature columns
+        private double[][] columns;
+
+        // The number of rows
+        private int numRows;
+
+        /**
+         * Creates a Writer with a column for each of the given Features.
+         * @param features The Features to store
+         */
+        public Writer(FeatureExtractor.Feature[] features)
+        {
+            columnNames = new String[features.length];
+
+            for (int i = 0; i < features.length; ++i)
+                columnNames[i] = features[i].NAME;
+
+            if (new HashSet<>(Arrays.asList(columnNames)).size() != columnNames.length)
+                throw new IllegalArgumentException("Feature names must be distinct: " + Arrays.toString(columnNames));
+
+            ballNames = new ArrayList<>();
+            ballIndices = new HashMap<>();
+            times = new long[INITIAL_CAPACITY];
+            balls = new int[INITIAL_CAPACITY];
+            starts = new int[INITIAL_CAPACITY];
+            ends = new int[INITIAL_CAPACITY];
+            columns = new double[columnNames.length][INITIAL_CAPACITY];
+        }
+
+        /**
+         * Adds a row. Features not held by the FeatureSet are stored as 0.
+         * @param ballName The name of the ball
+         * @param time The time of the impact, in milliseconds since the epoch
+         * @param region The impact region from which the features were extracted
+         * @param features The features of the region
+         */
+        public synchronized void add(String ballName, long time, ImpactRegionExtractor.ImpactRegion region,
+                                     FeatureSet features)
+        {
+            if (numRows == times.length)
+                grow();
+
+            Integer ball = ballIndices.get(ballName);
+
+            if (ball == null)
+            {
+                ball = ballNames.size();
+                ballNames.add(ballName);
+                ballIndices.put(ballName, ball);
+            }
+
+            times[numRows] = time;
+            balls[numRows] = ball;
+            starts[numRows] = region.getStart();
+            ends[numRows] = region.getEnd();
+
+            for (int c = 0; c < columnNames.length; ++c)
+                columns[c][numRows] = features.get(columnNames[c]);
+
+            ++numRows;
+        }
+
+        /**
+         * Gets the number of rows added.
+         * @return The number of rows
+         */
+        public synchronized int size()
+        {
+            return numRows;
+        }
+
+        /**
+         * Writes the rows added so far to the given File, replacing its contents.
+         * @param file The File to which to write
+         * @throws IOException If writing fails
+         */
+        public synchronized void write(File file) throws IOException
+        {
+            byte[][] columnBytes = encode(columnNames);
+            byte[][] ballBytes = encode(ballNames.toArray(new String[ballNames.size()]));
+
+            int headerSize = 20;
+            for (byte[] bytes: columnBytes)
+                headerSize += 2 + bytes.length;
+            for (byte[] bytes: ballBytes)
+                headerSize += 2 + bytes.length;
+
+            final int metaOffset = align(headerSize);
+            final int featureOffset = align(metaOffset + 20 * numRows);
+            final long size = featureOffset + 8L * numRows * columnNames.length;
+
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("FeatureStore of " + size + " bytes is too large to map");
+
+            ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+
+            out.putInt(MAGIC).putInt(VERSION).putInt(numRows).putInt(columnNames.length).putInt(ballBytes.length);
+
+            for (byte[] bytes: columnBytes)
+                out.putShort((short) bytes.length).put(bytes);
+            for (byte[] bytes: ballBytes)
+                out.putShort((short) bytes.length).put(bytes);
+
+            out.position(metaOffset);
+            out.asLongBuffer().put(times, 0, numRows);
+            out.position(metaOffset + 8 * numRows);
+            out.asIntBuffer().put(balls, 0, numRows);
+            out.position(metaOffset + 12 * numRows);
+            out.asIntBuffer().put(starts, 0, numRows);
+            out.position(metaOffset + 16 * numRows);
+            out.asIntBuffer().put(ends, 0, numRows);
+
+            for (int c = 0; c < columnNames.length; ++c)
+            {
+                out.position(featureOffset + 8 * numRows * c);
+                out.asDoubleBuffer().put(columns[c], 0, numRows);
+            }
+
+            out.clear();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try
+            {
+                FileChannel channel = raf.getChannel();
+                channel.truncate(0);
+
+                while (out.hasRemaining())
+                    channel.write(out);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        /*
+         * Doubles the capacity of every column.
+         */
+        private void grow()
+        {
+            final int capacity = times.length * 2;
+
+            times = Arrays.copyOf(times, capacity);
+            balls = Arrays.copyOf(balls, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+
+            for (int c = 0; c < columns.length; ++c)
+                columns[c] = Arrays.copyOf(columns[c], capacity);
+        }
+
+        /*
+         * Encodes the given strings as UTF-8.
+         */
+        private static byte[][] encode(String[] strings) throws IOException
+        {
+            byte[][] bytes = new byte[strings.length][];
+
+            for (int i = 0; i < strings.length; ++i)
+            {
+                bytes[i] = (strings[i] == null ? "" : strings[i]).getBytes(UTF_8);
+
+                if (bytes[i].length > 0xFFFF)
+                    throw new IOException("Name too long: " + strings[i].substring(0, 32) + "...");
+            }
+
+            return bytes;
+        }
+    }
+}
@@ -286,17 +286,14 @@ public class Features
 			
 			double num = 0.0, den = 0.0;
 			
+			// Take the geometric mean in the log domain, since the product of the magnitudes overflows on long regions
 			for (int i = 0; i < dft.length; ++i)
 			{
-				if (i == 0)
-					num = dft.reals[i];
-				else
-					num *= dft.reals[i];
-				
+				num += Math.log(dft.reals[i]);
 				den += dft.reals[i];
 			}
 			
-			num = Math.pow(num, 1.0 / dft.length);
+			num = Math.exp(num / dft.length);
 			den = den / dft.length;
 			
 			if (Double.isNaN(num) || Double.isNaN(den) || den == 0.0)
@@ -420,4 +417,11 @@ public class Features
 			return sum;
 		}
 	};
+	
+	/**
+	 * Every Feature defined by this class, in declaration order.
+	 */
+	public static final Feature[] ALL = {AVERAGE, STD_DEV, AVG_DEV, RMS_AMPLITUDE, MAX, MIN, SKEW, KURT, ENERGY,
+			PCOR, SCOR, KCOR, COV, SPEC_STD_DEV, SPEC_CENTROID, SPEC_SKEWNESS, SPEC_KURTOSIS, SPEC_CREST, IRREG_K,
+			IRREG_J, SMOOTHNESS, FLATNESS, RMSSD, MeanFirstDifferences, MeanSecondDifferences, ZeroCrossingRate};
 }
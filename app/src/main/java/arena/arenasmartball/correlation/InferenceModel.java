@@ -0,0 +1,54 @@
+package arena.arenasmartball.correlation;
+
+/**
+ * A feed forward classifier evaluated in batches through per caller Sessions.
+ */
+public interface InferenceModel
+{
+    /**
+     * Gets the number of inputs of this model.
+     * @return The number of inputs of this model
+     */
+    int getNumInputs();
+
+    /**
+     * Gets the number of outputs of this model.
+     * @return The number of outputs of this model
+     */
+    int getNumOutputs();
+
+    /**
+     * Creates a new Session for evaluating this model.
+     * @param maxBatchSize The largest batch the Session will evaluate
+     * @return A new Session
+     */
+    Session newSession(int maxBatchSize);
+
+    /**
+     * Per caller evaluation state. A Session must not be shared between threads.
+     */
+    interface Session
+    {
+        /**
+         * Gets the input buffer of this Session, into which batch entry b's inputs are written starting at
+         * b * getNumInputs().
+         * @return The input buffer of this Session
+         */
+        float[] getInputs();
+
+        /**
+         * Evaluates the first batchSize entries of the input buffer.
+         * @param batchSize The number of entries to evaluate
+         * @return The output buffer of this Session, in which batch entry b's outputs begin at b * getNumOutputs().
+         * The buffer is overwritten by the next evaluation
+         */
+        float[] evaluate(int batchSize);
+
+        /**
+         * Evaluates a single input vector.
+         * @param input The inputs, of getNumInputs() entries
+         * @return A new array containing the outputs
+         */
+        float[] evaluate(float[] input);
+    }
+}
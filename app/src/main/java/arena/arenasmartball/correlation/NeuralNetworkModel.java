@@ -0,0 +1,476 @@
+package arena.arenasmartball.correlation;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable, fully connected feed forward network with a sigmoid activation on every layer, loaded from the text
+ * format written by the offline trainer:
+ * <pre>
+ * h numHiddenLayers
+ * newmat rows cols
+ * m w w w ...
+ * </pre>
+ * where each weight matrix has one row per input plus a final bias row, and one column per node. Models may also be
+ * compiled to a little endian binary format, see {@link #writeBinary(OutputStream)}, which loads without parsing.
+ * A model holds no evaluation state; each caller evaluates through its own {@link Session}, so a single model may be
+ * shared freely between threads.
+ */
+public class NeuralNetworkModel implements InferenceModel
+{
+    /** Magic number beginning the binary format, "SBNN" when read as little endian bytes. */
+    public static final int BINARY_MAGIC = 0x4E4E4253;
+
+    /** The version of the binary format. */
+    public static final int BINARY_VERSION = 1;
+
+    /** Activation identifier of the logistic sigmoid, the only activation currently supported. */
+    public static final int ACTIVATION_SIGMOID = 0;
+
+    // Size of the binary header preceding the layer sizes: magic, version, activation and layer count
+    private static final int BINARY_HEADER_BYTES = 16;
+
+    // Size of the trailing CRC32 checksum
+    private static final int BINARY_CHECKSUM_BYTES = 4;
+
+    // The weights of each layer, row major, the last row of each being the biases
+    private final float[][] weights;
+
+    // The number of inputs to each layer, the number of outputs of layer i being layerSizes[i + 1]
+    private final int[] layerSizes;
+
+    /**
+     * Creates a NeuralNetworkModel.
+     * @param weights The weights of each layer, row major with a final bias row
+     * @param layerSizes The number of inputs of the network followed by the number of nodes in each layer
+     */
+    NeuralNetworkModel(float[][] weights, int[] layerSizes)
+    {
+        if (layerSizes.length != weights.length + 1)
+            throw new IllegalArgumentException("Expected " + (weights.length + 1) + " layer sizes, got " + layerSizes.length);
+
+        for (int l = 0; l < weights.length; ++l)
+        {
+            if (weights[l].length != (layerSizes[l] + 1) * layerSizes[l + 1])
+                throw new IllegalArgumentException("Layer " + l + " has " + weights[l].length + " weights, expected " +
+                        (layerSizes[l] + 1) * layerSizes[l + 1]);
+        }
+
+        this.weights = weights;
+        this.layerSizes = layerSizes;
+    }
+
+    /**
+     * Reads a NeuralNetworkModel in the trainer's text format from the given InputStream. The stream is closed.
+     * @param in The InputStream from which to read
+     * @return The NeuralNetworkModel read
+     * @throws IOException If the stream could not be read or is malformed
+     */
+    public static NeuralNetworkModel fromText(InputStream in) throws IOException
+    {
+        ArrayList<String> tokens = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
+        try
+        {
+            String line;
+            StringTokenizer tokenizer;
+
+            while ((line = reader.readLine()) != null)
+            {
+                tokenizer = new StringTokenizer(line);
+
+                while (tokenizer.hasMoreTokens())
+                    tokens.add(tokenizer.nextToken());
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        try
+        {
+            int pos = 0;
+
+            if (!"h".equals(tokens.get(pos++)))
+                throw new IOException("Neural network text must begin with 'h'");
+
+            final int numLayers = Integer.parseInt(tokens.get(pos++)) + 1;
+            float[][] weights = new float[numLayers][];
+            int[] layerSizes = new int[numLayers + 1];
+            int rows, cols;
+
+            for (int l = 0; l < numLayers; ++l)
+            {
+                if (!"newmat".equals(tokens.get(pos++)))
+                    throw new IOException("Expected 'newmat' for layer " + l);
+
+                rows = Integer.parseInt(tokens.get(pos++));
+                cols = Integer.parseInt(tokens.get(pos++));
+
+                if (l > 0 && rows - 1 != layerSizes[l])
+                    throw new IOException("Layer " + l + " has " + (rows - 1) + " inputs, expected " + layerSizes[l]);
+
+                layerSizes[l] = rows - 1;
+                layerSizes[l + 1] = cols;
+                weights[l] = new float[rows * cols];
+
+                for (int r = 0; r < rows; ++r)
+                {
+                    if (!"m".equals(tokens.get(pos++)))
+                        throw new IOException("Expected 'm' for row " + r + " of layer " + l);
+
+                    for (int c = 0; c < cols; ++c)
+                        weights[l][r * cols + c] = Float.parseFloat(tokens.get(pos++));
+                }
+            }
+
+            return new NeuralNetworkModel(weights, layerSizes);
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            throw new IOException("Unexpected end of neural network text");
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Malformed neural network text: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes this model in the binary format: a little endian header of magic, version, activation and layer count,
+     * followed by the layer sizes, the weights of each layer as floats, and a CRC32 of all preceding bytes.
+     * @param out The OutputStream to which to write, which is not closed
+     * @throws IOException If writing fails
+     */
+    public void writeBinary(OutputStream out) throws IOException
+    {
+        int numWeights = 0;
+
+        for (float[] layer: weights)
+            numWeights += layer.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(BINARY_HEADER_BYTES + 4 * layerSizes.length + 4 * numWeights +
+                BINARY_CHECKSUM_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(ACTIVATION_SIGMOID).putInt(weights.length);
+
+        for (int size: layerSizes)
+            buffer.putInt(size);
+
+        for (float[] layer: weights)
+        {
+            buffer.asFloatBuffer().put(layer);
+            buffer.position(buffer.position() + 4 * layer.length);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        out.write(buffer.array());
+    }
+
+    /**
+     * Reads a NeuralNetworkModel written by {@link #writeBinary(OutputStream)} from the given InputStream. The stream
+     * is closed.
+     * @param in The InputStream from which to read
+     * @return The NeuralNetworkModel read
+     * @throws IOException If the stream could not be read, is not a compiled model or fails its checksum
+     */
+    public static NeuralNetworkModel fromBinary(InputStream in) throws IOException
+    {
+        byte[] bytes;
+
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 256));
+            byte[] chunk = new byte[4096];
+            int read;
+
+            while ((read = in.read(chunk)) != -1)
+                out.write(chunk, 0, read);
+
+            bytes = out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return fromBinary(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads a NeuralNetworkModel written by {@link #writeBinary(OutputStream)} from the given buffer, for example a
+     * memory mapped file.
+     * @param buffer The buffer from which to read, from its position to its limit
+     * @return The NeuralNetworkModel read
+     * @throws IOException If the buffer does not hold a compiled model or fails its checksum
+     */
+    public static NeuralNetworkModel fromBinary(ByteBuffer buffer) throws IOException
+    {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final int length = buffer.remaining();
+
+        if (length < BINARY_HEADER_BYTES + BINARY_CHECKSUM_BYTES)
+            throw new IOException("Compiled neural network is truncated");
+
+        if (buffer.getInt() != BINARY_MAGIC)
+            throw new IOException("Not a compiled neural network");
+
+        int version = buffer.getInt();
+        if (version != BINARY_VERSION)
+            throw new IOException("Unsupported compiled neural network version " + version);
+
+        int activation = buffer.getInt();
+        if (activation != ACTIVATION_SIGMOID)
+            throw new IOException("Unsupported neural network activation " + activation);
+
+        final int numLayers = buffer.getInt();
+        if (numLayers <= 0 || BINARY_HEADER_BYTES + 4 * (numLayers + 1) + BINARY_CHECKSUM_BYTES > length)
+            throw new IOException("Compiled neural network has an invalid layer count " + numLayers);
+
+        int[] layerSizes = new int[numLayers + 1];
+        long numWeights = 0;
+
+        for (int l = 0; l < layerSizes.length; ++l)
+        {
+            layerSizes[l] = buffer.getInt();
+
+            if (layerSizes[l] <= 0)
+                throw new IOException("Compiled neural network has an invalid layer size " + layerSizes[l]);
+        }
+
+        for (int l = 0; l < numLayers; ++l)
+            numWeights += (long) (layerSizes[l] + 1) * layerSizes[l + 1];
+
+        if (buffer.position() + 4 * numWeights + BINARY_CHECKSUM_BYTES != length)
+            throw new IOException("Compiled neural network has " + length + " bytes, expected " +
+                    (buffer.position() + 4 * numWeights + BINARY_CHECKSUM_BYTES));
+
+        // Verify the checksum before trusting the weights
+        CRC32 crc = new CRC32();
+
+        if (buffer.hasArray())
+        {
+            crc.update(buffer.array(), buffer.arrayOffset(), length - BINARY_CHECKSUM_BYTES);
+        }
+        else
+        {
+            byte[] bytes = new byte[length - BINARY_CHECKSUM_BYTES];
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(0);
+            duplicate.get(bytes);
+            crc.update(bytes, 0, bytes.length);
+        }
+
+        if (buffer.getInt(length - BINARY_CHECKSUM_BYTES) != (int) crc.getValue())
+            throw new IOException("Compiled neural network failed its checksum");
+
+        float[][] weights = new float[numLayers][];
+
+        for (int l = 0; l < numLayers; ++l)
+        {
+            weights[l] = new float[(layerSizes[l] + 1) * layerSizes[l + 1]];
+            buffer.asFloatBuffer().get(weights[l]);
+            buffer.position(buffer.position() + 4 * weights[l].length);
+        }
+
+        return new NeuralNetworkModel(weights, layerSizes);
+    }
+
+    /**
+     * Gets the number of inputs of this model.
+     * @return The number of inputs of this model
+     */
+    @Override
+    public int getNumInputs()
+    {
+        return layerSizes[0];
+    }
+
+    /**
+     * Gets the number of outputs of this model.
+     * @return The number of outputs of this model
+     */
+    @Override
+    public int getNumOutputs()
+    {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * Gets the number of weight layers of this model.
+     * @return The number of weight layers of this model
+     */
+    public int getNumLayers()
+    {
+        return weights.length;
+    }
+
+    /**
+     * Gets the number of inputs of the given layer.
+     * @param layer The layer, where the number of outputs of the model is getLayerSize(getNumLayers())
+     * @return The number of inputs of the layer
+     */
+    public int getLayerSize(int layer)
+    {
+        return layerSizes[layer];
+    }
+
+    /**
+     * Gets a hash of the layer sizes and weights of this model, which is stable across runs, so that a retrained model
+     * can be told apart from the one it replaces.
+     * @return A hash of the layer sizes and weights of this model
+     */
+    public int getWeightsHash()
+    {
+        return 31 * Arrays.hashCode(layerSizes) + Arrays.deepHashCode(weights);
+    }
+
+    /**
+     * Gets the weights of the given layer, row major with a final bias row. The returned array must not be modified.
+     * @param layer The layer
+     * @return The weights of the layer
+     */
+    float[] getWeights(int layer)
+    {
+        return weights[layer];
+    }
+
+    /**
+     * Creates a new Session for evaluating this model.
+     * @param maxBatchSize The largest batch the Session will evaluate
+     * @return A new Session
+     */
+    @Override
+    public Session newSession(int maxBatchSize)
+    {
+        return new Session(maxBatchSize);
+    }
+
+    /**
+     * The logistic activation function.
+     * @param x The input
+     * @return The activation
+     */
+    static float sigmoid(float x)
+    {
+        return (float) (1.0 / (1.0 + Math.exp(-x)));
+    }
+
+    /**
+     * Per caller evaluation state holding preallocated activations. A Session must not be shared between threads.
+     */
+    public final class Session implements InferenceModel.Session
+    {
+        /** The largest batch this Session will evaluate. */
+        public final int MAX_BATCH_SIZE;
+
+        // The activations of each layer, row major with one row per batch entry
+        private final float[][] activations;
+
+        /**
+         * Creates a Session.
+         * @param maxBatchSize The largest batch the Session will evaluate
+         */
+        private Session(int maxBatchSize)
+        {
+            if (maxBatchSize <= 0)
+                throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+
+            MAX_BATCH_SIZE = maxBatchSize;
+            activations = new float[layerSizes.length][];
+
+            for (int l = 0; l < layerSizes.length; ++l)
+                activations[l] = new float[maxBatchSize * layerSizes[l]];
+        }
+
+        /**
+         * Gets the input buffer of this Session, into which batch entry b's inputs are written starting at
+         * b * getNumInputs().
+         * @return The input buffer of this Session
+         */
+        @Override
+        public float[] getInputs()
+        {
+            return activations[0];
+        }
+
+        /**
+         * Evaluates the first batchSize entries of the input buffer.
+         * @param batchSize The number of entries to evaluate
+         * @return The output buffer of this Session, in which batch entry b's outputs begin at b * getNumOutputs().
+         * The buffer is overwritten by the next evaluation
+         */
+        @Override
+        public float[] evaluate(int batchSize)
+        {
+            if (batchSize > MAX_BATCH_SIZE)
+                throw new IllegalArgumentException("Batch of " + batchSize + " exceeds session limit of " + MAX_BATCH_SIZE);
+
+            float[] in, out, w;
+            int numIn, numOut, inRow, outRow, biasRow;
+            float sum;
+
+            for (int l = 0; l < weights.length; ++l)
+            {
+                in = activations[l];
+                out = activations[l + 1];
+                w = weights[l];
+                numIn = layerSizes[l];
+                numOut = layerSizes[l + 1];
+                biasRow = numIn * numOut;
+
+                for (int b = 0; b < batchSize; ++b)
+                {
+                    inRow = b * numIn;
+                    outRow = b * numOut;
+
+                    for (int j = 0; j < numOut; ++j)
+                    {
+                        sum = w[biasRow + j];
+
+                        for (int i = 0; i < numIn; ++i)
+                            sum += in[inRow + i] * w[i * numOut + j];
+
+                        out[outRow + j] = sigmoid(sum);
+                    }
+                }
+            }
+
+            return activations[activations.length - 1];
+        }
+
+        /**
+         * Evaluates a single input vector.
+         * @param input The inputs, of getNumInputs() entries
+         * @return A new array containing the outputs
+         */
+        @Override
+        public float[] evaluate(float[] input)
+        {
+            if (input.length != layerSizes[0])
+                throw new IllegalArgumentException("Expected " + layerSizes[0] + " inputs, got " + input.length);
+
+            System.arraycopy(input, 0, activations[0], 0, input.length);
+
+            float[] output = new float[getNumOutputs()];
+            System.arraycopy(evaluate(1), 0, output, 0, output.length);
+
+            return output;
+        }
+    }
+}
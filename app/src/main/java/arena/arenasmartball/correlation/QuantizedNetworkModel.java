@@ -0,0 +1,304 @@
+package arena.arenasmartball.correlation;
+
+/**
+ * Fixed point version of a {@link NeuralNetworkModel}. Weights are quantized to 8 or 16 bit integers with a single
+ * scale per layer, activations are carried as Q15 integers, and the sigmoid is read from a lookup table, so that the
+ * multiply accumulate work of evaluation is done in integer arithmetic. Inputs to the first layer are quantized to
+ * 16 bits with a scale chosen per batch entry, since features span very different ranges.
+ */
+public class QuantizedNetworkModel implements InferenceModel
+{
+    /**
+     * The precision of quantized weights.
+     */
+    public enum Precision
+    {
+        INT8(Byte.MAX_VALUE),
+        INT16(Short.MAX_VALUE);
+
+        /** The largest quantized weight magnitude. */
+        public final int MAX;
+
+        Precision(int max)
+        {
+            MAX = max;
+        }
+    }
+
+    // The Q15 representation of one
+    private static final int ONE = Short.MAX_VALUE;
+
+    // The sigmoid lookup table covers pre-activations in [-LUT_RANGE, LUT_RANGE]
+    private static final float LUT_RANGE = 8.0f;
+
+    // The number of lookup table entries per unit of pre-activation
+    private static final float LUT_STEPS_PER_UNIT = 256.0f;
+
+    // The sigmoid lookup table, in Q15
+    private static final short[] SIGMOID_LUT;
+
+    static
+    {
+        SIGMOID_LUT = new short[(int) (2 * LUT_RANGE * LUT_STEPS_PER_UNIT) + 1];
+
+        for (int i = 0; i < SIGMOID_LUT.length; ++i)
+            SIGMOID_LUT[i] = (short) Math.round(ONE * NeuralNetworkModel.sigmoid(i / LUT_STEPS_PER_UNIT - LUT_RANGE));
+    }
+
+    /** The precision of the quantized weights. */
+    public final Precision PRECISION;
+
+    // The quantized weights of each layer, excluding the bias row, when PRECISION is INT8
+    private final byte[][] weights8;
+
+    // The quantized weights of each layer, excluding the bias row, when PRECISION is INT16
+    private final short[][] weights16;
+
+    // The scale of the quantized weights of each layer
+    private final float[] weightScales;
+
+    // The biases of each layer, added once per node when requantizing
+    private final float[][] biases;
+
+    // The number of inputs to each layer, the number of outputs of layer i being layerSizes[i + 1]
+    private final int[] layerSizes;
+
+    /**
+     * Quantizes the given model.
+     * @param model The floating point model
+     * @param precision The precision of the quantized weights
+     */
+    public QuantizedNetworkModel(NeuralNetworkModel model, Precision precision)
+    {
+        final int numLayers = model.getNumLayers();
+
+        PRECISION = precision;
+        layerSizes = new int[numLayers + 1];
+        weightScales = new float[numLayers];
+        biases = new float[numLayers][];
+        weights8 = precision == Precision.INT8 ? new byte[numLayers][] : null;
+        weights16 = precision == Precision.INT16 ? new short[numLayers][] : null;
+
+        for (int l = 0; l <= numLayers; ++l)
+            layerSizes[l] = model.getLayerSize(l);
+
+        float[] w;
+        float maxAbs;
+        int numWeights, q;
+
+        for (int l = 0; l < numLayers; ++l)
+        {
+            w = model.getWeights(l);
+            numWeights = layerSizes[l] * layerSizes[l + 1];
+
+            // The bias row is kept in floating point
+            biases[l] = new float[layerSizes[l + 1]];
+            System.arraycopy(w, numWeights, biases[l], 0, biases[l].length);
+
+            maxAbs = 0.0f;
+            for (int i = 0; i < numWeights; ++i)
+                maxAbs = Math.max(maxAbs, Math.abs(w[i]));
+
+            weightScales[l] = maxAbs > 0.0f ? maxAbs / precision.MAX : 1.0f;
+
+            if (precision == Precision.INT8)
+                weights8[l] = new byte[numWeights];
+            else
+                weights16[l] = new short[numWeights];
+
+            for (int i = 0; i < numWeights; ++i)
+            {
+                q = Math.round(w[i] / weightScales[l]);
+
+                if (precision == Precision.INT8)
+                    weights8[l][i] = (byte) q;
+                else
+                    weights16[l][i] = (short) q;
+            }
+        }
+    }
+
+    @Override
+    public int getNumInputs()
+    {
+        return layerSizes[0];
+    }
+
+    @Override
+    public int getNumOutputs()
+    {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    @Override
+    public Session newSession(int maxBatchSize)
+    {
+        return new Session(maxBatchSize);
+    }
+
+    /*
+     * Reads the sigmoid of the given pre-activation from the lookup table, in Q15.
+     */
+    private static short sigmoid(float x)
+    {
+        if (x <= -LUT_RANGE)
+            return SIGMOID_LUT[0];
+        if (x >= LUT_RANGE)
+            return SIGMOID_LUT[SIGMOID_LUT.length - 1];
+
+        return SIGMOID_LUT[(int) ((x + LUT_RANGE) * LUT_STEPS_PER_UNIT + 0.5f)];
+    }
+
+    /**
+     * Per caller evaluation state holding preallocated fixed point activations. A Session must not be shared between
+     * threads.
+     */
+    public final class Session implements InferenceModel.Session
+    {
+        /** The largest batch this Session will evaluate. */
+        public final int MAX_BATCH_SIZE;
+
+        // The floating point inputs
+        private final float[] inputs;
+
+        // The fixed point activations of each layer, row major with one row per batch entry
+        private final short[][] activations;
+
+        // The scale of the inputs of each batch entry
+        private final float[] inputScales;
+
+        // The floating point outputs
+        private final float[] outputs;
+
+        /**
+         * Creates a Session.
+         * @param maxBatchSize The largest batch the Session will evaluate
+         */
+        private Session(int maxBatchSize)
+        {
+            if (maxBatchSize <= 0)
+                throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+
+            MAX_BATCH_SIZE = maxBatchSize;
+            inputs = new float[maxBatchSize * layerSizes[0]];
+            inputScales = new float[maxBatchSize];
+            outputs = new float[maxBatchSize * layerSizes[layerSizes.length - 1]];
+            activations = new short[layerSizes.length][];
+
+            for (int l = 0; l < layerSizes.length; ++l)
+                activations[l] = new short[maxBatchSize * layerSizes[l]];
+        }
+
+        @Override
+        public float[] getInputs()
+        {
+            return inputs;
+        }
+
+        @Override
+        public float[] evaluate(int batchSize)
+        {
+            if (batchSize > MAX_BATCH_SIZE)
+                throw new IllegalArgumentException("Batch of " + batchSize + " exceeds session limit of " + MAX_BATCH_SIZE);
+
+            quantizeInputs(batchSize);
+
+            short[] in, out;
+            int numIn, numOut, inRow, outRow;
+            float accScale;
+
+            for (int l = 0; l < biases.length; ++l)
+            {
+                in = activations[l];
+                out = activations[l + 1];
+                numIn = layerSizes[l];
+                numOut = layerSizes[l + 1];
+
+                for (int b = 0; b < batchSize; ++b)
+                {
+                    inRow = b * numIn;
+                    outRow = b * numOut;
+                    accScale = (l == 0 ? inputScales[b] : 1.0f / ONE) * weightScales[l];
+
+                    for (int j = 0; j < numOut; ++j)
+                        out[outRow + j] = sigmoid(accumulate(l, in, inRow, numIn, numOut, j) * accScale + biases[l][j]);
+                }
+            }
+
+            short[] last = activations[activations.length - 1];
+            final int numOutputs = batchSize * getNumOutputs();
+
+            for (int i = 0; i < numOutputs; ++i)
+                outputs[i] = last[i] / (float) ONE;
+
+            return outputs;
+        }
+
+        @Override
+        public float[] evaluate(float[] input)
+        {
+            if (input.length != layerSizes[0])
+                throw new IllegalArgumentException("Expected " + layerSizes[0] + " inputs, got " + input.length);
+
+            System.arraycopy(input, 0, inputs, 0, input.length);
+
+            float[] output = new float[getNumOutputs()];
+            System.arraycopy(evaluate(1), 0, output, 0, output.length);
+
+            return output;
+        }
+
+        /*
+         * Quantizes the floating point inputs of each batch entry to 16 bits, with a scale per entry.
+         */
+        private void quantizeInputs(int batchSize)
+        {
+            final int numIn = layerSizes[0];
+            short[] quantized = activations[0];
+            float maxAbs;
+            int row;
+
+            for (int b = 0; b < batchSize; ++b)
+            {
+                row = b * numIn;
+                maxAbs = 0.0f;
+
+                for (int i = 0; i < numIn; ++i)
+                    maxAbs = Math.max(maxAbs, Math.abs(inputs[row + i]));
+
+                inputScales[b] = maxAbs > 0.0f && !Float.isInfinite(maxAbs) ? maxAbs / ONE : 1.0f;
+
+                for (int i = 0; i < numIn; ++i)
+                    quantized[row + i] = (short) Math.round(inputs[row + i] / inputScales[b]);
+            }
+        }
+
+        /*
+         * Accumulates the integer dot product of a row of inputs with a column of the weights of the given layer.
+         */
+        private long accumulate(int layer, short[] in, int inRow, int numIn, int numOut, int column)
+        {
+            if (weights8 != null)
+            {
+                // 16 x 8 bit products of up to 2^22 fit many times over in an int
+                byte[] w = weights8[layer];
+                int sum = 0;
+
+                for (int i = 0; i < numIn; ++i)
+                    sum += in[inRow + i] * w[i * numOut + column];
+
+                return sum;
+            }
+            else
+            {
+                short[] w = weights16[layer];
+                long sum = 0;
+
+                for (int i = 0; i < numIn; ++i)
+                    sum += in[inRow + i] * w[i * numOut + column];
+
+                return sum;
+            }
+        }
+    }
+}
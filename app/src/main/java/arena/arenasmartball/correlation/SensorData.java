@@ -15,6 +15,9 @@ public class SensorData
 	/** The data in the frequency domain */
 	private DFT frequencySeries;
 	
+	/** The optional SpectralStage used to calculate frequency series, null to transform at the natural length */
+	private static volatile SpectralStage spectralStage;
+	
 	/**
 	 * Creates a new SensorData.
 	 * @param timeSeries The data times series
@@ -33,6 +36,24 @@ public class SensorData
 		this.timeSeries = timeSeries;
 	}
 	
+	/**
+	 * Sets the SpectralStage used to calculate frequency series.
+	 * @param stage The SpectralStage to use, or null to transform each series at its natural length
+	 */
+	public static void setSpectralStage(SpectralStage stage)
+	{
+		spectralStage = stage;
+	}
+	
+	/**
+	 * Gets the SpectralStage used to calculate frequency series.
+	 * @return The SpectralStage in use, or null if series are transformed at their natural length
+	 */
+	public static SpectralStage getSpectralStage()
+	{
+		return spectralStage;
+	}
+	
 	/**
 	 * Converts a List of Doubles to an array of doubles.
 	 * @param values The List to convert
@@ -140,7 +161,10 @@ public class SensorData
 	public DFT frequencySeries()
 	{
 		if (frequencySeries == null) 
-			frequencySeries = new DFT(timeSeries);
+		{
+			SpectralStage stage = spectralStage;
+			frequencySeries = stage == null ? new DFT(timeSeries): stage.transform(timeSeries);
+		}
 		
 		return frequencySeries;
 	}
@@ -0,0 +1,168 @@
+package arena.arenasmartball.correlation;
+
+import android.util.Log;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * Optional spectral stage that transforms time series at a single, fixed power of two length. Each series is windowed
+ * with a Hann window and either zero padded or resampled to the configured length, so that the FFT plan and window
+ * table are computed once and spectral features are comparable across regions of different lengths. Series longer than
+ * the configured length are low-pass filtered as they are decimated, so that frequencies above the new Nyquist
+ * frequency do not alias into the spectrum.
+ */
+public class SpectralStage
+{
+	// The tag for this class
+	private static final String TAG = "SpectralStage";
+
+	/**
+	 * How series shorter than the configured length are fit to it. Longer series are always decimated.
+	 */
+	public enum Mode
+	{
+		/** Shorter series are windowed over their own length and padded with zeros. */
+		ZERO_PAD,
+
+		/** Shorter series are upsampled to the configured length by linear interpolation and then windowed. */
+		RESAMPLE
+	}
+
+	/** The length of every transform performed by this SpectralStage, a power of two. */
+	public final int LENGTH;
+
+	/** How series shorter than LENGTH are handled. */
+	public final Mode MODE;
+
+	/** The precomputed Hann window table, of LENGTH entries. */
+	private final double[] window;
+
+	/** The precomputed FFT plan. */
+	private final DoubleFFT_1D plan;
+
+	/** Per thread working buffers, of 2 * LENGTH entries. */
+	private final ThreadLocal<double[]> buffers;
+
+	/**
+	 * Creates a new SpectralStage.
+	 * @param length The length of every transform, must be a power of two
+	 * @param mode How series shorter than the length are handled
+	 */
+	public SpectralStage(int length, Mode mode)
+	{
+		if (length < 2 || (length & (length - 1)) != 0)
+			throw new IllegalArgumentException("SpectralStage length must be a power of two: " + length);
+
+		LENGTH = length;
+		MODE = mode;
+
+		window = new double[length];
+
+		for (int i = 0; i < length; ++i)
+			window[i] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (length - 1));
+
+		plan = new DoubleFFT_1D(length);
+
+		buffers = new ThreadLocal<double[]>()
+		{
+			@Override
+			protected double[] initialValue()
+			{
+				return new double[LENGTH * 2];
+			}
+		};
+	}
+
+	/**
+	 * Gets an identifier for the configuration of this SpectralStage, for use in versioning computed features.
+	 * @return An identifier for the configuration of this SpectralStage
+	 */
+	public int getId()
+	{
+		return LENGTH * Mode.values().length + MODE.ordinal();
+	}
+
+	/**
+	 * Calculates the DFT of the given time series at the length of this SpectralStage.
+	 * @param timeSeries The time series
+	 * @return The DFT of the windowed, fitted time series
+	 */
+	public DFT transform(double[] timeSeries)
+	{
+		double[] fft = buffers.get();
+		final int n = timeSeries.length;
+
+		if (n <= 0)
+		{
+			Log.w(TAG, "Error creating DFT because the time series is empty");
+			return new DFT(new double[0]);
+		}
+
+		if (n == LENGTH)
+		{
+			for (int i = 0; i < LENGTH; ++i)
+				fft[i] = timeSeries[i] * window[i];
+		}
+		else if (n < LENGTH && MODE == Mode.ZERO_PAD)
+		{
+			// Window over the length of the series, interpolating the window table, then pad
+			final double step = n > 1 ? (double) (LENGTH - 1) / (n - 1) : 0.0;
+
+			for (int i = 0; i < n; ++i)
+				fft[i] = timeSeries[i] * interpolate(window, i * step);
+
+			for (int i = n; i < LENGTH; ++i)
+				fft[i] = 0.0;
+		}
+		else if (n < LENGTH)
+		{
+			// Upsample the series to the length of this stage, then window
+			final double step = n > 1 ? (double) (n - 1) / (LENGTH - 1) : 0.0;
+
+			for (int i = 0; i < LENGTH; ++i)
+				fft[i] = interpolate(timeSeries, i * step) * window[i];
+		}
+		else
+		{
+			// Decimate the series to the length of this stage, averaging the samples around each point, then window
+			final double step = (double) (n - 1) / (LENGTH - 1);
+
+			for (int i = 0; i < LENGTH; ++i)
+				fft[i] = average(timeSeries, i * step, step / 2.0) * window[i];
+		}
+
+		plan.realForwardFull(fft);
+
+		return new DFT(fft, LENGTH);
+	}
+
+	/*
+	 * Averages the entries of the given table within the given radius of the given fractional index, a moving average
+	 * attenuating the frequencies which would alias when the table is sampled every 2 * radius entries.
+	 */
+	private static double average(double[] table, double index, double radius)
+	{
+		int first = Math.max(0, (int) Math.ceil(index - radius));
+		int last = Math.min(table.length - 1, (int) Math.floor(index + radius));
+		double sum = 0.0;
+
+		for (int i = first; i <= last; ++i)
+			sum += table[i];
+
+		return sum / (last - first + 1);
+	}
+
+	/*
+	 * Linearly interpolates the given table at the given fractional index.
+	 */
+	private static double interpolate(double[] table, double index)
+	{
+		int i = (int) index;
+
+		if (i >= table.length - 1)
+			return table[table.length - 1];
+
+		double t = index - i;
+		return table[i] * (1.0 - t) + table[i + 1] * t;
+	}
+}
@@ -71,6 +71,25 @@ public class DataDecompressor
 //		}
 //	}
 
+    /**
+     * Restarts decompression at a sample, as at the start of a transmitted range whose first sample is absolute.
+     * @param firstSample The index of the next Sample decompressed
+     */
+    public void reset(int firstSample)
+    {
+        numSamplesCreated = firstSample;
+        previousSample = new Sample();
+    }
+
+    /**
+     * Gets the index of the next Sample decompressed.
+     * @return The number of Samples decompressed, counting from the first sample of the transmission
+     */
+    public int getNumSamplesCreated()
+    {
+        return numSamplesCreated;
+    }
+
     /**
      * Adds a line of compressed data to this DataDecompressor.
      */
@@ -8,20 +8,27 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Locale;
 
+import arena.arenasmartball.ball.GattCommandUtils;
 import arena.arenasmartball.ball.SmartBall;
+import arena.arenasmartball.ball.SmartBallProtocol;
 import arena.arenasmartball.correlation.Correlator;
 
 import static arena.arenasmartball.data.ImpactRegionExtractor.*;
 
 /**
- * Class representing a SmartBall impact.
+ * Class representing a SmartBall impact. Samples lost from a transmission, to a gap in its line sequence, to a
+ * cancellation or to a lost connection, are downloaded again as a range and spliced into the ImpactData, rather than
+ * starting over.
  * Created by Theodore on 4/16/2016.
  */
-public class Impact implements SmartBall.DataListener
+public class Impact implements SmartBall.ResumableDataListener
 {
     // The tag for this class
     private static final String TAG = "Impact";
 
+    // The number of times samples lost to gaps are downloaded again before giving up
+    private static final int MAX_REFETCHES = 3;
+
     // Whether or not this Impact was cancelled
     private boolean wasCancelled;
 
@@ -46,6 +53,21 @@ public class Impact implements SmartBall.DataListener
     // The ImpactData of this Impact
     private ImpactData impactData;
 
+    // The number of samples in the transmission in progress
+    private int transmissionSamples;
+
+    // The first sample of the range requested again by this Impact, or -1 if none is outstanding
+    private int refetchFirstSample = -1;
+
+    // Whether the start frame of the transmission in progress has been received into the ImpactData
+    private boolean receivingRange;
+
+    // The number of times lost samples have been downloaded again
+    private int numRefetches;
+
+    // Whether the SmartBall has been found to ignore the first sample of ranged requests
+    private boolean rangesUnsupported;
+
 //    // The type 1 data of this Impact
 //    private TypeOneData typeOneData;
 //
@@ -116,6 +138,47 @@ public class Impact implements SmartBall.DataListener
 //        return complete;
     }
 
+    /**
+     * Gets the index of the first sample of this Impact missing after a lost line or a cancelled transmission.
+     * @return The index of the first missing sample, or -1 if no requested sample is missing
+     */
+    public int getFirstMissingSample()
+    {
+        if (impactData == null || impactData.NUM_SAMPLES_REQUESTED < 0)
+            return -1;
+        else if (impactData.getFirstLostSample() >= 0)
+            return impactData.getFirstLostSample();
+        else if (impactData.getNumSamples() < impactData.NUM_SAMPLES_REQUESTED)
+            return impactData.getNumSamples();
+        else
+            return -1;
+    }
+
+    /**
+     * Requests the samples of this Impact from the first missing sample to the number originally requested. The range
+     * is spliced into the ImpactData as it is received. If the SmartBall has ignored the first sample of an earlier
+     * range, every sample is requested again instead.
+     * @param ball The SmartBall that recorded this Impact
+     * @return Whether any samples were missing and have been requested
+     */
+    public boolean requestMissingSamples(SmartBall ball)
+    {
+        int firstSample = getFirstMissingSample();
+
+        if (firstSample < 0)
+            return false;
+        else if (rangesUnsupported)
+            firstSample = 0;
+
+        Log.d(TAG, "Requesting samples " + firstSample + " to " + impactData.NUM_SAMPLES_REQUESTED + " again");
+
+        refetchFirstSample = firstSample;
+        isReading = true;
+        GattCommandUtils.executeDataTransmitCommandSequence(ball, firstSample,
+                impactData.NUM_SAMPLES_REQUESTED - firstSample, 2, null);
+        return true;
+    }
+
     /**
      * Gets the time of this Impact, in milliseconds from Jan 1, 1970.
      * @return The time of this Impact, in milliseconds from Jan 1, 1970
@@ -125,6 +188,15 @@ public class Impact implements SmartBall.DataListener
         return time;
     }
 
+    /**
+     * Gets the name of the SmartBall that recorded this Impact, may be null.
+     * @return The name of the SmartBall that recorded this Impact, may be null
+     */
+    public String getBallName()
+    {
+        return ballName;
+    }
+
     /**
      * Gets the ImpactData of this Impact, may be null.
      * @return The ImpactData of this Impact, may be null
@@ -198,9 +270,11 @@ public class Impact implements SmartBall.DataListener
         }
 
         // Otherwise add the new line to the ImpactData if it is non-null
-        if (impactData == null)
+        if (start)
+            beginTransmission(SmartBallProtocol.getStartFrameFirstSample(data));
+        else if (impactData == null)
             Log.w(TAG, "Reading data but ImpactData is null");
-        else if (!start && !end)
+        else if (!end)
             impactData.addLine(data);
 
 //        lastDataTypeRead = type;
@@ -231,9 +305,9 @@ public class Impact implements SmartBall.DataListener
             // Set the ball name
             ballName = ball.DEVICE.getName();
 
-            // Create a new ImpactData object to hold the data
+            // The ImpactData to hold the data is chosen once the start frame gives the first sample
             if (dataType == 2)
-                impactData = new ImpactData(numSamples);
+                transmissionSamples = numSamples;
             else
                 Log.w(TAG, "Data Transmission begun with a data type other than 2: " + dataType);
 
@@ -245,6 +319,19 @@ public class Impact implements SmartBall.DataListener
         else if (event == SmartBall.DataEvent.TRANSMISSION_ENDED)
         {
             isReading = false;
+            receivingRange = false;
+
+            if (impactData != null && impactData.getFirstLostSample() >= 0)
+            {
+                if (numRefetches < MAX_REFETCHES)
+                {
+                    ++numRefetches;
+                    requestMissingSamples(ball);
+                }
+                else
+                    Log.w(TAG, "Samples from " + impactData.getFirstLostSample() + " lost after " + numRefetches +
+                            " downloads");
+            }
 
 //            classifyImpacts();
 
@@ -282,7 +369,69 @@ public class Impact implements SmartBall.DataListener
 
             isReading = false;
             wasCancelled = true;
+            receivingRange = false;
+            refetchFirstSample = -1;
+        }
+    }
+
+    /**
+     * Called once reconnected, before a transmission interrupted by the lost connection is requested again. The
+     * samples received before the connection was lost are kept, and the range requested again is spliced in after
+     * them. At least the last sample is requested, so that the transmission ends normally.
+     * @param ball The SmartBall
+     * @param firstSample The first sample of the interrupted transmission
+     * @param numSamples The number of samples of the interrupted transmission
+     * @return The first sample missing from the ImpactData
+     */
+    @Override
+    public int getResumeSample(SmartBall ball, int firstSample, int numSamples)
+    {
+        // Without its start frame, the transmission has not been placed in the ImpactData
+        if (!receivingRange || impactData == null || rangesUnsupported)
+            return firstSample;
+
+        int nextSample = impactData.getFirstLostSample() >= 0 ? impactData.getFirstLostSample() :
+                impactData.getNextSample();
+        int resumeSample = Math.max(firstSample, Math.min(nextSample, firstSample + numSamples - 1));
+
+        Log.d(TAG, "Resuming interrupted transmission from sample " + resumeSample);
+
+        refetchFirstSample = resumeSample;
+        receivingRange = false;
+        isReading = true;
+        return resumeSample;
+    }
+
+    /**
+     * Chooses the ImpactData receiving a type 2 transmission: a range requested again by this Impact is spliced into
+     * the existing ImpactData, while any other transmission starts a new one.
+     * @param firstSample The first sample of the transmission, as echoed by its start frame
+     */
+    private void beginTransmission(int firstSample)
+    {
+        if (refetchFirstSample >= 0 && impactData != null && firstSample <= impactData.getNumSamples())
+        {
+            // Firmware ignoring the offset transmits from the first sample
+            if (firstSample != refetchFirstSample)
+            {
+                Log.w(TAG, "Requested samples from " + refetchFirstSample + " but received from " + firstSample);
+                rangesUnsupported = firstSample == 0;
+            }
+
+            impactData.beginRange(firstSample);
         }
+        else
+        {
+            if (firstSample != 0)
+                Log.w(TAG, "Transmission of samples from " + firstSample + " has no earlier samples to join");
+
+            impactData = new ImpactData(transmissionSamples);
+            impactData.beginRange(0);
+            numRefetches = 0;
+        }
+
+        refetchFirstSample = -1;
+        receivingRange = true;
     }
 
     /**
@@ -1,12 +1,17 @@
 package arena.arenasmartball.data;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Scanner;
 
 import arena.arenasmartball.MainActivity;
+import arena.arenasmartball.ball.SmartBallProtocol;
 import arena.arenasmartball.correlation.FeatureExtractor;
 import arena.arenasmartball.correlation.SensorData;
 
@@ -31,6 +36,16 @@ public class ImpactData implements DataDecompressor.DecompressedDataCallback
     private int numSamplesMark;
     private double startTimeMark, startTimeOff;
 
+    // The index of the next Sample replaced by a range being received again, or -1 if Samples are appended
+    private int writePosition;
+
+    // Whether the line sequence of the current range is checked, and the sequence number of its next line or -1
+    private boolean checkSequence;
+    private int nextSequence;
+
+    // The index of the first Sample lost to a gap in the line sequence of the current range, or -1 if none was lost
+    private int firstLostSample;
+
     /**
      * Creates an empty ImpactData.
      * @param numSamplesRequested The number of samples that were requested
@@ -52,6 +67,8 @@ public class ImpactData implements DataDecompressor.DecompressedDataCallback
         dataDecompressor = new DataDecompressor(this);
 
         GLOBAL_TIMES = globalTimes;
+        writePosition = -1;
+        firstLostSample = -1;
     }
 
 //	/**
@@ -123,15 +140,95 @@ public class ImpactData implements DataDecompressor.DecompressedDataCallback
         }
     }
 
+    /**
+     * Begins receiving a transmitted range of samples, replacing the Samples it overlaps and appending the rest. The
+     * sequence numbers of the lines of the range are checked if its first line is numbered 0, and lines following a
+     * gap in the sequence are discarded, since their delta compressed samples cannot be placed.
+     * @param firstSample The index of the first sample of the range, at most the number of Samples
+     */
+    public void beginRange(int firstSample)
+    {
+        if (firstSample < 0 || firstSample > SAMPLES.size())
+            throw new IllegalArgumentException("Range must start within the " + SAMPLES.size() + " samples: " +
+                    firstSample);
+
+        dataDecompressor.reset(firstSample);
+        writePosition = firstSample < SAMPLES.size() ? firstSample : -1;
+        checkSequence = true;
+        nextSequence = -1;
+        firstLostSample = -1;
+    }
+
     /**
      * Adds a line of raw impact data to this ImpactData.
      * @param data The data to add
      */
     public void addLine(byte[] data)
     {
+        if (firstLostSample >= 0)
+            return;
+
+        if (checkSequence)
+        {
+            int sequence = SmartBallProtocol.getLineSequence(data);
+
+            // Lines not numbered from 0 carry no sequence numbers
+            if (nextSequence < 0 && sequence != 0)
+                checkSequence = false;
+            else if (nextSequence >= 0 && sequence != nextSequence)
+            {
+                firstLostSample = dataDecompressor.getNumSamplesCreated();
+                return;
+            }
+            else
+                nextSequence = (sequence + 1) & SmartBallProtocol.LINE_SEQUENCE_MASK;
+        }
+
         dataDecompressor.addLine(data);
     }
 
+    /**
+     * Gets the index of the first sample of the current range lost to a gap in its line sequence.
+     * @return The index of the first lost sample, or -1 if no requested sample was lost
+     */
+    public int getFirstLostSample()
+    {
+        if (NUM_SAMPLES_REQUESTED >= 0 && firstLostSample >= NUM_SAMPLES_REQUESTED)
+            return -1;
+        else
+            return firstLostSample;
+    }
+
+    /**
+     * Gets the index of the next sample of the current range, one past the last sample received in it.
+     * @return The index of the next sample of the current range
+     */
+    public int getNextSample()
+    {
+        return dataDecompressor.getNumSamplesCreated();
+    }
+
+    /**
+     * Discards the Samples after the first numSamples, as when a transmission is to be received again.
+     * @param numSamples The number of Samples to keep
+     */
+    public void truncate(int numSamples)
+    {
+        if (numSamples < 0)
+            throw new IllegalArgumentException("Number of samples must not be negative: " + numSamples);
+
+        while (SAMPLES.size() > numSamples)
+        {
+            SAMPLES.remove(SAMPLES.size() - 1);
+
+            if (GLOBAL_TIMES && numSamplesMark > 0)
+                --numSamplesMark;
+        }
+
+        if (writePosition >= SAMPLES.size())
+            writePosition = -1;
+    }
+
     /**
      * Gets the number of Samples contained in this ImpactData.
      * @return The number of Samples contained in this ImpactData
@@ -206,56 +303,73 @@ public class ImpactData implements DataDecompressor.DecompressedDataCallback
 		return r;
 	}
 	
-//	/**
-//	 * Creates a Data from a comma separated values file.
-//	 * @param file The File from which to read
-//	 * @return The read Data
-//	 */
-//	public static ImpactData readFromCSV(File file, boolean inGs, boolean timesIncluded)
-//	{
-//		ArrayList<Sample> samples = new ArrayList<>();
-//		ImpactData data = new ImpactData(samples);
-//
-//		int off = timesIncluded ? 1: 0;
-//		Sample s;
-//
-//		Scanner scan;
-//		try
-//		{
-//			scan = new Scanner(file);
-//
-//			String str[];
-//
-//			while (scan.hasNextLine())
-//			{
-//				str = scan.nextLine().split(",");
-//
-//				if (inGs)
-//				{
-//					samples.add(s = new Sample(Double.parseDouble(str[off].trim()),
-//							   Double.parseDouble(str[off + 1].trim()),
-//							   Double.parseDouble(str[off + 2].trim())));
-//				}
-//				else
-//				{
-//					samples.add(s = new Sample(Short.parseShort(str[off].trim()),
-//								   Short.parseShort(str[off + 1].trim()),
-//								   Short.parseShort(str[off + 2].trim())));
-//				}
-//
-//				if (timesIncluded)
-//					s.setTime(Double.parseDouble(str[0].trim()));
-//			}
-//
-//			scan.close();
-//		}
-//		catch (FileNotFoundException e)
-//		{
-//			System.err.println("Could not find file " + file + "! (" + e.getMessage() + ")");
-//		}
-//
-//		return data;
-//	}
+	/**
+	 * Creates an ImpactData from a comma separated values file written by toCSVFile().
+	 * @param file The File from which to read
+	 * @param raw Whether the file contains raw sample values rather than values in Gs
+	 * @return The read ImpactData
+	 * @throws IOException If the File could not be read or is malformed
+	 */
+	public static ImpactData fromCSVFile(File file, boolean raw) throws IOException
+	{
+		return fromCSV(new FileReader(file), raw);
+	}
+
+	/**
+	 * Creates an ImpactData from comma separated values written by toCSVFile(). The Reader is closed.
+	 * @param reader The Reader from which to read
+	 * @param raw Whether the values are raw sample values rather than values in Gs
+	 * @return The read ImpactData
+	 * @throws IOException If the values could not be read or are malformed
+	 */
+	public static ImpactData fromCSV(Reader reader, boolean raw) throws IOException
+	{
+		ImpactData data = new ImpactData(-1);
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		String[] str;
+		int lineNum = 0;
+
+		try
+		{
+			while ((line = in.readLine()) != null)
+			{
+				++lineNum;
+				line = line.trim();
+
+				if (line.isEmpty())
+					continue;
+
+				str = line.split(",");
+
+				if (str.length < 4)
+					throw new IOException("Expected 4 values on line " + lineNum + ", found " + str.length);
+
+				if (raw)
+				{
+					data.SAMPLES.add(new Sample(Double.parseDouble(str[0].trim()), Short.parseShort(str[1].trim()),
+							Short.parseShort(str[2].trim()), Short.parseShort(str[3].trim())));
+				}
+				else
+				{
+					data.SAMPLES.add(new Sample(Double.parseDouble(str[0].trim()),
+							(int) Math.round(Double.parseDouble(str[1].trim()) / Sample.SAMPLE_TO_G),
+							(int) Math.round(Double.parseDouble(str[2].trim()) / Sample.SAMPLE_TO_G),
+							(int) Math.round(Double.parseDouble(str[3].trim()) / Sample.SAMPLE_TO_G)));
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Malformed value on line " + lineNum + ": " + e.getMessage());
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return data;
+	}
 
     /**
      * Called when this DecompressedDataCallback has received a new decompressed Sample.
@@ -265,7 +379,18 @@ public class ImpactData implements DataDecompressor.DecompressedDataCallback
     @Override
     public void onNewSample(Sample sample)
     {
-        if (NUM_SAMPLES_REQUESTED < 0 || SAMPLES.size() < NUM_SAMPLES_REQUESTED)
+        if (writePosition >= 0)
+        {
+            // Replace a Sample of a range being received again, keeping its global time stamp
+            if (GLOBAL_TIMES)
+                sample.time = SAMPLES.get(writePosition).time;
+
+            SAMPLES.set(writePosition++, sample);
+
+            if (writePosition == SAMPLES.size())
+                writePosition = -1;
+        }
+        else if (NUM_SAMPLES_REQUESTED < 0 || SAMPLES.size() < NUM_SAMPLES_REQUESTED)
         {
             SAMPLES.add(sample);
 
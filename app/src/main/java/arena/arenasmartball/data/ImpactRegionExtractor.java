@@ -105,6 +105,10 @@ public class ImpactRegionExtractor
             }
 
             region.end += region.getEnd() - region.getStart();
+
+            // Keep the region within the data
+            region.start = Math.max(0, region.getStart());
+            region.end = Math.min(data.size() - 1, region.getEnd());
         }
 
         // Combine overlapping impact regions
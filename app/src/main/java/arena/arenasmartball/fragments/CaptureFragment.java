@@ -1,8 +1,6 @@
 package arena.arenasmartball.fragments;
 
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -19,9 +17,7 @@ import java.util.Arrays;
 import arena.arenasmartball.BluetoothBridge;
 import arena.arenasmartball.DrawerItem;
 import arena.arenasmartball.MainActivity;
-import arena.arenasmartball.PeriodicUpdateThread;
 import arena.arenasmartball.R;
-import arena.arenasmartball.ball.GattCommand;
 import arena.arenasmartball.ball.GattCommandSequence;
 import arena.arenasmartball.ball.GattCommandUtils;
 import arena.arenasmartball.ball.Services;
@@ -50,6 +46,9 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
     // The maximum value of the countdown timer
     private static final long MAX_COUNTDOWN_TIMER_VALUE_MILLIS = 90_000L;
 
+    // The period at which the countdown view is refreshed
+    private static final long COUNTDOWN_TICK_PERIOD = 1000L;
+
     // Reset flag
     private static boolean resetCalled;
 
@@ -72,8 +71,18 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
     private Button resetButton;
     private Button downloadButton;
 
-    // The Thread to read the ball timer
-    private TimerReader timerReader;
+    // Refreshes the countdown view once per tick until the countdown runs out
+    private final Runnable countdownTicker = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            countdownView.setText(getCountdownTimerString());
+
+            if (System.currentTimeMillis() - timeOfImpactRequest < MAX_COUNTDOWN_TIMER_VALUE_MILLIS)
+                countdownView.postDelayed(this, COUNTDOWN_TICK_PERIOD);
+        }
+    };
 
     /**
      * Required empty public constructor.
@@ -102,15 +111,6 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
         resetButton.setOnClickListener(this);
         downloadButton.setOnClickListener(this);
 
-        // Create timer reader
-        if (timerReader != null)
-        {
-            timerReader.kill();
-            timerReader.unblock();
-        }
-        timerReader = new TimerReader();
-        timerReader.start();
-
         return view;
     }
 
@@ -119,11 +119,7 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
     {
         super.onDestroyView();
 
-        if (timerReader != null)
-        {
-            timerReader.kill();
-            timerReader.unblock();
-        }
+        stopCountdown();
 
         if (MainActivity.getBluetoothBridge().getSmartBall() != null)
         {
@@ -139,15 +135,7 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
     @Override
     public void load(@NonNull Bundle bundle)
     {
-        // Create timer reader
-        if (timerReader == null)
-        {
-            timerReader = new TimerReader();
-            timerReader.start();
-        }
-
-        if (timerReader != null)
-            timerReader.unblock();
+        startCountdown();
     }
 
     /**
@@ -157,8 +145,7 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
     @Override
     public void save(@NonNull Bundle bundle)
     {
-        if (timerReader != null)
-            timerReader.block();
+        stopCountdown();
     }
 
     /*
@@ -282,14 +269,11 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
                             GattCommandUtils.executeEndTransmissionCommandSequence(ball, null);
 
                             // Reset the permissions
-                            GattCommand.reset();
+                            ball.getGattState().clear();
 
                             // Re-enable notifies on the KickBit
-                            BluetoothGattCharacteristic characteristic;
-                            BluetoothGattDescriptor descriptor;
-                            characteristic = ball.getCharacteristic(Services.Characteristic.KICK_BIT);
-                            descriptor = SmartBall.getDescriptor(characteristic, "2902");
-                            GattCommand.enableNotifies(ball.CONNECTION.getBluetoothGatt(), characteristic, descriptor);
+                            ball.getGattState().enableNotifications(ball.CONNECTION.getLink(),
+                                    Services.Characteristic.KICK_BIT._UUID);
 
                             getMainActivity().runOnUiThread(new Runnable()
                             {
@@ -343,7 +327,7 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
         {
 //            countdownTimer = MAX_COUNTDOWN_TIMER_VALUE;
             timeOfImpactRequest = System.currentTimeMillis();
-            timerReader.unblock();
+            startCountdown();
             getMainActivity().runOnUiThread(new Runnable()
             {
                 @Override
@@ -359,7 +343,7 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
 //            countdownTimer = 0;
             final boolean timeOut = System.currentTimeMillis() - timeOfImpactRequest >= MAX_COUNTDOWN_TIMER_VALUE_MILLIS;
             ballHit = true;
-            timerReader.block();
+            stopCountdown();
 
             if (!resetCalled)
             {
@@ -435,6 +419,23 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
     public void onBallCharacteristicDiscoveryCompleted(SmartBall ball)
     {    }
 
+    /**
+     * Called when the connection to the SmartBall has been re-established. A capture still waiting for its impact
+     * re-arms the ball, since the queued kick sequence was discarded when the connection was lost.
+     *
+     * @param ball The SmartBall
+     * @param transmissionResumed True if a transmission interrupted by the lost connection has been requested again
+     */
+    @Override
+    public void onBallReconnected(SmartBall ball, boolean transmissionResumed)
+    {
+        if (!ballHit && !resetCalled && !transmissionResumed)
+        {
+            Log.d(TAG, "Re-arming capture after reconnection");
+            GattCommandUtils.executeKickCommandSequence(ball, this);
+        }
+    }
+
     /**
      * Called when the GattCommandSequence experiences some event.
      *
@@ -494,26 +495,6 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
 //        { /* Ignore */ }
 //    }
 
-    /*
-     * Updates the timer view.
-     */
-    private void updateTimerView()
-    {
-        try
-        {
-            getMainActivity().runOnUiThread(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    countdownView.setText(getCountdownTimerString());
-                }
-            });
-        }
-        catch (Exception e)
-        { /* Ignore */ }
-    }
-
 //    /*
 //    * Creates and executes a CommandSequence to read the countdown timer of the ball.
 //    * @param ball The SmartBall whose info to read
@@ -540,55 +521,25 @@ public class CaptureFragment extends SimpleFragment implements View.OnClickListe
 //        ball.addCommandSequenceToQueue(sequence);
 //    }
 
-    /**
-     * Thread for reading the countdown timer.
-     *
-     * Created by Theodore on 4/14/2016.
+    /*
+     * Starts refreshing the countdown view locally once per second. The timeout counter of the ball is not polled,
+     * since its value is not decoded in this tree.
      */
-    public class TimerReader extends PeriodicUpdateThread
+    private void startCountdown()
     {
-//        // The delay for reading the timer
-//        private final int TIMER_READ_DELAY_S = 9;
-//
-//        // The delay to read the timer
-//        private int readTimerDelay;
-
-        /**
-         * Constructor.
-         */
-        public TimerReader()
-        {
-            super(1000L);
-        }
-
-        /**
-         * Called when this Thread is updates.
-         */
-        @Override
-        public void onUpdate()
-        {
-            if (CaptureFragment.this.timerReader != this)
-            {
-                kill();
-                return;
-            }
-
-//            --countdownTimer;
-//
-//            if (countdownTimer < 0)
-//                countdownTimer = 0;
+        if (countdownView == null || timeOfImpactRequest == 0L)
+            return;
 
-            updateTimerView();
-        }
+        countdownView.removeCallbacks(countdownTicker);
+        countdownView.post(countdownTicker);
+    }
 
-//        /**
-//         * Resets the delay timer and blocked status (to unblocked) of this Thread.
-//         */
-//        @Override
-//        public void reset()
-//        {
-//            readTimerDelay = 0;
-//            super.reset();
-//        }
+    /*
+     * Stops refreshing the countdown view.
+     */
+    private void stopCountdown()
+    {
+        if (countdownView != null)
+            countdownView.removeCallbacks(countdownTicker);
     }
 }
@@ -1,5 +1,6 @@
 package arena.arenasmartball.fragments;
 
+import android.bluetooth.le.ScanResult;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.view.LayoutInflater;
@@ -7,12 +8,16 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import java.io.File;
+import java.util.ArrayList;
 
 import arena.arenasmartball.BluetoothBridge;
 import arena.arenasmartball.MainActivity;
 import arena.arenasmartball.R;
+import arena.arenasmartball.Utils;
 import arena.arenasmartball.ball.ContinuousReadController;
 import arena.arenasmartball.ball.GattCommandSequence;
 import arena.arenasmartball.ball.SmartBall;
@@ -31,6 +36,10 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
     private Button startButton;
     private Button clearButton;
     private Button saveButton;
+    private Button sessionsButton;
+
+    // Session stats
+    private TextView sessionsView;
 
     // Progress Bar
     private ProgressBar progressBar;
@@ -44,6 +53,19 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
 
     private static final String KEY_IS_RECORDING = "arena.arenasmartball.fragments.ContinuousReadFragment.isRecording";
 
+    // The period at which the session stats are refreshed
+    private static final long SESSION_STATS_PERIOD = 1000L;
+
+    // Refreshes the session stats while any session is open
+    private final Runnable sessionStatsUpdater = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            setSessionValues(MainActivity.getBluetoothBridge());
+        }
+    };
+
     /**
      * Required empty Constructor.
      */
@@ -61,6 +83,8 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
         startButton = (Button) view.findViewById(R.id.button_contread_start_stop);
         clearButton = (Button) view.findViewById(R.id.button_contread_clear);
         saveButton = (Button) view.findViewById(R.id.button_contread_save);
+        sessionsButton = (Button) view.findViewById(R.id.button_contread_sessions);
+        sessionsView = (TextView) view.findViewById(R.id.textview_contread_sessions);
         progressBar = (ProgressBar) view.findViewById(R.id.progressbar_download);
         dataView = (DataView) view.findViewById(R.id.dataview_dataview);
 
@@ -76,6 +100,7 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
         startButton.setOnClickListener(this);
         clearButton.setOnClickListener(this);
         saveButton.setOnClickListener(this);
+        sessionsButton.setOnClickListener(this);
 
         // Set the CRC
         if (crc == null)
@@ -90,6 +115,14 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
         return view;
     }
 
+    @Override
+    public void onDestroyView()
+    {
+        super.onDestroyView();
+
+        sessionsView.removeCallbacks(sessionStatsUpdater);
+    }
+
     /**
      * Load any saved instance state here.
      * @param bundle The Bundle from which to load
@@ -126,6 +159,10 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
         {
             crc.save();
         }
+        else if (v.getId() == R.id.button_contread_sessions)
+        {
+            toggleSessions(MainActivity.getBluetoothBridge());
+        }
 
         setValuesForCurrentState(MainActivity.getBluetoothBridge());
     }
@@ -135,6 +172,8 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
      */
     private void setValuesForCurrentState(BluetoothBridge bridge)
     {
+        setSessionValues(bridge);
+
         if (bridge.getSmartBallConnection() == null || bridge.getState() != BluetoothBridge.State.CONNECTED)
             setValuesForNoConnection();
         else
@@ -168,6 +207,57 @@ public class ContinuousReadFragment extends SimpleFragment implements View.OnCli
         }
     }
 
+    /*
+     * Sets the values of the session views, refreshing them again after SESSION_STATS_PERIOD while any session is
+     * open.
+     */
+    private void setSessionValues(BluetoothBridge bridge)
+    {
+        sessionsView.removeCallbacks(sessionStatsUpdater);
+
+        if (!bridge.hasSessions())
+        {
+            sessionsButton.setText(R.string.record_all);
+            sessionsView.setVisibility(View.GONE);
+        }
+        else
+        {
+            sessionsButton.setText(R.string.close_all);
+            sessionsView.setVisibility(View.VISIBLE);
+            sessionsView.setText(bridge.getSessionManager().getStats());
+            sessionsView.postDelayed(sessionStatsUpdater, SESSION_STATS_PERIOD);
+        }
+    }
+
+    /*
+     * Closes every open session, or if none is open, opens a session with every found SmartBall other than the
+     * connected one so that they record alongside it.
+     */
+    private void toggleSessions(BluetoothBridge bridge)
+    {
+        if (bridge.hasSessions())
+        {
+            bridge.getSessionManager().closeAll();
+            return;
+        }
+
+        SmartBall globalBall = bridge.getSmartBall();
+        int numOpened = 0;
+
+        for (ScanResult result: new ArrayList<>(bridge.getSmartBallScanner().getFoundResults().values()))
+        {
+            if (result.getDevice() == null || (globalBall != null && Utils.areEqual(result.getDevice(),
+                    globalBall.DEVICE)))
+                continue;
+
+            if (bridge.openSession(result) != null)
+                ++numOpened;
+        }
+
+        if (numOpened == 0)
+            Toast.makeText(getMainActivity(), R.string.no_other_balls_found, Toast.LENGTH_SHORT).show();
+    }
+
     /*
      * Sets the values for the views of this Fragment for when there is no connection.
      */
@@ -15,6 +15,7 @@ import android.widget.Toast;
 import java.io.File;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import arena.arenasmartball.BluetoothBridge;
@@ -23,6 +24,8 @@ import arena.arenasmartball.R;
 import arena.arenasmartball.Utils;
 import arena.arenasmartball.ball.GattCommandUtils;
 import arena.arenasmartball.ball.SmartBall;
+import arena.arenasmartball.correlation.ClassificationCache;
+import arena.arenasmartball.correlation.Correlator;
 import arena.arenasmartball.data.Impact;
 import arena.arenasmartball.views.DataView;
 
@@ -31,7 +34,8 @@ import arena.arenasmartball.views.DataView;
  *
  * Created by Theodore on 4/14/2016.
  */
-public class DownloadFragment extends SimpleFragment implements View.OnClickListener, SmartBall.DataListener
+public class DownloadFragment extends SimpleFragment implements View.OnClickListener, SmartBall.DataListener,
+        Correlator.ClassificationListener
 {
     /** The name of the directory in which to save impacts. */
     public static final String DATA_SAVE_DIRECTORY = "SmartBallData";
@@ -180,6 +184,9 @@ public class DownloadFragment extends SimpleFragment implements View.OnClickList
             {
                 statusView.setText(R.string.download_complete);
                 saveButton.setEnabled(true);
+
+                // Classifications of an impact viewed before are served from the cache of the Correlator
+                Correlator.classifyAsync(impact, this);
             }
             else
                 statusView.setText(R.string.no_current_download);
@@ -324,7 +331,12 @@ public class DownloadFragment extends SimpleFragment implements View.OnClickList
         else
         {
             transmissionBegun = false;
-            GattCommandUtils.executeDataTransmitCommandSequence(ball, 1096, 2, null); // TODO, 1096 is max
+            Impact impact = MainActivity.getBluetoothBridge().getLastImpact();
+
+            // A cancelled download resumes from its first missing sample
+            if (impact == null || !impact.wasCancelled() || !impact.requestMissingSamples(ball))
+                GattCommandUtils.executeDataTransmitCommandSequence(ball, GattCommandUtils.MAX_SAMPLES_PER_REQUEST, 2,
+                        null);
         }
     }
 
@@ -405,4 +417,41 @@ public class DownloadFragment extends SimpleFragment implements View.OnClickList
             });
         }
     }
+
+    /**
+     * Called on the background thread of the Correlator when an Impact is classified.
+     *
+     * @param impact          The Impact
+     * @param classifications The Classification of each impact region of the Impact
+     */
+    @Override
+    public void onImpactClassified(final Impact impact, List<ClassificationCache.Classification> classifications)
+    {
+        if (classifications.isEmpty() || getMainActivity() == null)
+            return;
+
+        // hardSoftValue, hitDropValue of the first impact region
+        final double[] result = classifications.get(0).RESULT;
+
+        getMainActivity().runOnUiThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // Ignore stale results and results arriving after this Fragment was detached
+                if (!isAdded() || impact != MainActivity.getBluetoothBridge().getLastImpact() ||
+                        !impact.isComplete())
+                    return;
+
+                boolean hard = result[0] > 0.5;
+                boolean hit = result[1] < 0.5;
+                double hardP = hard ? result[0] : 1.0 - result[0];
+                double hitP = hit ? 1.0 - result[1] : result[1];
+
+                statusView.setText(getString(R.string.download_complete_classified,
+                        getString(hard ? R.string.hard : R.string.soft), getString(hit ? R.string.hit : R.string.drop),
+                        (int) (hardP * hitP * 100.0)));
+            }
+        });
+    }
 }
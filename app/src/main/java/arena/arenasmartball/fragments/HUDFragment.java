@@ -1,8 +1,6 @@
 package arena.arenasmartball.fragments;
 
 import android.app.Fragment;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -13,14 +11,10 @@ import android.widget.TextView;
 
 import arena.arenasmartball.BluetoothBridge;
 import arena.arenasmartball.MainActivity;
-import arena.arenasmartball.PeriodicUpdateThread;
 import arena.arenasmartball.R;
 import arena.arenasmartball.Utils;
-import arena.arenasmartball.ball.GattCommand;
-import arena.arenasmartball.ball.GattCommandSequence;
-import arena.arenasmartball.ball.Services;
-import arena.arenasmartball.ball.SmartBall;
 import arena.arenasmartball.ball.SmartBallConnection;
+import arena.arenasmartball.ball.TelemetryService;
 
 /**
  * Fragment containing the heads up display.
@@ -28,27 +22,17 @@ import arena.arenasmartball.ball.SmartBallConnection;
  */
 public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBridgeStateChangeListener,
         SmartBallConnection.SmartBallConnectionListener,
-        GattCommand.ReadGattCommand.ReadGattCommandCallback,
-        GattCommandSequence.CommandSequenceCallback
+        TelemetryService.Listener
 {
     // The tag for this class
     private static final String TAG = "HUDFragment";
 
-    // The name of the command sequence used to read the SmartBall battery info
-    private static final String READ_BALL_BATTERY_COM_SEQ_NAME = "HUDFragReadBallInfo";
-
 //    // The charging flag bundle id
 //    private static String CHARGING_FLAG_BUNDLE_ID = "HUDFragment.CF";
 //
 //    // The batter level bundle id
 //    private static String BATTERY_LEVEL_BUNDLE_ID = "HUDFragment.BL";
 
-    // Denotes whether or not the ball is charging
-    private static boolean ballIsCharging;
-
-    // Records the battery level of the ball
-    private static double batteryLevel;
-
     // The parent View
     private View view;
 
@@ -71,8 +55,8 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
     // The battery level icon
     private ImageView batteryIcon;
 
-    // Thread to handle periodically updating
-    private StatsUpdater updaterThread;
+    // The TelemetryService subscribed to, or null if none is
+    private TelemetryService telemetryService;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -91,10 +75,6 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
         batteryIcon = (ImageView)view.findViewById(R.id.imageview_hud_battery);
         signalIcon = (ImageView)view.findViewById(R.id.imageview_hud_rssi);
 
-        // Create Thread
-        updaterThread = new StatsUpdater();
-        updaterThread.start();
-
         // Set Default values
         setValuesForCurrentState(MainActivity.getBluetoothBridge());
         MainActivity.getBluetoothBridge().addBluetoothBridgeStateChangeListener(this);
@@ -113,15 +93,14 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
         if (bridge.getSmartBallConnection() != null)
             bridge.getSmartBallConnection().removeSmartBallConnectionListener(this);
 
-        updaterThread.kill();
-        updaterThread = null;
+        unsubscribeTelemetry();
     }
 
     @Override
     public void onPause()
     {
         super.onPause();
-        updaterThread.block();
+        unsubscribeTelemetry();
     }
 
     @Override
@@ -129,9 +108,6 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
     {
         super.onResume();
 
-        if (MainActivity.getBluetoothBridge().getState() == BluetoothBridge.State.CONNECTED)
-            updaterThread.reset();
-
         // Set values
         BluetoothBridge bridge = MainActivity.getBluetoothBridge();
         bridge.addBluetoothBridgeStateChangeListener(this);
@@ -149,76 +125,31 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
     {    }
 
     /**
-     * Called when the rssi has been read.
+     * Called when the rssi has been read. The signal strength is displayed as published by the TelemetryService.
      *
      * @param connection The SmartBallConnection
      * @param rssi       The read rssi (in dbm)
      */
     @Override
     public void onRssiRead(SmartBallConnection connection, int rssi)
-    {
-        final int level = Utils.getRSSISignalStrength(rssi);
-        setRSSIViews(level);
-    }
-
-    /**
-     * Called when the GattCommandSequence experiences some event.
-     *
-     * @param sequence The GattCommandSequence that has experienced the event
-     * @param event    The Event describing the state of the command sequence
-     */
-    @Override
-    public void onCommandSequenceEvent(GattCommandSequence sequence, GattCommandSequence.Event event)
-    {
-        if (sequence.NAME.equals(READ_BALL_BATTERY_COM_SEQ_NAME))
-        {
-            // In the event of failure try to read again
-            if (event == GattCommandSequence.Event.ENDED_EARLY || event == GattCommandSequence.Event.FAILED_TO_BEGIN)
-            {
-                Log.w(TAG, "Error starting command sequence to read ball battery info: " + event);
-            }
-        }
-    }
+    {    }
 
     /**
-     * Called when the requested value is read.
+     * Called when a subscribed telemetry metric has been read.
      *
-     * @param id     The id of the read command which issued this request
-     * @param data   The read data
-     * @param status The status of the callback
+     * @param service The TelemetryService
+     * @param metric  The updated Metric
      */
     @Override
-    public void onCommandRead(String id, byte[] data, int status)
+    public void onTelemetryUpdated(TelemetryService service, TelemetryService.Metric metric)
     {
-        if (status == BluetoothGatt.GATT_FAILURE)
+        if (getActivity() == null)
             return;
 
-        if (id.equals(Services.Characteristic.BATTERY.name()))
-        {
-            byte batteryLevelByte = (data == null || data.length == 0 ? 0 : data[0]);
-            batteryLevel = Math.ceil(0.0085 * batteryLevelByte * batteryLevelByte + 0.143 * batteryLevelByte);
-        }
-        else if (id.equals(Services.Characteristic.CHARGING_STATE.name()))
-        {
-            ballIsCharging = (data[0] > 0 && data[1] == 0);
-        }
-
-        final boolean charging = ballIsCharging;
-        final double level = batteryLevel;
-
-        try
-        {
-            getActivity().runOnUiThread(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    setBatteryViews(level, charging);
-                }
-            });
-        }
-        catch (Exception e)
-        { /* Ignore */ }
+        if (metric == TelemetryService.Metric.RSSI)
+            setRSSIViews(Utils.getRSSISignalStrength(service.getRssi()));
+        else
+            setBatteryViews(service.getBatteryLevel(), service.isCharging());
     }
 
     /**
@@ -234,9 +165,6 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
     {
         // Set values
         setValuesForCurrentState(bridge);
-
-        if (bridge.getState() == BluetoothBridge.State.CONNECTED)
-            updaterThread.reset();
     }
 
     /*
@@ -249,16 +177,16 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
         if (connection == null)
         {
             setValuesForNullConnection();
-            updaterThread.block();
+            unsubscribeTelemetry();
             return;
         }
 
         connection.addSmartBallConnectionListener(this);
 
         if (connection.getConnectionState() == SmartBallConnection.ConnectionState.CONNECTED)
-            updaterThread.unblock();
+            subscribeTelemetry(connection.getTelemetryService());
         else
-            updaterThread.block();
+            unsubscribeTelemetry();
 
         if (getActivity() != null)
             getActivity().runOnUiThread(new Runnable()
@@ -355,95 +283,28 @@ public class HUDFragment extends Fragment implements BluetoothBridge.BluetoothBr
     }
 
     /*
-     * Creates and executes a CommandSequence to read the rssi of the SmartBall.
-     */
-    private void requestReadBallRSSI()
-    {
-        // Read rssi
-        SmartBallConnection connection = MainActivity.getBluetoothBridge().getSmartBallConnection();
-
-        if (connection != null && connection.getBluetoothGatt() != null)
-            connection.getBluetoothGatt().readRemoteRssi();
-    }
-
-    /*
-     * Creates and executes a CommandSequence to read the battery level of the SmartBall.
-     * @param ball The SmartBall whose info to read
+     * Subscribes to the battery and signal strength telemetry of a connection, unsubscribing from any other.
      */
-    private void requestReadBallBattery()
+    private void subscribeTelemetry(TelemetryService service)
     {
-        SmartBall ball = MainActivity.getBluetoothBridge().getSmartBall();
-
-        if (ball == null)
+        if (service == telemetryService)
             return;
 
-        // Create the command sequence
-        GattCommandSequence sequence = new GattCommandSequence(READ_BALL_BATTERY_COM_SEQ_NAME, this);
-
-        // Get the characteristics
-        BluetoothGattCharacteristic battChar = ball.getCharacteristic(Services.Characteristic.BATTERY);
-        BluetoothGattCharacteristic chargeChar = ball.getCharacteristic(Services.Characteristic.CHARGING_STATE);
-
-        // Add the command to read the battery level
-        if (battChar != null)
-            sequence.addCommand(new GattCommand.ReadGattCommand<>
-                (battChar, Services.Characteristic.BATTERY.name(), this));
-
-        // Add the command to read the charging state
-        if (chargeChar != null)
-            sequence.addCommand(new GattCommand.ReadGattCommand<>
-                (chargeChar, Services.Characteristic.CHARGING_STATE.name(), this));
-
-        // Execute the sequence
-        ball.addCommandSequenceToQueue(sequence);
+        unsubscribeTelemetry();
+        telemetryService = service;
+        service.subscribe(this, TelemetryService.Metric.BATTERY, TelemetryService.Metric.CHARGING_STATE,
+                TelemetryService.Metric.RSSI);
     }
 
-    /**
-     * Thread for periodically updating the HUDFragment.
-     *
-     * Created by Theodore on 4/6/2016.
+    /*
+     * Unsubscribes from the telemetry subscribed to, if any.
      */
-    public class StatsUpdater extends PeriodicUpdateThread
+    private void unsubscribeTelemetry()
     {
-        // The delay for reading the battery
-        private final int BATTERY_READ_DELAY_S = 10;
-
-        // The timer for reading the battery level
-        private int batteryReadTimer;
-
-        /**
-         * Constructor.
-         */
-        public StatsUpdater()
-        {
-            super(1000L);
-        }
-
-        /**
-         * Called when this Thread is updates.
-         */
-        @Override
-        public void onUpdate()
-        {
-            // Read battery
-            if (--batteryReadTimer <= 0)
-            {
-                batteryReadTimer = BATTERY_READ_DELAY_S;
-                requestReadBallBattery();
-            }
-
-            // Read rssi
-            requestReadBallRSSI();
-        }
-
-        /**
-         * Resets the delay timer and blocked status (to unblocked) of this Thread.
-         */
-        @Override
-        public void reset()
+        if (telemetryService != null)
         {
-            batteryReadTimer = 0;
-            super.reset();
+            telemetryService.unsubscribe(this);
+            telemetryService = null;
         }
     }
 }
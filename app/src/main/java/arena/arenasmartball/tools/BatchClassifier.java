@@ -0,0 +1,401 @@
+package arena.arenasmartball.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import arena.arenasmartball.correlation.Correlator;
+import arena.arenasmartball.correlation.FeatureExtractor;
+import arena.arenasmartball.correlation.FeatureSet;
+import arena.arenasmartball.correlation.FeatureStore;
+import arena.arenasmartball.correlation.Features;
+import arena.arenasmartball.correlation.QuantizedNetworkModel;
+import arena.arenasmartball.correlation.SpectralStage;
+import arena.arenasmartball.data.ImpactData;
+import arena.arenasmartball.data.ImpactRegionExtractor;
+
+/**
+ * Command line tool that re-classifies saved impacts outside of Android. Streams every SBDATA_*.csv file written by
+ * Impact.save() from a directory tree or a zip archive, runs region extraction, feature extraction and classification
+ * on a pool of threads, and writes one summary row per impact region followed by throughput statistics:
+ * <pre>
+ * java arena.arenasmartball.tools.BatchClassifier [-models dir] [-threads n] [-precision int8|int16] [-out file]
+ *         [-features file] [-spectral n [-spectralmode zero_pad|resample]] input
+ * </pre>
+ * Models are read from the compiled or text models in the given directory, app/src/main/res/raw by default.
+ * With -features, every Feature of every region is also exported to a {@link FeatureStore} for retraining.
+ * With -spectral, spectral features are calculated at the given power of two length through a {@link SpectralStage},
+ * zero padding shorter regions by default; since this changes the features, it is meant for exporting features to
+ * retrain models with.
+ * The classpath must include the module's compile classpath, since data classes implement Android interfaces.
+ */
+public class BatchClassifier
+{
+    // The default directory containing the models
+    private static final String DEFAULT_MODEL_DIR = "app/src/main/res/raw";
+
+    // The number of files queued per worker thread
+    private static final int QUEUE_FILES_PER_THREAD = 4;
+
+    // The pattern of saved impact file names, capturing the ball name and time
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("SBDATA_(.*)_(\\d{8}_\\d{6})\\.csv$");
+
+    // The summary output, shared by all workers
+    private final PrintWriter out;
+
+    // The exported features, or null if features are not exported
+    private final FeatureStore.Writer featureWriter;
+
+    // Statistics
+    private final AtomicLong numFiles, numFailed, numSamples, numRegions, totalFileNanos, maxFileNanos;
+
+    /**
+     * Creates a BatchClassifier.
+     * @param out The PrintWriter to which to write the summary
+     * @param featureWriter The FeatureStore.Writer to which to export features, or null
+     */
+    private BatchClassifier(PrintWriter out, FeatureStore.Writer featureWriter)
+    {
+        this.out = out;
+        this.featureWriter = featureWriter;
+        numFiles = new AtomicLong();
+        numFailed = new AtomicLong();
+        numSamples = new AtomicLong();
+        numRegions = new AtomicLong();
+        totalFileNanos = new AtomicLong();
+        maxFileNanos = new AtomicLong();
+    }
+
+    /**
+     * Gets whether the given file name is that of a saved impact.
+     * @param name The file name
+     * @return Whether the name is that of a saved impact
+     */
+    static boolean isImpactFile(String name)
+    {
+        return name.endsWith(".csv") && name.contains("SBDATA_");
+    }
+
+    /**
+     * Gets whether the given impact file name is that of a file of raw values, rather than values in Gs.
+     * @param name The file name
+     * @return Whether the file contains raw values
+     */
+    static boolean isRawFile(String name)
+    {
+        return name.startsWith("RAW_") || name.startsWith("CONT_RAW_");
+    }
+
+    /**
+     * Exports the features of every region of an impact.
+     * @param baseName The file name of the impact, from which its ball name and time are taken
+     * @param data The ImpactData of the impact
+     * @param regions The impact regions of the data
+     */
+    private void exportFeatures(String baseName, ImpactData data, List<ImpactRegionExtractor.ImpactRegion> regions)
+    {
+        Matcher matcher = FILE_NAME_PATTERN.matcher(baseName);
+        String ballName = baseName;
+        long time = -1L;
+
+        if (matcher.find())
+        {
+            ballName = matcher.group(1);
+
+            try
+            {
+                time = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.ENGLISH).parse(matcher.group(2)).getTime();
+            }
+            catch (ParseException ignore)
+            {   }
+        }
+
+        for (ImpactRegionExtractor.ImpactRegion region: regions)
+            featureWriter.add(ballName, time, region,
+                    FeatureExtractor.getFeatureValues(data.toDataSeriesFeaturable(region), Features.ALL));
+    }
+
+    /**
+     * Classifies a single saved impact and writes its summary rows.
+     * @param name The name of the impact
+     * @param reader The Reader of the impact file, which is closed
+     */
+    private void classify(String name, Reader reader)
+    {
+        long start = System.nanoTime();
+        String baseName = name.substring(name.lastIndexOf('/') + 1);
+
+        try
+        {
+            ImpactData data = ImpactData.fromCSV(reader, isRawFile(baseName));
+            List<ImpactRegionExtractor.ImpactRegion> regions = ImpactRegionExtractor.findImpactRegions(data);
+            ArrayList<FeatureSet> features = new ArrayList<>(regions.size());
+
+            for (ImpactRegionExtractor.ImpactRegion region: regions)
+                features.add(Correlator.extractFeatures(data.toDataSeriesFeaturable(region)));
+
+            double[][] values = Correlator.evaluate(features);
+            StringBuilder rows = new StringBuilder();
+
+            for (int i = 0; i < values.length; ++i)
+            {
+                rows.append(name).append(',').append(data.getNumSamples()).append(',').append(i).append(',')
+                        .append(regions.get(i).getStart()).append(',').append(regions.get(i).getEnd());
+
+                for (double value: values[i])
+                    rows.append(',').append(String.format(Locale.ENGLISH, "%.6f", value));
+
+                rows.append('\n');
+            }
+
+            if (values.length == 0)
+                rows.append(name).append(',').append(data.getNumSamples()).append(",-1,,\n");
+
+            synchronized (out)
+            {
+                out.print(rows);
+            }
+
+            if (featureWriter != null)
+                exportFeatures(baseName, data, regions);
+
+            numSamples.addAndGet(data.getNumSamples());
+            numRegions.addAndGet(regions.size());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            numFailed.incrementAndGet();
+            System.err.println("Error classifying " + name + ": " + e.getMessage());
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long max;
+
+        numFiles.incrementAndGet();
+        totalFileNanos.addAndGet(elapsed);
+
+        while (elapsed > (max = maxFileNanos.get()) && !maxFileNanos.compareAndSet(max, elapsed))
+        {   }
+    }
+
+    /**
+     * Queues every impact file in the given directory tree.
+     * @param executor The executor on which to classify
+     * @param dir The directory
+     */
+    private void submitDirectory(ExecutorService executor, File dir)
+    {
+        File[] files = dir.listFiles();
+
+        if (files == null)
+            return;
+
+        Arrays.sort(files);
+
+        for (final File file: files)
+        {
+            if (file.isDirectory())
+            {
+                submitDirectory(executor, file);
+            }
+            else if (isImpactFile(file.getName()))
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            classify(file.getPath(), new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                        }
+                        catch (IOException e)
+                        {
+                            numFailed.incrementAndGet();
+                            System.err.println("Error reading " + file + ": " + e.getMessage());
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Queues every impact file in the given zip archive.
+     * @param executor The executor on which to classify
+     * @param zip The archive
+     */
+    private void submitArchive(ExecutorService executor, final ZipFile zip)
+    {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+
+        while (entries.hasMoreElements())
+        {
+            final ZipEntry entry = entries.nextElement();
+
+            if (entry.isDirectory() || !isImpactFile(entry.getName().substring(entry.getName().lastIndexOf('/') + 1)))
+                continue;
+
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        classify(entry.getName(), new InputStreamReader(zip.getInputStream(entry), "UTF-8"));
+                    }
+                    catch (IOException e)
+                    {
+                        numFailed.incrementAndGet();
+                        System.err.println("Error reading " + entry.getName() + ": " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the models from the given directory, preferring the compiled models.
+     * @param dir The directory containing the models
+     * @throws IOException If no models could be loaded
+     */
+    private static void loadModels(File dir) throws IOException
+    {
+        File hardSoft = new File(dir, "nn_hardsoft_model.bin");
+        File hitDrop = new File(dir, "nn_hitdrop_model.bin");
+
+        if (hardSoft.isFile() && hitDrop.isFile())
+            Correlator.initializeCompiled(new FileInputStream(hardSoft), new FileInputStream(hitDrop));
+        else
+            Correlator.initialize(new FileInputStream(new File(dir, "nn_hardsoft.txt")),
+                    new FileInputStream(new File(dir, "nn_hitdrop.txt")));
+    }
+
+    /**
+     * Runs the tool.
+     * @param args The command line arguments
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File modelDir = new File(DEFAULT_MODEL_DIR), outFile = null, featureFile = null, input = null;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        QuantizedNetworkModel.Precision precision = null;
+        int spectralLength = 0;
+        SpectralStage.Mode spectralMode = SpectralStage.Mode.ZERO_PAD;
+
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-models") && i + 1 < args.length)
+                modelDir = new File(args[++i]);
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+                numThreads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-precision") && i + 1 < args.length)
+                precision = QuantizedNetworkModel.Precision.valueOf(args[++i].toUpperCase(Locale.ENGLISH));
+            else if (args[i].equals("-out") && i + 1 < args.length)
+                outFile = new File(args[++i]);
+            else if (args[i].equals("-features") && i + 1 < args.length)
+                featureFile = new File(args[++i]);
+            else if (args[i].equals("-spectral") && i + 1 < args.length)
+                spectralLength = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-spectralmode") && i + 1 < args.length)
+                spectralMode = SpectralStage.Mode.valueOf(args[++i].toUpperCase(Locale.ENGLISH));
+            else
+                input = new File(args[i]);
+        }
+
+        if (input == null || !input.exists())
+        {
+            System.err.println("Usage: BatchClassifier [-models dir] [-threads n] [-precision int8|int16] [-out file] " +
+                    "[-features file] [-spectral n [-spectralmode zero_pad|resample]] <directory|archive.zip>");
+            System.exit(1);
+        }
+
+        loadModels(modelDir);
+        Correlator.setPrecision(precision);
+        Correlator.setSpectralLength(spectralLength, spectralMode);
+        Correlator.warmUp();
+
+        PrintWriter out = outFile == null ? new PrintWriter(System.out) : new PrintWriter(outFile, "UTF-8");
+        BatchClassifier classifier = new BatchClassifier(out,
+                featureFile == null ? null : new FeatureStore.Writer(Features.ALL));
+
+        out.print("file,samples,region,start,end");
+        for (String name: Correlator.getRegistry().getOutputNames())
+            out.print("," + name);
+        out.println();
+
+        // Bound the queue so that the input is streamed rather than listed up front
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(numThreads * QUEUE_FILES_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long start = System.nanoTime();
+        ZipFile zip = null;
+
+        try
+        {
+            if (input.isDirectory())
+            {
+                classifier.submitDirectory(executor, input);
+            }
+            else
+            {
+                zip = new ZipFile(input);
+                classifier.submitArchive(executor, zip);
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            if (zip != null)
+                zip.close();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long files = classifier.numFiles.get();
+
+        out.flush();
+        if (outFile != null)
+            out.close();
+
+        System.err.println(String.format(Locale.ENGLISH, "%d files (%d failed), %d samples, %d regions in %.2f s " +
+                "on %d threads", files, classifier.numFailed.get(), classifier.numSamples.get(),
+                classifier.numRegions.get(), seconds, numThreads));
+        System.err.println(String.format(Locale.ENGLISH, "%.1f files/s, %.0f samples/s, %.1f regions/s, " +
+                "mean %.2f ms/file, max %.2f ms/file", files / seconds, classifier.numSamples.get() / seconds,
+                classifier.numRegions.get() / seconds, files == 0 ? 0.0 : classifier.totalFileNanos.get() / 1e6 / files,
+                classifier.maxFileNanos.get() / 1e6));
+
+        if (featureFile != null)
+        {
+            long writeStart = System.nanoTime();
+            classifier.featureWriter.write(featureFile);
+
+            System.err.println(String.format(Locale.ENGLISH, "Exported %d rows of %d features to %s in %.1f ms",
+                    classifier.featureWriter.size(), Features.ALL.length, featureFile,
+                    (System.nanoTime() - writeStart) / 1e6));
+        }
+    }
+}
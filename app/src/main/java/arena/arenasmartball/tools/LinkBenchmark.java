@@ -0,0 +1,425 @@
+package arena.arenasmartball.tools;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arena.arenasmartball.ball.GattCommandSequence;
+import arena.arenasmartball.ball.GattCommandUtils;
+import arena.arenasmartball.ball.SmartBall;
+import arena.arenasmartball.ball.SmartBallConnection;
+import arena.arenasmartball.ball.SmartBallProtocol;
+import arena.arenasmartball.ball.SmartBallSimulator;
+import arena.arenasmartball.ball.TransferSizeController;
+import arena.arenasmartball.data.ImpactData;
+import arena.arenasmartball.data.Sample;
+
+/**
+ * Command line tool measuring continuous reads against a SmartBallSimulator outside of Android. The simulator is
+ * connected to a SmartBallConnection as its SmartBallLink, so every operation goes through the GattCommandExecutor
+ * and the sequences of GattCommandUtils as it does with a ball: arm the kick bit, request the data once kicked, and
+ * re-arm when the transmission ends, abandoning kicks and transmissions which stall once the executor is idle. Each
+ * configuration prints the samples read per second, the time from request to last sample, the time from connection
+ * and from each re-arm until the ball reports it is ready to kick, the sequences which failed and the statistics of
+ * the command executor:
+ * <pre>
+ * java arena.arenasmartball.tools.LinkBenchmark [-seconds s] [-latency ms] [-jitter ms] [-loss p] [-reorder p]
+ *         [-interval ms] [-mtu bytes] [-nopack] [-size n|adaptive] [-target ms] [-writes ack|noresponse]
+ *         [-waveform file.csv]
+ * </pre>
+ * The classpath must hold the android.jar mocked for unit tests, whose methods return default values, since the
+ * connection and its characteristics extend Android classes. Without -size, fixed full size requests are compared
+ * with sizes chosen by a TransferSizeController. Without -writes, a ball acknowledging command field opcodes is
+ * compared with one accepting them without response, which the GattCommandExecutor pipelines.
+ */
+public class LinkBenchmark implements SmartBall.EventListener, SmartBall.DataListener,
+        GattCommandSequence.CommandSequenceCallback
+{
+    // The time without notifications after which a kick or transmission is abandoned, in milliseconds
+    private static final long STALL_TIMEOUT_MS = 250L;
+
+    // The delay between a kick and the data request, in milliseconds, as in ContinuousReadController
+    private static final long REQUEST_DELAY_MS = 10L;
+
+    // The smallest request size when adapting, as in ContinuousReadController
+    private static final int MIN_ADAPTIVE_SAMPLES = 96;
+
+    // The kinds of events of the SmartBall
+    private enum Kind
+    {
+        READY,
+        KICKED,
+        STARTED,
+        LINE,
+        ENDED
+    }
+
+    // An event of the SmartBall, with the time it arrived
+    private static class Event
+    {
+        final Kind kind;
+        final byte[] line;
+        final long nanos;
+
+        Event(Kind kind, byte[] line)
+        {
+            this.kind = kind;
+            this.line = line;
+            nanos = System.nanoTime();
+        }
+    }
+
+    // The events waiting to be handled by the client thread
+    private final LinkedBlockingQueue<Event> events;
+
+    // The connection to the simulated ball
+    private final SmartBallConnection connection;
+
+    // The SmartBall of the connection
+    private final SmartBall ball;
+
+    // The simulated ball
+    private final SmartBallSimulator simulator;
+
+    // Chooses the request size, or null for fixed requests
+    private final TransferSizeController sizeController;
+
+    // The fixed request size
+    private final int fixedSize;
+
+    // Whether the ball accepts command field opcodes written without response
+    private final boolean withoutResponse;
+
+    // The number of command sequences which failed to begin, timed out or ended early
+    private final AtomicInteger numFailedSequences;
+
+    // Transfer state, accessed only by the client thread
+    private boolean kicked, transferEnded;
+    private long readyNanos;
+    private int expectedSequence, requestedSamples, transferSamples;
+
+    // Statistics, accessed only by the client thread
+    private long numTransfers, numSamples, totalLatencyNanos, maxLatencyNanos;
+    private long startupNanos, numRearms, totalRearmNanos, maxRearmNanos;
+    private int numStalls, numGaps;
+
+    /**
+     * Creates a LinkBenchmark.
+     * @param fixedSize The number of samples to request, or 0 to adapt the request size
+     * @param targetLatencyMs The latency target when adapting the request size, in milliseconds
+     * @param withoutResponse Whether the ball accepts command field opcodes written without response
+     */
+    private LinkBenchmark(int fixedSize, double targetLatencyMs, boolean withoutResponse)
+    {
+        events = new LinkedBlockingQueue<>();
+        connection = new SmartBallConnection((BluetoothDevice) null);
+        ball = connection.getSmartBall();
+        simulator = new SmartBallSimulator(connection.getLinkCallback());
+        simulator.setWriteWithoutResponseSupport(withoutResponse);
+        this.fixedSize = fixedSize;
+        this.withoutResponse = withoutResponse;
+        numFailedSequences = new AtomicInteger();
+        sizeController = fixedSize > 0 ? null : new TransferSizeController(MIN_ADAPTIVE_SAMPLES,
+                GattCommandUtils.MAX_SAMPLES_PER_REQUEST, targetLatencyMs);
+    }
+
+    /**
+     * Runs continuous reads for the given time.
+     * @param seconds The time to run, in seconds
+     * @param mtu The largest MTU the ball accepts, or the default MTU to not request one
+     */
+    private void run(double seconds, int mtu) throws InterruptedException
+    {
+        ball.addEventListener(this);
+        ball.addDataListener(this);
+
+        connection.setHighThroughputMode(mtu > SmartBallConnection.DEFAULT_MTU);
+        connection.connect(simulator);
+
+        long connected = System.nanoTime();
+        long start = System.nanoTime(), end = start + (long) (seconds * 1e9);
+
+        while (System.nanoTime() < end)
+        {
+            // Kick sequence
+            kicked = false;
+            readyNanos = 0L;
+
+            long arming = System.nanoTime();
+            GattCommandUtils.executeKickCommandSequence(ball, this);
+
+            if (!await(true))
+            {
+                ++numStalls;
+                continue;
+            }
+
+            // The ready notification may have been lost
+            if (readyNanos > 0L)
+            {
+                if (startupNanos == 0L)
+                    startupNanos = readyNanos - connected;
+
+                ++numRearms;
+                totalRearmNanos += readyNanos - arming;
+                maxRearmNanos = Math.max(maxRearmNanos, readyNanos - arming);
+            }
+
+            Thread.sleep(REQUEST_DELAY_MS);
+
+            // Data request
+            requestedSamples = sizeController != null ? sizeController.nextRequestSize() : fixedSize;
+            transferSamples = 0;
+            transferEnded = false;
+            expectedSequence = 0;
+
+            long requested = System.nanoTime();
+
+            if (sizeController != null)
+                sizeController.onRequestIssued(requested);
+
+            GattCommandUtils.executeDataTransmitCommandSequence(ball, requestedSamples, 2, this);
+
+            if (!await(false))
+            {
+                // The next kick sequence ends the transmission on the ball
+                ball.clearDataTransmitInProgressFlag();
+                ++numStalls;
+                continue;
+            }
+
+            long latency = System.nanoTime() - requested;
+            ++numTransfers;
+            numSamples += transferSamples;
+            totalLatencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%-10s %-10s %6.0f samples/s  %4d transfers  latency mean %6.1f ms max %6.1f ms  " +
+                "startup %5.1f ms  re-arm mean %5.1f ms max %5.1f ms  " +
+                "failed sequences %d  stalls %d  sequence gaps %d",
+                sizeController != null ? "adaptive" : String.valueOf(fixedSize),
+                withoutResponse ? "noresponse" : "ack", numSamples / elapsed, numTransfers,
+                numTransfers == 0 ? 0.0 : totalLatencyNanos / 1e6 / numTransfers, maxLatencyNanos / 1e6,
+                startupNanos / 1e6, numRearms == 0 ? 0.0 : totalRearmNanos / 1e6 / numRearms, maxRearmNanos / 1e6,
+                numFailedSequences.get(), numStalls, numGaps));
+
+        if (sizeController != null)
+            System.out.println("           " + sizeController.getStats());
+
+        System.out.println("           " + ball.getCommandExecutor().getStats());
+        System.out.println("           " + simulator.getStats());
+
+        ball.removeEventListener(this);
+        ball.removeDataListener(this);
+        connection.disconnect();
+        simulator.shutdown();
+    }
+
+    /*
+     * Handles events until kicked, or until the transmission ends, giving up if no event arrives in time once the
+     * command executor has finished the sequences queued, whose lost callbacks it times out and retries itself.
+     */
+    private boolean await(boolean kick) throws InterruptedException
+    {
+        while (!(kick ? kicked : transferEnded))
+        {
+            Event event = events.poll(STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            if (event != null)
+                handle(event);
+            else if (ball.getCommandExecutor().isIdle())
+                return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * Handles an event.
+     */
+    private void handle(Event event)
+    {
+        switch (event.kind)
+        {
+            case READY:
+                if (readyNanos == 0L)
+                    readyNanos = event.nanos;
+                break;
+            case KICKED:
+                kicked = true;
+                break;
+            case STARTED:
+                if (sizeController != null)
+                    sizeController.onTransferStarted(event.nanos);
+                break;
+            case LINE:
+                onLine(event.line);
+                break;
+            case ENDED:
+                transferEnded = true;
+
+                if (sizeController != null)
+                    sizeController.onTransferEnded(event.nanos, transferSamples);
+                break;
+        }
+    }
+
+    /*
+     * Handles a line of a transmission, counting the samples it holds.
+     */
+    private void onLine(byte[] line)
+    {
+        if (transferEnded)
+            return;
+
+        int header = (line[0] & 0xFF) | ((line[1] & 0xFF) << 8);
+
+        if (SmartBallProtocol.getLineSequence(line) != expectedSequence)
+            ++numGaps;
+
+        expectedSequence = (SmartBallProtocol.getLineSequence(line) + 1) & SmartBallProtocol.LINE_SEQUENCE_MASK;
+
+        for (int group = 0; group < 3; ++group)
+            transferSamples += (header & (0x8000 >>> group)) != 0 ? 2 : 1;
+
+        transferSamples = Math.min(transferSamples, requestedSamples);
+    }
+
+    @Override
+    public void onBallKickEvent(SmartBall ball, SmartBall.KickEvent event)
+    {
+        events.add(new Event(event == SmartBall.KickEvent.KICKED ? Kind.KICKED : Kind.READY, null));
+    }
+
+    @Override
+    public void onBallCharacteristicDiscoveryCompleted(SmartBall ball)
+    {    }
+
+    @Override
+    public void onBallReconnected(SmartBall ball, boolean transmissionResumed)
+    {    }
+
+    @Override
+    public void onSmartBallDataRead(SmartBall ball, byte[] data, boolean start, boolean end, byte type)
+    {
+        events.add(new Event(start ? Kind.STARTED : end ? Kind.ENDED : Kind.LINE, data));
+    }
+
+    @Override
+    public void onSmartBallDataTransmissionEvent(SmartBall ball, byte dataType, SmartBall.DataEvent event,
+                                                 int numSamples)
+    {    }
+
+    @Override
+    public void onCommandSequenceEvent(GattCommandSequence sequence, GattCommandSequence.Event event)
+    {
+        if (event == GattCommandSequence.Event.FAILED_TO_BEGIN || event == GattCommandSequence.Event.TIMED_OUT ||
+                event == GattCommandSequence.Event.ENDED_EARLY)
+        {
+            numFailedSequences.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     * @param args The command line arguments
+     */
+    public static void main(String[] args) throws Exception
+    {
+        double seconds = 10.0, latency = 15.0, jitter = 0.0, loss = 0.0, reorder = 0.0, interval = 1.875;
+        double target = 250.0;
+        int mtu = SmartBallConnection.HIGH_THROUGHPUT_MTU, size = -1;
+        boolean pack = true;
+        String writes = null;
+        File waveformFile = null;
+
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-seconds") && i + 1 < args.length)
+                seconds = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-latency") && i + 1 < args.length)
+                latency = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-jitter") && i + 1 < args.length)
+                jitter = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-loss") && i + 1 < args.length)
+                loss = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-reorder") && i + 1 < args.length)
+                reorder = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-interval") && i + 1 < args.length)
+                interval = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-mtu") && i + 1 < args.length)
+                mtu = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-nopack"))
+                pack = false;
+            else if (args[i].equals("-size") && i + 1 < args.length)
+                size = args[++i].equals("adaptive") ? 0 : Integer.parseInt(args[i]);
+            else if (args[i].equals("-target") && i + 1 < args.length)
+                target = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-writes") && i + 1 < args.length &&
+                    (args[i + 1].equals("ack") || args[i + 1].equals("noresponse")))
+                writes = args[++i];
+            else if (args[i].equals("-waveform") && i + 1 < args.length)
+                waveformFile = new File(args[++i]);
+            else
+            {
+                System.err.println("Usage: LinkBenchmark [-seconds s] [-latency ms] [-jitter ms] [-loss p] " +
+                        "[-reorder p] [-interval ms] [-mtu bytes] [-nopack] [-size n|adaptive] [-target ms] " +
+                        "[-writes ack|noresponse] [-waveform file.csv]");
+                System.exit(1);
+            }
+        }
+
+        short[] waveform = null;
+
+        if (waveformFile != null)
+        {
+            ImpactData data = ImpactData.fromCSVFile(waveformFile,
+                    BatchClassifier.isRawFile(waveformFile.getName()));
+            waveform = new short[data.getNumSamples() * 3];
+
+            for (int i = 0; i < data.getNumSamples(); ++i)
+            {
+                Sample sample = data.SAMPLES.get(i);
+                waveform[i * 3] = sample.x;
+                waveform[i * 3 + 1] = sample.y;
+                waveform[i * 3 + 2] = sample.z;
+            }
+        }
+
+        System.out.println(String.format(Locale.ENGLISH, "latency %.1f ms, jitter %.1f ms, loss %.3f, reorder %.3f, " +
+                "packet interval %.3f ms, mtu %d%s", latency, jitter, loss, reorder, interval, mtu,
+                pack ? "" : " (no line packing)"));
+
+        int[] sizes = size >= 0 ? new int[] {size} : new int[] {GattCommandUtils.MAX_SAMPLES_PER_REQUEST, 0};
+        boolean[] modes = writes != null ? new boolean[] {writes.equals("noresponse")} : new boolean[] {false, true};
+
+        for (int s: sizes)
+        {
+            for (boolean withoutResponse: modes)
+            {
+                LinkBenchmark benchmark = new LinkBenchmark(s, target, withoutResponse);
+                SmartBallSimulator ball = benchmark.simulator;
+
+                ball.setLatency(latency);
+                ball.setJitter(jitter);
+                ball.setLossRate(loss);
+                ball.setReordering(reorder, 4.0 * interval);
+                ball.setPacketInterval(interval);
+                ball.setMtuSupport(Math.max(SmartBallConnection.DEFAULT_MTU, mtu), pack);
+
+                if (waveform != null)
+                    ball.setWaveform(waveform);
+
+                benchmark.run(seconds, mtu);
+            }
+        }
+    }
+}
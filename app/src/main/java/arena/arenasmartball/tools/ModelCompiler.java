@@ -0,0 +1,94 @@
+package arena.arenasmartball.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import arena.arenasmartball.correlation.NeuralNetworkModel;
+
+/**
+ * Command line tool that compiles neural networks in the trainer's text format into the binary format loaded by the
+ * Correlator. Run from a plain JVM whenever a model in res/raw is retrained:
+ * <pre>
+ * java arena.arenasmartball.tools.ModelCompiler app/src/main/res/raw/nn_hardsoft.txt app/src/main/res/raw/nn_hardsoft_model.bin
+ * </pre>
+ * Each compiled model is read back and checked against the text model before the tool exits.
+ */
+public class ModelCompiler
+{
+    /**
+     * Static class.
+     */
+    private ModelCompiler()
+    {   }
+
+    /**
+     * Compiles the given text model to the given binary file.
+     * @param textFile The model in the trainer's text format
+     * @param binaryFile The File to which to write the compiled model
+     * @return The compiled model
+     * @throws IOException If either File could not be accessed, or the compiled model does not match the text model
+     */
+    public static NeuralNetworkModel compile(File textFile, File binaryFile) throws IOException
+    {
+        NeuralNetworkModel model = NeuralNetworkModel.fromText(new FileInputStream(textFile));
+        OutputStream out = new FileOutputStream(binaryFile);
+
+        try
+        {
+            model.writeBinary(out);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // Verify the round trip
+        NeuralNetworkModel compiled = NeuralNetworkModel.fromBinary(new FileInputStream(binaryFile));
+        float[] input = new float[model.getNumInputs()];
+
+        for (int i = 0; i < input.length; ++i)
+            input[i] = (float) Math.sin(i + 1);
+
+        float[] expected = model.newSession(1).evaluate(input);
+        float[] actual = compiled.newSession(1).evaluate(input);
+
+        for (int i = 0; i < expected.length; ++i)
+        {
+            if (Float.floatToIntBits(expected[i]) != Float.floatToIntBits(actual[i]))
+                throw new IOException("Compiled model " + binaryFile.getName() + " does not match " + textFile.getName());
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Compiles pairs of text and binary model files given as arguments.
+     * @param args Alternating text model and binary output paths
+     */
+    public static void main(String[] args)
+    {
+        if (args.length == 0 || args.length % 2 != 0)
+        {
+            System.err.println("Usage: ModelCompiler <model.txt> <model.bin> [<model.txt> <model.bin> ...]");
+            System.exit(1);
+        }
+
+        for (int i = 0; i < args.length; i += 2)
+        {
+            try
+            {
+                NeuralNetworkModel model = compile(new File(args[i]), new File(args[i + 1]));
+                System.out.println(args[i] + " -> " + args[i + 1] + " (" + model.getNumInputs() + " inputs, " +
+                        model.getNumLayers() + " layers, " + new File(args[i + 1]).length() + " bytes)");
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error compiling " + args[i] + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * SmartBallLink recording the operations issued on it, for tests driving a SmartBallConnection and its
+ * GattCommandExecutor without the Android Bluetooth stack. The link answers nothing by itself: a test takes each
+ * issued Operation with next() and answers it, late or not at all, as a ball and the Bluetooth stack would.
+ */
+class FakeLink implements SmartBallLink
+{
+    /**
+     * The types of operation issued on a FakeLink.
+     */
+    enum Type
+    {
+        READ,
+        WRITE,
+        WRITE_WITHOUT_RESPONSE,
+        READ_DESCRIPTOR,
+        WRITE_DESCRIPTOR,
+        MTU,
+        RSSI
+    }
+
+    /**
+     * An operation issued on a FakeLink.
+     */
+    static class Operation
+    {
+        /** The type of this Operation. */
+        final Type TYPE;
+
+        /** The UUID of the characteristic accessed, or owning the descriptor accessed, or null. */
+        final UUID CHARACTERISTIC;
+
+        /** The UUID of the descriptor accessed, or null. */
+        final UUID DESCRIPTOR;
+
+        /** The value written, or null. */
+        final byte[] VALUE;
+
+        Operation(Type type, UUID characteristic, UUID descriptor, byte[] value)
+        {
+            TYPE = type;
+            CHARACTERISTIC = characteristic;
+            DESCRIPTOR = descriptor;
+            VALUE = value;
+        }
+
+        @Override
+        public String toString()
+        {
+            return TYPE + " " + CHARACTERISTIC;
+        }
+    }
+
+    /** The time to wait for an operation expected to be issued, in milliseconds. */
+    static final long TIMEOUT_MS = 2000L;
+
+    // The connection through which the link is connected
+    private final SmartBallConnection connection;
+
+    // The operations issued and not yet taken by next()
+    private final LinkedBlockingQueue<Operation> operations;
+
+    // Whether characteristics may be written without response
+    private volatile boolean writeWithoutResponse;
+
+    /**
+     * Creates a FakeLink and connects a new SmartBallConnection through it, without an MTU exchange.
+     */
+    FakeLink()
+    {
+        operations = new LinkedBlockingQueue<>();
+        connection = new SmartBallConnection((BluetoothDevice) null);
+        connection.setHighThroughputMode(false);
+        connection.setReconnectPolicy(null);
+        connection.connect(this);
+    }
+
+    /**
+     * Gets the SmartBallConnection connected through this FakeLink.
+     * @return The SmartBallConnection
+     */
+    SmartBallConnection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * Gets the SmartBall connected through this FakeLink.
+     * @return The SmartBall
+     */
+    SmartBall getSmartBall()
+    {
+        return connection.getSmartBall();
+    }
+
+    /**
+     * Sets whether characteristics may be written without response.
+     * @param writeWithoutResponse Whether characteristics allow writes without response
+     */
+    void setWriteWithoutResponseSupport(boolean writeWithoutResponse)
+    {
+        this.writeWithoutResponse = writeWithoutResponse;
+    }
+
+    /**
+     * Takes the next operation issued, failing if none is issued in time.
+     * @return The next Operation
+     */
+    Operation next() throws InterruptedException
+    {
+        Operation operation = operations.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Expected an operation to be issued", operation);
+        return operation;
+    }
+
+    /**
+     * Asserts that no operation is issued within the given time.
+     * @param waitMs The time to wait, in milliseconds
+     */
+    void assertNoOperation(long waitMs) throws InterruptedException
+    {
+        Operation operation = operations.poll(waitMs, TimeUnit.MILLISECONDS);
+        assertNull("Expected no operation, but was issued " + operation, operation);
+    }
+
+    /**
+     * Answers an operation successfully through the callback of the connection.
+     * @param operation The Operation to answer
+     */
+    void answer(Operation operation)
+    {
+        answer(operation, STATUS_SUCCESS);
+    }
+
+    /**
+     * Answers an operation through the callback of the connection.
+     * @param operation The Operation to answer
+     * @param status The status of the callback
+     */
+    void answer(Operation operation, int status)
+    {
+        Callback callback = connection.getLinkCallback();
+
+        switch (operation.TYPE)
+        {
+            case READ:
+                callback.onCharacteristicRead(operation.CHARACTERISTIC, new byte[] {0}, status);
+                break;
+            case WRITE:
+            case WRITE_WITHOUT_RESPONSE:
+                callback.onCharacteristicWrite(operation.CHARACTERISTIC, operation.VALUE, status);
+                break;
+            case READ_DESCRIPTOR:
+                callback.onDescriptorRead(operation.CHARACTERISTIC, operation.DESCRIPTOR, new byte[] {0, 0}, status);
+                break;
+            case WRITE_DESCRIPTOR:
+                callback.onDescriptorWrite(operation.CHARACTERISTIC, operation.DESCRIPTOR, operation.VALUE, status);
+                break;
+            case MTU:
+                callback.onMtuChanged(SmartBallConnection.DEFAULT_MTU, status);
+                break;
+            case RSSI:
+                callback.onRssiRead(-60, status);
+                break;
+        }
+    }
+
+    /**
+     * Closes the connection, releasing the threads of its SmartBall.
+     */
+    void close()
+    {
+        connection.disconnect();
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(UUID characteristic, boolean enabled)
+    {
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID characteristic)
+    {
+        return operations.add(new Operation(Type.READ, characteristic, null, null));
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value)
+    {
+        return operations.add(new Operation(Type.WRITE, characteristic, null, value));
+    }
+
+    @Override
+    public boolean canWriteWithoutResponse(UUID characteristic)
+    {
+        return writeWithoutResponse;
+    }
+
+    @Override
+    public boolean writeCharacteristicWithoutResponse(UUID characteristic, byte[] value)
+    {
+        return operations.add(new Operation(Type.WRITE_WITHOUT_RESPONSE, characteristic, null, value));
+    }
+
+    @Override
+    public boolean readDescriptor(UUID characteristic, UUID descriptor)
+    {
+        return operations.add(new Operation(Type.READ_DESCRIPTOR, characteristic, descriptor, null));
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value)
+    {
+        return operations.add(new Operation(Type.WRITE_DESCRIPTOR, characteristic, descriptor, value));
+    }
+
+    @Override
+    public boolean requestMtu(int mtu)
+    {
+        return operations.add(new Operation(Type.MTU, null, null, null));
+    }
+
+    @Override
+    public boolean readRssi()
+    {
+        return operations.add(new Operation(Type.RSSI, null, null, null));
+    }
+
+    @Override
+    public void disconnect()
+    {   }
+}
@@ -0,0 +1,317 @@
+package arena.arenasmartball.ball;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the deadlines, retries and late callback handling of the GattCommandExecutor of a SmartBall connected through
+ * a FakeLink, whose operations each test answers by hand, and the order in which its priority lanes begin, promote and
+ * preempt sequences.
+ */
+public class GattCommandExecutorTest
+{
+    // The timeout of commands expected to miss their deadline, in milliseconds
+    private static final long SHORT_TIMEOUT_MS = 30L;
+
+    // The time to wait for an event expected not to happen, in milliseconds
+    private static final long QUIET_MS = 150L;
+
+    // The link through which the SmartBall is connected
+    private FakeLink link;
+
+    // The executor under test
+    private GattCommandExecutor executor;
+
+    // The events of the sequences submitted, as "name event"
+    private LinkedBlockingQueue<String> events;
+
+    @Before
+    public void connect()
+    {
+        link = new FakeLink();
+        executor = link.getSmartBall().getCommandExecutor();
+        executor.setCallbackTimeout(FakeLink.TIMEOUT_MS);
+        executor.setRetryBackoff(1L);
+        events = new LinkedBlockingQueue<>();
+    }
+
+    @After
+    public void disconnect()
+    {
+        link.close();
+    }
+
+    @Test
+    public void callback_completesCommand() throws Exception
+    {
+        submit("write", write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+
+        FakeLink.Operation operation = link.next();
+        assertEquals(FakeLink.Type.WRITE, operation.TYPE);
+        assertEquals(Services.Characteristic.COMMAND_FIELD._UUID, operation.CHARACTERISTIC);
+        assertEvent("write BEGUN_EXECUTION");
+
+        link.answer(operation);
+        assertEvent("write FINISHED_EXECUTION");
+        assertTrue(executor.isIdle());
+    }
+
+    @Test
+    public void timeout_retriesThenTimesOut() throws Exception
+    {
+        submit("write", write(Services.Characteristic.COMMAND_FIELD, SHORT_TIMEOUT_MS, 2));
+
+        // The first attempt and two retries, none of which are answered
+        for (int i = 0; i < 3; ++i)
+            assertEquals(FakeLink.Type.WRITE, link.next().TYPE);
+
+        assertEvent("write BEGUN_EXECUTION");
+        assertEvent("write TIMED_OUT");
+        link.assertNoOperation(QUIET_MS);
+        assertTrue(executor.getStats().contains("timeouts = 3, retries = 2"));
+    }
+
+    @Test
+    public void timeout_callbackDuringBackoffCompletesCommand() throws Exception
+    {
+        executor.setRetryBackoff(FakeLink.TIMEOUT_MS);
+        submit("write", write(Services.Characteristic.COMMAND_FIELD, SHORT_TIMEOUT_MS, 1));
+
+        FakeLink.Operation operation = link.next();
+        assertEvent("write BEGUN_EXECUTION");
+
+        // Answered after the deadline, while waiting to retry
+        Thread.sleep(SHORT_TIMEOUT_MS * 3);
+        assertEquals(GattCommandExecutor.State.TIMED_OUT, executor.getState());
+        link.answer(operation);
+
+        assertEvent("write FINISHED_EXECUTION");
+        link.assertNoOperation(QUIET_MS);
+    }
+
+    @Test
+    public void lateCallback_doesNotCompleteNextCommand() throws Exception
+    {
+        submit("first", write(Services.Characteristic.COMMAND_FIELD, SHORT_TIMEOUT_MS, 0));
+        FakeLink.Operation late = link.next();
+        assertEvent("first BEGUN_EXECUTION");
+        assertEvent("first TIMED_OUT");
+
+        submit("second", write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+        FakeLink.Operation operation = link.next();
+        assertEvent("second BEGUN_EXECUTION");
+
+        // The callback of the first write is discarded
+        link.answer(late);
+        assertNoEvent();
+        assertEquals(GattCommandExecutor.State.AWAITING_CALLBACK, executor.getState());
+
+        link.answer(operation);
+        assertEvent("second FINISHED_EXECUTION");
+        assertTrue(executor.getStats().contains("stale callbacks = 1"));
+    }
+
+    @Test
+    public void lateCallback_droppedIsTakenFromNextCommand() throws Exception
+    {
+        submit("first", write(Services.Characteristic.COMMAND_FIELD, SHORT_TIMEOUT_MS, 0));
+        link.next();
+        assertEvent("first BEGUN_EXECUTION");
+        assertEvent("first TIMED_OUT");
+
+        // The callback of the first write never arrives, so the only callback answers the second
+        submit("second", write(Services.Characteristic.COMMAND_FIELD, SHORT_TIMEOUT_MS * 3, 0));
+        link.answer(link.next());
+
+        assertEvent("second BEGUN_EXECUTION");
+        assertEvent("second FINISHED_EXECUTION");
+    }
+
+    @Test
+    public void lateCallback_otherCharacteristicCompletesCommand() throws Exception
+    {
+        submit("first", write(Services.Characteristic.COMMAND_FIELD, SHORT_TIMEOUT_MS, 0));
+        link.next();
+        assertEvent("first BEGUN_EXECUTION");
+        assertEvent("first TIMED_OUT");
+
+        submit("second", write(Services.Characteristic.KICK_BIT, 0L, -1));
+        link.answer(link.next());
+
+        assertEvent("second BEGUN_EXECUTION");
+        assertEvent("second FINISHED_EXECUTION");
+    }
+
+    @Test
+    public void lanes_highestPriorityBegunFirst() throws Exception
+    {
+        submit("busy", GattCommandSequence.Priority.REAL_TIME, write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+        FakeLink.Operation operation = link.next();
+        assertEvent("busy BEGUN_EXECUTION");
+
+        submit("telemetry", GattCommandSequence.Priority.TELEMETRY, read(Services.Characteristic.BATTERY));
+        submit("control", write(Services.Characteristic.KICK_BIT, 0L, -1));
+        submit("realtime", GattCommandSequence.Priority.REAL_TIME,
+                write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+        link.answer(operation);
+        assertEvent("busy FINISHED_EXECUTION");
+
+        for (String name: new String[] {"realtime", "control", "telemetry"})
+        {
+            link.answer(link.next());
+            assertEvent(name + " BEGUN_EXECUTION");
+            assertEvent(name + " FINISHED_EXECUTION");
+        }
+    }
+
+    @Test
+    public void lanes_overdueSequencePromoted() throws Exception
+    {
+        submit("busy", GattCommandSequence.Priority.REAL_TIME, write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+        FakeLink.Operation operation = link.next();
+        assertEvent("busy BEGUN_EXECUTION");
+
+        // The CONTROL sequence waits past its limit, so it is begun ahead of the later REAL_TIME sequence
+        submit("control", write(Services.Characteristic.KICK_BIT, 0L, -1));
+        Thread.sleep(GattCommandSequence.Priority.CONTROL.MAX_WAIT_MS + QUIET_MS);
+        submit("realtime", GattCommandSequence.Priority.REAL_TIME,
+                write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+        link.answer(operation);
+        assertEvent("busy FINISHED_EXECUTION");
+
+        operation = link.next();
+        assertEquals(Services.Characteristic.KICK_BIT._UUID, operation.CHARACTERISTIC);
+        assertEvent("control BEGUN_EXECUTION");
+        link.answer(operation);
+        assertEvent("control FINISHED_EXECUTION");
+        assertEvent("realtime BEGUN_EXECUTION");
+
+        assertTrue(executor.getStats().contains("promotions = 1"));
+        assertTrue(executor.getMaxQueueWaitMs(GattCommandSequence.Priority.CONTROL) >=
+                GattCommandSequence.Priority.CONTROL.MAX_WAIT_MS);
+    }
+
+    @Test
+    public void preemption_suspendsTelemetryBetweenCommands() throws Exception
+    {
+        submit("telemetry", GattCommandSequence.Priority.TELEMETRY, read(Services.Characteristic.BATTERY),
+                read(Services.Characteristic.CHARGING_STATE));
+        FakeLink.Operation operation = link.next();
+        assertEvent("telemetry BEGUN_EXECUTION");
+
+        // The outstanding read is not interrupted, but the second waits for the REAL_TIME sequence
+        submit("realtime", GattCommandSequence.Priority.REAL_TIME,
+                write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+        link.assertNoOperation(QUIET_MS);
+        link.answer(operation);
+
+        operation = link.next();
+        assertEquals(Services.Characteristic.COMMAND_FIELD._UUID, operation.CHARACTERISTIC);
+        assertEvent("realtime BEGUN_EXECUTION");
+        link.answer(operation);
+        assertEvent("realtime FINISHED_EXECUTION");
+
+        // Resumed without a second BEGUN_EXECUTION
+        operation = link.next();
+        assertEquals(Services.Characteristic.CHARGING_STATE._UUID, operation.CHARACTERISTIC);
+        link.answer(operation);
+        assertEvent("telemetry FINISHED_EXECUTION");
+        assertTrue(executor.getStats().contains("preemptions = 1"));
+    }
+
+    @Test
+    public void preemption_controlNotSuspended() throws Exception
+    {
+        submit("control", write(Services.Characteristic.KICK_BIT, 0L, -1),
+                write(Services.Characteristic.SAMPLE_RATE, 0L, -1));
+        FakeLink.Operation operation = link.next();
+        assertEvent("control BEGUN_EXECUTION");
+
+        submit("realtime", GattCommandSequence.Priority.REAL_TIME,
+                write(Services.Characteristic.COMMAND_FIELD, 0L, -1));
+        link.answer(operation);
+
+        operation = link.next();
+        assertEquals(Services.Characteristic.SAMPLE_RATE._UUID, operation.CHARACTERISTIC);
+        link.answer(operation);
+        assertEvent("control FINISHED_EXECUTION");
+        assertEvent("realtime BEGUN_EXECUTION");
+        assertTrue(executor.getStats().contains("preemptions = 0"));
+    }
+
+    /*
+     * Creates a command reading a characteristic of the SmartBall.
+     */
+    private GattCommand<?> read(Services.Characteristic characteristic)
+    {
+        return new GattCommand.ReadGattCommand<>(link.getSmartBall().getCharacteristic(characteristic),
+                characteristic.name(), null);
+    }
+
+    /*
+     * Creates a command writing a characteristic of the SmartBall, with the given timeout, or 0, and retries, or -1,
+     * for the defaults of the executor.
+     */
+    private GattCommand<?> write(Services.Characteristic characteristic, long timeoutMs, int retries)
+    {
+        BluetoothGattCharacteristic gattCharacteristic = link.getSmartBall().getCharacteristic(characteristic);
+        GattCommand<?> command = new GattCommand.WriteGattCommand<>(gattCharacteristic, new byte[] {1});
+
+        command.setTimeout(timeoutMs);
+        command.setMaxRetries(retries);
+        return command;
+    }
+
+    /*
+     * Submits a sequence of CONTROL priority recording its events.
+     */
+    private void submit(String name, GattCommand<?>... commands)
+    {
+        submit(name, GattCommandSequence.Priority.CONTROL, commands);
+    }
+
+    /*
+     * Submits a sequence recording its events.
+     */
+    private void submit(String name, GattCommandSequence.Priority priority, GattCommand<?>... commands)
+    {
+        GattCommandSequence sequence = new GattCommandSequence(name, new GattCommandSequence.CommandSequenceCallback()
+        {
+            @Override
+            public void onCommandSequenceEvent(GattCommandSequence sequence, GattCommandSequence.Event event)
+            {
+                events.add(sequence.NAME + " " + event);
+            }
+        }, priority);
+
+        for (GattCommand<?> command: commands)
+            sequence.addCommand(command);
+
+        executor.submit(sequence);
+    }
+
+    /*
+     * Asserts that the next sequence event is the given one.
+     */
+    private void assertEvent(String expected) throws InterruptedException
+    {
+        assertEquals(expected, events.poll(FakeLink.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    /*
+     * Asserts that no sequence event happens for a while.
+     */
+    private void assertNoEvent() throws InterruptedException
+    {
+        String event = events.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+        assertNull("Expected no event, but was " + event, event);
+    }
+}
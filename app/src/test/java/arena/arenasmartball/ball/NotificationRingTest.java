@@ -0,0 +1,213 @@
+package arena.arenasmartball.ball;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a NotificationRing hands notifications to its consumer in order as its slots wrap, drops them while
+ * full, and wakes its parked consumer thread for each notification.
+ */
+public class NotificationRingTest
+{
+    // The number of slots of the rings tested
+    private static final int CAPACITY = 4;
+
+    // The time to wait for a notification to be consumed, in milliseconds
+    private static final long TIMEOUT_MS = 2000L;
+
+    // The notifications consumed, copied
+    private LinkedBlockingQueue<byte[]> consumed;
+
+    // The Consumer recording into consumed
+    private NotificationRing.Consumer recorder;
+
+    // The ring under test
+    private NotificationRing ring;
+
+    @Before
+    public void createRing()
+    {
+        consumed = new LinkedBlockingQueue<>();
+        recorder = new NotificationRing.Consumer()
+        {
+            @Override
+            public void onNotification(byte[] buffer, int length)
+            {
+                consumed.add(Arrays.copyOf(buffer, length));
+            }
+        };
+
+        ring = new NotificationRing("NotificationRingTest", CAPACITY, recorder);
+    }
+
+    @After
+    public void shutdownRing()
+    {
+        ring.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_rejectsCapacityNotPowerOfTwo()
+    {
+        new NotificationRing("NotificationRingTest", 6, recorder);
+    }
+
+    @Test
+    public void offer_wrapsInOrder() throws Exception
+    {
+        int count = CAPACITY * 50;
+
+        for (int i = 0; i < count; ++i)
+        {
+            // Never overflow, so that every notification passes through each slot in turn
+            while (ring.getOccupancy() == CAPACITY)
+                Thread.yield();
+
+            assertTrue(ring.offer(createNotification(i)));
+        }
+
+        for (int i = 0; i < count; ++i)
+            assertArrayEquals(createNotification(i), consumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(0L, ring.getOverflowCount());
+        assertEquals(0, ring.getOccupancy());
+    }
+
+    @Test
+    public void offer_dropsWhileFull() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        ring = new NotificationRing("NotificationRingTest", CAPACITY, new NotificationRing.Consumer()
+        {
+            @Override
+            public void onNotification(byte[] buffer, int length)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ignore)
+                {   }
+
+                recorder.onNotification(buffer, length);
+            }
+        });
+
+        // The first notification holds its slot until released, so the ring fills
+        for (int i = 0; i < CAPACITY; ++i)
+            assertTrue(ring.offer(createNotification(i)));
+
+        assertFalse(ring.offer(createNotification(CAPACITY)));
+        assertEquals(1L, ring.getOverflowCount());
+        assertEquals(CAPACITY, ring.getMaxOccupancy());
+
+        release.countDown();
+
+        for (int i = 0; i < CAPACITY; ++i)
+            assertArrayEquals(createNotification(i), consumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertTrue(ring.offer(createNotification(CAPACITY + 1)));
+        assertArrayEquals(createNotification(CAPACITY + 1), consumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void offer_dropsTooLongNotification()
+    {
+        assertFalse(ring.offer(new byte[NotificationRing.MAX_VALUE_LENGTH + 1]));
+        assertEquals(1L, ring.getOverflowCount());
+    }
+
+    @Test
+    public void offer_wakesParkedConsumer() throws Exception
+    {
+        for (int i = 0; i < 200; ++i)
+        {
+            // Offered as the consumer runs out of notifications and parks, and after it has parked
+            if (i % 20 == 0)
+                Thread.sleep(10L);
+
+            assertTrue(ring.offer(createNotification(i)));
+            assertArrayEquals("Notification " + i, createNotification(i),
+                    consumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void shutdown_laterNotificationStartsNewConsumer() throws Exception
+    {
+        assertTrue(ring.offer(createNotification(0)));
+        assertArrayEquals(createNotification(0), consumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        ring.shutdown();
+
+        // The stopped consumer may not have released the slot of the first notification yet
+        for (int i = 1; i < CAPACITY; ++i)
+            assertTrue(ring.offer(createNotification(i)));
+
+        for (int i = 1; i < CAPACITY; ++i)
+            assertArrayEquals(createNotification(i), consumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void executor_consumesInOrder() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final LinkedBlockingQueue<byte[]> otherConsumed = new LinkedBlockingQueue<>();
+        NotificationRing other = new NotificationRing("Other", CAPACITY, new NotificationRing.Consumer()
+        {
+            @Override
+            public void onNotification(byte[] buffer, int length)
+            {
+                otherConsumed.add(Arrays.copyOf(buffer, length));
+            }
+        });
+
+        ring.setExecutor(executor);
+        other.setExecutor(executor);
+
+        try
+        {
+            for (int i = 0; i < CAPACITY * 50; ++i)
+            {
+                while (ring.getOccupancy() == CAPACITY || other.getOccupancy() == CAPACITY)
+                    Thread.yield();
+
+                assertTrue(ring.offer(createNotification(i)));
+                assertTrue(other.offer(createNotification(-i)));
+            }
+
+            for (int i = 0; i < CAPACITY * 50; ++i)
+            {
+                assertArrayEquals(createNotification(i), consumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                assertArrayEquals(createNotification(-i), otherConsumed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /*
+     * Creates a notification whose length and content depend on its index.
+     */
+    private static byte[] createNotification(int index)
+    {
+        byte[] notification = new byte[1 + Math.abs(index) % SmartBallProtocol.LINE_LENGTH];
+
+        for (int i = 0; i < notification.length; ++i)
+            notification[i] = (byte) (index + i);
+
+        return notification;
+    }
+}
@@ -0,0 +1,93 @@
+package arena.arenasmartball.ball;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the backoff and jitter of the delays drawn by a ReconnectPolicy.
+ */
+public class ReconnectPolicyTest
+{
+    // The policy under test: 250 ms doubling up to 8 s
+    private static final ReconnectPolicy POLICY = new ReconnectPolicy(250L, 8000L, 10);
+
+    @Test
+    public void delay_doublesUpToLimit()
+    {
+        long[] bounds = {250L, 500L, 1000L, 2000L, 4000L, 8000L, 8000L, 8000L};
+
+        for (int attempt = 0; attempt < bounds.length; ++attempt)
+        {
+            assertEquals("Shortest delay of attempt " + attempt, bounds[attempt] / 2L,
+                    POLICY.getDelayMs(attempt, new FixedRandom(0.0)));
+            assertEquals("Longest delay of attempt " + attempt, bounds[attempt] - 1L,
+                    POLICY.getDelayMs(attempt, new FixedRandom(0.999999)));
+        }
+    }
+
+    @Test
+    public void delay_boundedForLateAttempts()
+    {
+        for (int attempt: new int[] {16, 17, 63, 64, Integer.MAX_VALUE})
+        {
+            long delay = POLICY.getDelayMs(attempt, new FixedRandom(0.5));
+            assertEquals("Delay of attempt " + attempt, 6000L, delay);
+        }
+    }
+
+    @Test
+    public void delay_jittered()
+    {
+        Random random = new Random(46L);
+        Set<Long> delays = new HashSet<>();
+
+        for (int i = 0; i < 100; ++i)
+        {
+            long delay = POLICY.getDelayMs(3, random);
+
+            assertTrue("Delay " + delay + " below half the bound", delay >= 1000L);
+            assertTrue("Delay " + delay + " above the bound", delay < 2000L);
+            delays.add(delay);
+        }
+
+        // Balls losing their connections together do not all retry in step
+        assertTrue(delays.size() > 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_rejectsLimitBelowInitialDelay()
+    {
+        new ReconnectPolicy(1000L, 500L, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_rejectsNoAttempts()
+    {
+        new ReconnectPolicy(250L, 8000L, 0);
+    }
+
+    /*
+     * Random always drawing the same double.
+     */
+    private static class FixedRandom extends Random
+    {
+        // The value drawn
+        private final double value;
+
+        FixedRandom(double value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble()
+        {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package arena.arenasmartball.ball;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the request sizes chosen by a TransferSizeController from transfers timed by hand.
+ */
+public class TransferSizeControllerTest
+{
+    // The smallest and largest request sizes
+    private static final int MIN_SAMPLES = 100, MAX_SAMPLES = 4000;
+
+    // The tolerance of measured times and rates
+    private static final double DELTA = 1e-6;
+
+    // The System.nanoTime() of the first request of each test, arbitrary but nonzero
+    private static final long START_NANOS = 1000000000L;
+
+    @Test
+    public void nextRequestSize_largestBeforeMeasurement()
+    {
+        TransferSizeController controller = new TransferSizeController(MIN_SAMPLES, MAX_SAMPLES, 250.0);
+
+        assertEquals(MAX_SAMPLES, controller.nextRequestSize());
+        assertTrue(Double.isNaN(controller.getRoundTripMs()));
+        assertTrue(Double.isNaN(controller.getSamplesPerSecond()));
+    }
+
+    @Test
+    public void nextRequestSize_meetsLatencyTarget()
+    {
+        TransferSizeController controller = new TransferSizeController(MIN_SAMPLES, MAX_SAMPLES, 250.0);
+
+        // A round trip of 50 ms, then 1000 samples in 100 ms
+        transfer(controller, START_NANOS, 50.0, 1000, 100.0);
+
+        assertEquals(50.0, controller.getRoundTripMs(), DELTA);
+        assertEquals(10000.0, controller.getSamplesPerSecond(), DELTA);
+        assertEquals((250 - 50) * 10, controller.nextRequestSize());
+    }
+
+    @Test
+    public void nextRequestSize_clampedToRange()
+    {
+        TransferSizeController controller = new TransferSizeController(MIN_SAMPLES, MAX_SAMPLES, 250.0);
+        transfer(controller, START_NANOS, 50.0, 1000, 100.0);
+
+        // The round trip alone exceeds the target
+        controller.setTargetLatency(40.0);
+        assertEquals(MIN_SAMPLES, controller.nextRequestSize());
+
+        controller.setTargetLatency(10000.0);
+        assertEquals(MAX_SAMPLES, controller.nextRequestSize());
+    }
+
+    @Test
+    public void measurements_smoothed()
+    {
+        TransferSizeController controller = new TransferSizeController(MIN_SAMPLES, MAX_SAMPLES, 250.0);
+        transfer(controller, START_NANOS, 50.0, 1000, 100.0);
+        transfer(controller, START_NANOS * 2, 90.0, 1000, 50.0);
+
+        // Each new measurement moves the averages a quarter of the way
+        assertEquals(60.0, controller.getRoundTripMs(), DELTA);
+        assertEquals(12500.0, controller.getSamplesPerSecond(), DELTA);
+    }
+
+    @Test
+    public void measurements_ignoreUnmatchedEvents()
+    {
+        TransferSizeController controller = new TransferSizeController(MIN_SAMPLES, MAX_SAMPLES, 250.0);
+
+        // A transfer without a request, and the end of a transfer without samples
+        controller.onTransferStarted(START_NANOS);
+        controller.onTransferEnded(START_NANOS + 1000000L, 0);
+        controller.onTransferEnded(START_NANOS + 2000000L, 1000);
+
+        assertTrue(Double.isNaN(controller.getRoundTripMs()));
+        assertTrue(Double.isNaN(controller.getSamplesPerSecond()));
+        assertEquals(MAX_SAMPLES, controller.nextRequestSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_rejectsEmptyRange()
+    {
+        new TransferSizeController(MAX_SAMPLES, MIN_SAMPLES, 250.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setTargetLatency_rejectsNonPositive()
+    {
+        new TransferSizeController(MIN_SAMPLES, MAX_SAMPLES, 250.0).setTargetLatency(0.0);
+    }
+
+    /*
+     * Records a request issued at the given time, its first notification after the given round trip, and its last
+     * after the given duration.
+     */
+    private static void transfer(TransferSizeController controller, long requestNanos, double roundTripMs,
+                                 int numSamples, double durationMs)
+    {
+        long startNanos = requestNanos + (long) (roundTripMs * 1e6);
+
+        controller.onRequestIssued(requestNanos);
+        controller.onTransferStarted(startNanos);
+        controller.onTransferEnded(startNanos + (long) (durationMs * 1e6), numSamples);
+    }
+}
@@ -0,0 +1,160 @@
+package arena.arenasmartball.correlation;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import arena.arenasmartball.data.ImpactData;
+import arena.arenasmartball.data.ImpactRegionExtractor;
+import arena.arenasmartball.data.Sample;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bounds the deviation of fixed point inference from floating point inference over impacts run through the full
+ * region and feature extraction pipeline.
+ */
+public class QuantizedNetworkModelTest
+{
+    // The number of impacts to classify
+    private static final int NUM_IMPACTS = 60;
+
+    // The number of samples in each impact, as requested from the ball
+    private static final int NUM_SAMPLES = 1096;
+
+    // The FeatureSets of every impact region found
+    private static List<FeatureSet> features;
+
+    @BeforeClass
+    public static void loadModelsAndImpacts() throws Exception
+    {
+        File raw = findRawResources();
+        Correlator.initialize(new FileInputStream(new File(raw, "nn_hardsoft.txt")),
+                new FileInputStream(new File(raw, "nn_hitdrop.txt")));
+
+        features = new ArrayList<>();
+        Random random = new Random(20160417L);
+
+        for (int i = 0; i < NUM_IMPACTS; ++i)
+        {
+            ImpactData data = createImpact(random);
+
+            for (ImpactRegionExtractor.ImpactRegion region: ImpactRegionExtractor.findImpactRegions(data))
+                features.add(Correlator.extractFeatures(data.toDataSeriesFeaturable(region)));
+        }
+
+        assertTrue("Expected impact regions to be found", features.size() >= NUM_IMPACTS);
+    }
+
+    @After
+    public void restorePrecision()
+    {
+        Correlator.setPrecision(null);
+    }
+
+    @Test
+    public void int16_matchesFloat() throws Exception
+    {
+        assertDeviation(QuantizedNetworkModel.Precision.INT16, 0.005, 0.001, 1.0);
+    }
+
+    @Test
+    public void int8_matchesFloat() throws Exception
+    {
+        assertDeviation(QuantizedNetworkModel.Precision.INT8, 0.2, 0.01, 0.95);
+    }
+
+    @Test
+    public void session_matchesModel() throws Exception
+    {
+        NeuralNetworkModel model = NeuralNetworkModel.fromText(new FileInputStream(new File(findRawResources(), "nn_hitdrop.txt")));
+        QuantizedNetworkModel quantized = new QuantizedNetworkModel(model, QuantizedNetworkModel.Precision.INT16);
+        InferenceModel.Session session = quantized.newSession(4);
+        Random random = new Random(1L);
+        float[] input = new float[model.getNumInputs()];
+
+        for (int i = 0; i < 100; ++i)
+        {
+            for (int j = 0; j < input.length; ++j)
+                input[j] = (float) random.nextGaussian();
+
+            assertEquals(model.newSession(1).evaluate(input)[0], session.evaluate(input)[0], 0.005);
+        }
+    }
+
+    /*
+     * Asserts the maximum and mean absolute deviation of the given precision from floating point, and the fraction of
+     * outputs falling on the same side of 0.5.
+     */
+    private static void assertDeviation(QuantizedNetworkModel.Precision precision, double maxDeviation,
+                                        double maxMeanDeviation, double minAgreement)
+    {
+        Correlator.setPrecision(null);
+        double[][] expected = Correlator.evaluate(features);
+
+        Correlator.setPrecision(precision);
+        double[][] actual = Correlator.evaluate(features);
+
+        double max = 0.0, sum = 0.0, deviation;
+        int count = 0, agree = 0;
+
+        for (int i = 0; i < expected.length; ++i)
+        {
+            for (int j = 0; j < expected[i].length; ++j)
+            {
+                assertFalse("Non-finite float output", Double.isNaN(expected[i][j]) || Double.isInfinite(expected[i][j]));
+
+                deviation = Math.abs(expected[i][j] - actual[i][j]);
+                max = Math.max(max, deviation);
+                sum += deviation;
+                ++count;
+
+                if ((expected[i][j] >= 0.5) == (actual[i][j] >= 0.5))
+                    ++agree;
+            }
+        }
+
+        assertTrue(precision + " max deviation " + max, max <= maxDeviation);
+        assertTrue(precision + " mean deviation " + sum / count, sum / count <= maxMeanDeviation);
+        assertTrue(precision + " agreement " + (double) agree / count, (double) agree / count >= minAgreement);
+    }
+
+    /*
+     * Creates an impact of a damped oscillation with noise, with randomized amplitude, frequency, decay and onset.
+     */
+    private static ImpactData createImpact(Random random)
+    {
+        ImpactData data = new ImpactData(NUM_SAMPLES);
+        double amplitude = 2000.0 + random.nextDouble() * 14000.0;
+        double frequency = 0.05 + random.nextDouble() * 0.6;
+        double decay = 10.0 + random.nextDouble() * 80.0;
+        int onset = 100 + random.nextInt(200);
+        double envelope;
+
+        for (int i = 0; i < NUM_SAMPLES; ++i)
+        {
+            envelope = i < onset ? 0.0 : Math.exp(-(i - onset) / decay);
+            data.onNewSample(new Sample(i * Sample.SAMPLE_PERIOD,
+                    (int) (amplitude * envelope * Math.sin(i * frequency) + random.nextGaussian() * 20.0),
+                    (int) (0.7 * amplitude * envelope * Math.cos(i * frequency * 1.3) + random.nextGaussian() * 20.0),
+                    (int) (500.0 + 0.4 * amplitude * envelope * Math.sin(i * frequency * 0.7) + random.nextGaussian() * 20.0)));
+        }
+
+        return data;
+    }
+
+    /*
+     * Finds the raw resource directory, relative to either the module or the project.
+     */
+    private static File findRawResources()
+    {
+        File raw = new File("src/main/res/raw");
+        return raw.isDirectory() ? raw : new File("app/src/main/res/raw");
+    }
+}
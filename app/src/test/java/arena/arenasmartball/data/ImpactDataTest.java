@@ -0,0 +1,200 @@
+package arena.arenasmartball.data;
+
+import org.junit.Test;
+
+import arena.arenasmartball.ball.SmartBallProtocol;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the line sequence checking of ImpactData and the splicing of ranges received again into its Samples.
+ */
+public class ImpactDataTest
+{
+    // The number of samples in each line of absolute samples
+    private static final int SAMPLES_PER_LINE = 3;
+
+    @Test
+    public void sequence_wrapsAfter255Lines()
+    {
+        int numLines = 300;
+        ImpactData data = new ImpactData(numLines * SAMPLES_PER_LINE);
+        data.beginRange(0);
+
+        for (int line = 0; line < numLines; ++line)
+            data.addLine(createLine(line, line * SAMPLES_PER_LINE, 0));
+
+        assertEquals(-1, data.getFirstLostSample());
+        assertEquals(numLines * SAMPLES_PER_LINE, data.getNumSamples());
+        assertSamples(data, 0, numLines * SAMPLES_PER_LINE, 0);
+    }
+
+    @Test
+    public void sequence_gapDiscardsFollowingLines()
+    {
+        ImpactData data = new ImpactData(-1);
+        data.beginRange(0);
+
+        for (int line = 0; line < 10; ++line)
+            if (line != 5)
+                data.addLine(createLine(line, line * SAMPLES_PER_LINE, 0));
+
+        assertEquals(5 * SAMPLES_PER_LINE, data.getFirstLostSample());
+        assertEquals(5 * SAMPLES_PER_LINE, data.getNumSamples());
+    }
+
+    @Test
+    public void sequence_gapAfterWrapIsFound()
+    {
+        ImpactData data = new ImpactData(-1);
+        data.beginRange(0);
+
+        for (int line = 0; line < 270; ++line)
+            if (line != 260)
+                data.addLine(createLine(line, line * SAMPLES_PER_LINE, 0));
+
+        assertEquals(260 * SAMPLES_PER_LINE, data.getFirstLostSample());
+    }
+
+    @Test
+    public void sequence_notCheckedWithoutNumberedLines()
+    {
+        ImpactData data = new ImpactData(-1);
+        data.beginRange(0);
+
+        for (int line = 0; line < 10; ++line)
+            data.addLine(createLine(7, line * SAMPLES_PER_LINE, 0));
+
+        assertEquals(-1, data.getFirstLostSample());
+        assertEquals(10 * SAMPLES_PER_LINE, data.getNumSamples());
+    }
+
+    @Test
+    public void beginRange_splicesOverlappingSamples()
+    {
+        ImpactData data = new ImpactData(120);
+        receive(data, 0, 30, 0);
+
+        // Receive samples 30 to 59 again, with other values
+        receive(data, 30, 10, 1000);
+
+        assertEquals(90, data.getNumSamples());
+        assertSamples(data, 0, 30, 0);
+        assertSamples(data, 30, 60, 1000);
+        assertSamples(data, 60, 90, 0);
+        assertEquals(-1, data.getFirstLostSample());
+    }
+
+    @Test
+    public void beginRange_appendsPastLastSample()
+    {
+        ImpactData data = new ImpactData(120);
+        receive(data, 0, 30, 0);
+
+        // Receive samples 84 to 98, the last 6 of which are new
+        receive(data, 84, 5, 2000);
+
+        assertEquals(99, data.getNumSamples());
+        assertSamples(data, 0, 84, 0);
+        assertSamples(data, 84, 99, 2000);
+    }
+
+    @Test
+    public void beginRange_gapKeepsUnreplacedSamples()
+    {
+        ImpactData data = new ImpactData(120);
+        receive(data, 0, 30, 0);
+
+        data.beginRange(30);
+        data.addLine(createLine(0, 30, 1000));
+        data.addLine(createLine(2, 36, 1000));
+
+        assertEquals(33, data.getFirstLostSample());
+        assertEquals(90, data.getNumSamples());
+        assertSamples(data, 30, 33, 1000);
+        assertSamples(data, 33, 90, 0);
+    }
+
+    @Test
+    public void nextSample_followsReceivedLines()
+    {
+        ImpactData data = new ImpactData(120);
+        receive(data, 0, 30, 0);
+
+        // An interrupted range resumes after its last received line
+        receive(data, 30, 4, 1000);
+        assertEquals(42, data.getNextSample());
+
+        receive(data, data.getNextSample(), 6, 1000);
+        assertEquals(90, data.getNumSamples());
+        assertSamples(data, 30, 60, 1000);
+        assertSamples(data, 60, 90, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void beginRange_rejectsRangeAfterLastSample()
+    {
+        ImpactData data = new ImpactData(120);
+        receive(data, 0, 2, 0);
+
+        data.beginRange(7);
+    }
+
+    /*
+     * Receives a range of lines of absolute samples, numbered from 0.
+     */
+    private static void receive(ImpactData data, int firstSample, int numLines, int offset)
+    {
+        data.beginRange(firstSample);
+
+        for (int line = 0; line < numLines; ++line)
+            data.addLine(createLine(line, firstSample + line * SAMPLES_PER_LINE, offset));
+    }
+
+    /*
+     * Creates a line of type 2 data holding three absolute samples, as sent by the firmware: the sequence number in
+     * the first byte, and the low bits of the second byte left clear.
+     */
+    private static byte[] createLine(int sequence, int firstSample, int offset)
+    {
+        byte[] line = new byte[SmartBallProtocol.LINE_LENGTH];
+        line[0] = (byte) sequence;
+
+        for (int group = 0; group < SAMPLES_PER_LINE; ++group)
+        {
+            short[] xyz = getSample(firstSample + group, offset);
+
+            for (int j = 0; j < 3; ++j)
+            {
+                line[2 + group * 6 + j * 2] = (byte) (xyz[j] & 0xFF);
+                line[2 + group * 6 + j * 2 + 1] = (byte) ((xyz[j] >> 8) & 0xFF);
+            }
+        }
+
+        return line;
+    }
+
+    /*
+     * Gets the axes of a sample, which differ for each index and offset.
+     */
+    private static short[] getSample(int index, int offset)
+    {
+        return new short[] {(short) (index + offset), (short) (-index - offset), (short) (2 * index + offset)};
+    }
+
+    /*
+     * Asserts the Samples in a range of an ImpactData hold the axes of getSample().
+     */
+    private static void assertSamples(ImpactData data, int from, int to, int offset)
+    {
+        for (int i = from; i < to; ++i)
+        {
+            short[] xyz = getSample(i, offset);
+            Sample sample = data.SAMPLES.get(i);
+
+            assertEquals("x of sample " + i, xyz[0], sample.x);
+            assertEquals("y of sample " + i, xyz[1], sample.y);
+            assertEquals("z of sample " + i, xyz[2], sample.z);
+        }
+    }
+}